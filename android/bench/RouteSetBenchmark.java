@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.uproxy.tun2socks.RouteSet;
+
+// Times RouteSet.parse and RouteSet.complement on excludedRoutes lists of
+// the size of country or provider block lists.
+public class RouteSetBenchmark {
+
+  private static final int[] SIZES = {100, 1000, 10000, 50000};
+  private static final int RUNS = 5;
+
+  public static void main(String[] args) {
+    Random random = new Random(1);
+    System.out.println("prefixes  parse_ms  complement_ms  routes");
+    for (int size : SIZES) {
+      List<String> cidrs = randomCidrs(random, size);
+      long parseNanos = Long.MAX_VALUE;
+      long complementNanos = Long.MAX_VALUE;
+      int routes = 0;
+      for (int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        List<RouteSet.Route> excluded = new ArrayList<RouteSet.Route>();
+        for (String cidr : cidrs) {
+          excluded.add(RouteSet.parse(cidr));
+        }
+        long parsed = System.nanoTime();
+        routes = RouteSet.complement(excluded, false).size()
+            + RouteSet.complement(excluded, true).size();
+        long done = System.nanoTime();
+        parseNanos = Math.min(parseNanos, parsed - start);
+        complementNanos = Math.min(complementNanos, done - parsed);
+      }
+      System.out.printf(
+          "%8d  %8.1f  %13.1f  %6d%n",
+          size, parseNanos / 1e6, complementNanos / 1e6, routes);
+    }
+  }
+
+  // Mostly IPv4 prefixes of /12 to /24, like published block lists, with one
+  // in ten IPv6.
+  private static List<String> randomCidrs(Random random, int size) {
+    List<String> cidrs = new ArrayList<String>();
+    for (int i = 0; i < size; i++) {
+      if (random.nextInt(10) == 0) {
+        cidrs.add(String.format(
+            "2%03x:%x:%x::/%d",
+            random.nextInt(0x1000),
+            random.nextInt(0x10000),
+            random.nextInt(0x10000),
+            24 + random.nextInt(25)));
+      } else {
+        cidrs.add(String.format(
+            "%d.%d.%d.0/%d",
+            1 + random.nextInt(223),
+            random.nextInt(256),
+            random.nextInt(256),
+            12 + random.nextInt(13)));
+      }
+    }
+    return cidrs;
+  }
+}
@@ -0,0 +1,20 @@
+#!/bin/bash
+# Builds libtun2socks.so and the harness for the host, from the sources and
+# flags in android/jni/Android.mk, into android/bench/out.
+set -e
+BENCH=$(cd "$(dirname "$0")" && pwd)
+JNI=$BENCH/../jni
+OUT=$BENCH/out
+JAVA_INCLUDE=${JAVA_HOME:?set JAVA_HOME to a JDK}/include
+mkdir -p "$OUT"
+
+SRCS=$(awk '/^LOCAL_SRC_FILES/ {f = 1; next} f && /^include/ {f = 0} f {gsub(/\\/, ""); print}' "$JNI/Android.mk")
+CFLAGS=$(awk -F ':= |\\+= ' '/^LOCAL_CFLAGS/ {print $2}' "$JNI/Android.mk" | tr '\n' ' ')
+
+cd "$JNI"
+gcc -O2 -DNDEBUG -fPIC -shared -w $CFLAGS \
+    -I. -Ilwip/src/include/ipv4 -Ilwip/src/include/ipv6 -Ilwip/src/include -Ilwip/custom \
+    -I"$JAVA_INCLUDE" -I"$JAVA_INCLUDE/linux" \
+    $SRCS -o "$OUT/libtun2socks.so" -lpthread -lrt
+gcc -O2 -Wall -I"$JAVA_INCLUDE" -I"$JAVA_INCLUDE/linux" \
+    "$BENCH/harness.c" -o "$OUT/harness" -ldl -lpthread
@@ -0,0 +1,26 @@
+# Shared by the benchmark scripts: runs one measurement against a SOCKS test
+# server and a harness running tun2socks. Needs root, for the tun device.
+
+BENCH=$(cd "$(dirname "$0")" && pwd)
+SOCKS_PORT=${SOCKS_PORT:-11080}
+export LIB=${LIB:-$BENCH/out/libtun2socks.so}
+
+# run_measurement <seconds> <client command...>: prints the client's output.
+run_measurement () {
+    local seconds=$1
+    shift
+    python3 "$BENCH/socks_server.py" $SOCKS_PORT &
+    local server=$!
+    sleep 0.3
+    "$BENCH/out/harness" $(( seconds + 2 )) 127.0.0.1:$SOCKS_PORT > "$BENCH/out/harness.log" 2>&1 &
+    local harness=$!
+    # wait for tun2socks to run
+    for i in $(seq 50); do
+        grep -q READY "$BENCH/out/harness.log" && break
+        sleep 0.1
+    done
+    timeout $(( seconds + 5 )) "$@"
+    wait $harness
+    kill $server
+    wait $server 2> /dev/null
+}
@@ -0,0 +1,94 @@
+"""Measures the latency of DNS queries through the tunnel.
+
+usage: dns_latency.py [downloads [seconds]]
+
+Sends one query every 5 ms to the resolver address while |downloads|
+connections pull data as fast as they can, and prints latency percentiles.
+Each query asks for a new name.
+"""
+
+import multiprocessing
+import random
+import socket
+import struct
+import sys
+import time
+
+SERVER = '10.77.0.9'
+RESOLVER = '10.77.0.53'
+INTERVAL = 0.005
+WARMUP = 1.0
+
+
+def download(seconds, totals):
+    conn = socket.create_connection((SERVER, 19), timeout=10)
+    end = time.time() + seconds
+    received = 0
+    try:
+        while time.time() < end:
+            data = conn.recv(262144)
+            if not data:
+                break
+            received += len(data)
+    except socket.timeout:
+        pass
+    conn.close()
+    totals.put(received)
+
+
+def query(sock, name):
+    qid = random.randrange(65536)
+    packet = struct.pack('>HHHHHH', qid, 0x0100, 1, 0, 0, 0)
+    for label in name.split('.'):
+        packet += bytes([len(label)]) + label.encode()
+    packet += b'\0' + struct.pack('>HH', 1, 1)
+    start = time.perf_counter()
+    sock.sendto(packet, (RESOLVER, 53))
+    while True:
+        try:
+            answer = sock.recv(4096)
+        except socket.timeout:
+            return None
+        # skip late answers to earlier queries
+        if answer[:2] == packet[:2]:
+            return (time.perf_counter() - start) * 1000
+
+
+def main():
+    downloads = int(sys.argv[1]) if len(sys.argv) > 1 else 8
+    seconds = float(sys.argv[2]) if len(sys.argv) > 2 else 8
+    totals = multiprocessing.Queue()
+    workers = [multiprocessing.Process(target=download, args=(WARMUP + seconds, totals))
+               for _ in range(downloads)]
+    for worker in workers:
+        worker.start()
+    time.sleep(WARMUP)
+
+    sock = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    sock.settimeout(2)
+    latencies = []
+    lost = 0
+    start = time.time()
+    while time.time() - start < seconds:
+        latency = query(sock, 'n%d.example' % random.randrange(10 ** 9))
+        if latency is None:
+            lost += 1
+        else:
+            latencies.append(latency)
+        time.sleep(INTERVAL)
+    received = sum(totals.get() for _ in workers)
+    for worker in workers:
+        worker.join()
+
+    latencies.sort()
+
+    def percentile(p):
+        return latencies[min(len(latencies) - 1, int(len(latencies) * p))]
+
+    print('%d queries, %d lost, p50 %.2f p90 %.2f p99 %.2f max %.2f ms, download %.0f Mbit/s' % (
+        len(latencies), lost, percentile(.5), percentile(.9), percentile(.99), latencies[-1],
+        received * 8 / (WARMUP + seconds) / 1e6))
+
+
+if __name__ == '__main__':
+    main()
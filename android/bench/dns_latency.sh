@@ -0,0 +1,17 @@
+#!/bin/bash
+# Latency of transparent DNS queries through tun2socks, with the tunnel idle
+# and while parallel downloads keep it busy.
+#
+# usage: dns_latency.sh [downloads [runs]]   (default 8 downloads, 3 runs)
+
+. "$(dirname "$0")/common.sh"
+
+DOWNLOADS=${1:-8}
+RUNS=${2:-3}
+export TRANSPARENT_DNS=1
+
+for downloads in 0 $DOWNLOADS; do
+    for run in $(seq $RUNS); do
+        echo "$downloads downloads: $(run_measurement 10 python3 "$BENCH/dns_latency.py" $downloads 8)"
+    done
+done
@@ -0,0 +1,377 @@
+/*
+ * Runs libtun2socks.so on a Linux tun device, for the benchmarks in this
+ * directory. The library is driven through its JNI entry points with a
+ * minimal JNIEnv, so it runs the same code as on Android.
+ *
+ * usage: harness <seconds> <SOCKS server address>
+ *
+ * The tun device t2s0 gets 10.77.0.1/24, and tun2socks sits at 10.77.0.2
+ * with the DNS resolver at 10.77.0.53. The UDP relay is the SOCKS server
+ * address. Settings from the environment:
+ *   LIB              library to load (default out/libtun2socks.so)
+ *   DELAY            one-way delay in milliseconds added between the tun
+ *                    device and tun2socks, to emulate a longer round trip
+ *   TCP_WINDOW       tcpWindow, 0 for the default
+ *   TCP_SEND_BUFFER  tcpSendBuffer, 0 for the default
+ *   TRANSPARENT_DNS  1 to forward DNS to the UDP relay
+ *   VERBOSE          1 to print the tun2socks log
+ *
+ * Prints READY once tun2socks runs, and the statistics counters once it has
+ * stopped.
+ */
+
+#include <arpa/inet.h>
+#include <dlfcn.h>
+#include <fcntl.h>
+#include <jni.h>
+#include <linux/if_tun.h>
+#include <net/if.h>
+#include <poll.h>
+#include <pthread.h>
+#include <stdarg.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/ioctl.h>
+#include <sys/socket.h>
+#include <time.h>
+#include <unistd.h>
+
+#define MAX_STATS 64
+
+// Delay line for DELAY: packets are held for a fixed time on their way
+// between the tun device and tun2socks, which reads a socketpair instead.
+
+#define DELAY_QUEUE_LEN 16384
+#define DELAY_PACKET_LEN 1600
+
+struct delay_queue {
+    int src;
+    int dst;
+    long delay_us;
+    int head;
+    int tail;
+    long due[DELAY_QUEUE_LEN];
+    int len[DELAY_QUEUE_LEN];
+    unsigned char packet[DELAY_QUEUE_LEN][DELAY_PACKET_LEN];
+};
+
+static long now_us (void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000L + ts.tv_nsec / 1000;
+}
+
+static void * delay_thread (void *arg)
+{
+    struct delay_queue *q = arg;
+
+    for (;;) {
+        int timeout = -1;
+        if (q->head != q->tail) {
+            long left = q->due[q->head] - now_us();
+            timeout = (left <= 0 ? 0 : (int)((left + 999) / 1000));
+        }
+        struct pollfd pfd = {q->src, POLLIN, 0};
+        if (poll(&pfd, 1, timeout) > 0) {
+            for (;;) {
+                int next = (q->tail + 1) % DELAY_QUEUE_LEN;
+                if (next == q->head) {
+                    // queue full, drop
+                    unsigned char drop[DELAY_PACKET_LEN];
+                    if (read(q->src, drop, sizeof(drop)) <= 0) {
+                        break;
+                    }
+                    continue;
+                }
+                int n = read(q->src, q->packet[q->tail], DELAY_PACKET_LEN);
+                if (n <= 0) {
+                    break;
+                }
+                q->len[q->tail] = n;
+                q->due[q->tail] = now_us() + q->delay_us;
+                q->tail = next;
+            }
+        }
+        long now = now_us();
+        while (q->head != q->tail && q->due[q->head] <= now) {
+            if (write(q->dst, q->packet[q->head], q->len[q->head]) < 0) {
+                // dropped, like a full tun queue
+            }
+            q->head = (q->head + 1) % DELAY_QUEUE_LEN;
+        }
+    }
+
+    return NULL;
+}
+
+static void start_delay (int src, int dst, long delay_ms)
+{
+    struct delay_queue *q = calloc(1, sizeof(*q));
+    q->src = src;
+    q->dst = dst;
+    q->delay_us = delay_ms * 1000;
+    pthread_t thread;
+    pthread_create(&thread, NULL, delay_thread, q);
+}
+
+static int delayed_fd (int tun_fd, long delay_ms)
+{
+    int sv[2];
+    if (socketpair(AF_UNIX, SOCK_DGRAM, 0, sv) < 0) {
+        perror("socketpair");
+        exit(1);
+    }
+    int size = 8 << 20;
+    for (int i = 0; i < 2; i++) {
+        setsockopt(sv[i], SOL_SOCKET, SO_SNDBUFFORCE, &size, sizeof(size));
+        setsockopt(sv[i], SOL_SOCKET, SO_RCVBUFFORCE, &size, sizeof(size));
+        fcntl(sv[i], F_SETFL, O_NONBLOCK);
+    }
+    start_delay(tun_fd, sv[0], delay_ms);
+    start_delay(sv[0], tun_fd, delay_ms);
+    return sv[1];
+}
+
+// Minimal JNIEnv: strings are plain C strings, and log records go to stderr.
+
+#define FAKE_CLASS ((jclass)1)
+
+static struct JNINativeInterface_ env_functions;
+static const struct JNINativeInterface_ *env_table = &env_functions;
+static JNIEnv *env = (JNIEnv *)&env_table;
+static struct JNIInvokeInterface_ vm_functions;
+static const struct JNIInvokeInterface_ *vm_table = &vm_functions;
+static int verbose;
+
+static const char * JNICALL GetStringUTFChars (JNIEnv *e, jstring s, jboolean *is_copy)
+{
+    return (const char *)s;
+}
+
+static void JNICALL ReleaseStringUTFChars (JNIEnv *e, jstring s, const char *chars)
+{
+}
+
+static jstring JNICALL NewStringUTF (JNIEnv *e, const char *s)
+{
+    return (jstring)strdup(s);
+}
+
+static void JNICALL DeleteLocalRef (JNIEnv *e, jobject o)
+{
+    // the only other local references are strings
+    if (o != FAKE_CLASS) {
+        free(o);
+    }
+}
+
+static jclass JNICALL FindClass (JNIEnv *e, const char *name)
+{
+    return FAKE_CLASS;
+}
+
+static jobject JNICALL NewGlobalRef (JNIEnv *e, jobject o)
+{
+    return o;
+}
+
+static jmethodID JNICALL GetStaticMethodID (JNIEnv *e, jclass c, const char *name, const char *sig)
+{
+    return (jmethodID)1;
+}
+
+static void JNICALL CallStaticVoidMethod (JNIEnv *e, jclass c, jmethodID m, ...)
+{
+    va_list ap;
+    va_start(ap, m);
+    const char *level = va_arg(ap, const char *);
+    const char *channel = va_arg(ap, const char *);
+    const char *msg = va_arg(ap, const char *);
+    va_end(ap);
+    if (verbose) {
+        fprintf(stderr, "%s (%s): %s\n", level, channel, msg);
+    }
+}
+
+static jsize JNICALL GetArrayLength (JNIEnv *e, jarray a)
+{
+    return MAX_STATS;
+}
+
+static void JNICALL SetLongArrayRegion (JNIEnv *e, jlongArray a, jsize start, jsize len, const jlong *buf)
+{
+    memcpy((jlong *)a + start, buf, len * sizeof(jlong));
+}
+
+static jint JNICALL GetEnv (JavaVM *vm, void **penv, jint version)
+{
+    *penv = env;
+    return JNI_OK;
+}
+
+// libtun2socks entry points
+
+static jint (*onload) (JavaVM *, void *);
+static jlong (*create) (JNIEnv *, jclass, jint, jint, jstring, jstring, jstring, jstring, jstring,
+                        jint, jint, jint, jint, jstring, jint, jint, jstring, jint, jint, jint,
+                        jint, jint, jint, jint);
+static jint (*run) (JNIEnv *, jclass, jlong);
+static jint (*terminate) (JNIEnv *, jclass, jlong, jint);
+static void (*destroy) (JNIEnv *, jclass, jlong);
+static jint (*drain_logs) (JNIEnv *, jclass, jint);
+static void (*wake_log_drain) (JNIEnv *, jclass);
+static jint (*get_stats) (JNIEnv *, jclass, jlongArray);
+
+static volatile int running = 1;
+
+static void * lookup (void *lib, const char *name)
+{
+    char symbol[128];
+    snprintf(symbol, sizeof(symbol), "Java_org_uproxy_tun2socks_Tun2SocksJni_%s", name);
+    void *f = dlsym(lib, symbol);
+    if (!f) {
+        fprintf(stderr, "missing %s\n", symbol);
+        exit(1);
+    }
+    return f;
+}
+
+static int env_int (const char *name)
+{
+    const char *value = getenv(name);
+    return (value ? atoi(value) : 0);
+}
+
+static void * run_thread (void *arg)
+{
+    run(env, NULL, *(jlong *)arg);
+    return NULL;
+}
+
+static void * log_thread (void *arg)
+{
+    while (running) {
+        drain_logs(env, NULL, 250);
+    }
+    drain_logs(env, NULL, 0);
+    return NULL;
+}
+
+static int open_tun (void)
+{
+    int fd = open("/dev/net/tun", O_RDWR);
+    if (fd < 0) {
+        perror("/dev/net/tun");
+        exit(1);
+    }
+    struct ifreq ifr;
+    memset(&ifr, 0, sizeof(ifr));
+    ifr.ifr_flags = IFF_TUN | IFF_NO_PI;
+    strcpy(ifr.ifr_name, "t2s0");
+    if (ioctl(fd, TUNSETIFF, &ifr) < 0) {
+        perror("TUNSETIFF");
+        exit(1);
+    }
+    fcntl(fd, F_SETFL, O_NONBLOCK);
+
+    int s = socket(AF_INET, SOCK_DGRAM, 0);
+    struct sockaddr_in *sin = (struct sockaddr_in *)&ifr.ifr_addr;
+    sin->sin_family = AF_INET;
+    inet_pton(AF_INET, "10.77.0.1", &sin->sin_addr);
+    if (ioctl(s, SIOCSIFADDR, &ifr) < 0) {
+        perror("SIOCSIFADDR");
+        exit(1);
+    }
+    inet_pton(AF_INET, "255.255.255.0", &sin->sin_addr);
+    ioctl(s, SIOCSIFNETMASK, &ifr);
+    ioctl(s, SIOCGIFFLAGS, &ifr);
+    ifr.ifr_flags |= IFF_UP | IFF_RUNNING;
+    ioctl(s, SIOCSIFFLAGS, &ifr);
+    close(s);
+
+    return fd;
+}
+
+int main (int argc, char **argv)
+{
+    if (argc < 3) {
+        fprintf(stderr, "usage: %s <seconds> <SOCKS server address>\n", argv[0]);
+        return 1;
+    }
+    int seconds = atoi(argv[1]);
+    char *socks = argv[2];
+    verbose = env_int("VERBOSE");
+
+    const char *path = getenv("LIB");
+    void *lib = dlopen(path ? path : "out/libtun2socks.so", RTLD_NOW);
+    if (!lib) {
+        fprintf(stderr, "%s\n", dlerror());
+        return 1;
+    }
+    onload = dlsym(lib, "JNI_OnLoad");
+    create = lookup(lib, "createTun2Socks");
+    run = lookup(lib, "runTun2Socks");
+    terminate = lookup(lib, "terminateTun2Socks");
+    destroy = lookup(lib, "destroyTun2Socks");
+    drain_logs = lookup(lib, "drainTun2SocksLogs");
+    wake_log_drain = lookup(lib, "wakeTun2SocksLogDrain");
+    get_stats = lookup(lib, "getTun2SocksStats");
+
+    env_functions.GetStringUTFChars = GetStringUTFChars;
+    env_functions.ReleaseStringUTFChars = ReleaseStringUTFChars;
+    env_functions.NewStringUTF = NewStringUTF;
+    env_functions.DeleteLocalRef = DeleteLocalRef;
+    env_functions.FindClass = FindClass;
+    env_functions.NewGlobalRef = NewGlobalRef;
+    env_functions.GetStaticMethodID = GetStaticMethodID;
+    env_functions.CallStaticVoidMethod = CallStaticVoidMethod;
+    env_functions.GetArrayLength = GetArrayLength;
+    env_functions.SetLongArrayRegion = SetLongArrayRegion;
+    vm_functions.GetEnv = GetEnv;
+    JavaVM *vm = (JavaVM *)&vm_table;
+    if (onload(vm, NULL) < 0) {
+        fprintf(stderr, "JNI_OnLoad failed\n");
+        return 1;
+    }
+
+    int tun_fd = open_tun();
+    if (env_int("DELAY") > 0) {
+        tun_fd = delayed_fd(tun_fd, env_int("DELAY"));
+    }
+
+    jlong handle = create(env, NULL, tun_fd, 1500, (jstring)"10.77.0.2", (jstring)"255.255.255.0",
+                          (jstring)socks, (jstring)socks, (jstring)"10.77.0.53:53",
+                          env_int("TRANSPARENT_DNS"), 0, 0, 0, NULL, 0, 0, NULL, 0, 0, 0, 0,
+                          env_int("TCP_WINDOW"), env_int("TCP_SEND_BUFFER"), 0);
+    if (!handle) {
+        fprintf(stderr, "createTun2Socks failed\n");
+        return 1;
+    }
+
+    pthread_t logger, runner;
+    pthread_create(&logger, NULL, log_thread, NULL);
+    pthread_create(&runner, NULL, run_thread, &handle);
+    printf("READY\n");
+    fflush(stdout);
+
+    sleep(seconds);
+    terminate(env, NULL, handle, 0);
+    pthread_join(runner, NULL);
+    destroy(env, NULL, handle);
+    running = 0;
+    wake_log_drain(env, NULL);
+    pthread_join(logger, NULL);
+
+    jlong stats[MAX_STATS];
+    int count = get_stats(env, NULL, (jlongArray)stats);
+    printf("STATS");
+    for (int i = 0; i < count; i++) {
+        printf(" %lld", (long long)stats[i]);
+    }
+    printf("\n");
+
+    return 0;
+}
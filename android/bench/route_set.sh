@@ -0,0 +1,8 @@
+#!/bin/bash
+# Times RouteSet on large excludedRoutes lists. Needs only a JDK.
+set -e
+BENCH=$(cd "$(dirname "$0")" && pwd)
+OUT=$BENCH/out/route_set
+mkdir -p "$OUT"
+javac -d "$OUT" "$BENCH/../java/org/uproxy/tun2socks/RouteSet.java" "$BENCH/RouteSetBenchmark.java"
+java -cp "$OUT" RouteSetBenchmark
@@ -0,0 +1,96 @@
+"""SOCKS5 test server for the benchmarks in this directory.
+
+usage: socks_server.py <port>
+
+Accepts CONNECT without authentication, whatever the destination, and
+serves by destination port:
+  19  sends data until the client closes the connection (download)
+  9   reads and discards everything (upload)
+  7   echoes
+
+The same port on UDP is a UDP relay stand-in: it answers SOCKS5-wrapped DNS
+queries at once with one A record.
+"""
+
+import socket
+import struct
+import sys
+import threading
+
+CHUNK = b'x' * 65536
+
+
+def recv_exactly(conn, n):
+    data = b''
+    while len(data) < n:
+        part = conn.recv(n - len(data))
+        if not part:
+            raise EOFError
+        data += part
+    return data
+
+
+def handle(conn):
+    try:
+        _, num_methods = recv_exactly(conn, 2)
+        recv_exactly(conn, num_methods)
+        conn.sendall(b'\x05\x00')
+        _, _, _, address_type = recv_exactly(conn, 4)
+        if address_type == 1:
+            recv_exactly(conn, 4)
+        elif address_type == 3:
+            recv_exactly(conn, recv_exactly(conn, 1)[0])
+        else:
+            recv_exactly(conn, 16)
+        port = struct.unpack('>H', recv_exactly(conn, 2))[0]
+        conn.sendall(b'\x05\x00\x00\x01' + socket.inet_aton('127.0.0.1') + struct.pack('>H', 1))
+        if port == 19:
+            while True:
+                conn.sendall(CHUNK)
+        elif port == 7:
+            while True:
+                data = conn.recv(65536)
+                if not data:
+                    break
+                conn.sendall(data)
+        else:
+            while conn.recv(65536):
+                pass
+    except (EOFError, OSError):
+        pass
+    finally:
+        conn.close()
+
+
+def dns_answer(query):
+    end = 12
+    while query[end]:
+        end += 1 + query[end]
+    end += 5
+    answer = query[:2] + struct.pack('>HHHHH', 0x8180, 1, 1, 0, 0) + query[12:end]
+    return answer + b'\xc0\x0c' + struct.pack('>HHIH', 1, 1, 300, 4) + bytes([10, 0, 0, 1])
+
+
+def serve_udp(port):
+    sock = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    sock.bind(('127.0.0.1', port))
+    while True:
+        data, peer = sock.recvfrom(65536)
+        # keep the SOCKS5 UDP header, which has the IPv4 address of the resolver
+        sock.sendto(data[:10] + dns_answer(data[10:]), peer)
+
+
+def main():
+    port = int(sys.argv[1])
+    threading.Thread(target=serve_udp, args=(port,), daemon=True).start()
+    server = socket.socket()
+    server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+    server.bind(('127.0.0.1', port))
+    server.listen(512)
+    while True:
+        conn, _ = server.accept()
+        threading.Thread(target=handle, args=(conn,), daemon=True).start()
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,62 @@
+"""Measures the throughput of one TCP flow through the tunnel.
+
+usage: throughput.py download|upload [seconds]
+
+The first two seconds, while the window opens, are not counted.
+"""
+
+import fcntl
+import socket
+import struct
+import sys
+import time
+
+SERVER = '10.77.0.9'
+WARMUP = 2.0
+SIOCOUTQ = 0x5411
+
+
+def download(seconds):
+    conn = socket.create_connection((SERVER, 19), timeout=10)
+    start = time.time()
+    counted = None
+    received = 0
+    while time.time() - start < seconds:
+        data = conn.recv(65536)
+        if not data:
+            break
+        if counted is None and time.time() - start >= WARMUP:
+            counted = (time.time(), received)
+        received += len(data)
+    conn.close()
+    return (received - counted[1]) * 8 / (time.time() - counted[0]) / 1e6
+
+
+def upload(seconds):
+    conn = socket.create_connection((SERVER, 9), timeout=10)
+    data = b'y' * 16384
+    sent = 0
+
+    def acked():
+        unacked = struct.unpack('i', fcntl.ioctl(conn.fileno(), SIOCOUTQ, b'\0\0\0\0'))[0]
+        return sent - unacked
+
+    start = time.time()
+    counted = None
+    while time.time() - start < seconds:
+        sent += conn.send(data)
+        if counted is None and time.time() - start >= WARMUP:
+            counted = (time.time(), acked())
+    rate = (acked() - counted[1]) * 8 / (time.time() - counted[0]) / 1e6
+    conn.close()
+    return rate
+
+
+def main():
+    seconds = float(sys.argv[2]) if len(sys.argv) > 2 else 8
+    measure = download if sys.argv[1] == 'download' else upload
+    print('%s %.1f Mbit/s' % (sys.argv[1], measure(seconds)))
+
+
+if __name__ == '__main__':
+    main()
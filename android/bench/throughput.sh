@@ -0,0 +1,22 @@
+#!/bin/bash
+# Single-flow download and upload throughput through tun2socks at several
+# emulated round-trip times, with the default TCP window and send buffer and
+# with the sizes given as arguments.
+#
+# usage: throughput.sh [tcpWindow [tcpSendBuffer]]   (default 1 MiB each)
+
+. "$(dirname "$0")/common.sh"
+
+WINDOW=${1:-1048576}
+SEND_BUFFER=${2:-$WINDOW}
+
+for rtt in 10 50 100 250; do
+    export DELAY=$(( rtt / 2 ))
+    for sizes in "0 0" "$WINDOW $SEND_BUFFER"; do
+        read TCP_WINDOW TCP_SEND_BUFFER <<< "$sizes"
+        export TCP_WINDOW TCP_SEND_BUFFER
+        down=$(run_measurement 8 python3 "$BENCH/throughput.py" download 8)
+        up=$(run_measurement 8 python3 "$BENCH/throughput.py" upload 8)
+        echo "rtt ${rtt}ms window $TCP_WINDOW send buffer $TCP_SEND_BUFFER: $down, $up"
+    done
+done
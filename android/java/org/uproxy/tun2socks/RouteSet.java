@@ -0,0 +1,193 @@
+package org.uproxy.tun2socks;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Computes the routes a VPN needs to take all traffic of one address family
+// except the excluded prefixes. VpnService.Builder only adds routes, so the
+// excluded prefixes are turned into the smallest set of prefixes that covers
+// everything else.
+public class RouteSet {
+
+  // An address prefix in CIDR notation, with the bits past the prefix length
+  // cleared.
+  public static class Route {
+    public final InetAddress address;
+    public final int prefixLength;
+
+    private Route(InetAddress address, int prefixLength) {
+      this.address = address;
+      this.prefixLength = prefixLength;
+    }
+
+    public boolean isIpv6() {
+      return address.getAddress().length == IPV6_LENGTH;
+    }
+
+    // Returns whether |other| shares any address with this prefix.
+    public boolean overlaps(Route other) {
+      if (isIpv6() != other.isIpv6()) {
+        return false;
+      }
+      int shift = address.getAddress().length * 8 - Math.min(prefixLength, other.prefixLength);
+      BigInteger first = new BigInteger(1, address.getAddress());
+      BigInteger otherFirst = new BigInteger(1, other.address.getAddress());
+      return first.shiftRight(shift).equals(otherFirst.shiftRight(shift));
+    }
+
+    @Override
+    public String toString() {
+      return address.getHostAddress() + "/" + prefixLength;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Route)) {
+        return false;
+      }
+      Route route = (Route) other;
+      return address.equals(route.address) && prefixLength == route.prefixLength;
+    }
+
+    @Override
+    public int hashCode() {
+      return address.hashCode() * 31 + prefixLength;
+    }
+  }
+
+  private static final int IPV4_LENGTH = 4;
+  private static final int IPV6_LENGTH = 16;
+
+  private static final Pattern IPV4_ADDRESS =
+      Pattern.compile("((25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])\\.){3}"
+          + "(25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])");
+  // Only literals get to InetAddress.getByName, which would otherwise look
+  // names up in the DNS.
+  private static final Pattern IPV6_ADDRESS = Pattern.compile("[0-9A-Fa-f:.]*:[0-9A-Fa-f:.]*");
+
+  // Parses |cidr|, an IPv4 or IPv6 address with an optional prefix length.
+  // Throws IllegalArgumentException if it is invalid.
+  public static Route parse(String cidr) {
+    String addressString = cidr;
+    int prefixLength = -1;
+    int slash = cidr.indexOf('/');
+    if (slash >= 0) {
+      addressString = cidr.substring(0, slash);
+      try {
+        prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+      } catch (NumberFormatException e) {
+        prefixLength = -1;
+      }
+      if (prefixLength < 0) {
+        throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+      }
+    }
+    if (!IPV4_ADDRESS.matcher(addressString).matches()
+        && !IPV6_ADDRESS.matcher(addressString).matches()) {
+      throw new IllegalArgumentException("Invalid address: " + cidr);
+    }
+    byte[] bytes;
+    try {
+      bytes = InetAddress.getByName(addressString).getAddress();
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid address: " + cidr);
+    }
+    // An IPv4-mapped IPv6 literal comes back as an IPv4 address, which would
+    // make the prefix length mean something else.
+    if (bytes.length == IPV4_LENGTH && addressString.contains(":")) {
+      throw new IllegalArgumentException("Invalid address: " + cidr);
+    }
+    int bits = bytes.length * 8;
+    if (prefixLength < 0) {
+      prefixLength = bits;
+    } else if (prefixLength > bits) {
+      throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+    }
+    return toRoute(new BigInteger(1, bytes), prefixLength, bytes.length);
+  }
+
+  // Returns the smallest set of prefixes of the address family of |ipv6|
+  // that covers every address outside |excluded|, in address order.
+  // Excluded prefixes of the other family are ignored, and they may overlap.
+  public static List<Route> complement(List<Route> excluded, boolean ipv6) {
+    int length = ipv6 ? IPV6_LENGTH : IPV4_LENGTH;
+    int bits = length * 8;
+
+    // Each prefix as the range [first, last], sorted by first address.
+    List<BigInteger[]> ranges = new ArrayList<BigInteger[]>();
+    for (Route route : excluded) {
+      if (route.isIpv6() != ipv6) {
+        continue;
+      }
+      BigInteger first = new BigInteger(1, route.address.getAddress());
+      BigInteger size = BigInteger.ONE.shiftLeft(bits - route.prefixLength);
+      ranges.add(new BigInteger[] {first, first.add(size).subtract(BigInteger.ONE)});
+    }
+    Collections.sort(
+        ranges,
+        new Comparator<BigInteger[]>() {
+          @Override
+          public int compare(BigInteger[] a, BigInteger[] b) {
+            return a[0].compareTo(b[0]);
+          }
+        });
+
+    // Cover the gaps between the merged ranges. The gaps are as large as
+    // possible, so covering each one minimally gives the smallest set.
+    List<Route> routes = new ArrayList<Route>();
+    BigInteger next = BigInteger.ZERO;
+    BigInteger end = BigInteger.ONE.shiftLeft(bits);
+    for (BigInteger[] range : ranges) {
+      if (range[0].compareTo(next) > 0) {
+        addRange(routes, next, range[0], bits, length);
+      }
+      BigInteger afterRange = range[1].add(BigInteger.ONE);
+      if (afterRange.compareTo(next) > 0) {
+        next = afterRange;
+      }
+    }
+    if (next.compareTo(end) < 0) {
+      addRange(routes, next, end, bits, length);
+    }
+    return routes;
+  }
+
+  // Adds the fewest prefixes that cover the addresses from |first| up to,
+  // but not including, |end|.
+  private static void addRange(
+      List<Route> routes, BigInteger first, BigInteger end, int bits, int length) {
+    while (first.compareTo(end) < 0) {
+      // The largest block that starts at |first| is limited by the alignment
+      // of |first| and by the number of addresses left.
+      int alignment = first.signum() == 0 ? bits : first.getLowestSetBit();
+      int fits = end.subtract(first).bitLength() - 1;
+      int blockBits = Math.min(alignment, fits);
+      routes.add(toRoute(first, bits - blockBits, length));
+      first = first.add(BigInteger.ONE.shiftLeft(blockBits));
+    }
+  }
+
+  // Returns the prefix of |prefixLength| bits that contains |address|.
+  private static Route toRoute(BigInteger address, int prefixLength, int length) {
+    int bits = length * 8;
+    BigInteger network = address.shiftRight(bits - prefixLength).shiftLeft(bits - prefixLength);
+    byte[] magnitude = network.toByteArray();
+    // toByteArray is big-endian with an optional sign byte and no leading
+    // zeros beyond it.
+    byte[] bytes = new byte[length];
+    int copy = Math.min(magnitude.length, length);
+    System.arraycopy(magnitude, magnitude.length - copy, bytes, length - copy, copy);
+    try {
+      return new Route(InetAddress.getByAddress(bytes), prefixLength);
+    } catch (UnknownHostException e) {
+      // Only thrown for addresses of the wrong length.
+      throw new IllegalStateException(e);
+    }
+  }
+}
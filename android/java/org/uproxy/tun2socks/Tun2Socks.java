@@ -2,36 +2,49 @@ package org.uproxy.tun2socks;
 
 import android.annotation.TargetApi;
 import android.content.ActivityNotFoundException;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.VpnService;
 import android.os.Build;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
-public class Tun2Socks extends CordovaPlugin {
+public class Tun2Socks extends CordovaPlugin implements TunnelManager.Listener {
 
   private static final String LOG_TAG = "Tun2Socks";
   private static final String START_ACTION = "start";
   private static final String STOP_ACTION = "stop";
   private static final String ON_DISCONNECT_ACTION = "onDisconnect";
   private static final String DEVICE_SUPPORTS_PLUGIN_ACTION = "deviceSupportsPlugin";
+  private static final String GET_STATS_ACTION = "getStats";
   private static final int REQUEST_CODE_PREPARE_VPN = 100;
   // Standard activity result: operation succeeded.
   public static final int RESULT_OK = -1;
 
-  private String m_socksServerAddress;
-  private CallbackContext m_onStartCallback = null;
-  private CallbackContext m_onDisconnectCallback = null;
+  private TunnelConfig m_config;
+  // Set by execute, on a Cordova thread, and used by the listener calls, on
+  // the main thread.
+  private volatile CallbackContext m_onStartCallback = null;
+  private volatile CallbackContext m_onDisconnectCallback = null;
+  private Tun2SocksStats m_stats = null;
+  // When the last start was called, and when its result came and each state
+  // was entered since, in milliseconds after it.
+  private long m_startRequestMillis;
+  private long m_startResultMillis = -1;
+  private JSONObject m_stateMillis = new JSONObject();
+  private TunnelManager.State m_state = TunnelManager.State.IDLE;
 
   @Override
   public boolean execute(String action, JSONArray args, CallbackContext callbackContext)
@@ -47,9 +60,25 @@ public class Tun2Socks extends CordovaPlugin {
       } else {
         // Set instance variable in case we need to start the tunnel vpn service
         // from onActivityResult.
-        m_socksServerAddress = args.getString(0);
-        Log.i(LOG_TAG, "Got socks server address: " + m_socksServerAddress);
+        // The first argument is a SOCKS server address or an array of them.
+        List<String> socksServerAddresses = new ArrayList<String>();
+        JSONArray addressArray = args.optJSONArray(0);
+        if (addressArray != null) {
+          for (int i = 0; i < addressArray.length(); i++) {
+            socksServerAddresses.add(addressArray.getString(i));
+          }
+        } else {
+          socksServerAddresses.add(args.getString(0));
+        }
+        Log.i(LOG_TAG, "Got socks server addresses: " + socksServerAddresses);
+        try {
+          m_config = TunnelConfig.fromOptions(socksServerAddresses, args.optJSONObject(1));
+        } catch (IllegalArgumentException e) {
+          callbackContext.error(e.getMessage());
+          return true;
+        }
         m_onStartCallback = callbackContext;
+        onStartRequested();
         prepareAndStartTunnelService();
       }
       return true;
@@ -64,6 +93,14 @@ public class Tun2Socks extends CordovaPlugin {
       callbackContext.sendPluginResult(
           new PluginResult(PluginResult.Status.OK, hasVpnService()));
       return true;
+    } else if (action.equals(GET_STATS_ACTION)) {
+      if (m_stats == null) {
+        m_stats = new Tun2SocksStats();
+      }
+      JSONObject stats = m_stats.toJson();
+      putStartTimes(stats);
+      callbackContext.success(stats);
+      return true;
     }
     return false;
   }
@@ -78,12 +115,7 @@ public class Tun2Socks extends CordovaPlugin {
       return;
     }
 
-    IntentFilter broadcastFilter =
-        new IntentFilter(TunnelVpnService.TUNNEL_VPN_DISCONNECT_BROADCAST);
-    broadcastFilter.addAction(TunnelVpnService.TUNNEL_VPN_START_BROADCAST);
-
-    LocalBroadcastManager.getInstance(getBaseContext())
-        .registerReceiver(m_vpnTunnelBroadcastReceiver, broadcastFilter);
+    TunnelState.getTunnelState().setListener(this);
   }
 
   @Override
@@ -91,6 +123,12 @@ public class Tun2Socks extends CordovaPlugin {
     // Stop tunnel service in case the user has quit the app without
     // disconnecting the VPN.
     stopTunnelService();
+    TunnelState tunnelState = TunnelState.getTunnelState();
+    synchronized (tunnelState) {
+      if (tunnelState.getListener() == this) {
+        tunnelState.setListener(null);
+      }
+    }
   }
 
   protected void prepareAndStartTunnelService() {
@@ -142,12 +180,12 @@ public class Tun2Socks extends CordovaPlugin {
       Log.d(LOG_TAG, "already running service");
       TunnelManager tunnelManager = TunnelState.getTunnelState().getTunnelManager();
       if (tunnelManager != null) {
-        tunnelManager.restartTunnel(m_socksServerAddress);
+        tunnelManager.restartTunnel(m_config);
       }
       return;
     }
     Intent startTunnelVpn = new Intent(context, TunnelVpnService.class);
-    startTunnelVpn.putExtra(TunnelManager.SOCKS_SERVER_ADDRESS_EXTRA, m_socksServerAddress);
+    m_config.putExtras(startTunnelVpn);
     if (this.cordova.getActivity().startService(startTunnelVpn) == null) {
       Log.d(LOG_TAG, "failed to start tunnel vpn service");
       return;
@@ -178,48 +216,65 @@ public class Tun2Socks extends CordovaPlugin {
     return this.cordova.getActivity().getApplicationContext();
   }
 
-  public void onStartVpn(boolean success) {
-    if (m_onStartCallback == null || m_onStartCallback.isFinished()) {
+  //----------------------------------------------------------------------------
+  // TunnelManager.Listener
+  //----------------------------------------------------------------------------
+
+  @Override
+  public synchronized void onTunnelStateChanged(TunnelManager.State state, long elapsedRealtime) {
+    m_state = state;
+    try {
+      m_stateMillis.put(
+          state.name().toLowerCase(Locale.US), elapsedRealtime - m_startRequestMillis);
+    } catch (JSONException e) {
+      Log.e(LOG_TAG, "failed to record tunnel state: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void onTunnelStarted(boolean success, TunnelConfig config) {
+    synchronized (this) {
+      m_startResultMillis = SystemClock.elapsedRealtime() - m_startRequestMillis;
+    }
+    CallbackContext onStartCallback = m_onStartCallback;
+    if (onStartCallback == null || onStartCallback.isFinished()) {
       Log.e(LOG_TAG, "failed to call on start callback");
       return;
     }
 
     if (success) {
-      m_onStartCallback.success("Started tun2socks");
+      if (config != null) {
+        onStartCallback.success(config.toJson());
+      } else {
+        onStartCallback.success("Started tun2socks");
+      }
     } else {
-      m_onStartCallback.error("Failed to start tun2socks");
+      onStartCallback.error("Failed to start tun2socks");
     }
   }
 
-  public void onDisconnect() {
-    if (m_onDisconnectCallback != null) {
+  @Override
+  public void onTunnelDisconnected() {
+    CallbackContext onDisconnectCallback = m_onDisconnectCallback;
+    if (onDisconnectCallback != null) {
       PluginResult result = new PluginResult(PluginResult.Status.OK);
       result.setKeepCallback(true);
-      m_onDisconnectCallback.sendPluginResult(result);
+      onDisconnectCallback.sendPluginResult(result);
     }
   }
 
-  private VpnTunnelBroadcastReceiver m_vpnTunnelBroadcastReceiver =
-      new VpnTunnelBroadcastReceiver(Tun2Socks.this);
-
-  private class VpnTunnelBroadcastReceiver extends BroadcastReceiver {
-    private Tun2Socks m_handler;
-
-    public VpnTunnelBroadcastReceiver(Tun2Socks handler) {
-      m_handler = handler;
-    }
-
-    @Override
-    public void onReceive(Context context, Intent intent) {
-      final String action = intent.getAction();
-      if (TunnelVpnService.TUNNEL_VPN_START_BROADCAST.equals(action)) {
-        boolean startSuccess = intent.getBooleanExtra(
-            TunnelVpnService.TUNNEL_VPN_START_SUCCESS_EXTRA, true);
-        m_handler.onStartVpn(startSuccess);
+  private synchronized void onStartRequested() {
+    m_startRequestMillis = SystemClock.elapsedRealtime();
+    m_startResultMillis = -1;
+    m_stateMillis = new JSONObject();
+  }
 
-      } else if (TunnelVpnService.TUNNEL_VPN_DISCONNECT_BROADCAST.equals(action)) {
-        m_handler.onDisconnect();
-      }
+  // Adds the state of the tunnel and how long the last start took to |stats|.
+  private synchronized void putStartTimes(JSONObject stats) throws JSONException {
+    stats.put("tunnelState", m_state.name().toLowerCase(Locale.US));
+    stats.put("tunnelStateMs", new JSONObject(m_stateMillis.toString()));
+    if (m_startResultMillis >= 0) {
+      stats.put("startMs", m_startResultMillis);
     }
-  };
+  }
 }
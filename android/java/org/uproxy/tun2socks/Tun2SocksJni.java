@@ -9,21 +9,63 @@ import android.util.Log;
 
 public class Tun2SocksJni {
 
-  // runTun2Socks takes a tun device file descriptor (from Android's VpnService,
-  // for example) and plugs it into tun2socks, which routes the tun TCP traffic
-  // through the specified SOCKS proxy. UDP traffic is sent to the specified
-  // udpgw server.
+  // createTun2Socks creates a tun2socks instance and returns a handle to it,
+  // or 0 if out of memory. The instance takes a tun device file descriptor
+  // (from Android's VpnService, for example) and plugs it into tun2socks,
+  // which routes the tun TCP traffic through the specified SOCKS proxies. socksServerAddress is a
+  // comma-separated list; new TCP connections are spread over it according to
+  // socksBalance ("round-robin", "least-connections" or "latency", or null for
+  // the default), and UDP goes through the first proxy. When socksPipelined is
+  // set, the SOCKS handshake and the first data are sent without waiting for
+  // the proxy's replies; only use it with proxies that need no
+  // authentication. DNS traffic to the DNS resolver is sent to the specified
+  // UDP relay when transparentDNS is set; with fakeDNS, queries for host
+  // addresses are instead answered with fake addresses, and TCP connections
+  // to them ask the SOCKS proxy for the host by name. With dnsTCP, the DNS
+  // traffic goes over a few TCP connections through the first SOCKS proxy to
+  // the DNS resolver, and no UDP relay is needed. Other UDP traffic is
+  // forwarded through SOCKS UDP associations when socksUdp is set, or to the
+  // udpgw server at udpgwServerAddress when it is not null, and dropped
+  // otherwise.
+  // tunReadBatch is the most packets read from the tun device per wakeup.
+  // tcpBufferMemory caps the bytes of buffers held by TCP connections with
+  // data in flight. TCP connections without traffic for tcpIdleTimeout
+  // milliseconds are closed. tcpWindow and tcpSendBuffer are the receive
+  // window and send buffer of each TCP connection, and socksReceiveBuffer the
+  // most each connection reads from its SOCKS server at a time, in bytes.
+  // Passing 0 for the udpgw limits, tunReadBatch, tcpBufferMemory,
+  // tcpIdleTimeout, tcpWindow, tcpSendBuffer or socksReceiveBuffer selects the
+  // native defaults.
   //
   // The tun device file descriptor should be set to non-blocking mode.
   // tun2Socks does *not* take ownership of the tun device file descriptor; the
   // caller is responsible for closing it after tun2socks terminates.
   //
-  // runTun2Socks blocks until tun2socks is stopped by calling terminateTun2Socks.
-  // It's safe to call terminateTun2Socks from a different thread.
+  // runTun2Socks runs an instance, blocking until it is stopped by calling
+  // terminateTun2Socks from a different thread. A handle holds only an
+  // instance's settings; the state of a run, including lwIP and the event
+  // loop, is process-wide, so only one instance runs at a time and two
+  // cannot carry traffic side by side: while one runs, runTun2Socks on another waits for it to stop and then takes
+  // over, so a new instance can be started before the old one is terminated.
+  // An instance runs at most once, and returns 0 without running if it was
+  // terminated before it started. destroyTun2Socks frees an instance. It
+  // should be called after runTun2Socks has returned, or if the instance was
+  // never run; otherwise it terminates the instance without draining and
+  // waits for runTun2Socks to return first.
   //
-  // logTun2Socks is called from tun2socks when an event is to be logged.
+  // terminateTun2Socks returns right away. Given a drainTimeoutMillis, the
+  // instance first refuses new TCP connections and passes on the data it has
+  // buffered for the open ones for up to that long, resetting each as soon as
+  // it is done, so that applications reconnect instead of waiting. Calling it
+  // again with 0 cuts the drain short. The time each shutdown phase took is
+  // kept in the statistics until the next shutdown.
+  //
+  // tun2socks does not log from its own thread. Log records are buffered
+  // natively and delivered to logTun2Socks in batches on the log drain thread,
+  // which startLogDrain starts and stopLogDrain stops. The thread sleeps while
+  // nothing is logged.
 
-  public static native int runTun2Socks(
+  public static native long createTun2Socks(
       int vpnInterfaceFileDescriptor,
       int vpnInterfaceMTU,
       String vpnIpAddress,
@@ -31,13 +73,100 @@ public class Tun2SocksJni {
       String socksServerAddress,
       String udpRelayAddress,
       String dnsResolverAddress,
-      int transparentDNS);
+      int transparentDNS,
+      int fakeDNS,
+      int dnsTCP,
+      int socksUdp,
+      String udpgwServerAddress,
+      int udpgwMaxConnections,
+      int udpgwConnectionBufferSize,
+      String socksBalance,
+      int socksPipelined,
+      int tunReadBatch,
+      int tcpBufferMemory,
+      int tcpIdleTimeout,
+      int tcpWindow,
+      int tcpSendBuffer,
+      int socksReceiveBuffer);
+
+  public static native int runTun2Socks(long handle);
+
+  public static native int terminateTun2Socks(long handle, int drainTimeoutMillis);
+
+  public static native void destroyTun2Socks(long handle);
+
+  // Switches a running tun2socks instance to new SOCKS servers, given as a
+  // comma-separated list, and UDP relay without restarting it. New connections
+  // use the new servers; established ones stay on the old servers until they
+  // close. Returns 1 if the switch was queued,
+  // and 0 if the instance is not running or an address is invalid.
+  public static native int setSocksServer(
+      long handle, String socksServerAddress, String udpRelayAddress);
+
+  // Moves a running tun2socks instance to a new tun device file descriptor,
+  // such as the one returned when the VPN is re-established, and waits for it
+  // to stop using the old one, which the caller may then close. Connections
+  // are kept. Returns 1 on success, and 0 if the instance is not running or
+  // failed to switch, in which case it still uses the old file descriptor.
+  public static native int setTunFd(long handle, int vpnInterfaceFileDescriptor);
+
+  // Copies the native statistics counters, in the order of Tun2SocksStats,
+  // into |counters| in one call. Returns the number of counters copied, which
+  // is at most the length of |counters|.
+  public static native int getTun2SocksStats(long[] counters);
 
-  public static native int terminateTun2Socks();
+  // Delivers buffered log records to logTun2Socks. Unless |timeoutMillis| is
+  // 0, first waits for a record to arrive, and then up to |timeoutMillis| for
+  // more, or until woken by wakeTun2SocksLogDrain. Returns the number of
+  // records delivered.
+  private static native int drainTun2SocksLogs(int timeoutMillis);
+
+  // Makes a waiting or the next drainTun2SocksLogs return without waiting.
+  private static native void wakeTun2SocksLogDrain();
 
   public static void logTun2Socks(String level, String channel, String msg) {
-    String logMsg = String.format("%s (%s): %s", level, channel, msg);
-    Log.i("Tun2Socks", logMsg);
+    Log.i(LOG_TAG, level + " (" + channel + "): " + msg);
+  }
+
+  private static final String LOG_TAG = "Tun2Socks";
+  private static final int LOG_DRAIN_TIMEOUT_MS = 250;
+
+  private static Thread mLogDrainThread;
+  private static volatile boolean mLogDrainRunning;
+
+  public static synchronized void startLogDrain() {
+    if (mLogDrainThread != null) {
+      return;
+    }
+    mLogDrainRunning = true;
+    mLogDrainThread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                while (mLogDrainRunning) {
+                  drainTun2SocksLogs(LOG_DRAIN_TIMEOUT_MS);
+                }
+                // Flush whatever was logged while stopping.
+                drainTun2SocksLogs(0);
+              }
+            },
+            "tun2socks-log");
+    mLogDrainThread.start();
+  }
+
+  public static synchronized void stopLogDrain() {
+    if (mLogDrainThread == null) {
+      return;
+    }
+    mLogDrainRunning = false;
+    wakeTun2SocksLogDrain();
+    try {
+      mLogDrainThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    mLogDrainThread = null;
   }
 
   static {
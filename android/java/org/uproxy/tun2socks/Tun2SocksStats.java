@@ -0,0 +1,92 @@
+package org.uproxy.tun2socks;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Read-only view of the tun2socks statistics counters. Each snapshot copies
+// all counters in a single JNI call, rather than one per field. The native
+// side reads them atomically, as Java reads of 64-bit values shared with
+// native code could be torn on 32-bit ARM.
+public class Tun2SocksStats {
+
+  // Keep in sync with the order of the indices in tun2socks/Tun2SocksStats.h.
+  private static final String[] STAT_NAMES = {
+    "tcpPacketsUp",
+    "tcpBytesUp",
+    "tcpPacketsDown",
+    "tcpBytesDown",
+    "udpPacketsUp",
+    "udpBytesUp",
+    "udpPacketsDown",
+    "udpBytesDown",
+    "dnsPacketsUp",
+    "dnsBytesUp",
+    "dnsPacketsDown",
+    "dnsBytesDown",
+    "tcpClientsActive",
+    "tcpClientsPeak",
+    "socksConnectFailures",
+    "pbufAllocFailures",
+    "dnsCacheHits",
+    "dnsCacheMisses",
+    "socksPoolHits",
+    "socksPoolMisses",
+    "deviceReadWakeups",
+    "devicePacketsRead",
+    "devicePacketsCopied",
+    "tcpBufferBytes",
+    "tcpBufferRefusals",
+    "tcpBufferShortReads",
+    "tcpConnectionsRefused",
+    "tcpClientsEvicted",
+    "tcpClientsReaped",
+    "fakeDnsAnswers",
+    "fakeDnsMisses",
+    "reactorWakeups",
+    "shutdownRequestMs",
+    "shutdownDrainMs",
+    "shutdownTeardownMs",
+    "shutdownFlowsFinished",
+    "shutdownFlowsReset"
+  };
+
+  private static final String DEVICE_READ_WAKEUPS = "deviceReadWakeups";
+  private static final String DEVICE_PACKETS_READ = "devicePacketsRead";
+  private static final String REACTOR_WAKEUPS = "reactorWakeups";
+
+  // Previous snapshot of the wakeup counters, for the rate since then.
+  private long mLastWakeups = -1;
+  private long mLastWakeupsMillis;
+
+  // Returns a snapshot of all counters, keyed by name.
+  public JSONObject toJson() throws JSONException {
+    long[] counters = new long[STAT_NAMES.length];
+    int count = Tun2SocksJni.getTun2SocksStats(counters);
+    JSONObject stats = new JSONObject();
+    for (int i = 0; i < count; i++) {
+      stats.put(STAT_NAMES[i], counters[i]);
+    }
+    // Derived from the device counters, as a measure of read batching.
+    long wakeups = stats.optLong(DEVICE_READ_WAKEUPS, 0);
+    if (wakeups > 0) {
+      stats.put(
+          "devicePacketsPerWakeup", (double) stats.optLong(DEVICE_PACKETS_READ, 0) / wakeups);
+    }
+    // Reactor wakeups per minute since the previous snapshot, as a measure
+    // of the tunnel's idle cost. The counter restarts with each run.
+    long reactorWakeups = stats.optLong(REACTOR_WAKEUPS, 0);
+    long now = SystemClock.elapsedRealtime();
+    synchronized (this) {
+      if (mLastWakeups >= 0 && reactorWakeups >= mLastWakeups && now > mLastWakeupsMillis) {
+        stats.put(
+            "wakeupsPerMinute",
+            (reactorWakeups - mLastWakeups) * 60000.0 / (now - mLastWakeupsMillis));
+      }
+      mLastWakeups = reactorWakeups;
+      mLastWakeupsMillis = now;
+    }
+    return stats;
+  }
+}
@@ -25,12 +25,14 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -65,9 +67,15 @@ public class Tunnel {
   private AtomicReference<ParcelFileDescriptor> mTunFd;
   private AtomicBoolean mRoutingThroughTunnel;
   private Thread mTun2SocksThread;
+  private long mTun2SocksHandle;
+  private int mDrainTimeout;
 
-  // Only one VpnService instance may exist at a time, as the underlying
-  // tun2socks implementation contains global state.
+  // How long to wait for tun2socks to stop beyond its drain timeout, before
+  // reporting the stop as done and leaving tun2socks to finish on its own.
+  private static final int STOP_GRACE_MS = 2000;
+
+  // Only one Tunnel may exist at a time, as an application has a single VPN
+  // interface and only one tun2socks instance runs at a time.
   private static Tunnel mTunnel;
 
   public static synchronized Tunnel newTunnel(HostService hostService) {
@@ -95,29 +103,87 @@ public class Tunnel {
   // To start, call in sequence: startRouting(), then startTunneling(). After startRouting()
   // succeeds, the caller must call stop() to clean up.
 
-  // Returns true when the VPN routing is established; returns false if the VPN could not
+  // Returns true when the VPN routing is established with the MTU and DNS resolver in
+  // |config|; returns false if the VPN could not
   // be started due to lack of prepare or revoked permissions (called should re-prepare and
   // try again); throws exception for other error conditions.
-  public synchronized boolean startRouting() throws Exception {
-    return startVpn();
+  public synchronized boolean startRouting(TunnelConfig config) throws Exception {
+    return startVpn(config);
   }
 
-  // Starts tun2socks. Returns true on success.
-  public synchronized boolean startTunneling(String socksServerAddress)
+  // Starts tun2socks with the settings in |config|. Returns true on success.
+  public synchronized boolean startTunneling(TunnelConfig config)
       throws Exception {
-    return routeThroughTunnel(socksServerAddress);
+    return routeThroughTunnel(config);
+  }
+
+  // Re-establishes the VPN to route the applications and destinations in
+  // |config|, and moves
+  // the running tun2socks to the new VPN interface without stopping it, so
+  // that established connections survive. Returns false if the VPN could not
+  // be established; throws exception for other error conditions.
+  public synchronized boolean updateRouting(TunnelConfig config) throws Exception {
+    ParcelFileDescriptor tunFd = establishVpn(config);
+    if (tunFd == null) {
+      return false;
+    }
+    ParcelFileDescriptor oldTunFd = mTunFd.getAndSet(tunFd);
+    if (mTun2SocksThread != null) {
+      if (Tun2SocksJni.setTunFd(mTun2SocksHandle, tunFd.getFd()) == 1) {
+        mHostService.onDiagnosticMessage("moved tun2socks to the new VPN interface");
+      } else {
+        // tun2socks still reads the old interface, which no longer gets any
+        // traffic, so there is nothing to drain; restart it on the new one.
+        // The old interface is closed once the old tun2socks has stopped.
+        mHostService.onDiagnosticMessage("failed to move tun2socks, restarting it");
+        stopTun2Socks(0, oldTunFd, null);
+        oldTunFd = null;
+        routeThroughTunnel(config);
+      }
+    }
+    closeTunFd(oldTunFd);
+    return true;
   }
 
-  // Stops routing traffic through the tunnel by stopping tun2socks.
+  // Switches the running tun2socks to the SOCKS servers in |config| without
+  // stopping it. Established connections keep using the previous servers.
+  // Returns false if tun2socks is not running or an address is invalid.
+  public synchronized boolean switchSocksServer(TunnelConfig config) {
+    if (mTun2SocksThread == null) {
+      return false;
+    }
+    // The UDP relay has the same address and port as the first SOCKS server.
+    if (Tun2SocksJni.setSocksServer(
+            mTun2SocksHandle,
+            config.socksServerAddressList(),
+            config.socksServerAddresses.get(0))
+        != 1) {
+      return false;
+    }
+    mHostService.onDiagnosticMessage("switched SOCKS server");
+    return true;
+  }
+
+  // Stops routing traffic through the tunnel by stopping tun2socks, without
+  // waiting for it: tun2socks first drains its connections for up to the
+  // drain timeout of its config. |onStopped|, which may be null, runs on
+  // another thread once tun2socks has stopped. Tunneling may be started again
+  // right away; the new tun2socks starts once the old one has stopped.
   // The VPN is unaffected by this method.
-  public synchronized void stopTunneling() {
-    stopRoutingThroughTunnel();
+  public synchronized void stopTunneling(Runnable onStopped) {
+    stopRoutingThroughTunnel(onStopped);
   }
 
+  // Stops tun2socks like stopTunneling, and closes the VPN interface once it
+  // has stopped, since tun2socks resets the connections through it.
   // Note: to avoid deadlock, do not call directly from a HostService callback;
   // instead post to a Handler if necessary to trigger from a HostService callback.
+  public synchronized void stop(Runnable onStopped) {
+    stopVpn(onStopped);
+  }
+
   public synchronized void stop() {
-    stopVpn();
+    stop(null);
   }
 
   //----------------------------------------------------------------------------
@@ -125,9 +191,6 @@ public class Tunnel {
   //----------------------------------------------------------------------------
 
   private static final String VPN_INTERFACE_NETMASK = "255.255.255.0";
-  private static final int VPN_INTERFACE_MTU = 1500;
-  private static final String DNS_RESOLVER_IP = "8.8.8.8";
-  private static final int DNS_RESOLVER_PORT = 53;
 
   // Note: Atomic variables used for getting/setting local proxy port, routing flag, and
   // tun fd, as these functions may be called via callbacks. Do not use
@@ -136,9 +199,24 @@ public class Tunnel {
   //
   // Calling addDisallowedApplication on VPNService.Builder requires API 21 (Lollipop).
   @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-  private boolean startVpn() throws Exception {
+  private boolean startVpn(TunnelConfig config) throws Exception {
     mPrivateAddress = selectPrivateAddress();
 
+    ParcelFileDescriptor tunFd = establishVpn(config);
+    if (tunFd == null) {
+      return false;
+    }
+    mTunFd.set(tunFd);
+    mRoutingThroughTunnel.set(false);
+    mHostService.onVpnEstablished();
+    return true;
+  }
+
+  // Establishes a VPN interface at mPrivateAddress for the applications in
+  // |config|, replacing the current one if any. Returns null if the
+  // application is no longer prepared or was revoked.
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private ParcelFileDescriptor establishVpn(TunnelConfig config) throws Exception {
     Locale previousLocale = Locale.getDefault();
 
     final String errorMessage = "startVpn failed";
@@ -146,30 +224,18 @@ public class Tunnel {
       // Workaround for https://code.google.com/p/android/issues/detail?id=61096
       Locale.setDefault(new Locale("en"));
 
-      ParcelFileDescriptor tunFd = null;
-      try {
-        tunFd =
-            ((VpnService.Builder) mHostService.newVpnServiceBuilder())
-                .setSession(mHostService.getAppName())
-                .setMtu(VPN_INTERFACE_MTU)
-                .addAddress(mPrivateAddress.mIpAddress, mPrivateAddress.mPrefixLength)
-                .addRoute("0.0.0.0", 0)
-                .addDnsServer(DNS_RESOLVER_IP)
-                .addDisallowedApplication(mHostService.getContext().getPackageName())
-                .establish();
-      } catch (NameNotFoundException e) {
-        mHostService.onDiagnosticMessage(
-            "failed exclude app from VPN: " + e.getMessage());
-      }
+      VpnService.Builder builder =
+          ((VpnService.Builder) mHostService.newVpnServiceBuilder())
+              .setSession(mHostService.getAppName())
+              .setMtu(config.mtu)
+              .addAddress(mPrivateAddress.mIpAddress, mPrivateAddress.mPrefixLength)
+              .addDnsServer(config.dnsResolverIp);
+      addRoutes(builder, config);
+      addApplications(builder, config);
 
-      if (tunFd == null) {
-        // As per http://developer.android.com/reference/android/net/VpnService.Builder.html#establish%28%29,
-        // this application is no longer prepared or was revoked.
-        return false;
-      }
-      mTunFd.set(tunFd);
-      mRoutingThroughTunnel.set(false);
-      mHostService.onVpnEstablished();
+      // As per http://developer.android.com/reference/android/net/VpnService.Builder.html#establish%28%29,
+      // this returns null if the application is no longer prepared or was revoked.
+      return builder.establish();
 
     } catch (IllegalArgumentException e) {
       throw new Exception(errorMessage, e);
@@ -181,11 +247,69 @@ public class Tunnel {
       // Restore the original locale.
       Locale.setDefault(previousLocale);
     }
+  }
 
-    return true;
+  // Routes all IPv4 traffic except the excluded routes in |config| through the
+  // VPN. The VPN has no IPv6 address, so IPv6 traffic always bypasses it.
+  private void addRoutes(VpnService.Builder builder, TunnelConfig config) {
+    List<RouteSet.Route> excludedRoutes = new ArrayList<RouteSet.Route>();
+    for (String route : config.excludedRoutes) {
+      excludedRoutes.add(RouteSet.parse(route));
+    }
+    List<RouteSet.Route> routes = RouteSet.complement(excludedRoutes, false /* ipv6 */);
+    for (RouteSet.Route route : routes) {
+      builder.addRoute(route.address, route.prefixLength);
+    }
+    if (!config.excludedRoutes.isEmpty()) {
+      mHostService.onDiagnosticMessage(
+          String.format("routing %d prefixes through the VPN", routes.size()));
+    }
   }
 
-  private boolean routeThroughTunnel(String socksServerAddress) {
+  // Limits the VPN to the allowed applications in |config|, or excludes the
+  // disallowed ones. Our own traffic, which includes the connections to the
+  // SOCKS server, never goes through the VPN.
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private void addApplications(VpnService.Builder builder, TunnelConfig config) {
+    String ownPackageName = mHostService.getContext().getPackageName();
+    int numAllowed = 0;
+    for (String packageName : config.allowedApplications) {
+      if (packageName.equals(ownPackageName)) {
+        continue;
+      }
+      try {
+        builder.addAllowedApplication(packageName);
+        numAllowed++;
+      } catch (NameNotFoundException e) {
+        mHostService.onDiagnosticMessage("failed to allow app in VPN: " + e.getMessage());
+      }
+    }
+    if (numAllowed > 0) {
+      return;
+    }
+    // Without any allowed application, the VPN would take every app's
+    // traffic, so fall back to excluding ourselves.
+    if (!config.allowedApplications.isEmpty()) {
+      mHostService.onDiagnosticMessage("no allowed app is installed, routing all apps");
+    }
+    try {
+      builder.addDisallowedApplication(ownPackageName);
+    } catch (NameNotFoundException e) {
+      mHostService.onDiagnosticMessage("failed exclude app from VPN: " + e.getMessage());
+    }
+    for (String packageName : config.disallowedApplications) {
+      if (packageName.equals(ownPackageName)) {
+        continue;
+      }
+      try {
+        builder.addDisallowedApplication(packageName);
+      } catch (NameNotFoundException e) {
+        mHostService.onDiagnosticMessage("failed exclude app from VPN: " + e.getMessage());
+      }
+    }
+  }
+
+  private boolean routeThroughTunnel(TunnelConfig config) {
     if (!mRoutingThroughTunnel.compareAndSet(false, true)) {
       return false;
     }
@@ -194,15 +318,33 @@ public class Tunnel {
       return false;
     }
 
+    mDrainTimeout = config.drainTimeout;
     startTun2Socks(
         tunFd,
-        VPN_INTERFACE_MTU,
+        config.mtu,
         mPrivateAddress.mRouter,
         VPN_INTERFACE_NETMASK,
-        socksServerAddress,
-        socksServerAddress,  // The UDP relay has the same address and port as the SOCKS server.
-        String.format("%s:%d", DNS_RESOLVER_IP, DNS_RESOLVER_PORT),
-        true /* transparent DNS */);
+        config.socksServerAddressList(),
+        // The UDP relay has the same address and port as the first SOCKS
+        // server. It isn't used with DNS over TCP.
+        config.socksServerAddresses.get(0),
+        config.dnsResolverAddress(),
+        // With udpgw, DNS is forwarded like any other UDP traffic.
+        !TunnelConfig.UDP_MODE_UDPGW.equals(config.udpMode) /* transparent DNS */,
+        config.fakeDns,
+        config.dnsOverTcp,
+        TunnelConfig.UDP_MODE_SOCKS.equals(config.udpMode),
+        config.udpgwServerAddress,
+        config.udpgwMaxConnections,
+        config.udpgwBufferSize,
+        config.socksBalance,
+        config.socksPipelined,
+        config.tunReadBatch,
+        config.tcpBufferMemory,
+        config.tcpIdleTimeout,
+        config.tcpWindow,
+        config.tcpSendBuffer,
+        config.socksReceiveBuffer);
 
     mHostService.onTunnelConnected();
     mHostService.onDiagnosticMessage("routing through tunnel");
@@ -212,8 +354,8 @@ public class Tunnel {
     return true;
   }
 
-  private void stopRoutingThroughTunnel() {
-    stopTun2Socks();
+  private void stopRoutingThroughTunnel(Runnable onStopped) {
+    stopTun2Socks(mDrainTimeout, null, onStopped);
   }
 
   @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
@@ -223,9 +365,11 @@ public class Tunnel {
     }
   }
 
-  private void stopVpn() {
-    stopTun2Socks();
-    ParcelFileDescriptor tunFd = mTunFd.getAndSet(null);
+  private void stopVpn(Runnable onStopped) {
+    stopTun2Socks(mDrainTimeout, mTunFd.getAndSet(null), onStopped);
+  }
+
+  private void closeTunFd(ParcelFileDescriptor tunFd) {
     if (tunFd != null) {
       try {
         mHostService.onDiagnosticMessage("closing VPN interface");
@@ -248,42 +392,136 @@ public class Tunnel {
       final String socksServerAddress,
       final String udpRelayAddress,
       final String dnsResolverAddress,
-      final boolean transparentDns) {
+      final boolean transparentDns,
+      final boolean fakeDns,
+      final boolean dnsOverTcp,
+      final boolean socksUdp,
+      final String udpgwServerAddress,
+      final int udpgwMaxConnections,
+      final int udpgwBufferSize,
+      final String socksBalance,
+      final boolean socksPipelined,
+      final int tunReadBatch,
+      final int tcpBufferMemory,
+      final int tcpIdleTimeout,
+      final int tcpWindow,
+      final int tcpSendBuffer,
+      final int socksReceiveBuffer) {
     if (mTun2SocksThread != null) {
       return;
     }
+    final long handle =
+        Tun2SocksJni.createTun2Socks(
+            vpnInterfaceFileDescriptor.getFd(),
+            vpnInterfaceMTU,
+            vpnIpAddress,
+            vpnNetMask,
+            socksServerAddress,
+            udpRelayAddress,
+            dnsResolverAddress,
+            transparentDns ? 1 : 0,
+            fakeDns ? 1 : 0,
+            dnsOverTcp ? 1 : 0,
+            socksUdp ? 1 : 0,
+            udpgwServerAddress,
+            udpgwMaxConnections,
+            udpgwBufferSize,
+            socksBalance,
+            socksPipelined ? 1 : 0,
+            tunReadBatch,
+            tcpBufferMemory,
+            tcpIdleTimeout,
+            tcpWindow,
+            tcpSendBuffer,
+            socksReceiveBuffer);
+    if (handle == 0) {
+      mHostService.onDiagnosticMessage("failed to create tun2socks");
+      return;
+    }
+    mTun2SocksHandle = handle;
+    Tun2SocksJni.startLogDrain();
     mTun2SocksThread =
         new Thread(
             new Runnable() {
               @Override
               public void run() {
-                Tun2SocksJni.runTun2Socks(
-                    vpnInterfaceFileDescriptor.getFd(),
-                    vpnInterfaceMTU,
-                    vpnIpAddress,
-                    vpnNetMask,
-                    socksServerAddress,
-                    udpRelayAddress,
-                    dnsResolverAddress,
-                    transparentDns ? 1 : 0);
+                Tun2SocksJni.runTun2Socks(handle);
               }
             });
     mTun2SocksThread.start();
     mHostService.onDiagnosticMessage("tun2socks started");
   }
 
-  private void stopTun2Socks() {
-    if (mTun2SocksThread != null) {
-      try {
-        Tun2SocksJni.terminateTun2Socks();
-        mTun2SocksThread.join();
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+  // Terminates tun2socks, letting it drain its connections for up to
+  // |drainTimeout| milliseconds, and returns without waiting for it. Once it
+  // has stopped, a stop thread closes |tunFd| and runs |onStopped|, either of
+  // which may be null. If it takes longer than its drain timeout and
+  // STOP_GRACE_MS, |onStopped| runs anyway and the rest is left to finish
+  // when it stops.
+  private void stopTun2Socks(
+      final int drainTimeout, final ParcelFileDescriptor tunFd, final Runnable onStopped) {
+    final Thread thread = mTun2SocksThread;
+    final long handle = mTun2SocksHandle;
+    mTun2SocksThread = null;
+    mTun2SocksHandle = 0;
+    mRoutingThroughTunnel.set(false);
+    if (thread == null) {
+      closeTunFd(tunFd);
+      if (onStopped != null) {
+        onStopped.run();
       }
-      mTun2SocksThread = null;
-      mRoutingThroughTunnel.set(false);
-      mHostService.onDiagnosticMessage("tun2socks stopped");
+      return;
+    }
+
+    final long stopStartMillis = SystemClock.elapsedRealtime();
+    Tun2SocksJni.terminateTun2Socks(handle, drainTimeout);
+    new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                boolean stopped = joinTun2Socks(thread, drainTimeout + STOP_GRACE_MS);
+                if (!stopped) {
+                  mHostService.onDiagnosticMessage("tun2socks is slow to stop");
+                  if (onStopped != null) {
+                    onStopped.run();
+                  }
+                  if (!joinTun2Socks(thread, 0)) {
+                    // an interrupted stop leaves the instance to its thread
+                    return;
+                  }
+                }
+                // tun2socks no longer uses the handle or the VPN interface
+                Tun2SocksJni.destroyTun2Socks(handle);
+                closeTunFd(tunFd);
+                synchronized (Tunnel.this) {
+                  // unless a new tun2socks logs by now
+                  if (mTun2SocksThread == null) {
+                    Tun2SocksJni.stopLogDrain();
+                  }
+                }
+                mHostService.onDiagnosticMessage(
+                    String.format(
+                        Locale.US,
+                        "tun2socks stopped in %d ms",
+                        SystemClock.elapsedRealtime() - stopStartMillis));
+                if (stopped && onStopped != null) {
+                  onStopped.run();
+                }
+              }
+            },
+            "tun2socks-stop")
+        .start();
+  }
+
+  // Waits up to |timeoutMillis|, or for good if 0, for |thread| to exit.
+  // Returns whether it has.
+  private static boolean joinTun2Socks(Thread thread, long timeoutMillis) {
+    try {
+      thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    return !thread.isAlive();
   }
 
   //----------------------------------------------------------------------------
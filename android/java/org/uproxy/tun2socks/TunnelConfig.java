@@ -0,0 +1,780 @@
+package org.uproxy.tun2socks;
+
+import android.content.Intent;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Settings for a tunnel, as given to tun2socks.start(). Carried from the
+// plugin to TunnelManager as intent extras.
+public class TunnelConfig {
+
+  // Only DNS is forwarded, through the SOCKS server's UDP relay.
+  public static final String UDP_MODE_DNS = "dns";
+  // All UDP is forwarded through SOCKS UDP associations.
+  public static final String UDP_MODE_SOCKS = "socks";
+  // All UDP is forwarded over TCP to a udpgw server reached through the
+  // SOCKS server, for relays that don't support UDP.
+  public static final String UDP_MODE_UDPGW = "udpgw";
+
+  // New TCP connections are spread over the SOCKS servers in turn.
+  public static final String SOCKS_BALANCE_ROUND_ROBIN = "round-robin";
+  // New TCP connections go to the SOCKS server with the fewest connections.
+  public static final String SOCKS_BALANCE_LEAST_CONNECTIONS = "least-connections";
+  // New TCP connections go to the SOCKS server that has been quickest to
+  // connect, taking its current connections into account.
+  public static final String SOCKS_BALANCE_LATENCY = "latency";
+
+  // Defaults for options that are not given, or given as 0. The native ones
+  // are kept in sync with tun2socks/tun2socks.h and lwip/custom/lwipopts.h, so
+  // that the start callback can report the values in effect.
+  public static final int DEFAULT_MTU = 1500;
+  public static final String DEFAULT_DNS_RESOLVER_IP = "8.8.8.8";
+  public static final int DEFAULT_DNS_RESOLVER_PORT = 53;
+  private static final int DEFAULT_TUN_READ_BATCH = 8;
+  private static final int DEFAULT_TCP_BUFFER_MEMORY = 8 * 1024 * 1024;
+  private static final int DEFAULT_TCP_IDLE_TIMEOUT = 60 * 60 * 1000;
+  private static final int DEFAULT_DRAIN_TIMEOUT = 1000;
+  private static final int DEFAULT_TCP_WINDOW = 64 * 1024;
+  private static final int DEFAULT_TCP_SEND_BUFFER = 16 * 1024;
+  private static final int DEFAULT_SOCKS_RECEIVE_BUFFER = 8192;
+  private static final int DEFAULT_UDPGW_MAX_CONNECTIONS = 256;
+  private static final int DEFAULT_UDPGW_BUFFER_SIZE = 8;
+
+  // Keep in sync with MAX_TUN_READ_BATCH in tun2socks/tun2socks.h.
+  private static final int MAX_TUN_READ_BATCH = 64;
+  // Keep in sync with SOCKSBALANCER_MAX_SERVERS in tun2socks/SocksBalancer.h.
+  private static final int MAX_SOCKS_SERVERS = 16;
+  // The smallest MTU every IPv4 host must accept, and the largest lwIP takes.
+  private static final int MIN_MTU = 576;
+  private static final int MAX_MTU = 0xffff;
+  // Keep in sync with TCP_MSS in lwip/custom/lwipopts.h.
+  private static final int TCP_MSS = 1460;
+  // Largest window lwIP can announce; keep in sync with TCP_RCV_SCALE in
+  // lwip/custom/lwipopts.h.
+  private static final int MAX_TCP_WINDOW = 0xffff << 5;
+  // tcp_write takes at most 64k at a time.
+  private static final int MAX_SOCKS_RECEIVE_BUFFER = 0xffff;
+  // A new tunnel starts once the old one has drained, so keep it short.
+  private static final int MAX_DRAIN_TIMEOUT = 10000;
+
+  // Keep in sync with FAKE_DNS_POOL_ADDR and FAKE_DNS_POOL_PREFIX_LEN in
+  // tun2socks/tun2socks.h.
+  private static final String FAKE_DNS_POOL = "198.18.0.0/15";
+
+  private static final Pattern IPV4_ADDRESS =
+      Pattern.compile("((25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])\\.){3}"
+          + "(25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])");
+
+  private static final String SOCKS_SERVER_ADDRESSES_EXTRA = "socksServerAddresses";
+  private static final String SOCKS_BALANCE_EXTRA = "socksBalance";
+  private static final String SOCKS_PIPELINED_EXTRA = "socksPipelined";
+  private static final String TUN_READ_BATCH_EXTRA = "tunReadBatch";
+  private static final String TCP_BUFFER_MEMORY_EXTRA = "tcpBufferMemory";
+  private static final String TCP_IDLE_TIMEOUT_EXTRA = "tcpIdleTimeout";
+  private static final String DRAIN_TIMEOUT_EXTRA = "drainTimeout";
+  private static final String TCP_WINDOW_EXTRA = "tcpWindow";
+  private static final String TCP_SEND_BUFFER_EXTRA = "tcpSendBuffer";
+  private static final String SOCKS_RECEIVE_BUFFER_EXTRA = "socksReceiveBuffer";
+  private static final String MTU_EXTRA = "mtu";
+  private static final String DNS_RESOLVER_IP_EXTRA = "dnsResolverIp";
+  private static final String DNS_RESOLVER_PORT_EXTRA = "dnsResolverPort";
+  private static final String FAKE_DNS_EXTRA = "fakeDns";
+  private static final String DNS_OVER_TCP_EXTRA = "dnsOverTcp";
+  private static final String ALLOWED_APPLICATIONS_EXTRA = "allowedApplications";
+  private static final String DISALLOWED_APPLICATIONS_EXTRA = "disallowedApplications";
+  private static final String EXCLUDED_ROUTES_EXTRA = "excludedRoutes";
+  private static final String UDP_MODE_EXTRA = "udpMode";
+  private static final String UDPGW_SERVER_ADDRESS_EXTRA = "udpgwServerAddress";
+  private static final String UDPGW_MAX_CONNECTIONS_EXTRA = "udpgwMaxConnections";
+  private static final String UDPGW_BUFFER_SIZE_EXTRA = "udpgwBufferSize";
+
+  // Never empty. UDP goes through the first server.
+  public final List<String> socksServerAddresses;
+  public final String socksBalance;
+  // Whether to send data without waiting for the SOCKS handshake replies.
+  public final boolean socksPipelined;
+  // Most packets read from the VPN interface per wakeup.
+  public final int tunReadBatch;
+  // Bytes of buffer memory shared by all TCP connections.
+  public final int tcpBufferMemory;
+  // Milliseconds without traffic after which a TCP connection is closed.
+  public final int tcpIdleTimeout;
+  // Milliseconds that TCP connections may take to pass on their buffered
+  // data when tun2socks stops, or 0 to reset them right away.
+  public final int drainTimeout;
+  // Bytes each TCP connection may receive from apps before forwarding them.
+  public final int tcpWindow;
+  // Bytes each TCP connection may have sent to apps but not yet acknowledged.
+  public final int tcpSendBuffer;
+  // Bytes each TCP connection reads from its SOCKS server at a time.
+  public final int socksReceiveBuffer;
+  // MTU of the VPN interface.
+  public final int mtu;
+  // IPv4 address of the DNS server set on the VPN interface, whose queries
+  // are forwarded according to udpMode.
+  public final String dnsResolverIp;
+  public final int dnsResolverPort;
+  // Whether host names are answered with fake addresses and passed on to the
+  // SOCKS server, which resolves them.
+  public final boolean fakeDns;
+  // Whether DNS queries are sent over TCP through the SOCKS server, for
+  // servers without a UDP relay.
+  public final boolean dnsOverTcp;
+  // Packages whose traffic goes through the VPN. When empty, all apps except
+  // those in disallowedApplications do. At most one of the two is non-empty.
+  public final List<String> allowedApplications;
+  // Packages whose traffic bypasses the VPN.
+  public final List<String> disallowedApplications;
+  // Destinations that bypass the VPN, as prefixes in CIDR notation.
+  public final List<String> excludedRoutes;
+  public final String udpMode;
+  public final String udpgwServerAddress;
+  public final int udpgwMaxConnections;
+  public final int udpgwBufferSize;
+
+  private TunnelConfig(Builder builder) {
+    this.socksServerAddresses =
+        Collections.unmodifiableList(new ArrayList<String>(builder.socksServerAddresses));
+    this.socksBalance = builder.socksBalance;
+    this.socksPipelined = builder.socksPipelined;
+    this.tunReadBatch = builder.tunReadBatch;
+    this.tcpBufferMemory = builder.tcpBufferMemory;
+    this.tcpIdleTimeout = builder.tcpIdleTimeout;
+    this.drainTimeout = builder.drainTimeout;
+    this.tcpWindow = builder.tcpWindow;
+    this.tcpSendBuffer = builder.tcpSendBuffer;
+    this.socksReceiveBuffer = builder.socksReceiveBuffer;
+    this.mtu = builder.mtu;
+    this.dnsResolverIp = builder.dnsResolverIp;
+    this.dnsResolverPort = builder.dnsResolverPort;
+    this.fakeDns = builder.fakeDns;
+    this.dnsOverTcp = builder.dnsOverTcp;
+    this.allowedApplications =
+        Collections.unmodifiableList(new ArrayList<String>(builder.allowedApplications));
+    this.disallowedApplications =
+        Collections.unmodifiableList(new ArrayList<String>(builder.disallowedApplications));
+    this.excludedRoutes =
+        Collections.unmodifiableList(new ArrayList<String>(builder.excludedRoutes));
+    this.udpMode = builder.udpMode;
+    this.udpgwServerAddress = builder.udpgwServerAddress;
+    this.udpgwMaxConnections = builder.udpgwMaxConnections;
+    this.udpgwBufferSize = builder.udpgwBufferSize;
+  }
+
+  // Collects the fields of a config, starting from the defaults. The setters
+  // don't validate; fromOptions does.
+  public static class Builder {
+    private List<String> socksServerAddresses = Collections.<String>emptyList();
+    private String socksBalance = SOCKS_BALANCE_ROUND_ROBIN;
+    private boolean socksPipelined;
+    private int tunReadBatch = DEFAULT_TUN_READ_BATCH;
+    private int tcpBufferMemory = DEFAULT_TCP_BUFFER_MEMORY;
+    private int tcpIdleTimeout = DEFAULT_TCP_IDLE_TIMEOUT;
+    private int drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    private int tcpWindow = DEFAULT_TCP_WINDOW;
+    private int tcpSendBuffer = DEFAULT_TCP_SEND_BUFFER;
+    private int socksReceiveBuffer = DEFAULT_SOCKS_RECEIVE_BUFFER;
+    private int mtu = DEFAULT_MTU;
+    private String dnsResolverIp = DEFAULT_DNS_RESOLVER_IP;
+    private int dnsResolverPort = DEFAULT_DNS_RESOLVER_PORT;
+    private boolean fakeDns;
+    private boolean dnsOverTcp;
+    private List<String> allowedApplications = Collections.<String>emptyList();
+    private List<String> disallowedApplications = Collections.<String>emptyList();
+    private List<String> excludedRoutes = Collections.<String>emptyList();
+    private String udpMode = UDP_MODE_DNS;
+    private String udpgwServerAddress;
+    private int udpgwMaxConnections = DEFAULT_UDPGW_MAX_CONNECTIONS;
+    private int udpgwBufferSize = DEFAULT_UDPGW_BUFFER_SIZE;
+
+    public Builder setSocksServerAddresses(List<String> socksServerAddresses) {
+      this.socksServerAddresses = socksServerAddresses;
+      return this;
+    }
+
+    public Builder setSocksBalance(String socksBalance) {
+      this.socksBalance = socksBalance;
+      return this;
+    }
+
+    public Builder setSocksPipelined(boolean socksPipelined) {
+      this.socksPipelined = socksPipelined;
+      return this;
+    }
+
+    public Builder setTunReadBatch(int tunReadBatch) {
+      this.tunReadBatch = tunReadBatch;
+      return this;
+    }
+
+    public Builder setTcpBufferMemory(int tcpBufferMemory) {
+      this.tcpBufferMemory = tcpBufferMemory;
+      return this;
+    }
+
+    public Builder setTcpIdleTimeout(int tcpIdleTimeout) {
+      this.tcpIdleTimeout = tcpIdleTimeout;
+      return this;
+    }
+
+    public Builder setDrainTimeout(int drainTimeout) {
+      this.drainTimeout = drainTimeout;
+      return this;
+    }
+
+    public Builder setTcpWindow(int tcpWindow) {
+      this.tcpWindow = tcpWindow;
+      return this;
+    }
+
+    public Builder setTcpSendBuffer(int tcpSendBuffer) {
+      this.tcpSendBuffer = tcpSendBuffer;
+      return this;
+    }
+
+    public Builder setSocksReceiveBuffer(int socksReceiveBuffer) {
+      this.socksReceiveBuffer = socksReceiveBuffer;
+      return this;
+    }
+
+    public Builder setMtu(int mtu) {
+      this.mtu = mtu;
+      return this;
+    }
+
+    public Builder setDnsResolverIp(String dnsResolverIp) {
+      this.dnsResolverIp = dnsResolverIp;
+      return this;
+    }
+
+    public Builder setDnsResolverPort(int dnsResolverPort) {
+      this.dnsResolverPort = dnsResolverPort;
+      return this;
+    }
+
+    public Builder setFakeDns(boolean fakeDns) {
+      this.fakeDns = fakeDns;
+      return this;
+    }
+
+    public Builder setDnsOverTcp(boolean dnsOverTcp) {
+      this.dnsOverTcp = dnsOverTcp;
+      return this;
+    }
+
+    public Builder setAllowedApplications(List<String> allowedApplications) {
+      this.allowedApplications = allowedApplications;
+      return this;
+    }
+
+    public Builder setDisallowedApplications(List<String> disallowedApplications) {
+      this.disallowedApplications = disallowedApplications;
+      return this;
+    }
+
+    public Builder setExcludedRoutes(List<String> excludedRoutes) {
+      this.excludedRoutes = excludedRoutes;
+      return this;
+    }
+
+    public Builder setUdpMode(String udpMode) {
+      this.udpMode = udpMode;
+      return this;
+    }
+
+    public Builder setUdpgwServerAddress(String udpgwServerAddress) {
+      this.udpgwServerAddress = udpgwServerAddress;
+      return this;
+    }
+
+    public Builder setUdpgwMaxConnections(int udpgwMaxConnections) {
+      this.udpgwMaxConnections = udpgwMaxConnections;
+      return this;
+    }
+
+    public Builder setUdpgwBufferSize(int udpgwBufferSize) {
+      this.udpgwBufferSize = udpgwBufferSize;
+      return this;
+    }
+
+    public TunnelConfig build() {
+      return new TunnelConfig(this);
+    }
+  }
+
+  // Returns a builder that starts from the settings of this config.
+  public Builder toBuilder() {
+    return new Builder()
+        .setSocksServerAddresses(socksServerAddresses)
+        .setSocksBalance(socksBalance)
+        .setSocksPipelined(socksPipelined)
+        .setTunReadBatch(tunReadBatch)
+        .setTcpBufferMemory(tcpBufferMemory)
+        .setTcpIdleTimeout(tcpIdleTimeout)
+        .setDrainTimeout(drainTimeout)
+        .setTcpWindow(tcpWindow)
+        .setTcpSendBuffer(tcpSendBuffer)
+        .setSocksReceiveBuffer(socksReceiveBuffer)
+        .setMtu(mtu)
+        .setDnsResolverIp(dnsResolverIp)
+        .setDnsResolverPort(dnsResolverPort)
+        .setFakeDns(fakeDns)
+        .setDnsOverTcp(dnsOverTcp)
+        .setAllowedApplications(allowedApplications)
+        .setDisallowedApplications(disallowedApplications)
+        .setExcludedRoutes(excludedRoutes)
+        .setUdpMode(udpMode)
+        .setUdpgwServerAddress(udpgwServerAddress)
+        .setUdpgwMaxConnections(udpgwMaxConnections)
+        .setUdpgwBufferSize(udpgwBufferSize);
+  }
+
+  // Builds a config from the arguments of tun2socks.start(). |options| may be
+  // null. Throws IllegalArgumentException if an option is invalid.
+  public static TunnelConfig fromOptions(
+      List<String> socksServerAddresses, JSONObject options) {
+    if (options == null) {
+      options = new JSONObject();
+    }
+    String socksBalance = options.optString("socksBalance", SOCKS_BALANCE_ROUND_ROBIN);
+    boolean socksPipelined = optBoolean(options, "socksPipelined");
+    int tunReadBatch = optInt(options, "tunReadBatch", DEFAULT_TUN_READ_BATCH);
+    int tcpBufferMemory = optInt(options, "tcpBufferMemory", DEFAULT_TCP_BUFFER_MEMORY);
+    int tcpIdleTimeout = optInt(options, "tcpIdleTimeout", DEFAULT_TCP_IDLE_TIMEOUT);
+    // 0 turns draining off, rather than selecting the default.
+    int drainTimeout = getInt(options, "drainTimeout", DEFAULT_DRAIN_TIMEOUT);
+    int tcpWindow = optInt(options, "tcpWindow", DEFAULT_TCP_WINDOW);
+    int tcpSendBuffer = optInt(options, "tcpSendBuffer", DEFAULT_TCP_SEND_BUFFER);
+    int socksReceiveBuffer =
+        optInt(options, "socksReceiveBuffer", DEFAULT_SOCKS_RECEIVE_BUFFER);
+    int mtu = optInt(options, "mtu", DEFAULT_MTU);
+    String dnsResolver = options.optString("dnsResolver", DEFAULT_DNS_RESOLVER_IP);
+    boolean fakeDns = optBoolean(options, "fakeDns");
+    boolean dnsOverTcp = optBoolean(options, "dnsOverTcp");
+    List<String> allowedApplications = optStringList(options, "allowedApplications");
+    List<String> disallowedApplications = optStringList(options, "disallowedApplications");
+    List<String> excludedRoutes = optStringList(options, "excludedRoutes");
+    String udpMode = options.optString("udpMode", UDP_MODE_DNS);
+    String udpgwServerAddress = options.optString("udpgwServerAddress", null);
+    int udpgwMaxConnections =
+        optInt(options, "udpgwMaxConnections", DEFAULT_UDPGW_MAX_CONNECTIONS);
+    int udpgwBufferSize = optInt(options, "udpgwBufferSize", DEFAULT_UDPGW_BUFFER_SIZE);
+
+    if (socksServerAddresses.isEmpty() || socksServerAddresses.size() > MAX_SOCKS_SERVERS) {
+      throw new IllegalArgumentException(
+          "Between 1 and " + MAX_SOCKS_SERVERS + " SOCKS server addresses are required");
+    }
+    for (String address : socksServerAddresses) {
+      // Addresses are passed to tun2socks as a comma-separated list.
+      if (address.isEmpty() || address.contains(",")) {
+        throw new IllegalArgumentException("Invalid SOCKS server address: " + address);
+      }
+    }
+    if (!SOCKS_BALANCE_ROUND_ROBIN.equals(socksBalance)
+        && !SOCKS_BALANCE_LEAST_CONNECTIONS.equals(socksBalance)
+        && !SOCKS_BALANCE_LATENCY.equals(socksBalance)) {
+      throw new IllegalArgumentException("Invalid socksBalance option: " + socksBalance);
+    }
+    if (!UDP_MODE_DNS.equals(udpMode)
+        && !UDP_MODE_SOCKS.equals(udpMode)
+        && !UDP_MODE_UDPGW.equals(udpMode)) {
+      throw new IllegalArgumentException("Invalid udpMode option: " + udpMode);
+    }
+    if (UDP_MODE_UDPGW.equals(udpMode)) {
+      if (udpgwServerAddress == null) {
+        throw new IllegalArgumentException("udpMode udpgw requires udpgwServerAddress");
+      }
+    } else {
+      udpgwServerAddress = null;
+    }
+    if (udpgwMaxConnections < 0 || udpgwBufferSize < 0) {
+      throw new IllegalArgumentException("udpgw limits must not be negative");
+    }
+    if (tunReadBatch < 0 || tunReadBatch > MAX_TUN_READ_BATCH) {
+      throw new IllegalArgumentException(
+          "tunReadBatch must be between 0 and " + MAX_TUN_READ_BATCH);
+    }
+    if (tcpBufferMemory < 0) {
+      throw new IllegalArgumentException("tcpBufferMemory must not be negative");
+    }
+    if (tcpIdleTimeout < 0) {
+      throw new IllegalArgumentException("tcpIdleTimeout must not be negative");
+    }
+    if (drainTimeout < 0 || drainTimeout > MAX_DRAIN_TIMEOUT) {
+      throw new IllegalArgumentException(
+          "drainTimeout must be between 0 and " + MAX_DRAIN_TIMEOUT);
+    }
+    // These are the limits tcp_set_buffers checks.
+    if (tcpWindow < TCP_MSS || tcpWindow > MAX_TCP_WINDOW) {
+      throw new IllegalArgumentException(
+          "tcpWindow must be between " + TCP_MSS + " and " + MAX_TCP_WINDOW);
+    }
+    if (tcpSendBuffer < 2 * TCP_MSS || tcpSendBuffer > MAX_TCP_WINDOW) {
+      throw new IllegalArgumentException(
+          "tcpSendBuffer must be between " + 2 * TCP_MSS + " and " + MAX_TCP_WINDOW);
+    }
+    if (socksReceiveBuffer < 0 || socksReceiveBuffer > MAX_SOCKS_RECEIVE_BUFFER) {
+      throw new IllegalArgumentException(
+          "socksReceiveBuffer must be between 0 and " + MAX_SOCKS_RECEIVE_BUFFER);
+    }
+    if (mtu < MIN_MTU || mtu > MAX_MTU) {
+      throw new IllegalArgumentException("mtu must be between " + MIN_MTU + " and " + MAX_MTU);
+    }
+    // The resolver is given as an IPv4 address with an optional port.
+    String dnsResolverIp = dnsResolver;
+    int dnsResolverPort = DEFAULT_DNS_RESOLVER_PORT;
+    int portSeparator = dnsResolver.lastIndexOf(':');
+    if (portSeparator >= 0) {
+      dnsResolverIp = dnsResolver.substring(0, portSeparator);
+      try {
+        dnsResolverPort = Integer.parseInt(dnsResolver.substring(portSeparator + 1));
+      } catch (NumberFormatException e) {
+        dnsResolverPort = -1;
+      }
+    }
+    if (!IPV4_ADDRESS.matcher(dnsResolverIp).matches()
+        || dnsResolverPort <= 0
+        || dnsResolverPort > 0xffff) {
+      throw new IllegalArgumentException("Invalid dnsResolver option: " + dnsResolver);
+    }
+    // VpnService.Builder takes either kind of list, but not both.
+    if (!allowedApplications.isEmpty() && !disallowedApplications.isEmpty()) {
+      throw new IllegalArgumentException(
+          "Only one of allowedApplications and disallowedApplications may be given");
+    }
+    // Fake addresses are only answered to the VPN's DNS server, and must be
+    // routed through the VPN.
+    if (fakeDns && UDP_MODE_UDPGW.equals(udpMode)) {
+      throw new IllegalArgumentException("fakeDns requires udpMode dns or socks");
+    }
+    // With udpgw, DNS goes over TCP to the udpgw server already.
+    if (dnsOverTcp && UDP_MODE_UDPGW.equals(udpMode)) {
+      throw new IllegalArgumentException("dnsOverTcp requires udpMode dns or socks");
+    }
+    RouteSet.Route fakeDnsPool = RouteSet.parse(FAKE_DNS_POOL);
+    for (int i = 0; i < excludedRoutes.size(); i++) {
+      RouteSet.Route route = RouteSet.parse(excludedRoutes.get(i));
+      if (fakeDns && route.overlaps(fakeDnsPool)) {
+        throw new IllegalArgumentException(
+            "excludedRoutes must not overlap the fakeDns addresses " + FAKE_DNS_POOL);
+      }
+      excludedRoutes.set(i, route.toString());
+    }
+
+    return new Builder()
+        .setSocksServerAddresses(socksServerAddresses)
+        .setSocksBalance(socksBalance)
+        .setSocksPipelined(socksPipelined)
+        .setTunReadBatch(tunReadBatch)
+        .setTcpBufferMemory(tcpBufferMemory)
+        .setTcpIdleTimeout(tcpIdleTimeout)
+        .setDrainTimeout(drainTimeout)
+        .setTcpWindow(tcpWindow)
+        .setTcpSendBuffer(tcpSendBuffer)
+        .setSocksReceiveBuffer(socksReceiveBuffer)
+        .setMtu(mtu)
+        .setDnsResolverIp(dnsResolverIp)
+        .setDnsResolverPort(dnsResolverPort)
+        .setFakeDns(fakeDns)
+        .setDnsOverTcp(dnsOverTcp)
+        .setAllowedApplications(allowedApplications)
+        .setDisallowedApplications(disallowedApplications)
+        .setExcludedRoutes(excludedRoutes)
+        .setUdpMode(udpMode)
+        .setUdpgwServerAddress(udpgwServerAddress)
+        .setUdpgwMaxConnections(udpgwMaxConnections)
+        .setUdpgwBufferSize(udpgwBufferSize)
+        .build();
+  }
+
+  // Returns the strings in the array options[name], which may be missing.
+  private static List<String> optStringList(JSONObject options, String name) {
+    List<String> list = new ArrayList<String>();
+    JSONArray array = options.optJSONArray(name);
+    if (array == null) {
+      if (options.has(name) && !options.isNull(name)) {
+        throw new IllegalArgumentException(name + " must be an array");
+      }
+      return list;
+    }
+    for (int i = 0; i < array.length(); i++) {
+      String value = array.optString(i, "");
+      if (value.isEmpty()) {
+        throw new IllegalArgumentException("Invalid entry in " + name);
+      }
+      list.add(value);
+    }
+    return list;
+  }
+
+  // Returns options[name], or |defaultValue| if it is missing or 0.
+  private static int optInt(JSONObject options, String name, int defaultValue) {
+    int value = getInt(options, name, 0);
+    return value != 0 ? value : defaultValue;
+  }
+
+  // Returns options[name], or |defaultValue| if it is missing or null.
+  // Unlike JSONObject.optInt, which turns anything it cannot convert into the
+  // default, throws IllegalArgumentException unless the value is an integer,
+  // or a string of one.
+  private static int getInt(JSONObject options, String name, int defaultValue) {
+    if (!options.has(name) || options.isNull(name)) {
+      return defaultValue;
+    }
+    Object value = options.opt(name);
+    long result;
+    if (value instanceof Integer || value instanceof Long) {
+      result = ((Number) value).longValue();
+    } else if (value instanceof Number) {
+      double number = ((Number) value).doubleValue();
+      if (number != Math.rint(number) || Double.isInfinite(number)) {
+        throw new IllegalArgumentException(name + " must be an integer");
+      }
+      result = (long) number;
+    } else if (value instanceof String) {
+      try {
+        result = Long.parseLong((String) value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(name + " must be an integer");
+      }
+    } else {
+      throw new IllegalArgumentException(name + " must be an integer");
+    }
+    if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(name + " is out of range");
+    }
+    return (int) result;
+  }
+
+  // Returns options[name], or false if it is missing or null. Throws
+  // IllegalArgumentException unless the value is a boolean, or a string of
+  // one.
+  private static boolean optBoolean(JSONObject options, String name) {
+    if (!options.has(name) || options.isNull(name)) {
+      return false;
+    }
+    Object value = options.opt(name);
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    }
+    if ("true".equals(value) || "false".equals(value)) {
+      return "true".equals(value);
+    }
+    throw new IllegalArgumentException(name + " must be true or false");
+  }
+
+  // Returns the config stored in |intent| by putExtras, or null if there is
+  // none.
+  public static TunnelConfig fromIntent(Intent intent) {
+    List<String> socksServerAddresses =
+        intent.getStringArrayListExtra(SOCKS_SERVER_ADDRESSES_EXTRA);
+    if (socksServerAddresses == null || socksServerAddresses.isEmpty()) {
+      return null;
+    }
+    // Extras that are missing keep the builder's defaults.
+    Builder builder = new Builder()
+        .setSocksServerAddresses(socksServerAddresses)
+        .setSocksPipelined(intent.getBooleanExtra(SOCKS_PIPELINED_EXTRA, false))
+        .setTunReadBatch(intent.getIntExtra(TUN_READ_BATCH_EXTRA, DEFAULT_TUN_READ_BATCH))
+        .setTcpBufferMemory(
+            intent.getIntExtra(TCP_BUFFER_MEMORY_EXTRA, DEFAULT_TCP_BUFFER_MEMORY))
+        .setTcpIdleTimeout(intent.getIntExtra(TCP_IDLE_TIMEOUT_EXTRA, DEFAULT_TCP_IDLE_TIMEOUT))
+        .setDrainTimeout(intent.getIntExtra(DRAIN_TIMEOUT_EXTRA, DEFAULT_DRAIN_TIMEOUT))
+        .setTcpWindow(intent.getIntExtra(TCP_WINDOW_EXTRA, DEFAULT_TCP_WINDOW))
+        .setTcpSendBuffer(intent.getIntExtra(TCP_SEND_BUFFER_EXTRA, DEFAULT_TCP_SEND_BUFFER))
+        .setSocksReceiveBuffer(
+            intent.getIntExtra(SOCKS_RECEIVE_BUFFER_EXTRA, DEFAULT_SOCKS_RECEIVE_BUFFER))
+        .setMtu(intent.getIntExtra(MTU_EXTRA, DEFAULT_MTU))
+        .setDnsResolverPort(
+            intent.getIntExtra(DNS_RESOLVER_PORT_EXTRA, DEFAULT_DNS_RESOLVER_PORT))
+        .setFakeDns(intent.getBooleanExtra(FAKE_DNS_EXTRA, false))
+        .setDnsOverTcp(intent.getBooleanExtra(DNS_OVER_TCP_EXTRA, false))
+        .setUdpgwServerAddress(intent.getStringExtra(UDPGW_SERVER_ADDRESS_EXTRA))
+        .setUdpgwMaxConnections(
+            intent.getIntExtra(UDPGW_MAX_CONNECTIONS_EXTRA, DEFAULT_UDPGW_MAX_CONNECTIONS))
+        .setUdpgwBufferSize(
+            intent.getIntExtra(UDPGW_BUFFER_SIZE_EXTRA, DEFAULT_UDPGW_BUFFER_SIZE));
+    String socksBalance = intent.getStringExtra(SOCKS_BALANCE_EXTRA);
+    if (socksBalance != null) {
+      builder.setSocksBalance(socksBalance);
+    }
+    String dnsResolverIp = intent.getStringExtra(DNS_RESOLVER_IP_EXTRA);
+    if (dnsResolverIp != null) {
+      builder.setDnsResolverIp(dnsResolverIp);
+    }
+    List<String> allowedApplications = intent.getStringArrayListExtra(ALLOWED_APPLICATIONS_EXTRA);
+    if (allowedApplications != null) {
+      builder.setAllowedApplications(allowedApplications);
+    }
+    List<String> disallowedApplications =
+        intent.getStringArrayListExtra(DISALLOWED_APPLICATIONS_EXTRA);
+    if (disallowedApplications != null) {
+      builder.setDisallowedApplications(disallowedApplications);
+    }
+    List<String> excludedRoutes = intent.getStringArrayListExtra(EXCLUDED_ROUTES_EXTRA);
+    if (excludedRoutes != null) {
+      builder.setExcludedRoutes(excludedRoutes);
+    }
+    String udpMode = intent.getStringExtra(UDP_MODE_EXTRA);
+    if (udpMode != null) {
+      builder.setUdpMode(udpMode);
+    }
+    return builder.build();
+  }
+
+  public void putExtras(Intent intent) {
+    intent.putStringArrayListExtra(
+        SOCKS_SERVER_ADDRESSES_EXTRA, new ArrayList<String>(socksServerAddresses));
+    intent.putExtra(SOCKS_BALANCE_EXTRA, socksBalance);
+    intent.putExtra(SOCKS_PIPELINED_EXTRA, socksPipelined);
+    intent.putExtra(TUN_READ_BATCH_EXTRA, tunReadBatch);
+    intent.putExtra(TCP_BUFFER_MEMORY_EXTRA, tcpBufferMemory);
+    intent.putExtra(TCP_IDLE_TIMEOUT_EXTRA, tcpIdleTimeout);
+    intent.putExtra(DRAIN_TIMEOUT_EXTRA, drainTimeout);
+    intent.putExtra(TCP_WINDOW_EXTRA, tcpWindow);
+    intent.putExtra(TCP_SEND_BUFFER_EXTRA, tcpSendBuffer);
+    intent.putExtra(SOCKS_RECEIVE_BUFFER_EXTRA, socksReceiveBuffer);
+    intent.putExtra(MTU_EXTRA, mtu);
+    intent.putExtra(DNS_RESOLVER_IP_EXTRA, dnsResolverIp);
+    intent.putExtra(DNS_RESOLVER_PORT_EXTRA, dnsResolverPort);
+    intent.putExtra(FAKE_DNS_EXTRA, fakeDns);
+    intent.putExtra(DNS_OVER_TCP_EXTRA, dnsOverTcp);
+    intent.putStringArrayListExtra(
+        ALLOWED_APPLICATIONS_EXTRA, new ArrayList<String>(allowedApplications));
+    intent.putStringArrayListExtra(
+        DISALLOWED_APPLICATIONS_EXTRA, new ArrayList<String>(disallowedApplications));
+    intent.putStringArrayListExtra(EXCLUDED_ROUTES_EXTRA, new ArrayList<String>(excludedRoutes));
+    intent.putExtra(UDP_MODE_EXTRA, udpMode);
+    intent.putExtra(UDPGW_SERVER_ADDRESS_EXTRA, udpgwServerAddress);
+    intent.putExtra(UDPGW_MAX_CONNECTIONS_EXTRA, udpgwMaxConnections);
+    intent.putExtra(UDPGW_BUFFER_SIZE_EXTRA, udpgwBufferSize);
+  }
+
+  // Returns the settings as reported to the start callback, in the form of
+  // the tun2socks.start() options.
+  public JSONObject toJson() {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("socksServerAddresses", new JSONArray(socksServerAddresses));
+      json.put("socksBalance", socksBalance);
+      json.put("socksPipelined", socksPipelined);
+      json.put("tunReadBatch", tunReadBatch);
+      json.put("tcpBufferMemory", tcpBufferMemory);
+      json.put("tcpIdleTimeout", tcpIdleTimeout);
+      json.put("drainTimeout", drainTimeout);
+      json.put("tcpWindow", tcpWindow);
+      json.put("tcpSendBuffer", tcpSendBuffer);
+      json.put("socksReceiveBuffer", socksReceiveBuffer);
+      json.put("mtu", mtu);
+      json.put("dnsResolver", dnsResolverAddress());
+      json.put("fakeDns", fakeDns);
+      json.put("dnsOverTcp", dnsOverTcp);
+      json.put("allowedApplications", new JSONArray(allowedApplications));
+      json.put("disallowedApplications", new JSONArray(disallowedApplications));
+      json.put("excludedRoutes", new JSONArray(excludedRoutes));
+      json.put("udpMode", udpMode);
+      if (udpgwServerAddress != null) {
+        json.put("udpgwServerAddress", udpgwServerAddress);
+        json.put("udpgwMaxConnections", udpgwMaxConnections);
+        json.put("udpgwBufferSize", udpgwBufferSize);
+      }
+    } catch (JSONException e) {
+      // Only thrown for non-finite numbers.
+      throw new IllegalStateException(e);
+    }
+    return json;
+  }
+
+  // Returns the SOCKS server addresses in the comma-separated form taken by
+  // tun2socks.
+  public String socksServerAddressList() {
+    return TextUtils.join(",", socksServerAddresses);
+  }
+
+  // Returns the DNS resolver in the address:port form taken by tun2socks.
+  public String dnsResolverAddress() {
+    return dnsResolverIp + ":" + dnsResolverPort;
+  }
+
+  // Returns whether |config| can use the VPN interface set up for this
+  // config, which fixes the MTU and the DNS server.
+  public boolean hasSameVpnInterface(TunnelConfig config) {
+    return mtu == config.mtu
+        && dnsResolverIp.equals(config.dnsResolverIp)
+        && dnsResolverPort == config.dnsResolverPort;
+  }
+
+  // Returns a copy of this config with different SOCKS servers.
+  public TunnelConfig withSocksServerAddresses(List<String> socksServerAddresses) {
+    return toBuilder().setSocksServerAddresses(socksServerAddresses).build();
+  }
+
+  // Returns whether |config| routes the same applications and destinations
+  // through the VPN.
+  public boolean hasSameRouting(TunnelConfig config) {
+    return allowedApplications.equals(config.allowedApplications)
+        && disallowedApplications.equals(config.disallowedApplications)
+        && excludedRoutes.equals(config.excludedRoutes);
+  }
+
+  // Returns a copy of this config with the applications and destinations
+  // routed by |config|.
+  public TunnelConfig withRoutingOf(TunnelConfig config) {
+    return toBuilder()
+        .setAllowedApplications(config.allowedApplications)
+        .setDisallowedApplications(config.disallowedApplications)
+        .setExcludedRoutes(config.excludedRoutes)
+        .build();
+  }
+
+  // Returns a copy of this config with the VPN interface settings of
+  // |config|.
+  public TunnelConfig withVpnInterfaceOf(TunnelConfig config) {
+    return toBuilder()
+        .setMtu(config.mtu)
+        .setDnsResolverIp(config.dnsResolverIp)
+        .setDnsResolverPort(config.dnsResolverPort)
+        .build();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof TunnelConfig)) {
+      return false;
+    }
+    TunnelConfig config = (TunnelConfig) other;
+    return socksServerAddresses.equals(config.socksServerAddresses)
+        && socksBalance.equals(config.socksBalance)
+        && socksPipelined == config.socksPipelined
+        && tunReadBatch == config.tunReadBatch
+        && tcpBufferMemory == config.tcpBufferMemory
+        && tcpIdleTimeout == config.tcpIdleTimeout
+        && drainTimeout == config.drainTimeout
+        && tcpWindow == config.tcpWindow
+        && tcpSendBuffer == config.tcpSendBuffer
+        && socksReceiveBuffer == config.socksReceiveBuffer
+        && hasSameVpnInterface(config)
+        && fakeDns == config.fakeDns
+        && dnsOverTcp == config.dnsOverTcp
+        && hasSameRouting(config)
+        && udpMode.equals(config.udpMode)
+        && (udpgwServerAddress == null
+            ? config.udpgwServerAddress == null
+            : udpgwServerAddress.equals(config.udpgwServerAddress))
+        && udpgwMaxConnections == config.udpgwMaxConnections
+        && udpgwBufferSize == config.udpgwBufferSize;
+  }
+
+  @Override
+  public int hashCode() {
+    return socksServerAddresses.hashCode() * 31 + udpMode.hashCode();
+  }
+}
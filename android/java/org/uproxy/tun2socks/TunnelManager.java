@@ -20,155 +20,358 @@ package org.uproxy.tun2socks;
  */
 
 import android.annotation.TargetApi;
-import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.VpnService;
 import android.os.Build;
-import android.os.IBinder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
+// Runs the VPN and tunnel of the service as a state machine. Every
+// transition runs in turn on a single executor thread, so the state needs no
+// locking. Results are posted to the main thread, for the Listener
+// registered in TunnelState.
 public class TunnelManager implements Tunnel.HostService {
 
+  // The states of the service, in the order a tunnel goes through them.
+  public enum State {
+    // Nothing is running.
+    IDLE,
+    // The VPN interface is being established.
+    ROUTING,
+    // tun2socks runs on the VPN interface.
+    TUNNELING,
+    // tun2socks drains its connections, after which the VPN goes down.
+    DRAINING;
+
+    private boolean canMoveTo(State next) {
+      switch (this) {
+        case IDLE:
+          return next == ROUTING;
+        case ROUTING:
+          // A failed start drains too, to take down what was set up.
+          return next == TUNNELING || next == DRAINING;
+        case TUNNELING:
+          return next == DRAINING;
+        case DRAINING:
+          return next == IDLE;
+      }
+      return false;
+    }
+  }
+
+  // Receives the progress of the tunnel. All calls come on the main thread,
+  // in the order of the transitions, so a listener may call into Cordova and
+  // the UI directly. They may arrive after the state has moved on.
+  public interface Listener {
+    // |state| was entered at |elapsedRealtime|, as SystemClock.elapsedRealtime.
+    public void onTunnelStateChanged(State state, long elapsedRealtime);
+
+    // Reports the result of a start or restart. |config| is the config in
+    // effect, or null on failure.
+    public void onTunnelStarted(boolean success, TunnelConfig config);
+
+    // The VPN was revoked or disconnected without being stopped.
+    public void onTunnelDisconnected();
+  }
+
   private static final String LOG_TAG = "TunnelManager";
-  public static final String SOCKS_SERVER_ADDRESS_EXTRA = "socksServerAddress";
 
   private TunnelVpnService m_parentService = null;
-  private CountDownLatch m_tunnelThreadStopSignal;
-  private Thread m_tunnelThread;
-  private AtomicBoolean m_isStopping;
+  private final ExecutorService m_executor;
+  private final Handler m_mainHandler = new Handler(Looper.getMainLooper());
   private Tunnel m_tunnel = null;
-  private String m_socksServerAddress;
-  private AtomicBoolean m_isReconnecting;
+
+  // Only used on the executor thread.
+  private State m_state = State.IDLE;
+  private long m_stateMillis;
+  private TunnelConfig m_config;
+  // The config to start with once the tunnel has drained.
+  private TunnelConfig m_pendingConfig;
+  private boolean m_destroyed;
 
   public TunnelManager(TunnelVpnService parentService) {
     m_parentService = parentService;
-    m_isStopping = new AtomicBoolean(false);
-    m_isReconnecting = new AtomicBoolean(false);
+    m_executor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "tunnel");
+              }
+            });
+    m_stateMillis = SystemClock.elapsedRealtime();
     m_tunnel = Tunnel.newTunnel(this);
   }
 
   // Implementation of android.app.Service.onStartCommand
   public int onStartCommand(Intent intent, int flags, int startId) {
     Log.i(LOG_TAG, "onStartCommand");
-    m_socksServerAddress = intent.getStringExtra(SOCKS_SERVER_ADDRESS_EXTRA);
-    if (m_socksServerAddress == null) {
+    final TunnelConfig config = TunnelConfig.fromIntent(intent);
+    if (config == null) {
       Log.e(LOG_TAG, "Failed to receive the socks server address.");
-      m_parentService.broadcastVpnStart(false /* success */);
-      return 0;
-    }
-
-    try {
-      if (!m_tunnel.startRouting()) {
-        Log.e(LOG_TAG, "Failed to establish VPN");
-        m_parentService.broadcastVpnStart(false /* success */);
-      }
-    } catch (Tunnel.Exception e) {
-      Log.e(LOG_TAG, String.format("Failed to establish VPN: %s", e.getMessage()));
-      m_parentService.broadcastVpnStart(false /* success */);
     }
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (config == null) {
+              reportStarted(false /* success */, null);
+              stopService();
+            } else {
+              start(config);
+            }
+          }
+        });
     return android.app.Service.START_NOT_STICKY;
   }
 
   // Implementation of android.app.Service.onDestroy
   public void onDestroy() {
-    if (m_tunnelThread == null) {
-      return;
-    }
-    // signalStopService should have been called, but in case is was not, call here.
-    // If signalStopService was not already called, the join may block the calling
-    // thread for some time.
-    signalStopService();
+    // This runs on the main thread, so don't wait for the tunnel: it drains
+    // its connections on its own, and the executor ends after that.
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            m_destroyed = true;
+            m_pendingConfig = null;
+            if (m_state == State.IDLE) {
+              m_executor.shutdown();
+            } else {
+              stop();
+            }
+          }
+        });
+  }
 
-    try {
-      m_tunnelThread.join();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+  // Reports a VPN that was revoked to the listener, on the main thread, as
+  // VpnService.onRevoke is. The service is stopped separately.
+  public void onRevoke() {
+    Listener listener = TunnelState.getTunnelState().getListener();
+    if (listener != null) {
+      listener.onTunnelDisconnected();
     }
-    m_tunnelThreadStopSignal = null;
-    m_tunnelThread = null;
   }
 
-  // Signals the runTunnel thread to stop. The thread will self-stop the service.
+  // Stops the tunnel, after which the service stops itself. Returns right
+  // away; the service stops once the tunnel has drained its connections.
   // This is the preferred method for stopping the tunnel service:
   // 1. VpnService doesn't respond to stopService calls
   // 2. The UI will not block while waiting for stopService to return
   public void signalStopService() {
-    if (m_tunnelThreadStopSignal != null) {
-      m_tunnelThreadStopSignal.countDown();
-    }
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            m_pendingConfig = null;
+            stop();
+          }
+        });
   }
 
-  // Stops the tunnel thread and restarts it with |socksServerAddress|.
-  public void restartTunnel(final String socksServerAddress) {
-    Log.i(LOG_TAG, "Restarting tunnel.");
-    if (socksServerAddress == null ||
-        socksServerAddress.equals(m_socksServerAddress)) {
-      // Don't reconnect if the socks server address hasn't changed.
-      m_parentService.broadcastVpnStart(true /* success */);
-      return;
-    }
-    m_socksServerAddress = socksServerAddress;
-    m_isReconnecting.set(true);
+  // Restarts the tunnel with |config|, keeping the VPN if possible.
+  public void restartTunnel(final TunnelConfig config) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            restart(config);
+          }
+        });
+  }
 
-    // Signaling stop to the tunnel thread with the reconnect flag set causes
-    // the thread to stop the tunnel (but not the VPN or the service) and send
-    // the new SOCKS server address to the DNS resolver before exiting itself.
-    // When the DNS broadcasts its local address, the tunnel will restart.
-    signalStopService();
+  // Runs |task| on the executor thread, unless the service is gone.
+  private void post(Runnable task) {
+    try {
+      m_executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      Log.w(LOG_TAG, "Tunnel service is destroyed.");
+    }
   }
 
-  private void startTunnel() {
-    m_tunnelThreadStopSignal = new CountDownLatch(1);
-    m_tunnelThread =
-        new Thread(
-            new Runnable() {
-              @Override
-              public void run() {
-                runTunnel(m_socksServerAddress);
-              }
-            });
-    m_tunnelThread.start();
+  //----------------------------------------------------------------------------
+  // State machine, on the executor thread
+  //----------------------------------------------------------------------------
+
+  private void moveTo(State state) {
+    if (!m_state.canMoveTo(state)) {
+      throw new IllegalStateException(m_state + " cannot move to " + state);
+    }
+    long now = SystemClock.elapsedRealtime();
+    Log.i(
+        LOG_TAG,
+        String.format(Locale.US, "%s -> %s after %d ms", m_state, state, now - m_stateMillis));
+    m_state = state;
+    m_stateMillis = now;
+    final State enteredState = state;
+    final long enteredMillis = now;
+    m_mainHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            Listener listener = TunnelState.getTunnelState().getListener();
+            if (listener != null) {
+              listener.onTunnelStateChanged(enteredState, enteredMillis);
+            }
+          }
+        });
   }
 
-  private void runTunnel(String socksServerAddress) {
-    m_isStopping.set(false);
+  private void reportStarted(final boolean success, final TunnelConfig config) {
+    m_mainHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            Listener listener = TunnelState.getTunnelState().getListener();
+            if (listener != null) {
+              listener.onTunnelStarted(success, config);
+            }
+          }
+        });
+  }
 
+  // Establishes the VPN and starts tun2socks on it with |config|.
+  private void start(TunnelConfig config) {
+    if (m_state != State.IDLE) {
+      restart(config);
+      return;
+    }
+    m_config = config;
+    moveTo(State.ROUTING);
     try {
-      if (!m_tunnel.startTunneling(socksServerAddress)) {
+      if (!m_tunnel.startRouting(config)) {
         throw new Tunnel.Exception("application is not prepared or revoked");
       }
-      Log.i(LOG_TAG, "VPN service running");
-      m_parentService.broadcastVpnStart(true /* success */);
+      moveTo(State.TUNNELING);
+      if (!m_tunnel.startTunneling(config)) {
+        throw new Tunnel.Exception("failed to start tun2socks");
+      }
+    } catch (Tunnel.Exception e) {
+      Log.e(LOG_TAG, String.format("Start tunnel failed: %s", e.getMessage()));
+      reportStarted(false /* success */, null);
+      stop();
+      return;
+    }
+    Log.i(LOG_TAG, "VPN service running");
+    reportStarted(true /* success */, config);
+  }
 
+  private void restart(TunnelConfig config) {
+    if (m_state == State.DRAINING && !m_destroyed) {
+      // Start again once the VPN is down, instead of stopping the service.
+      Log.i(LOG_TAG, "Starting tunnel once the previous one has drained.");
+      m_pendingConfig = config;
+      return;
+    }
+    if (m_state != State.TUNNELING) {
+      Log.e(LOG_TAG, "Cannot restart the tunnel while the service stops.");
+      reportStarted(false /* success */, null);
+      return;
+    }
+    Log.i(LOG_TAG, "Restarting tunnel.");
+    if (config != null && !config.hasSameVpnInterface(m_config)) {
+      // The MTU and DNS server are set when the VPN is established, so they
+      // only change when the VPN is stopped and started again.
+      Log.w(LOG_TAG, "Keeping the MTU and DNS resolver of the running VPN.");
+      config = config.withVpnInterfaceOf(m_config);
+    }
+    if (config != null && !config.hasSameRouting(m_config)) {
+      // Re-establish the VPN for the new applications or routes. tun2socks
+      // moves to the new VPN interface and keeps its connections.
+      TunnelConfig routedConfig = m_config.withRoutingOf(config);
       try {
-        m_tunnelThreadStopSignal.await();
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+        if (!m_tunnel.updateRouting(routedConfig)) {
+          throw new Tunnel.Exception("application is not prepared or revoked");
+        }
+        m_config = routedConfig;
+      } catch (Tunnel.Exception e) {
+        Log.e(LOG_TAG, String.format("Failed to update VPN routing: %s", e.getMessage()));
+        reportStarted(false /* success */, null);
+        return;
       }
+    }
+    if (config == null || config.equals(m_config)) {
+      // Don't reconnect if the settings haven't changed.
+      reportStarted(true /* success */, m_config);
+      return;
+    }
 
-      m_isStopping.set(true);
+    // If only the SOCKS servers changed, switch them inside the running
+    // tunnel, which keeps established connections alive.
+    if (config.withSocksServerAddresses(m_config.socksServerAddresses).equals(m_config)
+        && m_tunnel.switchSocksServer(config)) {
+      Log.i(LOG_TAG, "Switched SOCKS server without restarting the tunnel.");
+      m_config = config;
+      reportStarted(true /* success */, m_config);
+      return;
+    }
 
-    } catch (Tunnel.Exception e) {
-      Log.e(LOG_TAG, String.format("Start tunnel failed: %s", e.getMessage()));
-      m_parentService.broadcastVpnStart(false /* success */);
-    } finally {
-      if (m_isReconnecting.get()) {
-        // Stop tunneling only, not VPN, if reconnecting.
-        Log.i(LOG_TAG, "Stopping tunnel.");
-        m_tunnel.stopTunneling();
-      } else {
-        // Stop VPN tunnel and service only if not reconnecting.
-        Log.i(LOG_TAG, "Stopping VPN and tunnel.");
-        m_tunnel.stop();
-        m_parentService.stopForeground(true);
-        m_parentService.stopSelf();
+    // Stop tunneling only, not the VPN, and start it again right away. The
+    // new tun2socks takes over once the old one has drained its connections.
+    m_config = config;
+    m_tunnel.stopTunneling(null);
+    try {
+      if (!m_tunnel.startTunneling(config)) {
+        throw new Tunnel.Exception("failed to start tun2socks");
       }
-      m_isReconnecting.set(false);
+    } catch (Tunnel.Exception e) {
+      Log.e(LOG_TAG, String.format("Restart tunnel failed: %s", e.getMessage()));
+      reportStarted(false /* success */, null);
+      stop();
+      return;
     }
+    reportStarted(true /* success */, config);
+  }
+
+  // Stops tun2socks and the VPN. Once they are down, the tunnel starts again
+  // with the pending config, if any, or the service stops.
+  private void stop() {
+    if (m_state == State.IDLE || m_state == State.DRAINING) {
+      return;
+    }
+    Log.i(LOG_TAG, "Stopping VPN and tunnel.");
+    moveTo(State.DRAINING);
+    m_tunnel.stop(
+        new Runnable() {
+          @Override
+          public void run() {
+            post(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    onStopped();
+                  }
+                });
+          }
+        });
+  }
+
+  private void onStopped() {
+    Log.i(LOG_TAG, "VPN and tunnel stopped.");
+    moveTo(State.IDLE);
+    if (m_destroyed) {
+      m_executor.shutdown();
+    } else if (m_pendingConfig != null) {
+      TunnelConfig config = m_pendingConfig;
+      m_pendingConfig = null;
+      start(config);
+    } else {
+      stopService();
+    }
+  }
+
+  private void stopService() {
+    m_parentService.stopForeground(true);
+    m_parentService.stopSelf();
   }
 
   //----------------------------------------------------------------------------
@@ -209,6 +412,5 @@ public class TunnelManager implements Tunnel.HostService {
   @TargetApi(Build.VERSION_CODES.M)
   public void onVpnEstablished() {
     Log.i(LOG_TAG, "VPN established.");
-    startTunnel();
   }
 }
@@ -18,6 +18,7 @@ public class TunnelState {
 
   private TunnelManager m_tunnelManager = null;
   private boolean m_startingTunnelManager = false;
+  private TunnelManager.Listener m_listener = null;
 
   private TunnelState() {}
 
@@ -37,4 +38,14 @@ public class TunnelState {
   public synchronized boolean getStartingTunnelManager() {
     return m_startingTunnelManager;
   }
+
+  // The listener outlives the tunnel managers, which come and go with the
+  // service.
+  public synchronized void setListener(TunnelManager.Listener listener) {
+    m_listener = listener;
+  }
+
+  public synchronized TunnelManager.Listener getListener() {
+    return m_listener;
+  }
 };
@@ -25,19 +25,12 @@ import android.net.VpnService;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
 public class TunnelVpnService extends VpnService {
 
   private static final String LOG_TAG = "TunnelVpnService";
-  public static final String TUNNEL_VPN_DISCONNECT_BROADCAST =
-      "tunnelVpnDisconnectBroadcast";
-  public static final String TUNNEL_VPN_START_BROADCAST =
-      "tunnelVpnStartBroadcast";
-  public static final String TUNNEL_VPN_START_SUCCESS_EXTRA =
-      "tunnelVpnStartSuccessExtra";
 
   private TunnelManager m_tunnelManager = new TunnelManager(this);
 
@@ -80,7 +73,7 @@ public class TunnelVpnService extends VpnService {
   @Override
   public void onRevoke() {
     Log.e(LOG_TAG, "VPN service revoked.");
-    broadcastVpnDisconnect();
+    m_tunnelManager.onRevoke();
     // stopSelf will trigger onDestroy in the main thread.
     stopSelf();
   }
@@ -88,22 +81,4 @@ public class TunnelVpnService extends VpnService {
   public VpnService.Builder newBuilder() {
     return new VpnService.Builder();
   }
-
-  // Broadcast non-user-initiated VPN disconnect.
-  public void broadcastVpnDisconnect() {
-    dispatchBroadcast(new Intent(TUNNEL_VPN_DISCONNECT_BROADCAST));
-  }
-
-  // Broadcast VPN start. |success| is true if the VPN and tunnel were started
-  // successfully, and false otherwise.
-  public void broadcastVpnStart(boolean success) {
-    Intent vpnStart = new Intent(TUNNEL_VPN_START_BROADCAST);
-    vpnStart.putExtra(TUNNEL_VPN_START_SUCCESS_EXTRA, success);
-    dispatchBroadcast(vpnStart);
-  }
-
-  private void dispatchBroadcast(final Intent broadcast) {
-    LocalBroadcastManager.getInstance(TunnelVpnService.this)
-        .sendBroadcast(broadcast);
-  }
 }
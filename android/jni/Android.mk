@@ -69,8 +69,16 @@ LOCAL_SRC_FILES := \
         base/BPending.c \
         flowextra/PacketPassInactivityMonitor.c \
         tun2socks/SocksUdpGwClient.c \
-        udpgw_client/UdpGwClient.c \
-        stringmap/BStringMap.c
+        tun2socks/DnsCache.c \
+        tun2socks/DnsFlowTable.c \
+        tun2socks/SocksUdpRelay.c \
+        tun2socks/SocksPool.c \
+        tun2socks/SocksBalancer.c \
+        tun2socks/DevicePbufPool.c \
+        tun2socks/BufferPool.c \
+        tun2socks/FakeDns.c \
+        tun2socks/DnsTcpClient.c \
+        udpgw_client/UdpGwClient.c
 
 include $(BUILD_SHARED_LIBRARY)
 
@@ -53,7 +53,8 @@ static void output_handler_done (PacketPassInactivityMonitor *o)
     DebugObject_Access(&o->d_obj);
     
     // output no longer busy, restart timer
-    BReactor_SetTimer(o->reactor, &o->timer);
+    // uProxy: coarse, so that keepalives share wakeups with other timers
+    BReactor_SetTimerCoarse(o->reactor, &o->timer);
     
     // call done
     PacketPassInterface_Done(&o->input);
@@ -64,7 +65,7 @@ static void timer_handler (PacketPassInactivityMonitor *o)
     DebugObject_Access(&o->d_obj);
     
     // restart timer
-    BReactor_SetTimer(o->reactor, &o->timer);
+    BReactor_SetTimerCoarse(o->reactor, &o->timer);
     
     // call handler
     if (o->handler) {
@@ -92,7 +93,7 @@ void PacketPassInactivityMonitor_Init (PacketPassInactivityMonitor *o, PacketPas
     
     // init timer
     BTimer_Init(&o->timer, interval, (BTimer_handler)timer_handler, o);
-    BReactor_SetTimer(o->reactor, &o->timer);
+    BReactor_SetTimerCoarse(o->reactor, &o->timer);
     
     DebugObject_Init(&o->d_obj);
 }
@@ -64,6 +64,9 @@ typedef void (*PacketPassInactivityMonitor_handler) (void *user);
  *       passed on to the output.
  *     - When the timer expires, the timer is set, ant the user's handler
  *       function is invoked.
+ *
+ * uProxy: the timer is a coarse timer (see {@link BReactor_SetTimerCoarse}),
+ * so it may expire up to {@link BREACTOR_COARSE_GRANULARITY} late.
  */
 typedef struct {
     DebugObject d_obj;
@@ -143,4 +143,13 @@
 #define BLOG_CHANNEL_BThreadSignal 142
 #define BLOG_CHANNEL_BLockReactor 143
 #define BLOG_CHANNEL_ncd_load_module 144
-#define BLOG_NUM_CHANNELS 145
+#define BLOG_CHANNEL_DnsCache 145
+#define BLOG_CHANNEL_DnsFlowTable 146
+#define BLOG_CHANNEL_SocksUdpRelay 147
+#define BLOG_CHANNEL_SocksPool 148
+#define BLOG_CHANNEL_SocksBalancer 149
+#define BLOG_CHANNEL_DevicePbufPool 150
+#define BLOG_CHANNEL_BufferPool 151
+#define BLOG_CHANNEL_FakeDns 152
+#define BLOG_CHANNEL_DnsTcpClient 153
+#define BLOG_NUM_CHANNELS 154
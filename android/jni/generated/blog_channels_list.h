@@ -143,3 +143,12 @@
 {"BThreadSignal", 4},
 {"BLockReactor", 4},
 {"ncd_load_module", 4},
+{"DnsCache", 4},
+{"DnsFlowTable", 4},
+{"SocksUdpRelay", 4},
+{"SocksPool", 4},
+{"SocksBalancer", 4},
+{"DevicePbufPool", 4},
+{"BufferPool", 4},
+{"FakeDns", 4},
+{"DnsTcpClient", 4},
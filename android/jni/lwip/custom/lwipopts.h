@@ -31,6 +31,10 @@
 #define LWIP_CUSTOM_LWIPOPTS_H
 
 #define NO_SYS 1
+// tun2socks calls tcp_tmr from its own timer and never sys_check_timeouts.
+// lwIP's timeouts would be left registered when lwIP is initialized again
+// for the next run, in pool memory that memp_init hands out anew.
+#define NO_SYS_NO_TIMERS 1
 #define MEM_ALIGNMENT 4
 
 #define LWIP_ARP 0
@@ -61,10 +65,38 @@
 #define MEMP_NUM_TCP_PCB_LISTEN 16
 #define MEMP_NUM_TCP_PCB 1024
 #define TCP_MSS 1460
+// Segments cannot linger in the network between the tun device and lwIP,
+// so TIME-WAIT (twice this) needs to last only a few seconds. tun2socks
+// stops its TCP timer once the last connection has left TIME-WAIT.
+#define TCP_MSL 5000UL
+
+// Window scaling lets the receive window grow past 64 KiB. The windows and
+// send buffer here are only the defaults; tun2socks sets the real values with
+// tcp_set_buffers before accepting connections, which checks them the way the
+// compile-time sanity checks would. Received segments are mostly held in
+// DevicePbufPool buffers rather than PBUF_POOL, so the window may exceed the
+// pbuf pool.
+#define LWIP_DISABLE_TCP_SANITY_CHECKS 1
+#define LWIP_WND_SCALE 1
+#define TCP_RCV_SCALE 5
+#define TCP_WND_RUNTIME 1
+#define TCP_WND (64 * 1024)
 #define TCP_SND_BUF 16384
 #define TCP_SND_QUEUELEN (4 * (TCP_SND_BUF)/(TCP_MSS))
+// Cap the out-of-order segments queued per connection, so that a few lossy
+// connections with large windows cannot hold all the device buffers.
+#define TCP_OOSEQ_MAX_BYTES (8 * TCP_MSS)
+#define TCP_OOSEQ_MAX_PBUFS 8
 
+// Variable-size allocations (mostly outgoing segment data) use malloc.
+// Fixed-size objects come from pools allocated once when lwIP is
+// initialized, sized by tun2socks with memp_set_num; the numbers here are
+// the defaults.
 #define MEM_LIBC_MALLOC 1
-#define MEMP_MEM_MALLOC 1
+#define MEMP_MEM_MALLOC 0
+#define MEMP_NUM_RUNTIME 1
+#define MEMP_NUM_TCP_SEG (16 * MEMP_NUM_TCP_PCB)
+#define MEMP_NUM_PBUF 64
+#define PBUF_POOL_SIZE 64
 
 #endif
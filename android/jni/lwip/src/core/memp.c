@@ -41,6 +41,7 @@
 #include "lwip/opt.h"
 
 #include "lwip/memp.h"
+#include "lwip/mem.h"
 #include "lwip/pbuf.h"
 #include "lwip/udp.h"
 #include "lwip/raw.h"
@@ -137,7 +138,11 @@ const u16_t memp_sizes[MEMP_MAX] = {
 #if !MEMP_MEM_MALLOC /* don't build if not configured for use in lwipopts.h */
 
 /** This array holds the number of elements in each pool. */
+#if MEMP_NUM_RUNTIME
+static u16_t memp_num[MEMP_MAX] = {
+#else /* MEMP_NUM_RUNTIME */
 static const u16_t memp_num[MEMP_MAX] = {
+#endif /* MEMP_NUM_RUNTIME */
 #define LWIP_MEMPOOL(name,num,size,desc)  (num),
 #include "lwip/memp_std.h"
 };
@@ -167,6 +172,12 @@ static u8_t *const memp_bases[] = {
 #include "lwip/memp_std.h"
 };
 
+#elif MEMP_NUM_RUNTIME /* MEMP_SEPARATE_POOLS */
+
+/** This is the actual memory used by the pools (all pools in one big block),
+ *  allocated by memp_init() for the sizes set with memp_set_num(). */
+static u8_t *memp_memory;
+
 #else /* MEMP_SEPARATE_POOLS */
 
 /** This is the actual memory used by the pools (all pools in one big block). */
@@ -177,6 +188,37 @@ static u8_t memp_memory[MEM_ALIGNMENT - 1
 
 #endif /* MEMP_SEPARATE_POOLS */
 
+#if MEMP_NUM_RUNTIME
+#if MEMP_SEPARATE_POOLS
+#error "MEMP_NUM_RUNTIME is not supported with MEMP_SEPARATE_POOLS"
+#endif /* MEMP_SEPARATE_POOLS */
+
+/**
+ * Set the number of elements in a pool. Takes effect at the first memp_init().
+ *
+ * @param type the pool to size
+ * @param num the number of elements
+ */
+void
+memp_set_num(memp_t type, u16_t num)
+{
+  LWIP_ASSERT("memp_set_num: type < MEMP_MAX", type < MEMP_MAX);
+  memp_num[type] = num;
+}
+
+/**
+ * Check whether the last memp_init() could allocate the pools. If it could
+ * not, all pools are empty.
+ *
+ * @return 1 if the pools were allocated, 0 if not
+ */
+u8_t
+memp_init_ok(void)
+{
+  return (memp_memory != NULL);
+}
+#endif /* MEMP_NUM_RUNTIME */
+
 #if MEMP_SANITY_CHECK
 /**
  * Check that memp-lists don't form a circle, using "Floyd's cycle-finding algorithm".
@@ -355,6 +397,29 @@ memp_init(void)
   struct memp *memp;
   u16_t i, j;
 
+#if MEMP_NUM_RUNTIME
+  size_t memory_size = MEM_ALIGNMENT - 1;
+
+  /* Keep the pools of a previous initialization: when lwIP is restarted
+     without restarting the process, lists such as the TIME_WAIT PCBs still
+     point into them. */
+  if (memp_memory != NULL) {
+    return;
+  }
+
+  for (i = 0; i < MEMP_MAX; ++i) {
+    memory_size += (size_t)memp_num[i] * (MEMP_SIZE + MEMP_ALIGN_SIZE(memp_sizes[i]));
+  }
+  memp_memory = (u8_t *)mem_malloc((mem_size_t)memory_size);
+  if (memp_memory == NULL) {
+    LWIP_DEBUGF(MEMP_DEBUG | LWIP_DBG_LEVEL_SERIOUS, ("memp_init: out of memory\n"));
+    for (i = 0; i < MEMP_MAX; ++i) {
+      memp_tab[i] = NULL;
+    }
+    return;
+  }
+#endif /* MEMP_NUM_RUNTIME */
+
   for (i = 0; i < MEMP_MAX; ++i) {
     MEMP_STATS_AVAIL(used, i, 0);
     MEMP_STATS_AVAIL(max, i, 0);
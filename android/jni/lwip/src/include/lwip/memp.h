@@ -99,6 +99,11 @@ struct memp_malloc_helper
 
 void  memp_init(void);
 
+#if MEMP_NUM_RUNTIME
+void  memp_set_num(memp_t type, u16_t num);
+u8_t  memp_init_ok(void);
+#endif /* MEMP_NUM_RUNTIME */
+
 #if MEMP_OVERFLOW_CHECK
 void *memp_malloc_fn(memp_t type, const char* file, const int line);
 #define memp_malloc(t) memp_malloc_fn((t), __FILE__, __LINE__)
@@ -115,6 +115,18 @@
 #define MEMP_MEM_MALLOC                 0
 #endif
 
+/**
+ * MEMP_NUM_RUNTIME==1: Allow the number of elements in each pool to be
+ * changed with memp_set_num() before the first memp_init(). memp_init() then
+ * allocates all pools in one block with mem_malloc() instead of using a
+ * static array, and the MEMP_NUM_* options only give the defaults. Later
+ * calls to memp_init() keep the pools as they are.
+ * Not supported with MEMP_MEM_MALLOC or MEMP_SEPARATE_POOLS.
+ */
+#ifndef MEMP_NUM_RUNTIME
+#define MEMP_NUM_RUNTIME                0
+#endif
+
 /**
  * MEM_ALIGNMENT: should be set to the alignment of the CPU
  *    4 byte alignment -> #define MEM_ALIGNMENT 4
@@ -923,6 +935,27 @@
 #define TCP_WND                         (4 * TCP_MSS)
 #endif 
 
+/**
+ * LWIP_WND_SCALE and TCP_RCV_SCALE:
+ * Set LWIP_WND_SCALE to 1 to enable window scaling (RFC 1323), which allows
+ * TCP_WND to be larger than 0xffff. TCP_RCV_SCALE is the scale factor
+ * announced for our receive window; TCP_WND must then be at most
+ * 0xffff << TCP_RCV_SCALE. (Backported from lwIP 2.0.)
+ */
+#ifndef LWIP_WND_SCALE
+#define LWIP_WND_SCALE                  0
+#define TCP_RCV_SCALE                   0
+#endif
+
+/**
+ * TCP_WND_RUNTIME==1: Allow the window and send buffer sizes to be changed
+ * with tcp_set_buffers() while no connection is open. TCP_WND, TCP_SND_BUF
+ * and TCP_SND_QUEUELEN then only give the defaults.
+ */
+#ifndef TCP_WND_RUNTIME
+#define TCP_WND_RUNTIME                 0
+#endif
+
 /**
  * TCP_MAXRTX: Maximum number of retransmissions of data segments.
  */
@@ -1065,7 +1098,7 @@
  * explicit window update
  */
 #ifndef TCP_WND_UPDATE_THRESHOLD
-#define TCP_WND_UPDATE_THRESHOLD   (TCP_WND / 4)
+#define TCP_WND_UPDATE_THRESHOLD   (TCP_CUR_WND / 4)
 #endif
 
 /**
@@ -30,7 +30,9 @@
 #define BADVPN_MISC_DNS_PROTO_H
 
 #include <stdint.h>
+#include <string.h>
 #include <misc/byteorder.h>
+#include <misc/packed.h>
 
 B_START_PACKED
 struct dns_header {
@@ -47,8 +49,34 @@ B_END_PACKED
 // DNS header field masks
 #define DNS_QR 0x80
 #define DNS_TC 0x02
+#define DNS_RD 0x01
+#define DNS_RA 0x80
 #define DNS_Z  0x70
 
+#define DNS_OPCODE 0x78
+#define DNS_RCODE 0x0F
+
+#define DNS_RCODE_NOERROR 0
+#define DNS_RCODE_NXDOMAIN 3
+
+#define DNS_TYPE_A 1
+#define DNS_TYPE_AAAA 28
+#define DNS_TYPE_OPT 41
+
+#define DNS_CLASS_IN 1
+
+// maximum length of a name in wire format, including the root label
+#define DNS_MAX_NAME_LEN 255
+
+// fixed part of a resource record following its name: type, class, TTL, rdlength
+#define DNS_RR_FIXED_LEN 10
+
+// offset of the TTL within the fixed part of a resource record
+#define DNS_RR_TTL_OFFSET 4
+
+// largest answer a client accepts over UDP unless it says otherwise with EDNS
+#define DNS_UDP_PAYLOAD_LIMIT 512
+
 #define DNS_ID_STRLEN 6
 
 static void dns_get_header_id_str(char* id_str, uint8_t* data) {
@@ -57,6 +85,114 @@ static void dns_get_header_id_str(char* id_str, uint8_t* data) {
   id_str[DNS_ID_STRLEN - 1] = '\0';
 }
 
+static uint16_t dns_get_header_id(const uint8_t* data) {
+  uint16_t id;
+  memcpy(&id, data, sizeof(id));
+  return id;
+}
+
+static void dns_set_header_id(uint8_t* data, uint16_t id) {
+  memcpy(data, &id, sizeof(id));
+}
+
+// Returns the offset following the (possibly compressed) name at |offset|,
+// or -1 if the name is malformed or truncated.
+static int dns_skip_name(const uint8_t *data, int data_len, int offset) {
+  while (offset < data_len) {
+    uint8_t label_len = data[offset];
+    if (label_len == 0) {
+      return offset + 1;
+    }
+    if ((label_len & 0xC0) == 0xC0) {
+      // compression pointer ends the name
+      return (offset + 2 <= data_len) ? offset + 2 : -1;
+    }
+    if (label_len & 0xC0) {
+      return -1;
+    }
+    offset += 1 + label_len;
+  }
+  return -1;
+}
+
+// Reads the uncompressed question at |offset|. The name is copied to
+// |out_name| in wire format with ASCII letters lowercased, so that it can be
+// used as a lookup key. Returns the offset following the question, or -1 if
+// the question is malformed or truncated.
+static int dns_read_question(const uint8_t *data, int data_len, int offset,
+                             uint8_t *out_name, int *out_name_len,
+                             uint16_t *out_qtype, uint16_t *out_qclass) {
+  int name_len = 0;
+  for (;;) {
+    if (offset >= data_len) {
+      return -1;
+    }
+    uint8_t label_len = data[offset];
+    if (label_len & 0xC0) {
+      return -1;
+    }
+    if (name_len + 1 + label_len > DNS_MAX_NAME_LEN || offset + 1 + label_len > data_len) {
+      return -1;
+    }
+    out_name[name_len++] = label_len;
+    offset++;
+    if (label_len == 0) {
+      break;
+    }
+    for (int i = 0; i < label_len; i++) {
+      uint8_t c = data[offset + i];
+      out_name[name_len++] = (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+    offset += label_len;
+  }
+  if (offset + 4 > data_len) {
+    return -1;
+  }
+  uint16_t qtype;
+  uint16_t qclass;
+  memcpy(&qtype, data + offset, sizeof(qtype));
+  memcpy(&qclass, data + offset + 2, sizeof(qclass));
+  *out_name_len = name_len;
+  *out_qtype = ntoh16(qtype);
+  *out_qclass = ntoh16(qclass);
+  return offset + 4;
+}
+
+// Returns the largest answer the sender of the query at |data| accepts over
+// UDP: the payload size of its EDNS OPT record, or 512 bytes without one.
+static int dns_get_udp_payload_limit(const uint8_t *data, int data_len) {
+  struct dns_header header;
+  if (data_len < sizeof(header)) {
+    return DNS_UDP_PAYLOAD_LIMIT;
+  }
+  memcpy(&header, data, sizeof(header));
+  int offset = sizeof(header);
+  for (int i = 0; i < ntoh16(header.qdcount); i++) {
+    if ((offset = dns_skip_name(data, data_len, offset)) < 0 || offset + 4 > data_len) {
+      return DNS_UDP_PAYLOAD_LIMIT;
+    }
+    offset += 4;
+  }
+  int num_records = ntoh16(header.ancount) + ntoh16(header.nscount) + ntoh16(header.arcount);
+  for (int i = 0; i < num_records; i++) {
+    if ((offset = dns_skip_name(data, data_len, offset)) < 0 || offset + DNS_RR_FIXED_LEN > data_len) {
+      return DNS_UDP_PAYLOAD_LIMIT;
+    }
+    uint16_t type;
+    uint16_t rrclass;
+    uint16_t rdlength;
+    memcpy(&type, data + offset, sizeof(type));
+    memcpy(&rrclass, data + offset + 2, sizeof(rrclass));
+    memcpy(&rdlength, data + offset + 8, sizeof(rdlength));
+    // the class of an OPT record is the payload size
+    if (ntoh16(type) == DNS_TYPE_OPT) {
+      return ntoh16(rrclass) > DNS_UDP_PAYLOAD_LIMIT ? ntoh16(rrclass) : DNS_UDP_PAYLOAD_LIMIT;
+    }
+    offset += DNS_RR_FIXED_LEN + ntoh16(rdlength);
+  }
+  return DNS_UDP_PAYLOAD_LIMIT;
+}
+
 static int dns_check(const uint8_t *data, int data_len,
                      struct dns_header *out_header) {
   ASSERT(data_len >= 0)
@@ -115,6 +115,14 @@ struct socks_addr_ipv6 {
 } B_PACKED;
 B_END_PACKED
 
+B_START_PACKED
+struct socks_udp_datagram_header {
+    uint16_t rsv;
+    uint8_t frag;
+    uint8_t atyp;
+} B_PACKED;
+B_END_PACKED
+
 B_START_PACKED
 struct socks_udp_header {
     uint16_t rsv;
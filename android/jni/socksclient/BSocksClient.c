@@ -35,6 +35,7 @@
 
 #include <misc/byteorder.h>
 #include <misc/balloc.h>
+#include <misc/minmax.h>
 #include <base/BLog.h>
 
 #include <socksclient/BSocksClient.h>
@@ -50,6 +51,10 @@
 #define STATE_SENT_REQUEST 5
 #define STATE_RECEIVED_REPLY_HEADER 6
 #define STATE_UP 7
+#define STATE_READY 12
+#define STATE_SENDING_READY_REQUEST 13
+#define STATE_SENDING_PIPELINED 14
+#define STATE_RECEIVED_REPLY_NAME_LEN 15
 
 static void report_error (BSocksClient *o, int error);
 static void init_control_io (BSocksClient *o);
@@ -64,6 +69,17 @@ static void connection_handler (BSocksClient* o, int event);
 static void recv_handler_done (BSocksClient *o, int data_len);
 static void send_handler_done (BSocksClient *o);
 static void auth_finished (BSocksClient *p);
+static size_t reply_buffer_size (void);
+static bsize_t hello_size (BSocksClient *o);
+static void write_hello (BSocksClient *o, uint8_t *dest);
+static size_t max_request_size (void);
+static size_t request_size (BSocksClient *o);
+static void write_request (BSocksClient *o, uint8_t *dest);
+static void go_up_early (BSocksClient *o);
+static void early_recv_handler_recv (BSocksClient *o, uint8_t *data, int data_avail);
+static int init_common (BSocksClient *o,
+                        BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                        int cmd, BAddr dest_addr, BSocksClient_handler handler, void *user, BReactor *reactor);
 
 void report_error (BSocksClient *o, int error)
 {
@@ -178,29 +194,29 @@ void connector_handler (BSocksClient* o, int is_error)
         goto fail1;
     }
     
-    // allocate buffer for sending hello
-    bsize_t size = bsize_add(
-        bsize_fromsize(sizeof(struct socks_client_hello_header)), 
-        bsize_mul(
-            bsize_fromsize(o->num_auth_info),
-            bsize_fromsize(sizeof(struct socks_client_hello_method))
-        )
-    );
+    // allocate buffer for sending hello, followed by the request if pipelined
+    bsize_t size = hello_size(o);
+    if (o->pipelined) {
+        size = bsize_add(size, bsize_fromsize(request_size(o)));
+    }
     if (!reserve_buffer(o, size)) {
         goto fail1;
     }
     
-    // write hello header
-    struct socks_client_hello_header header;
-    header.ver = hton8(SOCKS_VERSION);
-    header.nmethods = hton8(o->num_auth_info);
-    memcpy(o->buffer, &header, sizeof(header));
+    // write hello
+    write_hello(o, (uint8_t *)o->buffer);
     
-    // write hello methods
-    for (size_t i = 0; i < o->num_auth_info; i++) {
-        struct socks_client_hello_method method;
-        method.method = hton8(o->auth_info[i].auth_type);
-        memcpy(o->buffer + sizeof(header) + i * sizeof(method), &method, sizeof(method));
+    if (o->pipelined) {
+        // write request
+        write_request(o, (uint8_t *)o->buffer + hello_size(o).value);
+        
+        // send both
+        PacketPassInterface_Sender_Send(o->control.send_if, (uint8_t *)o->buffer, size.value);
+        
+        // set state
+        o->state = STATE_SENDING_PIPELINED;
+        
+        return;
     }
     
     // send
@@ -235,9 +251,22 @@ void connection_handler (BSocksClient* o, int event)
 
 void recv_handler_done (BSocksClient *o, int data_len)
 {
+    DebugObject_Access(&o->d_obj);
+    
+    // data for the user after the replies to a pipelined request
+    if (o->early_up && o->state == STATE_UP) {
+        StreamRecvInterface_Done(&o->early_recv_if, data_len);
+        return;
+    }
+    
     ASSERT(data_len >= 0)
     ASSERT(data_len <= o->control.recv_total - o->control.recv_len)
-    DebugObject_Access(&o->d_obj);
+    
+    // nothing is expected before our request has been sent
+    if (o->state == STATE_READY || o->state == STATE_SENDING_READY_REQUEST) {
+        BLog(BLOG_NOTICE, "unexpected data from server");
+        goto fail;
+    }
     
     o->control.recv_len += data_len;
     
@@ -272,6 +301,21 @@ void recv_handler_done (BSocksClient *o, int data_len)
             
             const struct BSocksClient_auth_info *ai = &o->auth_info[auth_index];
             
+            if (o->pipelined) {
+                // the request has already been sent, so it's too late to authenticate
+                if (ai->auth_type != SOCKS_METHOD_NO_AUTHENTICATION_REQUIRED) {
+                    BLog(BLOG_NOTICE, "server requires authentication, can't pipeline");
+                    goto fail;
+                }
+                
+                // receive reply header
+                start_receive(o, (uint8_t *)o->buffer, sizeof(struct socks_reply_header));
+                
+                // set state
+                o->state = STATE_SENT_REQUEST;
+                break;
+            }
+            
             switch (ai->auth_type) {
                 case SOCKS_METHOD_NO_AUTHENTICATION_REQUIRED: {
                     BLog(BLOG_DEBUG, "no authentication");
@@ -340,6 +384,11 @@ void recv_handler_done (BSocksClient *o, int data_len)
                 case SOCKS_ATYP_IPV6:
                     addr_len = sizeof(struct socks_addr_ipv6);
                     break;
+                case SOCKS_ATYP_DOMAINNAME:
+                    // servers given a name may answer with one; receive its length first
+                    start_receive(o, (uint8_t *)o->buffer + sizeof(imsg), 1);
+                    o->state = STATE_RECEIVED_REPLY_NAME_LEN;
+                    return;
                 default:
                     BLog(BLOG_NOTICE, "reply has unknown address type");
                     goto fail;
@@ -352,6 +401,18 @@ void recv_handler_done (BSocksClient *o, int data_len)
             o->state = STATE_RECEIVED_REPLY_HEADER;
         } break;
         
+        case STATE_RECEIVED_REPLY_NAME_LEN: {
+            BLog(BLOG_DEBUG, "received reply name length");
+            
+            uint8_t name_len = o->buffer[sizeof(struct socks_reply_header)];
+            
+            // receive the name and the port
+            start_receive(o, (uint8_t *)o->buffer + sizeof(struct socks_reply_header) + 1, name_len + 2);
+            
+            // set state
+            o->state = STATE_RECEIVED_REPLY_HEADER;
+        } break;
+        
         case STATE_SENT_PASSWORD: {
             BLog(BLOG_DEBUG, "received password reply");
             
@@ -371,10 +432,45 @@ void recv_handler_done (BSocksClient *o, int data_len)
         case STATE_RECEIVED_REPLY_HEADER: {
             BLog(BLOG_DEBUG, "received reply rest");
             
+            // remember bound address
+            struct socks_reply_header imsg;
+            memcpy(&imsg, o->buffer, sizeof(imsg));
+            switch (ntoh8(imsg.atyp)) {
+                case SOCKS_ATYP_IPV4: {
+                    struct socks_addr_ipv4 addr;
+                    memcpy(&addr, o->buffer + sizeof(imsg), sizeof(addr));
+                    BAddr_InitIPv4(&o->bind_addr, addr.addr, addr.port);
+                } break;
+                case SOCKS_ATYP_IPV6: {
+                    struct socks_addr_ipv6 addr;
+                    memcpy(&addr, o->buffer + sizeof(imsg), sizeof(addr));
+                    BAddr_InitIPv6(&o->bind_addr, addr.addr, addr.port);
+                } break;
+                case SOCKS_ATYP_DOMAINNAME: {
+                    // only UDP associations use the bound address, and their servers reply with one
+                    BAddr_InitNone(&o->bind_addr);
+                } break;
+                default:
+                    ASSERT(0);
+            }
+            
             // free buffer
             BFree(o->buffer);
             o->buffer = NULL;
             
+            if (o->early_up) {
+                // set state
+                o->state = STATE_UP;
+                
+                // pass on the user's receive, if it was held back
+                if (o->early_recv_data) {
+                    uint8_t *data = o->early_recv_data;
+                    o->early_recv_data = NULL;
+                    StreamRecvInterface_Receiver_Recv(o->control.recv_if, data, o->early_recv_avail);
+                }
+                return;
+            }
+            
             // free control I/O
             free_control_io(o);
             
@@ -425,10 +521,7 @@ void send_handler_done (BSocksClient *o)
             BLog(BLOG_DEBUG, "sent request");
             
             // allocate buffer for receiving reply
-            bsize_t size = bsize_add(
-                bsize_fromsize(sizeof(struct socks_reply_header)),
-                bsize_max(bsize_fromsize(sizeof(struct socks_addr_ipv4)), bsize_fromsize(sizeof(struct socks_addr_ipv6)))
-            );
+            bsize_t size = bsize_fromsize(reply_buffer_size());
             if (!reserve_buffer(o, size)) {
                 goto fail;
             }
@@ -440,6 +533,37 @@ void send_handler_done (BSocksClient *o)
             o->state = STATE_SENT_REQUEST;
         } break;
         
+        case STATE_SENDING_READY_REQUEST: {
+            BLog(BLOG_DEBUG, "sent request");
+            
+            // the reply header is already being received
+            o->state = STATE_SENT_REQUEST;
+            
+            if (o->pipelined) {
+                go_up_early(o);
+                return;
+            }
+        } break;
+        
+        case STATE_SENDING_PIPELINED: {
+            BLog(BLOG_DEBUG, "sent hello and request");
+            
+            // allocate buffer for receiving the replies
+            bsize_t size = bsize_fromsize(reply_buffer_size());
+            if (!reserve_buffer(o, size)) {
+                goto fail;
+            }
+            
+            // receive hello
+            start_receive(o, (uint8_t *)o->buffer, sizeof(struct socks_server_hello));
+            
+            // set state
+            o->state = STATE_SENT_HELLO;
+            
+            go_up_early(o);
+            return;
+        } break;
+        
         case STATE_SENDING_PASSWORD: {
             BLog(BLOG_DEBUG, "send password");
             
@@ -466,43 +590,168 @@ fail:
     report_error(o, BSOCKSCLIENT_EVENT_ERROR);
 }
 
-void auth_finished (BSocksClient *o)
+bsize_t hello_size (BSocksClient *o)
 {
-    // allocate request buffer
-    bsize_t size = bsize_fromsize(sizeof(struct socks_request_header));
-    switch (o->dest_addr.type) {
-        case BADDR_TYPE_IPV4: size = bsize_add(size, bsize_fromsize(sizeof(struct socks_addr_ipv4))); break;
-        case BADDR_TYPE_IPV6: size = bsize_add(size, bsize_fromsize(sizeof(struct socks_addr_ipv6))); break;
+    return bsize_add(
+        bsize_fromsize(sizeof(struct socks_client_hello_header)), 
+        bsize_mul(
+            bsize_fromsize(o->num_auth_info),
+            bsize_fromsize(sizeof(struct socks_client_hello_method))
+        )
+    );
+}
+
+void write_hello (BSocksClient *o, uint8_t *dest)
+{
+    // write hello header
+    struct socks_client_hello_header header;
+    header.ver = hton8(SOCKS_VERSION);
+    header.nmethods = hton8(o->num_auth_info);
+    memcpy(dest, &header, sizeof(header));
+    
+    // write hello methods
+    for (size_t i = 0; i < o->num_auth_info; i++) {
+        struct socks_client_hello_method method;
+        method.method = hton8(o->auth_info[i].auth_type);
+        memcpy(dest + sizeof(header) + i * sizeof(method), &method, sizeof(method));
     }
-    if (!reserve_buffer(o, size)) {
-        report_error(o, BSOCKSCLIENT_EVENT_ERROR);
-        return;
+}
+
+size_t max_request_size (void)
+{
+    return sizeof(struct socks_request_header) + 1 + BSOCKSCLIENT_MAX_DEST_NAME_LEN + 2;
+}
+
+size_t request_size (BSocksClient *o)
+{
+    if (o->dest_name_len > 0) {
+        return sizeof(struct socks_request_header) + 1 + o->dest_name_len + 2;
     }
     
-    // write request
+    switch (o->dest_addr.type) {
+        case BADDR_TYPE_IPV4: return sizeof(struct socks_request_header) + sizeof(struct socks_addr_ipv4);
+        case BADDR_TYPE_IPV6: return sizeof(struct socks_request_header) + sizeof(struct socks_addr_ipv6);
+        default: ASSERT(0); return 0;
+    }
+}
+
+void write_request (BSocksClient *o, uint8_t *dest)
+{
     struct socks_request_header header;
     header.ver = hton8(SOCKS_VERSION);
-    header.cmd = hton8(SOCKS_CMD_CONNECT);
+    header.cmd = hton8(o->cmd);
     header.rsv = hton8(0);
+    if (o->dest_name_len > 0) {
+        header.atyp = hton8(SOCKS_ATYP_DOMAINNAME);
+        uint8_t *ptr = dest + sizeof(header);
+        *ptr++ = o->dest_name_len;
+        memcpy(ptr, o->dest_name, o->dest_name_len);
+        ptr += o->dest_name_len;
+        uint16_t port = BAddr_GetPort(&o->dest_addr);
+        memcpy(ptr, &port, sizeof(port));
+        memcpy(dest, &header, sizeof(header));
+        return;
+    }
     switch (o->dest_addr.type) {
         case BADDR_TYPE_IPV4: {
             header.atyp = hton8(SOCKS_ATYP_IPV4);
             struct socks_addr_ipv4 addr;
             addr.addr = o->dest_addr.ipv4.ip;
             addr.port = o->dest_addr.ipv4.port;
-            memcpy(o->buffer + sizeof(header), &addr, sizeof(addr));
+            memcpy(dest + sizeof(header), &addr, sizeof(addr));
         } break;
         case BADDR_TYPE_IPV6: {
             header.atyp = hton8(SOCKS_ATYP_IPV6);
             struct socks_addr_ipv6 addr;
             memcpy(addr.addr, o->dest_addr.ipv6.ip, sizeof(o->dest_addr.ipv6.ip));
             addr.port = o->dest_addr.ipv6.port;
-            memcpy(o->buffer + sizeof(header), &addr, sizeof(addr));
+            memcpy(dest + sizeof(header), &addr, sizeof(addr));
         } break;
         default:
             ASSERT(0);
     }
-    memcpy(o->buffer, &header, sizeof(header));
+    memcpy(dest, &header, sizeof(header));
+}
+
+void go_up_early (BSocksClient *o)
+{
+    ASSERT(!o->early_up)
+    
+    // replace control sending with a fresh interface for the user; data sent
+    // on it follows the request
+    PacketStreamSender_Free(&o->control.send_sender);
+    BConnection_SendAsync_Free(&o->con);
+    BConnection_SendAsync_Init(&o->con);
+    
+    // receive through our own interface, so that the user's data can be held
+    // back until the replies have been checked
+    StreamRecvInterface_Init(&o->early_recv_if, (StreamRecvInterface_handler_recv)early_recv_handler_recv, o, BReactor_PendingGroup(o->reactor));
+    o->early_recv_data = NULL;
+    
+    o->early_up = 1;
+    
+    // call handler
+    o->handler(o->user, BSOCKSCLIENT_EVENT_UP);
+    return;
+}
+
+void early_recv_handler_recv (BSocksClient *o, uint8_t *data, int data_avail)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(o->early_up)
+    ASSERT(!o->early_recv_data)
+    ASSERT(data_avail > 0)
+    
+    if (o->state == STATE_UP) {
+        StreamRecvInterface_Receiver_Recv(o->control.recv_if, data, data_avail);
+        return;
+    }
+    
+    // wait for the replies
+    o->early_recv_data = data;
+    o->early_recv_avail = data_avail;
+}
+
+size_t reply_buffer_size (void)
+{
+    // the longest bound address is a name, with its length byte and the port
+    return sizeof(struct socks_reply_header) + 1 + BSOCKSCLIENT_MAX_DEST_NAME_LEN + 2;
+}
+
+void auth_finished (BSocksClient *o)
+{
+    if (o->dest_addr.type == BADDR_TYPE_NONE) {
+        // the request is written after the reply, see BSocksClient_SetDestination
+        bsize_t size = bsize_add(
+            bsize_fromsize(reply_buffer_size()),
+            bsize_fromsize(max_request_size())
+        );
+        if (!reserve_buffer(o, size)) {
+            report_error(o, BSOCKSCLIENT_EVENT_ERROR);
+            return;
+        }
+        
+        // keep receiving, so that the server closing the connection is noticed;
+        // this receive later completes with the reply header
+        start_receive(o, (uint8_t *)o->buffer, sizeof(struct socks_reply_header));
+        
+        // set state
+        o->state = STATE_READY;
+        
+        // call handler
+        o->handler(o->user, BSOCKSCLIENT_EVENT_READY);
+        return;
+    }
+    
+    // allocate request buffer
+    bsize_t size = bsize_fromsize(request_size(o));
+    if (!reserve_buffer(o, size)) {
+        report_error(o, BSOCKSCLIENT_EVENT_ERROR);
+        return;
+    }
+    
+    // write request
+    write_request(o, (uint8_t *)o->buffer);
     
     // send request
     PacketPassInterface_Sender_Send(o->control.send_if, (uint8_t *)o->buffer, size.value);
@@ -529,12 +778,12 @@ struct BSocksClient_auth_info BSocksClient_auth_password (const char *username,
     return info;
 }
 
-int BSocksClient_Init (BSocksClient *o,
-                       BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
-                       BAddr dest_addr, BSocksClient_handler handler, void *user, BReactor *reactor)
+int init_common (BSocksClient *o,
+                 BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                 int cmd, BAddr dest_addr, BSocksClient_handler handler, void *user, BReactor *reactor)
 {
     ASSERT(!BAddr_IsInvalid(&server_addr))
-    ASSERT(dest_addr.type == BADDR_TYPE_IPV4 || dest_addr.type == BADDR_TYPE_IPV6)
+    ASSERT(dest_addr.type == BADDR_TYPE_IPV4 || dest_addr.type == BADDR_TYPE_IPV6 || dest_addr.type == BADDR_TYPE_NONE)
 #ifndef NDEBUG
     for (size_t i = 0; i < num_auth_info; i++) {
         ASSERT(auth_info[i].auth_type == SOCKS_METHOD_NO_AUTHENTICATION_REQUIRED ||
@@ -545,10 +794,14 @@ int BSocksClient_Init (BSocksClient *o,
     // init arguments
     o->auth_info = auth_info;
     o->num_auth_info = num_auth_info;
+    o->cmd = cmd;
     o->dest_addr = dest_addr;
+    o->dest_name_len = 0;
     o->handler = handler;
     o->user = user;
     o->reactor = reactor;
+    o->pipelined = 0;
+    o->early_up = 0;
     
     // set no buffer
     o->buffer = NULL;
@@ -570,13 +823,94 @@ fail0:
     return 0;
 }
 
+int BSocksClient_Init (BSocksClient *o,
+                       BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                       BAddr dest_addr, BSocksClient_handler handler, void *user, BReactor *reactor)
+{
+    return init_common(o, server_addr, auth_info, num_auth_info, SOCKS_CMD_CONNECT, dest_addr, handler, user, reactor);
+}
+
+int BSocksClient_InitPipelined (BSocksClient *o,
+                                BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                                BAddr dest_addr, BSocksClient_handler handler, void *user, BReactor *reactor)
+{
+    if (!init_common(o, server_addr, auth_info, num_auth_info, SOCKS_CMD_CONNECT, dest_addr, handler, user, reactor)) {
+        return 0;
+    }
+    
+    o->pipelined = 1;
+    
+    return 1;
+}
+
+int BSocksClient_InitUdp (BSocksClient *o,
+                          BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                          BSocksClient_handler handler, void *user, BReactor *reactor)
+{
+    // we don't know our address as seen by the server, so send zeros
+    BAddr dest_addr;
+    BAddr_InitIPv4(&dest_addr, 0, 0);
+    
+    return init_common(o, server_addr, auth_info, num_auth_info, SOCKS_CMD_UDP_ASSOCIATE, dest_addr, handler, user, reactor);
+}
+
+int BSocksClient_InitPreconnect (BSocksClient *o,
+                                 BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                                 BSocksClient_handler handler, void *user, BReactor *reactor)
+{
+    BAddr dest_addr;
+    BAddr_InitNone(&dest_addr);
+    
+    return init_common(o, server_addr, auth_info, num_auth_info, SOCKS_CMD_CONNECT, dest_addr, handler, user, reactor);
+}
+
+void BSocksClient_SetDestination (BSocksClient *o, BAddr dest_addr, int pipelined, BSocksClient_handler handler, void *user)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(o->state == STATE_READY)
+    ASSERT(dest_addr.type == BADDR_TYPE_IPV4 || dest_addr.type == BADDR_TYPE_IPV6)
+    
+    o->dest_addr = dest_addr;
+    o->pipelined = pipelined;
+    o->handler = handler;
+    o->user = user;
+    
+    // write request after the reply being received
+    uint8_t *request = (uint8_t *)o->buffer + reply_buffer_size();
+    write_request(o, request);
+    
+    // send request
+    PacketPassInterface_Sender_Send(o->control.send_if, request, request_size(o));
+    
+    // set state
+    o->state = STATE_SENDING_READY_REQUEST;
+}
+
+void BSocksClient_SetDestinationName (BSocksClient *o, const char *name, size_t name_len)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(o->state == STATE_CONNECTING || o->state == STATE_READY)
+    ASSERT(o->cmd == SOCKS_CMD_CONNECT)
+    ASSERT(name_len > 0)
+    ASSERT(name_len <= BSOCKSCLIENT_MAX_DEST_NAME_LEN)
+    
+    memcpy(o->dest_name, name, name_len);
+    o->dest_name_len = name_len;
+}
+
 void BSocksClient_Free (BSocksClient *o)
 {
     DebugObject_Free(&o->d_obj);
     DebugError_Free(&o->d_err);
     
     if (o->state != STATE_CONNECTING) {
-        if (o->state == STATE_UP) {
+        if (o->early_up) {
+            // free our receive interface
+            StreamRecvInterface_Free(&o->early_recv_if);
+            
+            // control sending is already gone
+            free_up_io(o);
+        } else if (o->state == STATE_UP) {
             // free up I/O
             free_up_io(o);
         } else {
@@ -599,7 +933,7 @@ void BSocksClient_Free (BSocksClient *o)
 
 StreamPassInterface * BSocksClient_GetSendInterface (BSocksClient *o)
 {
-    ASSERT(o->state == STATE_UP)
+    ASSERT(o->state == STATE_UP || o->early_up)
     DebugObject_Access(&o->d_obj);
     
     return BConnection_SendAsync_GetIf(&o->con);
@@ -607,8 +941,20 @@ StreamPassInterface * BSocksClient_GetSendInterface (BSocksClient *o)
 
 StreamRecvInterface * BSocksClient_GetRecvInterface (BSocksClient *o)
 {
-    ASSERT(o->state == STATE_UP)
+    ASSERT(o->state == STATE_UP || o->early_up)
     DebugObject_Access(&o->d_obj);
     
+    if (o->early_up) {
+        return &o->early_recv_if;
+    }
+    
     return BConnection_RecvAsync_GetIf(&o->con);
 }
+
+BAddr BSocksClient_GetBindAddr (BSocksClient *o)
+{
+    ASSERT(o->state == STATE_UP)
+    DebugObject_Access(&o->d_obj);
+    
+    return o->bind_addr;
+}
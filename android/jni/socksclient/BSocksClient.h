@@ -47,15 +47,22 @@
 #define BSOCKSCLIENT_EVENT_ERROR 1
 #define BSOCKSCLIENT_EVENT_UP 2
 #define BSOCKSCLIENT_EVENT_ERROR_CLOSED 3
+#define BSOCKSCLIENT_EVENT_READY 4
+
+// longest destination name, as limited by its length byte in the request
+#define BSOCKSCLIENT_MAX_DEST_NAME_LEN 255
 
 /**
  * Handler for events generated by the SOCKS client.
  * 
  * @param user as in {@link BSocksClient_Init}
- * @param event event type. One of BSOCKSCLIENT_EVENT_ERROR, BSOCKSCLIENT_EVENT_UP
- *              and BSOCKSCLIENT_EVENT_ERROR_CLOSED.
+ * @param event event type. One of BSOCKSCLIENT_EVENT_ERROR, BSOCKSCLIENT_EVENT_UP,
+ *              BSOCKSCLIENT_EVENT_ERROR_CLOSED and BSOCKSCLIENT_EVENT_READY.
  *              If event is BSOCKSCLIENT_EVENT_UP, the object was previously in down
  *              state and has transitioned to up state; I/O can be done from this point on.
+ *              If event is BSOCKSCLIENT_EVENT_READY, an object initialized with
+ *              {@link BSocksClient_InitPreconnect} has finished authenticating, and
+ *              {@link BSocksClient_SetDestination} may be called.
  *              If event is BSOCKSCLIENT_EVENT_ERROR or BSOCKSCLIENT_EVENT_ERROR_CLOSED,
  *              the object must be freed from within the job closure of this handler,
  *              and no further I/O must be attempted.
@@ -77,10 +84,16 @@ struct BSocksClient_auth_info {
 typedef struct {
     const struct BSocksClient_auth_info *auth_info;
     size_t num_auth_info;
+    int cmd;
     BAddr dest_addr;
+    uint8_t dest_name[BSOCKSCLIENT_MAX_DEST_NAME_LEN];
+    int dest_name_len;
+    BAddr bind_addr;
     BSocksClient_handler handler;
     void *user;
     BReactor *reactor;
+    int pipelined;
+    int early_up;
     int state;
     char *buffer;
     BConnector connector;
@@ -95,6 +108,9 @@ typedef struct {
             int recv_total;
         } control;
     };
+    StreamRecvInterface early_recv_if;
+    uint8_t *early_recv_data;
+    int early_recv_avail;
     DebugError d_err;
     DebugObject d_obj;
 } BSocksClient;
@@ -119,6 +135,93 @@ int BSocksClient_Init (BSocksClient *o,
                        BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
                        BAddr dest_addr, BSocksClient_handler handler, void *user, BReactor *reactor) WARN_UNUSED;
 
+/**
+ * Initializes the object in pipelined mode.
+ * The hello and the CONNECT request are sent together as soon as the
+ * connection to the server is established, and the object goes up once they
+ * have been sent, without waiting for the replies. Data sent from then on
+ * follows the request. The replies are checked as they arrive, before any
+ * data is received; if the server doesn't accept the first authentication
+ * method or rejects the request, BSOCKSCLIENT_EVENT_ERROR is reported.
+ * Only use this with servers that need no authentication.
+ * 
+ * @param o the object
+ * @param server_addr SOCKS5 server address
+ * @param dest_addr remote address
+ * @param handler handler for up and error events
+ * @param user value passed to handler
+ * @param reactor reactor we live in
+ * @return 1 on success, 0 on failure
+ */
+int BSocksClient_InitPipelined (BSocksClient *o,
+                                BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                                BAddr dest_addr, BSocksClient_handler handler, void *user, BReactor *reactor) WARN_UNUSED;
+
+/**
+ * Initializes the object for a UDP association.
+ * Instead of connecting to a remote address, the server is asked to relay
+ * UDP datagrams. Once the object is up, datagrams are exchanged with the
+ * address returned by {@link BSocksClient_GetBindAddr}, and the association
+ * lasts as long as the object. The send and receive interfaces may be used
+ * to detect the server closing the association, but no data is expected.
+ * 
+ * @param o the object
+ * @param server_addr SOCKS5 server address
+ * @param handler handler for up and error events
+ * @param user value passed to handler
+ * @param reactor reactor we live in
+ * @return 1 on success, 0 on failure
+ */
+int BSocksClient_InitUdp (BSocksClient *o,
+                          BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                          BSocksClient_handler handler, void *user, BReactor *reactor) WARN_UNUSED;
+
+/**
+ * Initializes the object without a destination.
+ * The object connects to the server and authenticates, then reports
+ * BSOCKSCLIENT_EVENT_READY and waits for {@link BSocksClient_SetDestination}.
+ * While waiting, the server closing the connection or sending anything is
+ * reported as BSOCKSCLIENT_EVENT_ERROR.
+ * 
+ * @param o the object
+ * @param server_addr SOCKS5 server address
+ * @param handler handler for ready and error events
+ * @param user value passed to handler
+ * @param reactor reactor we live in
+ * @return 1 on success, 0 on failure
+ */
+int BSocksClient_InitPreconnect (BSocksClient *o,
+                                 BAddr server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                                 BSocksClient_handler handler, void *user, BReactor *reactor) WARN_UNUSED;
+
+/**
+ * Sends the CONNECT request on an object that has reported
+ * BSOCKSCLIENT_EVENT_READY. From now on, events are reported to the new
+ * handler as for an object initialized with {@link BSocksClient_Init}, or
+ * with {@link BSocksClient_InitPipelined} if pipelined is set, in which case
+ * the object goes up as soon as the request has been sent.
+ * 
+ * @param o the object
+ * @param dest_addr remote address
+ * @param pipelined whether to go up without waiting for the reply
+ * @param handler handler for up and error events
+ * @param user value passed to handler
+ */
+void BSocksClient_SetDestination (BSocksClient *o, BAddr dest_addr, int pipelined, BSocksClient_handler handler, void *user);
+
+/**
+ * Makes the CONNECT request name the destination by a host name, leaving its
+ * resolution to the server. The port is still taken from the destination
+ * address. Must be called right after {@link BSocksClient_Init} or
+ * {@link BSocksClient_InitPipelined}, or right before
+ * {@link BSocksClient_SetDestination}.
+ * 
+ * @param o the object
+ * @param name host name, which is copied. Need not be null-terminated.
+ * @param name_len length of the name. Must be >0 and <=BSOCKSCLIENT_MAX_DEST_NAME_LEN.
+ */
+void BSocksClient_SetDestinationName (BSocksClient *o, const char *name, size_t name_len);
+
 /**
  * Frees the object.
  * 
@@ -144,4 +247,15 @@ StreamPassInterface * BSocksClient_GetSendInterface (BSocksClient *o);
  */
 StreamRecvInterface * BSocksClient_GetRecvInterface (BSocksClient *o);
 
+/**
+ * Returns the address the server reported in its reply. For a UDP
+ * association, this is where datagrams are to be sent. It may be all zeros,
+ * meaning the address of the server.
+ * The object must be in up state.
+ * 
+ * @param o the object
+ * @return address from the reply
+ */
+BAddr BSocksClient_GetBindAddr (BSocksClient *o);
+
 #endif
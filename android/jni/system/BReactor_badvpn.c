@@ -538,6 +538,12 @@ static void wait_for_events (BReactor *bsys)
         }
     }
     
+    // uProxy: count the wakeup
+    if (bsys->wakeup_counter) {
+        int64_t wakeups = __atomic_load_n(bsys->wakeup_counter, __ATOMIC_RELAXED);
+        __atomic_store_n(bsys->wakeup_counter, wakeups + 1, __ATOMIC_RELAXED);
+    }
+    
     // reset limit objects
     LinkedList1Node *list_node;
     while (list_node = LinkedList1_GetFirst(&bsys->active_limits_list)) {
@@ -605,6 +611,9 @@ int BReactor_Init (BReactor *bsys)
     // init limits
     LinkedList1_Init(&bsys->active_limits_list);
     
+    // uProxy: no wakeup counter
+    bsys->wakeup_counter = NULL;
+    
     #ifdef BADVPN_USE_WINAPI
     
     // init IOCP list
@@ -1058,6 +1067,36 @@ void BReactor_RemoveTimer (BReactor *bsys, BTimer *bt)
     return BReactor_RemoveSmallTimer(bsys, &bt->base);
 }
 
+// ==== UPROXY ====
+
+void BReactor_SetTimerAbsoluteCoarse (BReactor *bsys, BTimer *bt, btime_t time)
+{
+    // round up, so that the timer never expires early
+    btime_t rem = time % BREACTOR_COARSE_GRANULARITY;
+    if (rem < 0) {
+        rem += BREACTOR_COARSE_GRANULARITY;
+    }
+    if (rem > 0) {
+        time = btime_add(time, BREACTOR_COARSE_GRANULARITY - rem);
+    }
+    
+    BReactor_SetSmallTimer(bsys, &bt->base, BTIMER_SET_ABSOLUTE, time);
+}
+
+void BReactor_SetTimerCoarse (BReactor *bsys, BTimer *bt)
+{
+    BReactor_SetTimerAbsoluteCoarse(bsys, bt, btime_add(btime_gettime(), bt->msTime));
+}
+
+void BReactor_SetWakeupCounter (BReactor *bsys, int64_t *counter)
+{
+    DebugObject_Access(&bsys->d_obj);
+    
+    bsys->wakeup_counter = counter;
+}
+
+// ==== UPROXY ====
+
 BPendingGroup * BReactor_PendingGroup (BReactor *bsys)
 {
     return &bsys->pending_jobs;
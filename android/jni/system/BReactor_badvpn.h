@@ -249,6 +249,11 @@ typedef struct {
     // limits
     LinkedList1 active_limits_list;
     
+    // ==== UPROXY ====
+    // see BReactor_SetWakeupCounter
+    int64_t *wakeup_counter;
+    // ==== UPROXY ====
+    
     #ifdef BADVPN_USE_WINAPI
     LinkedList1 iocp_list;
     HANDLE iocp_handle;
@@ -401,6 +406,51 @@ void BReactor_SetTimerAbsolute (BReactor *bsys, BTimer *bt, btime_t time);
  */
 void BReactor_RemoveTimer (BReactor *bsys, BTimer *bt);
 
+// ==== UPROXY ====
+
+/**
+ * Granularity of coarse timers, in milliseconds.
+ */
+#define BREACTOR_COARSE_GRANULARITY 1000
+
+/**
+ * Starts a timer to expire at the specified time, rounded up to a multiple
+ * of {@link BREACTOR_COARSE_GRANULARITY}. Coarse timers that would expire
+ * within the same period expire together, in a single wakeup of the event
+ * loop. Use this for timers where up to a period of delay does not matter,
+ * such as keepalives and idle timeouts.
+ * The timer must have been initialized with {@link BTimer_Init}.
+ * If the timer is in running state, it must be associated with this reactor.
+ * The timer enters running state, associated with this reactor.
+ *
+ * @param bsys the object
+ * @param bt timer to start
+ * @param time absolute expiration time (according to {@link btime_gettime})
+ */
+void BReactor_SetTimerAbsoluteCoarse (BReactor *bsys, BTimer *bt, btime_t time);
+
+/**
+ * Starts a coarse timer to expire after its default time.
+ * See {@link BReactor_SetTimerAbsoluteCoarse}.
+ *
+ * @param bsys the object
+ * @param bt timer to start
+ */
+void BReactor_SetTimerCoarse (BReactor *bsys, BTimer *bt);
+
+/**
+ * Sets a counter which the reactor increments each time it returns from
+ * waiting for events, that is, each time its thread wakes up. The counter is
+ * only written by the thread running the event loop, with relaxed atomic
+ * stores, so that other threads can read it with relaxed atomic loads.
+ *
+ * @param bsys the object
+ * @param counter counter to increment, or NULL for none
+ */
+void BReactor_SetWakeupCounter (BReactor *bsys, int64_t *counter);
+
+// ==== UPROXY ====
+
 /**
  * Returns a {@link BPendingGroup} object that can be used to schedule jobs for
  * the reactor to execute. These jobs have complete priority over other events
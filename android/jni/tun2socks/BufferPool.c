@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <misc/balloc.h>
+#include <base/BLog.h>
+
+#include <tun2socks/BufferPool.h>
+
+#include <generated/blog_channel_BufferPool.h>
+
+// overlays the start of an unused buffer
+struct BufferPool_free {
+    struct BufferPool_free *next;
+};
+
+void BufferPool_Init (BufferPool *o, int buffer_size, int max_buffers, int max_free)
+{
+    ASSERT(buffer_size >= (int)sizeof(struct BufferPool_free))
+    ASSERT(max_buffers >= 0)
+    ASSERT(max_free >= 0)
+
+    o->buffer_size = buffer_size;
+    o->max_buffers = max_buffers;
+    o->max_free = max_free;
+    o->num_buffers = 0;
+    o->num_free = 0;
+    o->free_list = NULL;
+
+    DebugObject_Init(&o->d_obj);
+}
+
+void BufferPool_Free (BufferPool *o)
+{
+    DebugObject_Free(&o->d_obj);
+    ASSERT(o->num_buffers == o->num_free)
+
+    while (o->free_list) {
+        struct BufferPool_free *f = o->free_list;
+        o->free_list = f->next;
+        BFree(f);
+    }
+}
+
+uint8_t * BufferPool_Get (BufferPool *o)
+{
+    DebugObject_Access(&o->d_obj);
+
+    if (o->free_list) {
+        struct BufferPool_free *f = o->free_list;
+        o->free_list = f->next;
+        o->num_free--;
+        return (uint8_t *)f;
+    }
+
+    if (o->num_buffers >= o->max_buffers) {
+        return NULL;
+    }
+
+    uint8_t *buf = (uint8_t *)BAlloc(o->buffer_size);
+    if (!buf) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        return NULL;
+    }
+
+    o->num_buffers++;
+
+    return buf;
+}
+
+void BufferPool_Put (BufferPool *o, uint8_t *buf)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(buf)
+    ASSERT(o->num_free < o->num_buffers)
+
+    if (o->num_free >= o->max_free) {
+        BFree(buf);
+        o->num_buffers--;
+        return;
+    }
+
+    struct BufferPool_free *f = (struct BufferPool_free *)buf;
+    f->next = o->free_list;
+    o->free_list = f;
+    o->num_free++;
+}
+
+int64_t BufferPool_GetAllocatedBytes (BufferPool *o)
+{
+    DebugObject_Access(&o->d_obj);
+
+    return (int64_t)o->num_buffers * o->buffer_size;
+}
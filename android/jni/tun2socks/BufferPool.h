@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Pool of equally sized buffers, allocated as they are first needed and
+ * capped at a maximum number.
+ *
+ * Buffers that are put back are kept for reuse, up to a limit, so a steady
+ * load doesn't allocate; the rest are freed so that memory is returned after
+ * a burst.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_BUFFERPOOL_H
+#define BADVPN_TUN2SOCKS_BUFFERPOOL_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+#include <base/DebugObject.h>
+
+struct BufferPool_free;
+
+typedef struct {
+    int buffer_size;
+    int max_buffers;
+    int max_free;
+    int num_buffers;
+    int num_free;
+    struct BufferPool_free *free_list;
+    DebugObject d_obj;
+} BufferPool;
+
+/**
+ * Initializes the pool. No buffers are allocated yet.
+ *
+ * @param o the object
+ * @param buffer_size size of each buffer. Must be >= sizeof(void *).
+ * @param max_buffers maximum number of buffers allocated at once, including
+ *                    the ones kept for reuse. Must be >=0.
+ * @param max_free maximum number of unused buffers kept for reuse. Must be >=0.
+ */
+void BufferPool_Init (BufferPool *o, int buffer_size, int max_buffers, int max_free);
+
+/**
+ * Frees the pool.
+ * All buffers must have been put back.
+ *
+ * @param o the object
+ */
+void BufferPool_Free (BufferPool *o);
+
+/**
+ * Takes a buffer from the pool, allocating one if none is kept for reuse.
+ *
+ * @param o the object
+ * @return a buffer of the pool's buffer size, or NULL if the maximum number
+ *         of buffers is allocated or allocation failed
+ */
+uint8_t * BufferPool_Get (BufferPool *o);
+
+/**
+ * Puts a buffer back into the pool.
+ *
+ * @param o the object
+ * @param buf buffer from {@link BufferPool_Get}
+ */
+void BufferPool_Put (BufferPool *o, uint8_t *buf);
+
+/**
+ * Returns the number of bytes allocated for buffers, including the ones kept
+ * for reuse.
+ *
+ * @param o the object
+ * @return allocated bytes
+ */
+int64_t BufferPool_GetAllocatedBytes (BufferPool *o);
+
+#endif
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <stddef.h>
+
+#include <misc/balloc.h>
+#include <misc/offset.h>
+#include <base/BLog.h>
+
+#include <lwip/mem.h>
+
+#include <tun2socks/DevicePbufPool.h>
+
+#include <generated/blog_channel_DevicePbufPool.h>
+
+// The pbufs are of type PBUF_RAM with the payload right after the pbuf, so
+// that lwIP can move the payload back over headers it has already parsed, as
+// ICMP does when replying. pbuf_realloc() calls mem_trim() on such pbufs,
+// which must then do nothing.
+#if !MEM_LIBC_MALLOC
+#error "DevicePbufPool requires MEM_LIBC_MALLOC"
+#endif
+
+struct DevicePbufPool_buffer {
+    struct DevicePbufPool_arena *arena;
+    struct DevicePbufPool_buffer *next_free;
+    struct pbuf_custom p;
+};
+
+// Buffers live in an arena that outlives the pool while lwIP still holds
+// some of them.
+struct DevicePbufPool_arena {
+    int buffer_size;
+    size_t header_size;
+    size_t stride;
+    int num_buffers;
+    int num_free;
+    int detached;
+    struct DevicePbufPool_buffer *free_list;
+    uint8_t *memory;
+};
+
+static void free_arena (struct DevicePbufPool_arena *arena);
+static void put_buffer (struct DevicePbufPool_buffer *buffer);
+static struct DevicePbufPool_buffer * buffer_from_data (struct DevicePbufPool_arena *arena, uint8_t *data);
+static void pbuf_free_func (struct pbuf *p);
+
+static void free_arena (struct DevicePbufPool_arena *arena)
+{
+    BFree(arena->memory);
+    BFree(arena);
+}
+
+static void put_buffer (struct DevicePbufPool_buffer *buffer)
+{
+    struct DevicePbufPool_arena *arena = buffer->arena;
+    ASSERT(arena->num_free < arena->num_buffers)
+
+    buffer->next_free = arena->free_list;
+    arena->free_list = buffer;
+    arena->num_free++;
+
+    if (arena->detached && arena->num_free == arena->num_buffers) {
+        free_arena(arena);
+    }
+}
+
+static struct DevicePbufPool_buffer * buffer_from_data (struct DevicePbufPool_arena *arena, uint8_t *data)
+{
+    ASSERT(data >= arena->memory + arena->header_size)
+    ASSERT(data < arena->memory + arena->num_buffers * arena->stride)
+    ASSERT((size_t)(data - arena->memory) % arena->stride == arena->header_size)
+
+    return (struct DevicePbufPool_buffer *)(data - arena->header_size);
+}
+
+static void pbuf_free_func (struct pbuf *p)
+{
+    struct DevicePbufPool_buffer *buffer = UPPER_OBJECT(p, struct DevicePbufPool_buffer, p.pbuf);
+
+    put_buffer(buffer);
+}
+
+int DevicePbufPool_Init (DevicePbufPool *o, int num_buffers, int buffer_size)
+{
+    ASSERT(num_buffers > 0)
+    ASSERT(buffer_size > 0)
+    ASSERT(buffer_size <= UINT16_MAX)
+
+    struct DevicePbufPool_arena *arena = (struct DevicePbufPool_arena *)BAlloc(sizeof(*arena));
+    if (!arena) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        goto fail0;
+    }
+
+    // leave room before the data for lwIP to move the payload back into,
+    // without reaching the fields of the buffer
+    arena->buffer_size = buffer_size;
+    arena->header_size = LWIP_MEM_ALIGN_SIZE(sizeof(struct DevicePbufPool_buffer)) + LWIP_MEM_ALIGN_SIZE(PBUF_LINK_HLEN);
+    arena->stride = arena->header_size + LWIP_MEM_ALIGN_SIZE(buffer_size);
+    arena->num_buffers = num_buffers;
+    arena->num_free = 0;
+    arena->detached = 0;
+    arena->free_list = NULL;
+
+    if (!(arena->memory = (uint8_t *)BAllocArray(num_buffers, arena->stride))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        goto fail1;
+    }
+
+    for (int i = num_buffers - 1; i >= 0; i--) {
+        struct DevicePbufPool_buffer *buffer = (struct DevicePbufPool_buffer *)(arena->memory + i * arena->stride);
+        buffer->arena = arena;
+        put_buffer(buffer);
+    }
+
+    o->arena = arena;
+
+    DebugObject_Init(&o->d_obj);
+    return 1;
+
+fail1:
+    BFree(arena);
+fail0:
+    return 0;
+}
+
+void DevicePbufPool_Free (DevicePbufPool *o)
+{
+    DebugObject_Free(&o->d_obj);
+    struct DevicePbufPool_arena *arena = o->arena;
+
+    if (arena->num_free == arena->num_buffers) {
+        free_arena(arena);
+    } else {
+        BLog(BLOG_INFO, "%d buffers still held by lwIP", arena->num_buffers - arena->num_free);
+        arena->detached = 1;
+    }
+}
+
+uint8_t * DevicePbufPool_Get (DevicePbufPool *o)
+{
+    DebugObject_Access(&o->d_obj);
+    struct DevicePbufPool_arena *arena = o->arena;
+
+    struct DevicePbufPool_buffer *buffer = arena->free_list;
+    if (!buffer) {
+        return NULL;
+    }
+
+    arena->free_list = buffer->next_free;
+    arena->num_free--;
+
+    return (uint8_t *)buffer + arena->header_size;
+}
+
+void DevicePbufPool_Put (DevicePbufPool *o, uint8_t *data)
+{
+    DebugObject_Access(&o->d_obj);
+
+    put_buffer(buffer_from_data(o->arena, data));
+}
+
+struct pbuf * DevicePbufPool_MakePbuf (DevicePbufPool *o, uint8_t *data, int data_len)
+{
+    DebugObject_Access(&o->d_obj);
+    struct DevicePbufPool_arena *arena = o->arena;
+    ASSERT(data_len >= 0)
+    ASSERT(data_len <= arena->buffer_size)
+
+    struct DevicePbufPool_buffer *buffer = buffer_from_data(arena, data);
+
+    buffer->p.custom_free_function = pbuf_free_func;
+    struct pbuf *p = pbuf_alloced_custom(PBUF_RAW, data_len, PBUF_RAM, &buffer->p, data, arena->buffer_size);
+    ASSERT_FORCE(p)
+
+    return p;
+}
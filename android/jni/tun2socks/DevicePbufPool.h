@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Fixed set of buffers that packets are read from the device into, and
+ * that are then passed to lwIP as pbufs without copying.
+ *
+ * A buffer handed to lwIP is returned to the pool when lwIP frees the pbuf,
+ * which may be much later if lwIP queues the packet (for example, out of
+ * order TCP segments). While all buffers are held by lwIP, {@link
+ * DevicePbufPool_Get} returns NULL and the caller has to fall back to
+ * copying.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_DEVICEPBUFPOOL_H
+#define BADVPN_TUN2SOCKS_DEVICEPBUFPOOL_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+#include <base/DebugObject.h>
+
+#include <lwip/pbuf.h>
+
+struct DevicePbufPool_arena;
+
+typedef struct {
+    struct DevicePbufPool_arena *arena;
+    DebugObject d_obj;
+} DevicePbufPool;
+
+/**
+ * Initializes the pool, allocating all buffers.
+ *
+ * @param o the object
+ * @param num_buffers number of buffers. Must be >0.
+ * @param buffer_size size of each buffer. Must be >0 and <=UINT16_MAX.
+ * @return 1 on success, 0 on failure
+ */
+int DevicePbufPool_Init (DevicePbufPool *o, int num_buffers, int buffer_size) WARN_UNUSED;
+
+/**
+ * Frees the pool.
+ * All buffers obtained with {@link DevicePbufPool_Get} must have been put
+ * back or turned into pbufs. Buffers still held by lwIP stay allocated
+ * until lwIP frees them.
+ *
+ * @param o the object
+ */
+void DevicePbufPool_Free (DevicePbufPool *o);
+
+/**
+ * Takes a free buffer out of the pool.
+ *
+ * @param o the object
+ * @return a buffer of the pool's buffer size, or NULL if all buffers are in use
+ */
+uint8_t * DevicePbufPool_Get (DevicePbufPool *o);
+
+/**
+ * Puts an unused buffer back into the pool.
+ *
+ * @param o the object
+ * @param data buffer from {@link DevicePbufPool_Get}
+ */
+void DevicePbufPool_Put (DevicePbufPool *o, uint8_t *data);
+
+/**
+ * Turns a buffer into a pbuf whose payload is the buffer's first data_len
+ * bytes. The buffer goes back into the pool when the pbuf is freed.
+ *
+ * @param o the object
+ * @param data buffer from {@link DevicePbufPool_Get}
+ * @param data_len length of the packet in the buffer. Must be >=0 and <= the
+ *                 pool's buffer size.
+ * @return the pbuf, with a reference count of 1
+ */
+struct pbuf * DevicePbufPool_MakePbuf (DevicePbufPool *o, uint8_t *data, int data_len);
+
+#endif
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <string.h>
+
+#include <misc/balloc.h>
+#include <misc/byteorder.h>
+#include <misc/hashfun.h>
+#include <misc/minmax.h>
+#include <misc/offset.h>
+#include <base/BLog.h>
+
+#include <tun2socks/DnsCache.h>
+
+#include <generated/blog_channel_DnsCache.h>
+
+static int read_key (const uint8_t *data, int data_len, uint8_t *key, int *key_len);
+static struct DnsCache_entry * find_entry (DnsCache *o, const uint8_t *key, int key_len, size_t hash);
+static void remove_entry (DnsCache *o, struct DnsCache_entry *entry);
+
+// Reads the single question of a message into |key|. Returns the offset
+// following the question, or -1 if the message can't be cached.
+static int read_key (const uint8_t *data, int data_len, uint8_t *key, int *key_len)
+{
+    struct dns_header header;
+    if (data_len < sizeof(header)) {
+        return -1;
+    }
+    memcpy(&header, data, sizeof(header));
+
+    if ((header.qr_opcode_aa_tc_rd & DNS_OPCODE) != 0 || ntoh16(header.qdcount) != 1) {
+        return -1;
+    }
+
+    int name_len;
+    uint16_t qtype;
+    uint16_t qclass;
+    int offset = dns_read_question(data, data_len, sizeof(header), key, &name_len, &qtype, &qclass);
+    if (offset < 0) {
+        return -1;
+    }
+
+    // question type and class complete the key
+    memcpy(key + name_len, data + offset - 4, 4);
+    *key_len = name_len + 4;
+
+    return offset;
+}
+
+static struct DnsCache_entry * find_entry (DnsCache *o, const uint8_t *key, int key_len, size_t hash)
+{
+    struct DnsCache_entry *entry = o->buckets[hash & (o->num_buckets - 1)];
+    while (entry) {
+        if (entry->hash == hash && entry->key_len == key_len && !memcmp(entry->key, key, key_len)) {
+            return entry;
+        }
+        entry = entry->hash_next;
+    }
+    return NULL;
+}
+
+static void remove_entry (DnsCache *o, struct DnsCache_entry *entry)
+{
+    // unlink from bucket
+    struct DnsCache_entry **link = &o->buckets[entry->hash & (o->num_buckets - 1)];
+    while (*link != entry) {
+        link = &(*link)->hash_next;
+    }
+    *link = entry->hash_next;
+
+    // release answer
+    BFree(entry->response);
+    entry->response = NULL;
+
+    // move to free list
+    LinkedList1_Remove(&o->used_list, &entry->list_node);
+    LinkedList1_Append(&o->free_list, &entry->list_node);
+}
+
+int DnsCache_Init (DnsCache *o, int capacity, int max_response_len, int max_ttl, int max_negative_ttl)
+{
+    ASSERT(capacity > 0)
+    ASSERT(max_response_len >= sizeof(struct dns_header))
+    ASSERT(max_ttl >= 0)
+    ASSERT(max_negative_ttl >= 0)
+
+    o->capacity = capacity;
+    o->max_response_len = max_response_len;
+    o->max_ttl = max_ttl;
+    o->max_negative_ttl = max_negative_ttl;
+
+    // use a power of two number of buckets, about twice the capacity
+    o->num_buckets = 1;
+    while (o->num_buckets < 2 * (size_t)capacity) {
+        o->num_buckets <<= 1;
+    }
+
+    if (!(o->entries = (struct DnsCache_entry *)BAllocArray(capacity, sizeof(o->entries[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        goto fail0;
+    }
+
+    if (!(o->buckets = (struct DnsCache_entry **)BAllocArray(o->num_buckets, sizeof(o->buckets[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        goto fail1;
+    }
+
+    if (!(o->answer_buf = (uint8_t *)BAlloc(max_response_len))) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        goto fail2;
+    }
+
+    for (size_t i = 0; i < o->num_buckets; i++) {
+        o->buckets[i] = NULL;
+    }
+
+    LinkedList1_Init(&o->used_list);
+    LinkedList1_Init(&o->free_list);
+    for (int i = 0; i < capacity; i++) {
+        o->entries[i].response = NULL;
+        LinkedList1_Append(&o->free_list, &o->entries[i].list_node);
+    }
+
+    DebugObject_Init(&o->d_obj);
+    return 1;
+
+fail2:
+    BFree(o->buckets);
+fail1:
+    BFree(o->entries);
+fail0:
+    return 0;
+}
+
+void DnsCache_Free (DnsCache *o)
+{
+    DebugObject_Free(&o->d_obj);
+
+    for (int i = 0; i < o->capacity; i++) {
+        BFree(o->entries[i].response);
+    }
+
+    BFree(o->answer_buf);
+    BFree(o->buckets);
+    BFree(o->entries);
+}
+
+const uint8_t * DnsCache_Lookup (DnsCache *o, const uint8_t *query, int query_len, int *out_len)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(query_len >= 0)
+
+    uint8_t key[DNSCACHE_MAX_KEY_LEN];
+    int key_len;
+    if (read_key(query, query_len, key, &key_len) < 0) {
+        return NULL;
+    }
+
+    size_t hash = badvpn_djb2_hash_bin(key, key_len);
+    struct DnsCache_entry *entry = find_entry(o, key, key_len, hash);
+    if (!entry) {
+        return NULL;
+    }
+
+    btime_t now = btime_gettime();
+    if (now >= entry->expires) {
+        remove_entry(o, entry);
+        return NULL;
+    }
+
+    // build the answer with the query's ID and the remaining TTLs
+    memcpy(o->answer_buf, entry->response, entry->response_len);
+    dns_set_header_id(o->answer_buf, dns_get_header_id(query));
+
+    // the entry expires with its shortest answer TTL, so authority and
+    // additional records may have run out already
+    uint32_t elapsed = (now - entry->inserted) / 1000;
+    for (int i = 0; i < entry->num_ttls; i++) {
+        uint32_t left = (entry->ttls[i] > elapsed ? entry->ttls[i] - elapsed : 0);
+        uint32_t ttl = hton32(left);
+        memcpy(o->answer_buf + entry->ttl_offsets[i], &ttl, sizeof(ttl));
+    }
+
+    // mark most recently used
+    LinkedList1_Remove(&o->used_list, &entry->list_node);
+    LinkedList1_Append(&o->used_list, &entry->list_node);
+
+    *out_len = entry->response_len;
+    return o->answer_buf;
+}
+
+void DnsCache_Insert (DnsCache *o, const uint8_t *response, int response_len)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(response_len >= 0)
+
+    if (response_len > o->max_response_len) {
+        return;
+    }
+
+    uint8_t key[DNSCACHE_MAX_KEY_LEN];
+    int key_len;
+    int offset = read_key(response, response_len, key, &key_len);
+    if (offset < 0) {
+        return;
+    }
+
+    struct dns_header header;
+    memcpy(&header, response, sizeof(header));
+
+    // only cache complete answers that succeeded or found no such name; the
+    // AA bit is not checked, since the answers come through a recursive
+    // resolver, which clears it. Negative answers are cached for the TTL of
+    // their authority records, normally the zone's SOA (RFC 2308), and not
+    // at all without them.
+    int rcode = header.ra_z_rcode & DNS_RCODE;
+    if (!(header.qr_opcode_aa_tc_rd & DNS_QR) || (header.qr_opcode_aa_tc_rd & DNS_TC) ||
+        (rcode != DNS_RCODE_NOERROR && rcode != DNS_RCODE_NXDOMAIN)) {
+        return;
+    }
+
+    int ancount = ntoh16(header.ancount);
+    int nscount = ntoh16(header.nscount);
+    int arcount = ntoh16(header.arcount);
+
+    uint16_t ttl_offsets[DNSCACHE_MAX_TTL_FIELDS];
+    uint32_t ttls[DNSCACHE_MAX_TTL_FIELDS];
+    int num_ttls = 0;
+    int64_t min_answer_ttl = -1;
+    int64_t min_authority_ttl = -1;
+
+    // walk the records, remembering where their TTLs are
+    for (int i = 0; i < ancount + nscount + arcount; i++) {
+        offset = dns_skip_name(response, response_len, offset);
+        if (offset < 0 || offset + DNS_RR_FIXED_LEN > response_len) {
+            return;
+        }
+
+        uint16_t type;
+        uint32_t ttl;
+        uint16_t rdlength;
+        memcpy(&type, response + offset, sizeof(type));
+        memcpy(&ttl, response + offset + DNS_RR_TTL_OFFSET, sizeof(ttl));
+        memcpy(&rdlength, response + offset + DNS_RR_FIXED_LEN - 2, sizeof(rdlength));
+        type = ntoh16(type);
+        ttl = ntoh32(ttl);
+
+        // the TTL field of an OPT record holds flags
+        if (type != DNS_TYPE_OPT) {
+            if (num_ttls == DNSCACHE_MAX_TTL_FIELDS) {
+                return;
+            }
+            ttl_offsets[num_ttls] = offset + DNS_RR_TTL_OFFSET;
+            ttls[num_ttls] = ttl;
+            num_ttls++;
+
+            if (i < ancount) {
+                if (min_answer_ttl < 0 || ttl < min_answer_ttl) {
+                    min_answer_ttl = ttl;
+                }
+            } else if (i < ancount + nscount) {
+                if (min_authority_ttl < 0 || ttl < min_authority_ttl) {
+                    min_authority_ttl = ttl;
+                }
+            }
+        }
+
+        offset += DNS_RR_FIXED_LEN + ntoh16(rdlength);
+        if (offset > response_len) {
+            return;
+        }
+    }
+
+    int64_t ttl;
+    if (ancount > 0) {
+        ttl = bmin_int64(min_answer_ttl, o->max_ttl);
+    } else if (min_authority_ttl >= 0) {
+        ttl = bmin_int64(min_authority_ttl, o->max_negative_ttl);
+    } else {
+        return;
+    }
+    if (ttl <= 0) {
+        return;
+    }
+
+    uint8_t *copy = (uint8_t *)BAlloc(response_len);
+    if (!copy) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        return;
+    }
+    memcpy(copy, response, response_len);
+
+    // replace an existing answer, or take a free entry, or evict the least recently used
+    size_t hash = badvpn_djb2_hash_bin(key, key_len);
+    struct DnsCache_entry *entry = find_entry(o, key, key_len, hash);
+    if (entry) {
+        remove_entry(o, entry);
+    } else if (LinkedList1_IsEmpty(&o->free_list)) {
+        LinkedList1Node *node = LinkedList1_GetFirst(&o->used_list);
+        remove_entry(o, UPPER_OBJECT(node, struct DnsCache_entry, list_node));
+    }
+
+    LinkedList1Node *node = LinkedList1_GetFirst(&o->free_list);
+    entry = UPPER_OBJECT(node, struct DnsCache_entry, list_node);
+    LinkedList1_Remove(&o->free_list, &entry->list_node);
+    LinkedList1_Append(&o->used_list, &entry->list_node);
+
+    entry->hash = hash;
+    memcpy(entry->key, key, key_len);
+    entry->key_len = key_len;
+    entry->inserted = btime_gettime();
+    entry->expires = entry->inserted + ttl * 1000;
+    entry->response = copy;
+    entry->response_len = response_len;
+    memcpy(entry->ttl_offsets, ttl_offsets, num_ttls * sizeof(ttl_offsets[0]));
+    memcpy(entry->ttls, ttls, num_ttls * sizeof(ttls[0]));
+    entry->num_ttls = num_ttls;
+
+    size_t bucket = hash & (o->num_buckets - 1);
+    entry->hash_next = o->buckets[bucket];
+    o->buckets[bucket] = entry;
+
+    BLog(BLOG_DEBUG, "cached answer for %d seconds", (int)ttl);
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Bounded cache of DNS answers, keyed by question.
+ *
+ * Answers are kept for the smallest TTL of their answer records (or of
+ * their authority records, for negative answers), and the least recently
+ * used entry is evicted when the cache is full. Answers served from the cache
+ * carry the ID of the query and have their TTLs reduced by the time they
+ * spent in the cache.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_DNSCACHE_H
+#define BADVPN_TUN2SOCKS_DNSCACHE_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+#include <misc/dns_proto.h>
+#include <structure/LinkedList1.h>
+#include <base/DebugObject.h>
+#include <system/BTime.h>
+
+// maximum number of TTL fields that are adjusted in a cached answer
+#define DNSCACHE_MAX_TTL_FIELDS 64
+
+// question name in wire format, followed by type and class
+#define DNSCACHE_MAX_KEY_LEN (DNS_MAX_NAME_LEN + 4)
+
+struct DnsCache_entry {
+    LinkedList1Node list_node;
+    struct DnsCache_entry *hash_next;
+    size_t hash;
+    uint8_t key[DNSCACHE_MAX_KEY_LEN];
+    int key_len;
+    btime_t inserted;
+    btime_t expires;
+    uint8_t *response;
+    int response_len;
+    uint16_t ttl_offsets[DNSCACHE_MAX_TTL_FIELDS];
+    uint32_t ttls[DNSCACHE_MAX_TTL_FIELDS];
+    int num_ttls;
+};
+
+typedef struct {
+    int capacity;
+    int max_response_len;
+    btime_t max_ttl;
+    btime_t max_negative_ttl;
+    struct DnsCache_entry *entries;
+    struct DnsCache_entry **buckets;
+    size_t num_buckets;
+    LinkedList1 used_list;
+    LinkedList1 free_list;
+    uint8_t *answer_buf;
+    DebugObject d_obj;
+} DnsCache;
+
+/**
+ * Initializes the cache.
+ *
+ * @param o the object
+ * @param capacity maximum number of cached answers. Must be >0.
+ * @param max_response_len largest answer that will be cached, in bytes
+ * @param max_ttl upper bound on how long an answer is kept, in seconds
+ * @param max_negative_ttl upper bound on how long a negative answer is kept, in seconds
+ * @return 1 on success, 0 on failure
+ */
+int DnsCache_Init (DnsCache *o, int capacity, int max_response_len, int max_ttl, int max_negative_ttl) WARN_UNUSED;
+
+/**
+ * Frees the cache.
+ *
+ * @param o the object
+ */
+void DnsCache_Free (DnsCache *o);
+
+/**
+ * Looks up the answer to a query.
+ *
+ * @param o the object
+ * @param query DNS query message
+ * @param query_len length of the query
+ * @param out_len on a hit, receives the length of the answer
+ * @return the answer, valid until the next call on the cache, or NULL on a miss
+ */
+const uint8_t * DnsCache_Lookup (DnsCache *o, const uint8_t *query, int query_len, int *out_len);
+
+/**
+ * Offers an answer for caching. Answers that are truncated, failed, too
+ * large or have a zero TTL are ignored.
+ *
+ * @param o the object
+ * @param response DNS response message
+ * @param response_len length of the response
+ */
+void DnsCache_Insert (DnsCache *o, const uint8_t *response, int response_len);
+
+#endif
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <misc/balloc.h>
+#include <misc/offset.h>
+#include <base/BLog.h>
+
+#include <tun2socks/DnsFlowTable.h>
+
+#include <generated/blog_channel_DnsFlowTable.h>
+
+static void free_entry (DnsFlowTable *o, struct DnsFlowTable_entry *entry);
+static void update_timer (DnsFlowTable *o);
+static void timer_handler (DnsFlowTable *o);
+
+static void free_entry (DnsFlowTable *o, struct DnsFlowTable_entry *entry)
+{
+    ASSERT(entry->used)
+
+    LinkedList1_Remove(&o->expire_list, &entry->expire_list_node);
+    entry->used = 0;
+}
+
+static void update_timer (DnsFlowTable *o)
+{
+    // entries expire in the order they were added, so only the first matters
+    LinkedList1Node *node = LinkedList1_GetFirst(&o->expire_list);
+    if (!node) {
+        BReactor_RemoveTimer(o->reactor, &o->timer);
+        return;
+    }
+
+    struct DnsFlowTable_entry *entry = UPPER_OBJECT(node, struct DnsFlowTable_entry, expire_list_node);
+    BReactor_SetTimerAbsoluteCoarse(o->reactor, &o->timer, entry->expires);
+}
+
+static void timer_handler (DnsFlowTable *o)
+{
+    DebugObject_Access(&o->d_obj);
+
+    btime_t now = btime_gettime();
+
+    LinkedList1Node *node;
+    while ((node = LinkedList1_GetFirst(&o->expire_list))) {
+        struct DnsFlowTable_entry *entry = UPPER_OBJECT(node, struct DnsFlowTable_entry, expire_list_node);
+        if (entry->expires > now) {
+            break;
+        }
+        BLog(BLOG_DEBUG, "request %d timed out", (int)entry->relay_id);
+        free_entry(o, entry);
+    }
+
+    update_timer(o);
+}
+
+int DnsFlowTable_Init (DnsFlowTable *o, BReactor *reactor, int capacity, btime_t timeout)
+{
+    ASSERT(capacity > 0)
+    ASSERT(capacity <= UINT16_MAX + 1)
+    ASSERT((capacity & (capacity - 1)) == 0)
+    ASSERT(timeout > 0)
+
+    o->reactor = reactor;
+    o->capacity = capacity;
+    o->timeout = timeout;
+
+    if (!(o->entries = (struct DnsFlowTable_entry *)BAllocArray(capacity, sizeof(o->entries[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        return 0;
+    }
+
+    for (int i = 0; i < capacity; i++) {
+        o->entries[i].used = 0;
+    }
+
+    LinkedList1_Init(&o->expire_list);
+
+    BTimer_Init(&o->timer, 0, (BTimer_handler)timer_handler, o);
+
+    DebugObject_Init(&o->d_obj);
+    return 1;
+}
+
+void DnsFlowTable_Free (DnsFlowTable *o)
+{
+    DebugObject_Free(&o->d_obj);
+
+    BReactor_RemoveTimer(o->reactor, &o->timer);
+    BFree(o->entries);
+}
+
+int DnsFlowTable_Add (DnsFlowTable *o, uint16_t id, BAddr local_addr, uint16_t *out_relay_id)
+{
+    DebugObject_Access(&o->d_obj);
+
+    int mask = o->capacity - 1;
+    struct DnsFlowTable_entry *entry = &o->entries[id & mask];
+
+    if (entry->used && entry->relay_id == id && entry->id == id && BAddr_Compare(&entry->local_addr, &local_addr)) {
+        // retransmission, keep the request but extend its life
+        free_entry(o, entry);
+    } else {
+        // find a free slot, starting with the one for the original ID.
+        // The relay ID is then the original ID advanced by as many slots.
+        uint16_t relay_id = id;
+        int i;
+        for (i = 0; i < o->capacity; i++) {
+            entry = &o->entries[relay_id & mask];
+            if (!entry->used) {
+                break;
+            }
+            relay_id++;
+        }
+        if (i == o->capacity) {
+            BLog(BLOG_WARNING, "too many pending requests");
+            return 0;
+        }
+
+        entry->relay_id = relay_id;
+        entry->id = id;
+        entry->local_addr = local_addr;
+    }
+
+    entry->used = 1;
+    entry->expires = btime_gettime() + o->timeout;
+    LinkedList1_Append(&o->expire_list, &entry->expire_list_node);
+
+    if (!BTimer_IsRunning(&o->timer)) {
+        update_timer(o);
+    }
+
+    *out_relay_id = entry->relay_id;
+    return 1;
+}
+
+int DnsFlowTable_Remove (DnsFlowTable *o, uint16_t relay_id, uint16_t *out_id, BAddr *out_local_addr)
+{
+    DebugObject_Access(&o->d_obj);
+
+    struct DnsFlowTable_entry *entry = &o->entries[relay_id & (o->capacity - 1)];
+    if (!entry->used || entry->relay_id != relay_id) {
+        return 0;
+    }
+
+    *out_id = entry->id;
+    *out_local_addr = entry->local_addr;
+
+    int was_first = (LinkedList1_GetFirst(&o->expire_list) == &entry->expire_list_node);
+    free_entry(o, entry);
+    if (was_first) {
+        update_timer(o);
+    }
+
+    return 1;
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Table of DNS requests awaiting an answer from the UDP relay.
+ *
+ * Each request is stored under a relay ID, the transaction ID used towards
+ * the relay, together with the original ID and the address of the client.
+ * The relay ID is the original ID unless another client already has a
+ * request pending under it, in which case a free ID is chosen. Because
+ * relay IDs are chosen so that they map directly to a free slot, lookups
+ * don't need to probe.
+ *
+ * Requests that aren't answered within the timeout are dropped.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_DNSFLOWTABLE_H
+#define BADVPN_TUN2SOCKS_DNSFLOWTABLE_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+#include <structure/LinkedList1.h>
+#include <base/DebugObject.h>
+#include <system/BAddr.h>
+#include <system/BReactor.h>
+#include <system/BTime.h>
+
+struct DnsFlowTable_entry {
+    LinkedList1Node expire_list_node;
+    int used;
+    uint16_t relay_id;
+    uint16_t id;
+    BAddr local_addr;
+    btime_t expires;
+};
+
+typedef struct {
+    BReactor *reactor;
+    int capacity;
+    btime_t timeout;
+    struct DnsFlowTable_entry *entries;
+    LinkedList1 expire_list;
+    BTimer timer;
+    DebugObject d_obj;
+} DnsFlowTable;
+
+/**
+ * Initializes the table.
+ *
+ * @param o the object
+ * @param reactor reactor we live in
+ * @param capacity maximum number of pending requests. Must be a power of two
+ *                 between 1 and 65536.
+ * @param timeout time after which an unanswered request is dropped, in milliseconds
+ * @return 1 on success, 0 on failure
+ */
+int DnsFlowTable_Init (DnsFlowTable *o, BReactor *reactor, int capacity, btime_t timeout) WARN_UNUSED;
+
+/**
+ * Frees the table.
+ *
+ * @param o the object
+ */
+void DnsFlowTable_Free (DnsFlowTable *o);
+
+/**
+ * Adds a request. A retransmission of a request that is still pending
+ * under its original ID reuses that entry.
+ *
+ * @param o the object
+ * @param id transaction ID of the request, as found in the message
+ * @param local_addr address of the client that sent the request
+ * @param out_relay_id receives the transaction ID to send to the relay
+ * @return 1 on success, 0 if the table is full
+ */
+int DnsFlowTable_Add (DnsFlowTable *o, uint16_t id, BAddr local_addr, uint16_t *out_relay_id) WARN_UNUSED;
+
+/**
+ * Removes the request matching an answer from the relay.
+ *
+ * @param o the object
+ * @param relay_id transaction ID of the answer, as found in the message
+ * @param out_id receives the original transaction ID of the request
+ * @param out_local_addr receives the address of the client
+ * @return 1 on success, 0 if no such request is pending
+ */
+int DnsFlowTable_Remove (DnsFlowTable *o, uint16_t relay_id, uint16_t *out_id, BAddr *out_local_addr);
+
+#endif
@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <string.h>
+
+#include <misc/balloc.h>
+#include <misc/byteorder.h>
+#include <misc/dns_proto.h>
+#include <base/BLog.h>
+
+#include <tun2socks/DnsTcpClient.h>
+
+#include <generated/blog_channel_DnsTcpClient.h>
+
+// each message on the connection is preceded by its length
+#define LENGTH_PREFIX_LEN 2
+#define MAX_MESSAGE_LEN 65535
+
+static struct DnsTcpClient_conn * choose_conn (DnsTcpClient *o);
+static struct DnsTcpClient_conn * new_conn (DnsTcpClient *o);
+static void free_conn (struct DnsTcpClient_conn *conn, int resend);
+static int queue_query (struct DnsTcpClient_conn *conn, struct DnsTcpClient_query *q);
+static void forget_query (struct DnsTcpClient_query *q);
+static void start_sending (struct DnsTcpClient_conn *conn);
+static void start_receiving (struct DnsTcpClient_conn *conn);
+static void process_answer (struct DnsTcpClient_conn *conn, uint8_t *data, int data_len);
+static int truncate_answer (uint8_t *data, int data_len);
+static void socks_handler (struct DnsTcpClient_conn *conn, int event);
+static void send_handler_done (struct DnsTcpClient_conn *conn, int data_len);
+static void recv_handler_done (struct DnsTcpClient_conn *conn, int data_len);
+static void timer_handler (struct DnsTcpClient_conn *conn);
+
+static struct DnsTcpClient_conn * choose_conn (DnsTcpClient *o)
+{
+    // prefer the least busy connection that is up, then one that is coming
+    // up, and only open another one when those are deep enough
+    struct DnsTcpClient_conn *best_up = NULL;
+    struct DnsTcpClient_conn *best_connecting = NULL;
+    for (int i = 0; i < o->max_connections; i++) {
+        struct DnsTcpClient_conn *conn = &o->conns[i];
+        if (!conn->used) {
+            continue;
+        }
+        struct DnsTcpClient_conn **best = (conn->up ? &best_up : &best_connecting);
+        if (!*best || conn->num_pending < (*best)->num_pending) {
+            *best = conn;
+        }
+    }
+
+    if (best_up && best_up->num_pending < DNSTCPCLIENT_PIPELINE_DEPTH) {
+        return best_up;
+    }
+    if (best_connecting && best_connecting->num_pending < DNSTCPCLIENT_PIPELINE_DEPTH) {
+        return best_connecting;
+    }
+    if (o->num_conns < o->max_connections) {
+        struct DnsTcpClient_conn *conn = new_conn(o);
+        if (conn) {
+            return conn;
+        }
+    }
+    return (best_up ? best_up : best_connecting);
+}
+
+static struct DnsTcpClient_conn * new_conn (DnsTcpClient *o)
+{
+    ASSERT(o->num_conns < o->max_connections)
+
+    struct DnsTcpClient_conn *conn = NULL;
+    for (int i = 0; i < o->max_connections; i++) {
+        if (!o->conns[i].used) {
+            conn = &o->conns[i];
+            break;
+        }
+    }
+    ASSERT(conn)
+
+    conn->client = o;
+    conn->up = 0;
+    conn->num_pending = 0;
+    conn->send_len = 0;
+    conn->sending = 0;
+    conn->recv_len = 0;
+
+    if (!(conn->send_buf = (uint8_t *)BAlloc(DNSTCPCLIENT_SEND_BUFFER_SIZE))) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        goto fail0;
+    }
+
+    if (!(conn->recv_buf = (uint8_t *)BAlloc(LENGTH_PREFIX_LEN + MAX_MESSAGE_LEN))) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        goto fail1;
+    }
+
+    int res;
+    if (o->pipelined) {
+        res = BSocksClient_InitPipelined(&conn->socks, o->socks_server_addr, o->auth_info, o->num_auth_info,
+                                         o->dns_server_addr, (BSocksClient_handler)socks_handler, conn, o->reactor);
+    } else {
+        res = BSocksClient_Init(&conn->socks, o->socks_server_addr, o->auth_info, o->num_auth_info,
+                                o->dns_server_addr, (BSocksClient_handler)socks_handler, conn, o->reactor);
+    }
+    if (!res) {
+        BLog(BLOG_ERROR, "BSocksClient_Init failed");
+        goto fail2;
+    }
+
+    BTimer_Init(&conn->timer, o->query_timeout, (BTimer_handler)timer_handler, conn);
+
+    conn->used = 1;
+    o->num_conns++;
+
+    BLog(BLOG_DEBUG, "connecting");
+
+    return conn;
+
+fail2:
+    BFree(conn->recv_buf);
+fail1:
+    BFree(conn->send_buf);
+fail0:
+    return NULL;
+}
+
+static void free_conn (struct DnsTcpClient_conn *conn, int resend)
+{
+    DnsTcpClient *o = conn->client;
+    ASSERT(conn->used)
+
+    BReactor_RemoveTimer(o->reactor, &conn->timer);
+    BSocksClient_Free(&conn->socks);
+    BFree(conn->recv_buf);
+    BFree(conn->send_buf);
+
+    conn->used = 0;
+    o->num_conns--;
+
+    // detach the queries that were outstanding on the connection, keeping
+    // those that haven't been sent again yet
+    int num_resend = 0;
+    for (int i = 0; i < o->flows_capacity; i++) {
+        struct DnsTcpClient_query *q = &o->queries[i];
+        if (!q->data || q->conn != conn) {
+            continue;
+        }
+        if (resend && !q->resent) {
+            q->conn = NULL;
+            q->resent = 1;
+            num_resend++;
+        } else {
+            forget_query(q);
+        }
+    }
+
+    if (num_resend == 0) {
+        return;
+    }
+
+    BLog(BLOG_DEBUG, "sending %d queries again", num_resend);
+
+    for (int i = 0; i < o->flows_capacity; i++) {
+        struct DnsTcpClient_query *q = &o->queries[i];
+        if (!q->data || q->conn) {
+            continue;
+        }
+        struct DnsTcpClient_conn *other = choose_conn(o);
+        if (!other || !queue_query(other, q)) {
+            forget_query(q);
+        }
+    }
+}
+
+static int queue_query (struct DnsTcpClient_conn *conn, struct DnsTcpClient_query *q)
+{
+    DnsTcpClient *o = conn->client;
+    ASSERT(conn->used)
+    ASSERT(q->data)
+
+    if (DNSTCPCLIENT_SEND_BUFFER_SIZE - conn->send_len < LENGTH_PREFIX_LEN + q->data_len) {
+        BLog(BLOG_WARNING, "send buffer is full, dropping query");
+        return 0;
+    }
+
+    uint16_t message_len = hton16(q->data_len);
+    memcpy(conn->send_buf + conn->send_len, &message_len, sizeof(message_len));
+    memcpy(conn->send_buf + conn->send_len + LENGTH_PREFIX_LEN, q->data, q->data_len);
+    conn->send_len += LENGTH_PREFIX_LEN + q->data_len;
+    q->conn = conn;
+
+    conn->num_pending++;
+    if (!BTimer_IsRunning(&conn->timer)) {
+        BReactor_SetTimer(o->reactor, &conn->timer);
+    }
+
+    start_sending(conn);
+
+    return 1;
+}
+
+static void forget_query (struct DnsTcpClient_query *q)
+{
+    if (q->data) {
+        BFree(q->data);
+    }
+    q->data = NULL;
+    q->conn = NULL;
+}
+
+static void start_sending (struct DnsTcpClient_conn *conn)
+{
+    if (!conn->up || conn->sending || conn->send_len == 0) {
+        return;
+    }
+
+    conn->sending = 1;
+    StreamPassInterface_Sender_Send(BSocksClient_GetSendInterface(&conn->socks), conn->send_buf, conn->send_len);
+}
+
+static void start_receiving (struct DnsTcpClient_conn *conn)
+{
+    ASSERT(conn->recv_len < LENGTH_PREFIX_LEN + MAX_MESSAGE_LEN)
+
+    StreamRecvInterface_Receiver_Recv(BSocksClient_GetRecvInterface(&conn->socks), conn->recv_buf + conn->recv_len,
+                                      LENGTH_PREFIX_LEN + MAX_MESSAGE_LEN - conn->recv_len);
+}
+
+static void process_answer (struct DnsTcpClient_conn *conn, uint8_t *data, int data_len)
+{
+    DnsTcpClient *o = conn->client;
+
+    if (conn->num_pending > 0) {
+        conn->num_pending--;
+    }
+    if (conn->num_pending > 0) {
+        BReactor_SetTimer(o->reactor, &conn->timer);
+    } else {
+        BReactor_RemoveTimer(o->reactor, &conn->timer);
+    }
+
+    if (data_len < sizeof(struct dns_header)) {
+        BLog(BLOG_INFO, "answer is too short");
+        return;
+    }
+
+    // relay IDs map directly to flow table slots
+    uint16_t relay_id = dns_get_header_id(data);
+    struct DnsTcpClient_query *q = &o->queries[relay_id & (o->flows_capacity - 1)];
+    int limit = q->answer_limit;
+    if (q->data && dns_get_header_id(q->data) == relay_id) {
+        forget_query(q);
+    }
+
+    // find the query and restore its transaction ID
+    uint16_t id;
+    BAddr local_addr;
+    if (!DnsFlowTable_Remove(&o->flows, relay_id, &id, &local_addr)) {
+        BLog(BLOG_INFO, "no pending query for answer id %d", (int)ntoh16(relay_id));
+        return;
+    }
+    dns_set_header_id(data, id);
+
+    if (data_len > limit) {
+        data_len = truncate_answer(data, data_len);
+    }
+
+    o->handler_answer(o->user, local_addr, o->dns_server_addr, data, data_len);
+}
+
+// Cuts the answer at |data| down to its header and question, with the TC bit
+// set. Returns the new length.
+static int truncate_answer (uint8_t *data, int data_len)
+{
+    struct dns_header header;
+    ASSERT(data_len >= sizeof(header))
+    memcpy(&header, data, sizeof(header));
+
+    int len = sizeof(header);
+    if (ntoh16(header.qdcount) == 1) {
+        int end = dns_skip_name(data, data_len, len);
+        if (end >= 0 && end + 4 <= data_len) {
+            len = end + 4;
+        } else {
+            header.qdcount = hton16(0);
+        }
+    } else {
+        header.qdcount = hton16(0);
+    }
+
+    header.qr_opcode_aa_tc_rd |= DNS_TC;
+    header.ancount = hton16(0);
+    header.nscount = hton16(0);
+    header.arcount = hton16(0);
+    memcpy(data, &header, sizeof(header));
+
+    return len;
+}
+
+static void socks_handler (struct DnsTcpClient_conn *conn, int event)
+{
+    DnsTcpClient *o = conn->client;
+    DebugObject_Access(&o->d_obj);
+    ASSERT(conn->used)
+
+    switch (event) {
+        case BSOCKSCLIENT_EVENT_UP: {
+            ASSERT(!conn->up)
+
+            BLog(BLOG_DEBUG, "connection up");
+
+            conn->up = 1;
+
+            StreamPassInterface_Sender_Init(BSocksClient_GetSendInterface(&conn->socks),
+                                            (StreamPassInterface_handler_done)send_handler_done, conn);
+            StreamRecvInterface_Receiver_Init(BSocksClient_GetRecvInterface(&conn->socks),
+                                              (StreamRecvInterface_handler_done)recv_handler_done, conn);
+
+            start_receiving(conn);
+
+            // send what was queued while connecting
+            start_sending(conn);
+        } break;
+
+        default: {
+            BLog(BLOG_INFO, "connection closed with %d queries pending", conn->num_pending);
+            free_conn(conn, 1);
+        } break;
+    }
+}
+
+static void send_handler_done (struct DnsTcpClient_conn *conn, int data_len)
+{
+    DebugObject_Access(&conn->client->d_obj);
+    ASSERT(conn->sending)
+    ASSERT(data_len > 0)
+    ASSERT(data_len <= conn->send_len)
+
+    memmove(conn->send_buf, conn->send_buf + data_len, conn->send_len - data_len);
+    conn->send_len -= data_len;
+    conn->sending = 0;
+
+    start_sending(conn);
+}
+
+static void recv_handler_done (struct DnsTcpClient_conn *conn, int data_len)
+{
+    DebugObject_Access(&conn->client->d_obj);
+    ASSERT(conn->up)
+    ASSERT(data_len > 0)
+
+    conn->recv_len += data_len;
+
+    // deliver every complete answer
+    int offset = 0;
+    while (conn->recv_len - offset >= LENGTH_PREFIX_LEN) {
+        uint16_t message_len;
+        memcpy(&message_len, conn->recv_buf + offset, sizeof(message_len));
+        message_len = ntoh16(message_len);
+        if (conn->recv_len - offset - LENGTH_PREFIX_LEN < message_len) {
+            break;
+        }
+        process_answer(conn, conn->recv_buf + offset + LENGTH_PREFIX_LEN, message_len);
+        offset += LENGTH_PREFIX_LEN + message_len;
+    }
+
+    memmove(conn->recv_buf, conn->recv_buf + offset, conn->recv_len - offset);
+    conn->recv_len -= offset;
+
+    start_receiving(conn);
+}
+
+static void timer_handler (struct DnsTcpClient_conn *conn)
+{
+    DebugObject_Access(&conn->client->d_obj);
+    ASSERT(conn->used)
+
+    // the resolver or the proxy went quiet; try a fresh connection next time
+    BLog(BLOG_WARNING, "no answers to %d queries, closing connection", conn->num_pending);
+    free_conn(conn, 0);
+}
+
+int DnsTcpClient_Init (DnsTcpClient *o, BAddr socks_server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                       int pipelined, BAddr dns_server_addr, int max_connections, int max_answer_len,
+                       int flows_capacity, btime_t query_timeout,
+                       BReactor *reactor, void *user, DnsTcpClient_handler_answer handler_answer)
+{
+    ASSERT(max_connections > 0)
+    ASSERT(max_connections <= DNSTCPCLIENT_MAX_CONNECTIONS)
+    ASSERT(max_answer_len >= DNS_UDP_PAYLOAD_LIMIT)
+
+    o->socks_server_addr = socks_server_addr;
+    o->auth_info = auth_info;
+    o->num_auth_info = num_auth_info;
+    o->pipelined = pipelined;
+    o->dns_server_addr = dns_server_addr;
+    o->max_connections = max_connections;
+    o->max_answer_len = max_answer_len;
+    o->query_timeout = query_timeout;
+    o->reactor = reactor;
+    o->user = user;
+    o->handler_answer = handler_answer;
+    o->flows_capacity = flows_capacity;
+    o->num_conns = 0;
+
+    if (!DnsFlowTable_Init(&o->flows, reactor, flows_capacity, query_timeout)) {
+        BLog(BLOG_ERROR, "DnsFlowTable_Init failed");
+        goto fail0;
+    }
+
+    if (!(o->queries = (struct DnsTcpClient_query *)BAllocArray(flows_capacity, sizeof(o->queries[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        goto fail1;
+    }
+    for (int i = 0; i < flows_capacity; i++) {
+        o->queries[i].data = NULL;
+        o->queries[i].conn = NULL;
+    }
+
+    if (!(o->conns = (struct DnsTcpClient_conn *)BAllocArray(max_connections, sizeof(o->conns[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        goto fail2;
+    }
+    for (int i = 0; i < max_connections; i++) {
+        o->conns[i].used = 0;
+    }
+
+    DebugObject_Init(&o->d_obj);
+    return 1;
+
+fail2:
+    BFree(o->queries);
+fail1:
+    DnsFlowTable_Free(&o->flows);
+fail0:
+    return 0;
+}
+
+void DnsTcpClient_Free (DnsTcpClient *o)
+{
+    DebugObject_Free(&o->d_obj);
+
+    for (int i = 0; i < o->max_connections; i++) {
+        if (o->conns[i].used) {
+            free_conn(&o->conns[i], 0);
+        }
+    }
+
+    // queries that timed out are only forgotten when their slot is reused
+    for (int i = 0; i < o->flows_capacity; i++) {
+        forget_query(&o->queries[i]);
+    }
+
+    BFree(o->conns);
+    BFree(o->queries);
+    DnsFlowTable_Free(&o->flows);
+}
+
+int DnsTcpClient_SubmitQuery (DnsTcpClient *o, BAddr local_addr, const uint8_t *data, int data_len)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(data_len >= 0)
+
+    if (data_len < sizeof(struct dns_header) || data_len > MAX_MESSAGE_LEN) {
+        BLog(BLOG_INFO, "query has a bad length");
+        return 0;
+    }
+
+    struct DnsTcpClient_conn *conn = choose_conn(o);
+    if (!conn) {
+        return 0;
+    }
+
+    // remember where to send the answer, under an ID unique across connections
+    uint16_t relay_id;
+    if (!DnsFlowTable_Add(&o->flows, dns_get_header_id(data), local_addr, &relay_id)) {
+        BLog(BLOG_WARNING, "too many pending queries, dropping query");
+        return 0;
+    }
+
+    // keep the query until it is answered, in case it has to be sent again;
+    // a retransmission replaces the copy of the original
+    struct DnsTcpClient_query *q = &o->queries[relay_id & (o->flows_capacity - 1)];
+    forget_query(q);
+    if (!(q->data = (uint8_t *)BAlloc(data_len))) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        return 0;
+    }
+    memcpy(q->data, data, data_len);
+    dns_set_header_id(q->data, relay_id);
+    q->data_len = data_len;
+    int limit = dns_get_udp_payload_limit(data, data_len);
+    q->answer_limit = (limit < o->max_answer_len ? limit : o->max_answer_len);
+    q->resent = 0;
+
+    if (!queue_query(conn, q)) {
+        forget_query(q);
+        return 0;
+    }
+
+    return 1;
+}
+
+void DnsTcpClient_SetServer (DnsTcpClient *o, BAddr socks_server_addr)
+{
+    DebugObject_Access(&o->d_obj);
+
+    // queries are sent again through the new server
+    o->socks_server_addr = socks_server_addr;
+
+    // connections opened for them take the lowest free slot, which is
+    // never past the one just freed, so they aren't freed in turn
+    for (int i = 0; i < o->max_connections; i++) {
+        if (o->conns[i].used) {
+            free_conn(&o->conns[i], 1);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Sends DNS queries over TCP to a resolver through a SOCKS5 server, for
+ * proxies that offer no UDP relay.
+ *
+ * Queries are spread over a few persistent connections, each of which
+ * carries many outstanding queries at once. Queries are given relay
+ * transaction IDs unique across the connections, so answers are matched by
+ * ID whichever connection and order they come back in. Connections are
+ * opened when a query needs one; a connection that closes, or that leaves
+ * queries unanswered for the query timeout, is dropped and replaced by the
+ * next query. Queries outstanding on a connection that closes are sent once
+ * more on another one, since the server may close at any time.
+ *
+ * Answers are delivered as they would come from a UDP resolver: an answer
+ * larger than the client accepts over UDP is truncated, so that the client
+ * retries over TCP.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_DNSTCPCLIENT_H
+#define BADVPN_TUN2SOCKS_DNSTCPCLIENT_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+#include <base/DebugObject.h>
+#include <system/BAddr.h>
+#include <system/BReactor.h>
+#include <system/BTime.h>
+#include <socksclient/BSocksClient.h>
+#include <tun2socks/DnsFlowTable.h>
+
+// maximum number of connections
+#define DNSTCPCLIENT_MAX_CONNECTIONS 8
+
+// outstanding queries on a connection before another one is opened
+#define DNSTCPCLIENT_PIPELINE_DEPTH 32
+
+// bytes of queries buffered per connection while it is busy or connecting
+#define DNSTCPCLIENT_SEND_BUFFER_SIZE 16384
+
+typedef void (*DnsTcpClient_handler_answer) (void *user, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len);
+
+struct DnsTcpClient_conn;
+
+struct DnsTcpClient_query {
+    uint8_t *data;
+    int data_len;
+    int answer_limit;
+    int resent;
+    struct DnsTcpClient_conn *conn;
+};
+
+typedef struct {
+    BAddr socks_server_addr;
+    const struct BSocksClient_auth_info *auth_info;
+    size_t num_auth_info;
+    int pipelined;
+    BAddr dns_server_addr;
+    int max_connections;
+    int max_answer_len;
+    btime_t query_timeout;
+    BReactor *reactor;
+    void *user;
+    DnsTcpClient_handler_answer handler_answer;
+    DnsFlowTable flows;
+    int flows_capacity;
+    struct DnsTcpClient_query *queries;
+    struct DnsTcpClient_conn *conns;
+    int num_conns;
+    DebugObject d_obj;
+} DnsTcpClient;
+
+struct DnsTcpClient_conn {
+    DnsTcpClient *client;
+    int used;
+    BSocksClient socks;
+    int up;
+    int num_pending;
+    BTimer timer;
+    uint8_t *send_buf;
+    int send_len;
+    int sending;
+    uint8_t *recv_buf;
+    int recv_len;
+};
+
+/**
+ * Initializes the client. No connection is made until the first query.
+ *
+ * @param o the object
+ * @param socks_server_addr SOCKS5 server address
+ * @param auth_info authentication methods offered to the server. Must stay
+ *                  valid for the lifetime of the object.
+ * @param num_auth_info number of authentication methods
+ * @param pipelined whether to send the SOCKS handshake and the first queries
+ *                  without waiting for the server's replies
+ * @param dns_server_addr address of the DNS resolver
+ * @param max_connections maximum number of connections. Must be between 1
+ *                        and DNSTCPCLIENT_MAX_CONNECTIONS.
+ * @param max_answer_len largest answer delivered whole; larger ones are
+ *                       truncated. Must be >=512.
+ * @param flows_capacity maximum number of outstanding queries. Must be a
+ *                       power of two between 1 and 65536.
+ * @param query_timeout time after which an unanswered query is dropped, and
+ *                      its connection closed, in milliseconds
+ * @param reactor reactor we live in
+ * @param user value passed to handler
+ * @param handler_answer handler called with the answers, which carry the
+ *                       transaction ID of their query. Must not free the client.
+ * @return 1 on success, 0 on failure
+ */
+int DnsTcpClient_Init (DnsTcpClient *o, BAddr socks_server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                       int pipelined, BAddr dns_server_addr, int max_connections, int max_answer_len,
+                       int flows_capacity, btime_t query_timeout,
+                       BReactor *reactor, void *user, DnsTcpClient_handler_answer handler_answer) WARN_UNUSED;
+
+/**
+ * Frees the client, closing all connections.
+ *
+ * @param o the object
+ */
+void DnsTcpClient_Free (DnsTcpClient *o);
+
+/**
+ * Sends a query, opening a connection if needed.
+ *
+ * @param o the object
+ * @param local_addr address of the client that sent the query
+ * @param data the query
+ * @param data_len length of the query. Must be >=0.
+ * @return 1 if the query was sent or queued, 0 if it was dropped
+ */
+int DnsTcpClient_SubmitQuery (DnsTcpClient *o, BAddr local_addr, const uint8_t *data, int data_len);
+
+/**
+ * Changes the SOCKS server. Connections are closed, and queries outstanding
+ * on them are sent again through the new server.
+ *
+ * @param o the object
+ * @param socks_server_addr SOCKS5 server address
+ */
+void DnsTcpClient_SetServer (DnsTcpClient *o, BAddr socks_server_addr);
+
+#endif
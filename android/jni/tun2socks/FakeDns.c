@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <string.h>
+
+#include <misc/balloc.h>
+#include <misc/byteorder.h>
+#include <misc/hashfun.h>
+#include <misc/offset.h>
+#include <base/BLog.h>
+
+#include <tun2socks/FakeDns.h>
+
+#include <generated/blog_channel_FakeDns.h>
+
+static int name_is_host (const uint8_t *name, int name_len);
+static struct FakeDns_entry * find_entry (FakeDns *o, const uint8_t *name, int name_len, size_t hash);
+static struct FakeDns_entry * add_entry (FakeDns *o, const uint8_t *name, int name_len, size_t hash);
+static void touch_entry (FakeDns *o, struct FakeDns_entry *entry);
+static uint32_t entry_addr (FakeDns *o, struct FakeDns_entry *entry);
+
+// Returns whether a name in wire format is a host name that can be passed on
+// in dotted form: at least one label, of letters, digits, '-' and '_'.
+static int name_is_host (const uint8_t *name, int name_len)
+{
+    if (name_len <= 1) {
+        return 0;
+    }
+
+    int offset = 0;
+    while (name[offset] != 0) {
+        int label_len = name[offset++];
+        for (int i = 0; i < label_len; i++) {
+            uint8_t c = name[offset + i];
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_')) {
+                return 0;
+            }
+        }
+        offset += label_len;
+    }
+
+    return 1;
+}
+
+static struct FakeDns_entry * find_entry (FakeDns *o, const uint8_t *name, int name_len, size_t hash)
+{
+    struct FakeDns_entry *entry = o->buckets[hash & (o->num_buckets - 1)];
+    while (entry) {
+        if (entry->hash == hash && entry->name_len == name_len && !memcmp(entry->name, name, name_len)) {
+            return entry;
+        }
+        entry = entry->hash_next;
+    }
+    return NULL;
+}
+
+static struct FakeDns_entry * add_entry (FakeDns *o, const uint8_t *name, int name_len, size_t hash)
+{
+    struct FakeDns_entry *entry;
+
+    if (!LinkedList1_IsEmpty(&o->free_list)) {
+        LinkedList1Node *node = LinkedList1_GetFirst(&o->free_list);
+        entry = UPPER_OBJECT(node, struct FakeDns_entry, list_node);
+        LinkedList1_Remove(&o->free_list, &entry->list_node);
+    } else {
+        // take the address of the least recently used name
+        LinkedList1Node *node = LinkedList1_GetFirst(&o->used_list);
+        entry = UPPER_OBJECT(node, struct FakeDns_entry, list_node);
+        LinkedList1_Remove(&o->used_list, &entry->list_node);
+
+        struct FakeDns_entry **link = &o->buckets[entry->hash & (o->num_buckets - 1)];
+        while (*link != entry) {
+            link = &(*link)->hash_next;
+        }
+        *link = entry->hash_next;
+
+        BLog(BLOG_DEBUG, "reusing address of a least recently used name");
+    }
+
+    entry->hash = hash;
+    memcpy(entry->name, name, name_len);
+    entry->name_len = name_len;
+
+    size_t bucket = hash & (o->num_buckets - 1);
+    entry->hash_next = o->buckets[bucket];
+    o->buckets[bucket] = entry;
+
+    LinkedList1_Append(&o->used_list, &entry->list_node);
+
+    return entry;
+}
+
+static void touch_entry (FakeDns *o, struct FakeDns_entry *entry)
+{
+    LinkedList1_Remove(&o->used_list, &entry->list_node);
+    LinkedList1_Append(&o->used_list, &entry->list_node);
+}
+
+static uint32_t entry_addr (FakeDns *o, struct FakeDns_entry *entry)
+{
+    return hton32(o->first_addr + (uint32_t)(entry - o->entries));
+}
+
+int FakeDns_Init (FakeDns *o, uint32_t pool_addr, int pool_prefix_len, int capacity)
+{
+    ASSERT(pool_prefix_len >= 8)
+    ASSERT(pool_prefix_len <= 30)
+    ASSERT(capacity > 0)
+
+    // hand out the host addresses of the pool, skipping the network and
+    // broadcast addresses
+    o->pool_size = (uint32_t)1 << (32 - pool_prefix_len);
+    o->pool_addr = ntoh32(pool_addr) & ~(o->pool_size - 1);
+    o->first_addr = o->pool_addr + 1;
+    if ((uint32_t)capacity > o->pool_size - 2) {
+        capacity = o->pool_size - 2;
+    }
+    o->capacity = capacity;
+
+    // use a power of two number of buckets, about twice the capacity
+    o->num_buckets = 1;
+    while (o->num_buckets < 2 * (size_t)capacity) {
+        o->num_buckets <<= 1;
+    }
+
+    if (!(o->entries = (struct FakeDns_entry *)BAllocArray(capacity, sizeof(o->entries[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        goto fail0;
+    }
+
+    if (!(o->buckets = (struct FakeDns_entry **)BAllocArray(o->num_buckets, sizeof(o->buckets[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        goto fail1;
+    }
+
+    for (size_t i = 0; i < o->num_buckets; i++) {
+        o->buckets[i] = NULL;
+    }
+
+    LinkedList1_Init(&o->used_list);
+    LinkedList1_Init(&o->free_list);
+    for (int i = 0; i < capacity; i++) {
+        o->entries[i].name_len = 0;
+        LinkedList1_Append(&o->free_list, &o->entries[i].list_node);
+    }
+
+    DebugObject_Init(&o->d_obj);
+    return 1;
+
+fail1:
+    BFree(o->entries);
+fail0:
+    return 0;
+}
+
+void FakeDns_Free (FakeDns *o)
+{
+    DebugObject_Free(&o->d_obj);
+
+    BFree(o->buckets);
+    BFree(o->entries);
+}
+
+const uint8_t * FakeDns_Answer (FakeDns *o, const uint8_t *query, int query_len, int *out_len)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(query_len >= 0)
+
+    struct dns_header header;
+    if (!dns_check(query, query_len, &header)) {
+        return NULL;
+    }
+    if ((header.qr_opcode_aa_tc_rd & DNS_OPCODE) != 0 || ntoh16(header.qdcount) != 1) {
+        return NULL;
+    }
+
+    uint8_t name[DNS_MAX_NAME_LEN];
+    int name_len;
+    uint16_t qtype;
+    uint16_t qclass;
+    int offset = dns_read_question(query, query_len, sizeof(header), name, &name_len, &qtype, &qclass);
+    if (offset < 0) {
+        return NULL;
+    }
+
+    if (qclass != DNS_CLASS_IN || (qtype != DNS_TYPE_A && qtype != DNS_TYPE_AAAA) ||
+        !name_is_host(name, name_len)) {
+        return NULL;
+    }
+
+    // the answer repeats the header and the question, without the query's
+    // additional records
+    memcpy(o->answer_buf, query, offset);
+    struct dns_header answer_header;
+    answer_header.id = header.id;
+    answer_header.qr_opcode_aa_tc_rd = DNS_QR | (header.qr_opcode_aa_tc_rd & DNS_RD);
+    answer_header.ra_z_rcode = DNS_RA | DNS_RCODE_NOERROR;
+    answer_header.qdcount = hton16(1);
+    answer_header.ancount = hton16(0);
+    answer_header.nscount = hton16(0);
+    answer_header.arcount = hton16(0);
+    int answer_len = offset;
+
+    if (qtype == DNS_TYPE_A) {
+        size_t hash = badvpn_djb2_hash_bin(name, name_len);
+        struct FakeDns_entry *entry = find_entry(o, name, name_len, hash);
+        if (entry) {
+            touch_entry(o, entry);
+        } else {
+            entry = add_entry(o, name, name_len, hash);
+        }
+
+        // a record for the name in the question
+        uint8_t *record = o->answer_buf + answer_len;
+        uint16_t name_pointer = hton16(0xC000 | sizeof(struct dns_header));
+        uint16_t type = hton16(DNS_TYPE_A);
+        uint16_t class = hton16(DNS_CLASS_IN);
+        uint32_t ttl = hton32(FAKEDNS_TTL);
+        uint16_t rdlength = hton16(4);
+        uint32_t addr = entry_addr(o, entry);
+        memcpy(record, &name_pointer, 2);
+        memcpy(record + 2, &type, 2);
+        memcpy(record + 4, &class, 2);
+        memcpy(record + 6, &ttl, 4);
+        memcpy(record + 10, &rdlength, 2);
+        memcpy(record + 12, &addr, 4);
+        answer_len += 2 + DNS_RR_FIXED_LEN + 4;
+
+        answer_header.ancount = hton16(1);
+    }
+
+    memcpy(o->answer_buf, &answer_header, sizeof(answer_header));
+
+    *out_len = answer_len;
+    return o->answer_buf;
+}
+
+int FakeDns_IsFakeAddr (FakeDns *o, uint32_t addr)
+{
+    DebugObject_Access(&o->d_obj);
+
+    return ntoh32(addr) - o->pool_addr < o->pool_size;
+}
+
+int FakeDns_GetName (FakeDns *o, uint32_t addr, char *out_name)
+{
+    DebugObject_Access(&o->d_obj);
+
+    uint32_t index = ntoh32(addr) - o->first_addr;
+    if (index >= (uint32_t)o->capacity) {
+        return 0;
+    }
+
+    struct FakeDns_entry *entry = &o->entries[index];
+    if (entry->name_len == 0) {
+        return 0;
+    }
+
+    touch_entry(o, entry);
+
+    // convert to dotted form
+    int len = 0;
+    int offset = 0;
+    while (entry->name[offset] != 0) {
+        int label_len = entry->name[offset++];
+        if (len > 0) {
+            out_name[len++] = '.';
+        }
+        memcpy(out_name + len, entry->name + offset, label_len);
+        len += label_len;
+        offset += label_len;
+    }
+
+    return len;
+}
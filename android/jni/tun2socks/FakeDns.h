@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * @section DESCRIPTION
+ *
+ * Answers DNS queries for IPv4 addresses with fake addresses from a reserved
+ * pool, and maps the addresses back to the names they were given for.
+ *
+ * Each entry of the table owns one address of the pool, so that an address is
+ * looked up by its offset in the pool. When the table is full, the name that
+ * was least recently queried or connected to loses its address to the new
+ * one. Answers carry a short TTL, so that applications don't keep using an
+ * address for long after it may have been reused.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_FAKEDNS_H
+#define BADVPN_TUN2SOCKS_FAKEDNS_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+#include <misc/dns_proto.h>
+#include <structure/LinkedList1.h>
+#include <base/DebugObject.h>
+
+// TTL of the answers, in seconds
+#define FAKEDNS_TTL 1
+
+// header, question and one A record
+#define FAKEDNS_MAX_ANSWER_LEN (sizeof(struct dns_header) + DNS_MAX_NAME_LEN + 4 + 2 + DNS_RR_FIXED_LEN + 4)
+
+struct FakeDns_entry {
+    LinkedList1Node list_node;
+    struct FakeDns_entry *hash_next;
+    size_t hash;
+    uint8_t name[DNS_MAX_NAME_LEN];
+    int name_len;
+};
+
+typedef struct {
+    uint32_t pool_addr;
+    uint32_t pool_size;
+    uint32_t first_addr;
+    int capacity;
+    struct FakeDns_entry *entries;
+    struct FakeDns_entry **buckets;
+    size_t num_buckets;
+    LinkedList1 used_list;
+    LinkedList1 free_list;
+    uint8_t answer_buf[FAKEDNS_MAX_ANSWER_LEN];
+    DebugObject d_obj;
+} FakeDns;
+
+/**
+ * Initializes the table.
+ *
+ * @param o the object
+ * @param pool_addr network address of the pool, in network byte order
+ * @param pool_prefix_len prefix length of the pool. Must be >=8 and <=30.
+ * @param capacity maximum number of names. Must be >0. It is reduced to the
+ *                 number of host addresses in the pool.
+ * @return 1 on success, 0 on failure
+ */
+int FakeDns_Init (FakeDns *o, uint32_t pool_addr, int pool_prefix_len, int capacity) WARN_UNUSED;
+
+/**
+ * Frees the table.
+ *
+ * @param o the object
+ */
+void FakeDns_Free (FakeDns *o);
+
+/**
+ * Answers a query locally if it asks for the IPv4 or IPv6 addresses of a host
+ * name. A queries get the fake address of the name, which is assigned if it
+ * has none, and AAAA queries an empty answer, so that applications connect
+ * over IPv4.
+ *
+ * @param o the object
+ * @param query DNS query message
+ * @param query_len length of the query
+ * @param out_len when answered, receives the length of the answer
+ * @return the answer, valid until the next call on the table, or NULL if the
+ *         query should be sent to a real DNS server
+ */
+const uint8_t * FakeDns_Answer (FakeDns *o, const uint8_t *query, int query_len, int *out_len);
+
+/**
+ * Returns whether an address belongs to the pool.
+ *
+ * @param o the object
+ * @param addr IPv4 address, in network byte order
+ */
+int FakeDns_IsFakeAddr (FakeDns *o, uint32_t addr);
+
+/**
+ * Looks up the host name a fake address was given for, and marks it recently
+ * used.
+ *
+ * @param o the object
+ * @param addr IPv4 address, in network byte order
+ * @param out_name receives the name in dotted form, without a terminating
+ *                 null. Must have room for DNS_MAX_NAME_LEN characters.
+ * @return the length of the name, or 0 if the address has no name
+ */
+int FakeDns_GetName (FakeDns *o, uint32_t addr, char *out_name);
+
+#endif
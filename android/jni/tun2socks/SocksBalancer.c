@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <string.h>
+
+#include <base/BLog.h>
+
+#include <tun2socks/SocksBalancer.h>
+
+#include <generated/blog_channel_SocksBalancer.h>
+
+// weight of a new latency sample in the moving average, as 1/N
+#define LATENCY_SAMPLE_WEIGHT 4
+
+static int is_ejected (SocksBalancer *o, int index, btime_t now);
+static int select_round_robin (SocksBalancer *o, btime_t now);
+static int select_least_connections (SocksBalancer *o, btime_t now);
+static int select_latency (SocksBalancer *o, btime_t now);
+static int select_least_ejected (SocksBalancer *o);
+
+static int is_ejected (SocksBalancer *o, int index, btime_t now)
+{
+    return o->servers[index].ejected_until > now;
+}
+
+static int select_round_robin (SocksBalancer *o, btime_t now)
+{
+    for (int i = 0; i < o->num_servers; i++) {
+        int index = (o->next + i) % o->num_servers;
+        if (!is_ejected(o, index, now)) {
+            return index;
+        }
+    }
+
+    return -1;
+}
+
+static int select_least_connections (SocksBalancer *o, btime_t now)
+{
+    // start at the round-robin position so that ties are spread out
+    int best = -1;
+    for (int i = 0; i < o->num_servers; i++) {
+        int index = (o->next + i) % o->num_servers;
+        if (is_ejected(o, index, now)) {
+            continue;
+        }
+        if (best < 0 || o->servers[index].active < o->servers[best].active) {
+            best = index;
+        }
+    }
+
+    return best;
+}
+
+static int select_latency (SocksBalancer *o, btime_t now)
+{
+    // servers without a sample yet score zero, so that they get one
+    int best = -1;
+    btime_t best_score = 0;
+    for (int i = 0; i < o->num_servers; i++) {
+        int index = (o->next + i) % o->num_servers;
+        if (is_ejected(o, index, now)) {
+            continue;
+        }
+        struct SocksBalancer_server *server = &o->servers[index];
+        btime_t score = (server->latency < 0 ? 0 : server->latency * (server->active + 1));
+        if (best < 0 || score < best_score) {
+            best = index;
+            best_score = score;
+        }
+    }
+
+    return best;
+}
+
+static int select_least_ejected (SocksBalancer *o)
+{
+    int best = 0;
+    for (int i = 1; i < o->num_servers; i++) {
+        if (o->servers[i].ejected_until < o->servers[best].ejected_until) {
+            best = i;
+        }
+    }
+
+    return best;
+}
+
+int SocksBalancer_ParsePolicy (const char *str, int *out_policy)
+{
+    if (!strcmp(str, "round-robin")) {
+        *out_policy = SOCKSBALANCER_POLICY_ROUND_ROBIN;
+    }
+    else if (!strcmp(str, "least-connections")) {
+        *out_policy = SOCKSBALANCER_POLICY_LEAST_CONNECTIONS;
+    }
+    else if (!strcmp(str, "latency")) {
+        *out_policy = SOCKSBALANCER_POLICY_LATENCY;
+    }
+    else {
+        return 0;
+    }
+
+    return 1;
+}
+
+void SocksBalancer_Init (SocksBalancer *o, int policy, int max_failures, btime_t eject_time,
+                         const BAddr *addrs, int num_addrs)
+{
+    ASSERT(policy == SOCKSBALANCER_POLICY_ROUND_ROBIN ||
+           policy == SOCKSBALANCER_POLICY_LEAST_CONNECTIONS ||
+           policy == SOCKSBALANCER_POLICY_LATENCY)
+    ASSERT(max_failures > 0)
+
+    o->policy = policy;
+    o->max_failures = max_failures;
+    o->eject_time = eject_time;
+    o->generation = 0;
+
+    DebugObject_Init(&o->d_obj);
+
+    SocksBalancer_SetServers(o, addrs, num_addrs);
+}
+
+void SocksBalancer_Free (SocksBalancer *o)
+{
+    DebugObject_Free(&o->d_obj);
+}
+
+void SocksBalancer_SetServers (SocksBalancer *o, const BAddr *addrs, int num_addrs)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(num_addrs > 0)
+    ASSERT(num_addrs <= SOCKSBALANCER_MAX_SERVERS)
+
+    for (int i = 0; i < num_addrs; i++) {
+        struct SocksBalancer_server *server = &o->servers[i];
+        server->addr = addrs[i];
+        server->active = 0;
+        server->latency = -1;
+        server->failures = 0;
+        server->ejected_until = 0;
+    }
+    o->num_servers = num_addrs;
+    o->next = 0;
+    o->generation++;
+}
+
+int SocksBalancer_Select (SocksBalancer *o, unsigned int *out_generation)
+{
+    DebugObject_Access(&o->d_obj);
+
+    btime_t now = btime_gettime();
+
+    int index;
+    switch (o->policy) {
+        case SOCKSBALANCER_POLICY_ROUND_ROBIN:
+            index = select_round_robin(o, now);
+            break;
+        case SOCKSBALANCER_POLICY_LEAST_CONNECTIONS:
+            index = select_least_connections(o, now);
+            break;
+        case SOCKSBALANCER_POLICY_LATENCY:
+            index = select_latency(o, now);
+            break;
+        default:
+            ASSERT(0);
+            index = -1;
+    }
+
+    if (index < 0) {
+        index = select_least_ejected(o);
+    }
+
+    o->next = (index + 1) % o->num_servers;
+    o->servers[index].active++;
+
+    *out_generation = o->generation;
+    return index;
+}
+
+BAddr SocksBalancer_GetAddr (SocksBalancer *o, int index)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(index >= 0)
+    ASSERT(index < o->num_servers)
+
+    return o->servers[index].addr;
+}
+
+void SocksBalancer_ReportUp (SocksBalancer *o, unsigned int generation, int index, btime_t latency)
+{
+    DebugObject_Access(&o->d_obj);
+
+    if (generation != o->generation) {
+        return;
+    }
+    ASSERT(index >= 0)
+    ASSERT(index < o->num_servers)
+
+    struct SocksBalancer_server *server = &o->servers[index];
+
+    if (server->latency < 0) {
+        server->latency = latency;
+    } else {
+        server->latency += (latency - server->latency) / LATENCY_SAMPLE_WEIGHT;
+    }
+
+    server->failures = 0;
+    server->ejected_until = 0;
+}
+
+void SocksBalancer_ReportFailure (SocksBalancer *o, unsigned int generation, int index)
+{
+    DebugObject_Access(&o->d_obj);
+
+    if (generation != o->generation) {
+        return;
+    }
+    ASSERT(index >= 0)
+    ASSERT(index < o->num_servers)
+
+    struct SocksBalancer_server *server = &o->servers[index];
+
+    server->failures++;
+    if (server->failures >= o->max_failures) {
+        btime_t now = btime_gettime();
+        if (!is_ejected(o, index, now)) {
+            char addr_str[BADDR_MAX_PRINT_LEN];
+            BAddr_Print(&server->addr, addr_str);
+            BLog(BLOG_WARNING, "ejecting %s after %d failures", addr_str, server->failures);
+        }
+        server->ejected_until = now + o->eject_time;
+    }
+}
+
+void SocksBalancer_Release (SocksBalancer *o, unsigned int generation, int index)
+{
+    DebugObject_Access(&o->d_obj);
+
+    if (generation != o->generation) {
+        return;
+    }
+    ASSERT(index >= 0)
+    ASSERT(index < o->num_servers)
+    ASSERT(o->servers[index].active > 0)
+
+    o->servers[index].active--;
+}
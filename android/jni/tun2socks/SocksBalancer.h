@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Chooses which of several SOCKS servers a new TCP connection goes through.
+ *
+ * Servers are chosen round-robin, by the fewest active connections, or by
+ * the lowest moving average of the time taken to bring a connection up,
+ * weighted by the server's active connections so that the fastest server
+ * doesn't get every connection. A server whose connections fail a number of
+ * times in a row is ejected for a while; after that it is tried again, and
+ * one more failure ejects it again. If every server is ejected, the one
+ * whose ejection ends first is used anyway.
+ *
+ * Connections remember the generation of the server list they were made
+ * with, so that reports about connections to servers that have since been
+ * replaced are ignored.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_SOCKSBALANCER_H
+#define BADVPN_TUN2SOCKS_SOCKSBALANCER_H
+
+#include <misc/debug.h>
+#include <base/DebugObject.h>
+#include <system/BAddr.h>
+#include <system/BTime.h>
+
+#define SOCKSBALANCER_MAX_SERVERS 16
+
+#define SOCKSBALANCER_POLICY_ROUND_ROBIN 1
+#define SOCKSBALANCER_POLICY_LEAST_CONNECTIONS 2
+#define SOCKSBALANCER_POLICY_LATENCY 3
+
+struct SocksBalancer_server {
+    BAddr addr;
+    int active;
+    btime_t latency;
+    int failures;
+    btime_t ejected_until;
+};
+
+typedef struct {
+    int policy;
+    int max_failures;
+    btime_t eject_time;
+    struct SocksBalancer_server servers[SOCKSBALANCER_MAX_SERVERS];
+    int num_servers;
+    int next;
+    unsigned int generation;
+    DebugObject d_obj;
+} SocksBalancer;
+
+/**
+ * Parses a policy name: "round-robin", "least-connections" or "latency".
+ *
+ * @param str policy name
+ * @param out_policy receives the policy on success
+ * @return 1 on success, 0 on failure
+ */
+int SocksBalancer_ParsePolicy (const char *str, int *out_policy) WARN_UNUSED;
+
+/**
+ * Initializes the object.
+ *
+ * @param o the object
+ * @param policy one of the SOCKSBALANCER_POLICY_* values
+ * @param max_failures number of failures in a row after which a server is
+ *                     ejected. Must be >0.
+ * @param eject_time time for which a server is ejected, in milliseconds
+ * @param addrs server addresses
+ * @param num_addrs number of servers. Must be >0 and
+ *                  <=SOCKSBALANCER_MAX_SERVERS.
+ */
+void SocksBalancer_Init (SocksBalancer *o, int policy, int max_failures, btime_t eject_time,
+                         const BAddr *addrs, int num_addrs);
+
+/**
+ * Frees the object.
+ *
+ * @param o the object
+ */
+void SocksBalancer_Free (SocksBalancer *o);
+
+/**
+ * Replaces the servers, forgetting everything known about the old ones and
+ * starting a new generation.
+ *
+ * @param o the object
+ * @param addrs server addresses
+ * @param num_addrs number of servers. Must be >0 and
+ *                  <=SOCKSBALANCER_MAX_SERVERS.
+ */
+void SocksBalancer_SetServers (SocksBalancer *o, const BAddr *addrs, int num_addrs);
+
+/**
+ * Chooses a server for a new connection and counts the connection as active
+ * on it, until {@link SocksBalancer_Release}.
+ *
+ * @param o the object
+ * @param out_generation receives the current generation
+ * @return index of the server
+ */
+int SocksBalancer_Select (SocksBalancer *o, unsigned int *out_generation);
+
+/**
+ * Returns the address of a server.
+ *
+ * @param o the object
+ * @param index index of the server
+ * @return server address
+ */
+BAddr SocksBalancer_GetAddr (SocksBalancer *o, int index);
+
+/**
+ * Reports that a connection came up.
+ *
+ * @param o the object
+ * @param generation generation returned by {@link SocksBalancer_Select}
+ * @param index index returned by {@link SocksBalancer_Select}
+ * @param latency time the connection took to come up, in milliseconds
+ */
+void SocksBalancer_ReportUp (SocksBalancer *o, unsigned int generation, int index, btime_t latency);
+
+/**
+ * Reports that a connection failed before coming up.
+ *
+ * @param o the object
+ * @param generation generation returned by {@link SocksBalancer_Select}
+ * @param index index returned by {@link SocksBalancer_Select}
+ */
+void SocksBalancer_ReportFailure (SocksBalancer *o, unsigned int generation, int index);
+
+/**
+ * Reports that a connection is gone.
+ *
+ * @param o the object
+ * @param generation generation returned by {@link SocksBalancer_Select}
+ * @param index index returned by {@link SocksBalancer_Select}
+ */
+void SocksBalancer_Release (SocksBalancer *o, unsigned int generation, int index);
+
+#endif
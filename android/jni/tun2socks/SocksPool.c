@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <misc/balloc.h>
+#include <misc/offset.h>
+#include <base/BLog.h>
+
+#include <tun2socks/SocksPool.h>
+
+#include <generated/blog_channel_SocksPool.h>
+
+static void fill (SocksPool *o);
+static void free_conn (struct SocksPool_conn *conn);
+static void update_idle_timer (SocksPool *o);
+static void idle_timer_handler (SocksPool *o);
+static void conn_handler (struct SocksPool_conn *conn, int event);
+static void free_all (SocksPool *o);
+
+static void fill (SocksPool *o)
+{
+    while (o->num_conns < o->size) {
+        struct SocksPool_conn *conn = (struct SocksPool_conn *)BAlloc(sizeof(*conn));
+        if (!conn) {
+            BLog(BLOG_ERROR, "BAlloc failed");
+            return;
+        }
+
+        conn->client = (BSocksClient *)BAlloc(sizeof(*conn->client));
+        if (!conn->client) {
+            BLog(BLOG_ERROR, "BAlloc failed");
+            BFree(conn);
+            return;
+        }
+
+        if (!BSocksClient_InitPreconnect(conn->client, o->socks_server_addr, o->auth_info, o->num_auth_info,
+                                         (BSocksClient_handler)conn_handler, conn, o->reactor)) {
+            BLog(BLOG_ERROR, "BSocksClient_InitPreconnect failed");
+            BFree(conn->client);
+            BFree(conn);
+            return;
+        }
+
+        conn->pool = o;
+        conn->ready = 0;
+        LinkedList1_Append(&o->connecting_list, &conn->list_node);
+        o->num_conns++;
+    }
+}
+
+static void free_conn (struct SocksPool_conn *conn)
+{
+    SocksPool *o = conn->pool;
+    ASSERT(o->num_conns > 0)
+
+    LinkedList1_Remove((conn->ready ? &o->ready_list : &o->connecting_list), &conn->list_node);
+    o->num_conns--;
+
+    BSocksClient_Free(conn->client);
+    BFree(conn->client);
+    BFree(conn);
+}
+
+static void update_idle_timer (SocksPool *o)
+{
+    LinkedList1Node *node = LinkedList1_GetFirst(&o->ready_list);
+    if (!node) {
+        BReactor_RemoveTimer(o->reactor, &o->idle_timer);
+        return;
+    }
+
+    // the oldest ready connection expires first; coarse, so that it expires
+    // along with the other idle timers
+    struct SocksPool_conn *conn = UPPER_OBJECT(node, struct SocksPool_conn, list_node);
+    BReactor_SetTimerAbsoluteCoarse(o->reactor, &o->idle_timer, conn->ready_time + o->max_idle);
+}
+
+static void idle_timer_handler (SocksPool *o)
+{
+    DebugObject_Access(&o->d_obj);
+
+    btime_t now = btime_gettime();
+
+    LinkedList1Node *node;
+    while ((node = LinkedList1_GetFirst(&o->ready_list))) {
+        struct SocksPool_conn *conn = UPPER_OBJECT(node, struct SocksPool_conn, list_node);
+        if (conn->ready_time + o->max_idle > now) {
+            break;
+        }
+        BLog(BLOG_DEBUG, "closing unused connection");
+        free_conn(conn);
+    }
+
+    update_idle_timer(o);
+}
+
+static void conn_handler (struct SocksPool_conn *conn, int event)
+{
+    SocksPool *o = conn->pool;
+    DebugObject_Access(&o->d_obj);
+
+    switch (event) {
+        case BSOCKSCLIENT_EVENT_READY: {
+            ASSERT(!conn->ready)
+
+            BLog(BLOG_DEBUG, "connection ready");
+
+            LinkedList1_Remove(&o->connecting_list, &conn->list_node);
+            LinkedList1_Append(&o->ready_list, &conn->list_node);
+            conn->ready = 1;
+            conn->ready_time = btime_gettime();
+
+            if (!BTimer_IsRunning(&o->idle_timer)) {
+                update_idle_timer(o);
+            }
+        } break;
+
+        default: {
+            // don't refill here, or an unreachable server would be retried
+            // in a loop; the next SocksPool_Take refills
+            BLog(BLOG_INFO, "connection %s", (conn->ready ? "closed by server" : "failed"));
+
+            int was_first = (conn->ready && !LinkedList1Node_Prev(&conn->list_node));
+            free_conn(conn);
+            if (was_first) {
+                update_idle_timer(o);
+            }
+        } break;
+    }
+}
+
+void SocksPool_Init (SocksPool *o, int size, btime_t max_idle,
+                     BAddr socks_server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                     BReactor *reactor)
+{
+    ASSERT(size > 0)
+    ASSERT(max_idle > 0)
+
+    o->socks_server_addr = socks_server_addr;
+    o->auth_info = auth_info;
+    o->num_auth_info = num_auth_info;
+    o->size = size;
+    o->max_idle = max_idle;
+    o->reactor = reactor;
+    LinkedList1_Init(&o->connecting_list);
+    LinkedList1_Init(&o->ready_list);
+    o->num_conns = 0;
+    BTimer_Init(&o->idle_timer, 0, (BTimer_handler)idle_timer_handler, o);
+
+    DebugObject_Init(&o->d_obj);
+
+    fill(o);
+}
+
+void free_all (SocksPool *o)
+{
+    LinkedList1Node *node;
+    while ((node = LinkedList1_GetFirst(&o->connecting_list))) {
+        free_conn(UPPER_OBJECT(node, struct SocksPool_conn, list_node));
+    }
+    while ((node = LinkedList1_GetFirst(&o->ready_list))) {
+        free_conn(UPPER_OBJECT(node, struct SocksPool_conn, list_node));
+    }
+    ASSERT(o->num_conns == 0)
+
+    BReactor_RemoveTimer(o->reactor, &o->idle_timer);
+}
+
+void SocksPool_Free (SocksPool *o)
+{
+    DebugObject_Free(&o->d_obj);
+
+    free_all(o);
+}
+
+BSocksClient * SocksPool_Take (SocksPool *o)
+{
+    DebugObject_Access(&o->d_obj);
+
+    BSocksClient *client = NULL;
+
+    // take the newest connection, which is the least likely to have been
+    // closed by the server
+    LinkedList1Node *node = LinkedList1_GetLast(&o->ready_list);
+    if (node) {
+        struct SocksPool_conn *conn = UPPER_OBJECT(node, struct SocksPool_conn, list_node);
+        client = conn->client;
+
+        LinkedList1_Remove(&o->ready_list, &conn->list_node);
+        o->num_conns--;
+        BFree(conn);
+
+        if (!LinkedList1_GetFirst(&o->ready_list)) {
+            BReactor_RemoveTimer(o->reactor, &o->idle_timer);
+        }
+    }
+
+    fill(o);
+
+    return client;
+}
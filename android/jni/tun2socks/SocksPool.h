@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Pool of SOCKS5 connections that have already connected to the server and
+ * authenticated, so that a new TCP flow only has to send its CONNECT request.
+ *
+ * The pool is filled up to its size when it is initialized, and refilled
+ * each time a connection is taken. Connections that stay unused for the
+ * maximum idle time, or that the server closes, are freed and not replaced
+ * until the pool is used again, so an idle tunnel doesn't hold connections
+ * open.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_SOCKSPOOL_H
+#define BADVPN_TUN2SOCKS_SOCKSPOOL_H
+
+#include <misc/debug.h>
+#include <structure/LinkedList1.h>
+#include <base/DebugObject.h>
+#include <system/BReactor.h>
+#include <system/BTime.h>
+#include <socksclient/BSocksClient.h>
+
+typedef struct {
+    BAddr socks_server_addr;
+    const struct BSocksClient_auth_info *auth_info;
+    size_t num_auth_info;
+    int size;
+    btime_t max_idle;
+    BReactor *reactor;
+    LinkedList1 connecting_list;
+    LinkedList1 ready_list;
+    int num_conns;
+    BTimer idle_timer;
+    DebugObject d_obj;
+} SocksPool;
+
+struct SocksPool_conn {
+    SocksPool *pool;
+    BSocksClient *client;
+    int ready;
+    btime_t ready_time;
+    LinkedList1Node list_node;
+};
+
+/**
+ * Initializes the pool and starts filling it.
+ *
+ * @param o the object
+ * @param size number of connections to keep ready. Must be >0.
+ * @param max_idle time after which an unused connection is freed, in
+ *                 milliseconds
+ * @param socks_server_addr SOCKS5 server address
+ * @param auth_info authentication methods offered to the server. Must stay
+ *                  valid and unchanged while the pool exists.
+ * @param num_auth_info number of authentication methods
+ * @param reactor reactor we live in
+ */
+void SocksPool_Init (SocksPool *o, int size, btime_t max_idle,
+                     BAddr socks_server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                     BReactor *reactor);
+
+/**
+ * Frees the pool, closing all connections it holds. Connections that were
+ * taken are not affected.
+ *
+ * @param o the object
+ */
+void SocksPool_Free (SocksPool *o);
+
+/**
+ * Takes a ready connection out of the pool and starts refilling it.
+ * The connection is in the state following BSOCKSCLIENT_EVENT_READY; the
+ * caller must call {@link BSocksClient_SetDestination} on it, and becomes
+ * responsible for freeing it with {@link BSocksClient_Free} and BFree.
+ *
+ * @param o the object
+ * @return a connection allocated with BAlloc, or NULL if none is ready
+ */
+BSocksClient * SocksPool_Take (SocksPool *o);
+
+#endif
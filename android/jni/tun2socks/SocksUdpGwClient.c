@@ -226,3 +226,24 @@ void SocksUdpGwClient_SubmitPacket (SocksUdpGwClient *o, BAddr local_addr, BAddr
     UdpGwClient_SubmitPacket(&o->udpgw_client, local_addr, remote_addr, is_dns, data, data_len);
 }
 
+
+void SocksUdpGwClient_SetServer (SocksUdpGwClient *o, BAddr socks_server_addr)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(!BAddr_IsInvalid(&socks_server_addr))
+    
+    BLog(BLOG_INFO, "switching SOCKS server");
+    
+    o->socks_server_addr = socks_server_addr;
+    
+    // all flows share one connection, so move it to the new server now;
+    // datagrams in flight on the old connection are lost
+    if (o->have_socks) {
+        free_socks(o);
+    } else {
+        BReactor_RemoveTimer(o->reactor, &o->reconnect_timer);
+    }
+    
+    // try connecting
+    try_connect(o);
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <errno.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <netinet/in.h>
+
+#include <misc/balloc.h>
+#include <misc/byteorder.h>
+#include <misc/compare.h>
+#include <misc/nonblocking.h>
+#include <misc/offset.h>
+#include <misc/socks_proto.h>
+#include <base/BLog.h>
+
+#include <tun2socks/SocksUdpRelay.h>
+
+#include <generated/blog_channel_SocksUdpRelay.h>
+
+// largest SOCKS UDP header we produce or accept
+#define MAX_HEADER_LEN (sizeof(struct socks_udp_datagram_header) + sizeof(struct socks_addr_ipv6))
+
+static int addr_comparator (void *unused, BAddr *v1, BAddr *v2);
+static int addr_is_zero (BAddr *addr);
+static socklen_t addr_to_sys (BAddr *addr, struct sockaddr_storage *out);
+static struct SocksUdpRelay_flow * find_flow (SocksUdpRelay *o, BAddr local_addr);
+static struct SocksUdpRelay_flow * new_flow (SocksUdpRelay *o, BAddr local_addr);
+static void free_flow (struct SocksUdpRelay_flow *flow);
+static void touch_flow (struct SocksUdpRelay_flow *flow);
+static void update_idle_timer (SocksUdpRelay *o);
+static void idle_timer_handler (SocksUdpRelay *o);
+static int init_socket (struct SocksUdpRelay_flow *flow);
+static void send_datagram (struct SocksUdpRelay_flow *flow, BAddr remote_addr, const uint8_t *data, int data_len);
+static void socks_handler (struct SocksUdpRelay_flow *flow, int event);
+static void socks_recv_handler_done (struct SocksUdpRelay_flow *flow, int data_len);
+static void fd_handler (struct SocksUdpRelay_flow *flow, int event);
+
+static int addr_comparator (void *unused, BAddr *v1, BAddr *v2)
+{
+    return BAddr_CompareOrder(v1, v2);
+}
+
+static int addr_is_zero (BAddr *addr)
+{
+    switch (addr->type) {
+        case BADDR_TYPE_IPV4:
+            return addr->ipv4.ip == 0;
+        case BADDR_TYPE_IPV6: {
+            for (int i = 0; i < sizeof(addr->ipv6.ip); i++) {
+                if (addr->ipv6.ip[i] != 0) {
+                    return 0;
+                }
+            }
+            return 1;
+        }
+        default:
+            return 0;
+    }
+}
+
+static socklen_t addr_to_sys (BAddr *addr, struct sockaddr_storage *out)
+{
+    memset(out, 0, sizeof(*out));
+
+    switch (addr->type) {
+        case BADDR_TYPE_IPV4: {
+            struct sockaddr_in *sa = (struct sockaddr_in *)out;
+            sa->sin_family = AF_INET;
+            // BAddr is already in network order
+            sa->sin_addr.s_addr = addr->ipv4.ip;
+            sa->sin_port = addr->ipv4.port;
+            return sizeof(*sa);
+        }
+        case BADDR_TYPE_IPV6: {
+            struct sockaddr_in6 *sa = (struct sockaddr_in6 *)out;
+            sa->sin6_family = AF_INET6;
+            memcpy(sa->sin6_addr.s6_addr, addr->ipv6.ip, sizeof(addr->ipv6.ip));
+            sa->sin6_port = addr->ipv6.port;
+            return sizeof(*sa);
+        }
+        default:
+            return 0;
+    }
+}
+
+static struct SocksUdpRelay_flow * find_flow (SocksUdpRelay *o, BAddr local_addr)
+{
+    BAVLNode *tree_node = BAVL_LookupExact(&o->flows_tree, &local_addr);
+    if (!tree_node) {
+        return NULL;
+    }
+
+    return UPPER_OBJECT(tree_node, struct SocksUdpRelay_flow, flows_tree_node);
+}
+
+static struct SocksUdpRelay_flow * new_flow (SocksUdpRelay *o, BAddr local_addr)
+{
+    ASSERT(o->num_flows <= o->max_flows)
+
+    // make room by closing the least recently used association
+    if (o->num_flows == o->max_flows) {
+        LinkedList1Node *node = LinkedList1_GetFirst(&o->flows_list);
+        BLog(BLOG_INFO, "too many associations, closing the least recently used");
+        free_flow(UPPER_OBJECT(node, struct SocksUdpRelay_flow, flows_list_node));
+    }
+
+    struct SocksUdpRelay_flow *flow = (struct SocksUdpRelay_flow *)BAlloc(sizeof(*flow));
+    if (!flow) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        goto fail0;
+    }
+
+    flow->relay = o;
+    flow->local_addr = local_addr;
+    flow->socks_up = 0;
+    flow->num_queued = 0;
+
+    if (!BSocksClient_InitUdp(&flow->socks, o->socks_server_addr, o->auth_info, o->num_auth_info,
+                              (BSocksClient_handler)socks_handler, flow, o->reactor)) {
+        BLog(BLOG_ERROR, "BSocksClient_InitUdp failed");
+        goto fail1;
+    }
+
+    ASSERT_EXECUTE(BAVL_Insert(&o->flows_tree, &flow->flows_tree_node, NULL))
+    LinkedList1_Append(&o->flows_list, &flow->flows_list_node);
+    o->num_flows++;
+
+    flow->last_used = btime_gettime();
+    if (!BTimer_IsRunning(&o->idle_timer)) {
+        update_idle_timer(o);
+    }
+
+    return flow;
+
+fail1:
+    BFree(flow);
+fail0:
+    return NULL;
+}
+
+static void free_flow (struct SocksUdpRelay_flow *flow)
+{
+    SocksUdpRelay *o = flow->relay;
+
+    if (flow->socks_up) {
+        BReactor_RemoveFileDescriptor(o->reactor, &flow->bfd);
+        close(flow->sockfd);
+    }
+
+    BSocksClient_Free(&flow->socks);
+
+    for (int i = 0; i < flow->num_queued; i++) {
+        BFree(flow->queued[i].data);
+    }
+
+    BAVL_Remove(&o->flows_tree, &flow->flows_tree_node);
+    LinkedList1_Remove(&o->flows_list, &flow->flows_list_node);
+    o->num_flows--;
+
+    BFree(flow);
+}
+
+static void touch_flow (struct SocksUdpRelay_flow *flow)
+{
+    SocksUdpRelay *o = flow->relay;
+
+    // keep the list ordered by last use; the idle timer catches up by itself
+    flow->last_used = btime_gettime();
+    LinkedList1_Remove(&o->flows_list, &flow->flows_list_node);
+    LinkedList1_Append(&o->flows_list, &flow->flows_list_node);
+}
+
+static void update_idle_timer (SocksUdpRelay *o)
+{
+    LinkedList1Node *node = LinkedList1_GetFirst(&o->flows_list);
+    if (!node) {
+        BReactor_RemoveTimer(o->reactor, &o->idle_timer);
+        return;
+    }
+
+    struct SocksUdpRelay_flow *flow = UPPER_OBJECT(node, struct SocksUdpRelay_flow, flows_list_node);
+    BReactor_SetTimerAbsoluteCoarse(o->reactor, &o->idle_timer, flow->last_used + o->idle_timeout);
+}
+
+static void idle_timer_handler (SocksUdpRelay *o)
+{
+    DebugObject_Access(&o->d_obj);
+
+    btime_t now = btime_gettime();
+
+    LinkedList1Node *node;
+    while ((node = LinkedList1_GetFirst(&o->flows_list))) {
+        struct SocksUdpRelay_flow *flow = UPPER_OBJECT(node, struct SocksUdpRelay_flow, flows_list_node);
+        if (flow->last_used + o->idle_timeout > now) {
+            break;
+        }
+        BLog(BLOG_DEBUG, "closing idle association");
+        free_flow(flow);
+    }
+
+    update_idle_timer(o);
+}
+
+static int init_socket (struct SocksUdpRelay_flow *flow)
+{
+    SocksUdpRelay *o = flow->relay;
+
+    // an unspecified address means the server's own address
+    BAddr relay_addr = BSocksClient_GetBindAddr(&flow->socks);
+    if (addr_is_zero(&relay_addr) && relay_addr.type == o->socks_server_addr.type) {
+        uint16_t port = BAddr_GetPort(&relay_addr);
+        relay_addr = o->socks_server_addr;
+        BAddr_SetPort(&relay_addr, port);
+    }
+
+    struct sockaddr_storage sys_addr;
+    socklen_t sys_addr_len = addr_to_sys(&relay_addr, &sys_addr);
+    if (sys_addr_len == 0) {
+        BLog(BLOG_ERROR, "server replied with an unsupported relay address");
+        goto fail0;
+    }
+
+    int sockfd = socket(sys_addr.ss_family, SOCK_DGRAM, 0);
+    if (sockfd < 0) {
+        BLog(BLOG_ERROR, "socket failed");
+        goto fail0;
+    }
+
+    if (!badvpn_set_nonblocking(sockfd)) {
+        BLog(BLOG_ERROR, "badvpn_set_nonblocking failed");
+        goto fail1;
+    }
+
+    if (connect(sockfd, (struct sockaddr *)&sys_addr, sys_addr_len) < 0) {
+        BLog(BLOG_ERROR, "connect failed");
+        goto fail1;
+    }
+
+    BFileDescriptor_Init(&flow->bfd, sockfd, (BFileDescriptor_handler)fd_handler, flow);
+    if (!BReactor_AddFileDescriptor(o->reactor, &flow->bfd)) {
+        BLog(BLOG_ERROR, "BReactor_AddFileDescriptor failed");
+        goto fail1;
+    }
+    BReactor_SetFileDescriptorEvents(o->reactor, &flow->bfd, BREACTOR_READ);
+
+    flow->sockfd = sockfd;
+    return 1;
+
+fail1:
+    close(sockfd);
+fail0:
+    return 0;
+}
+
+static void send_datagram (struct SocksUdpRelay_flow *flow, BAddr remote_addr, const uint8_t *data, int data_len)
+{
+    SocksUdpRelay *o = flow->relay;
+    ASSERT(flow->socks_up)
+    ASSERT(data_len >= 0)
+    ASSERT(data_len <= o->udp_mtu)
+
+    struct socks_udp_datagram_header header;
+    header.rsv = 0;
+    header.frag = 0;
+
+    int header_len = sizeof(header);
+    switch (remote_addr.type) {
+        case BADDR_TYPE_IPV4: {
+            header.atyp = hton8(SOCKS_ATYP_IPV4);
+            struct socks_addr_ipv4 addr;
+            addr.addr = remote_addr.ipv4.ip;
+            addr.port = remote_addr.ipv4.port;
+            memcpy(o->buf + header_len, &addr, sizeof(addr));
+            header_len += sizeof(addr);
+        } break;
+        case BADDR_TYPE_IPV6: {
+            header.atyp = hton8(SOCKS_ATYP_IPV6);
+            struct socks_addr_ipv6 addr;
+            memcpy(addr.addr, remote_addr.ipv6.ip, sizeof(addr.addr));
+            addr.port = remote_addr.ipv6.port;
+            memcpy(o->buf + header_len, &addr, sizeof(addr));
+            header_len += sizeof(addr);
+        } break;
+        default:
+            ASSERT(0);
+    }
+    memcpy(o->buf, &header, sizeof(header));
+    memcpy(o->buf + header_len, data, data_len);
+
+    if (send(flow->sockfd, o->buf, header_len + data_len, 0) < 0) {
+        BLog(BLOG_WARNING, "send failed, errno %d", errno);
+    }
+}
+
+static void socks_handler (struct SocksUdpRelay_flow *flow, int event)
+{
+    SocksUdpRelay *o = flow->relay;
+    DebugObject_Access(&o->d_obj);
+
+    switch (event) {
+        case BSOCKSCLIENT_EVENT_UP: {
+            ASSERT(!flow->socks_up)
+
+            BLog(BLOG_DEBUG, "association up");
+
+            if (!init_socket(flow)) {
+                free_flow(flow);
+                return;
+            }
+            flow->socks_up = 1;
+
+            // watch the control connection; the association ends when it closes
+            StreamRecvInterface *recv_if = BSocksClient_GetRecvInterface(&flow->socks);
+            StreamRecvInterface_Receiver_Init(recv_if, (StreamRecvInterface_handler_done)socks_recv_handler_done, flow);
+            StreamRecvInterface_Receiver_Recv(recv_if, &flow->socks_recv_byte, 1);
+
+            // send what was queued while setting up
+            for (int i = 0; i < flow->num_queued; i++) {
+                struct SocksUdpRelay_queued *q = &flow->queued[i];
+                send_datagram(flow, q->remote_addr, q->data, q->data_len);
+                BFree(q->data);
+            }
+            flow->num_queued = 0;
+        } break;
+
+        default: {
+            BLog(BLOG_INFO, "association closed");
+            free_flow(flow);
+        } break;
+    }
+}
+
+static void socks_recv_handler_done (struct SocksUdpRelay_flow *flow, int data_len)
+{
+    DebugObject_Access(&flow->relay->d_obj);
+    ASSERT(flow->socks_up)
+
+    // nothing is expected on the control connection; ignore it
+    StreamRecvInterface_Receiver_Recv(BSocksClient_GetRecvInterface(&flow->socks), &flow->socks_recv_byte, 1);
+}
+
+static void fd_handler (struct SocksUdpRelay_flow *flow, int event)
+{
+    SocksUdpRelay *o = flow->relay;
+    DebugObject_Access(&o->d_obj);
+    ASSERT(flow->socks_up)
+
+    int len = recv(flow->sockfd, o->buf, o->buf_len, 0);
+    if (len < 0) {
+        if (errno != EAGAIN && errno != EWOULDBLOCK) {
+            BLog(BLOG_WARNING, "recv failed, errno %d", errno);
+        }
+        return;
+    }
+
+    struct socks_udp_datagram_header header;
+    if (len < sizeof(header)) {
+        BLog(BLOG_INFO, "datagram is too short");
+        return;
+    }
+    memcpy(&header, o->buf, sizeof(header));
+
+    if (header.frag != 0) {
+        BLog(BLOG_INFO, "dropping fragmented datagram");
+        return;
+    }
+
+    BAddr remote_addr;
+    int header_len = sizeof(header);
+    switch (ntoh8(header.atyp)) {
+        case SOCKS_ATYP_IPV4: {
+            struct socks_addr_ipv4 addr;
+            if (len < header_len + sizeof(addr)) {
+                BLog(BLOG_INFO, "datagram is too short");
+                return;
+            }
+            memcpy(&addr, o->buf + header_len, sizeof(addr));
+            BAddr_InitIPv4(&remote_addr, addr.addr, addr.port);
+            header_len += sizeof(addr);
+        } break;
+        case SOCKS_ATYP_IPV6: {
+            struct socks_addr_ipv6 addr;
+            if (len < header_len + sizeof(addr)) {
+                BLog(BLOG_INFO, "datagram is too short");
+                return;
+            }
+            memcpy(&addr, o->buf + header_len, sizeof(addr));
+            BAddr_InitIPv6(&remote_addr, addr.addr, addr.port);
+            header_len += sizeof(addr);
+        } break;
+        default:
+            BLog(BLOG_INFO, "datagram has unsupported address type");
+            return;
+    }
+
+    // the device can only receive from an address of its own family
+    if (remote_addr.type != flow->local_addr.type) {
+        BLog(BLOG_INFO, "datagram from a different address family");
+        return;
+    }
+
+    if (len - header_len > o->udp_mtu) {
+        BLog(BLOG_INFO, "datagram is too large");
+        return;
+    }
+
+    touch_flow(flow);
+
+    o->handler_received(o->user, flow->local_addr, remote_addr, o->buf + header_len, len - header_len);
+}
+
+int SocksUdpRelay_Init (SocksUdpRelay *o, int udp_mtu, int max_flows, btime_t idle_timeout,
+                        BAddr socks_server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                        BReactor *reactor, void *user, SocksUdpRelay_handler_received handler_received)
+{
+    ASSERT(udp_mtu >= 0)
+    ASSERT(max_flows > 0)
+    ASSERT(idle_timeout > 0)
+
+    o->udp_mtu = udp_mtu;
+    o->max_flows = max_flows;
+    o->idle_timeout = idle_timeout;
+    o->socks_server_addr = socks_server_addr;
+    o->auth_info = auth_info;
+    o->num_auth_info = num_auth_info;
+    o->reactor = reactor;
+    o->user = user;
+    o->handler_received = handler_received;
+
+    o->buf_len = MAX_HEADER_LEN + udp_mtu;
+    if (!(o->buf = (uint8_t *)BAlloc(o->buf_len))) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        return 0;
+    }
+
+    BAVL_Init(&o->flows_tree, OFFSET_DIFF(struct SocksUdpRelay_flow, local_addr, flows_tree_node), (BAVL_comparator)addr_comparator, NULL);
+    LinkedList1_Init(&o->flows_list);
+    o->num_flows = 0;
+
+    BTimer_Init(&o->idle_timer, 0, (BTimer_handler)idle_timer_handler, o);
+
+    DebugObject_Init(&o->d_obj);
+    return 1;
+}
+
+void SocksUdpRelay_Free (SocksUdpRelay *o)
+{
+    DebugObject_Free(&o->d_obj);
+
+    LinkedList1Node *node;
+    while ((node = LinkedList1_GetFirst(&o->flows_list))) {
+        free_flow(UPPER_OBJECT(node, struct SocksUdpRelay_flow, flows_list_node));
+    }
+
+    BReactor_RemoveTimer(o->reactor, &o->idle_timer);
+    BFree(o->buf);
+}
+
+void SocksUdpRelay_SubmitPacket (SocksUdpRelay *o, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(local_addr.type == BADDR_TYPE_IPV4 || local_addr.type == BADDR_TYPE_IPV6)
+    ASSERT(local_addr.type == remote_addr.type)
+    ASSERT(data_len >= 0)
+    ASSERT(data_len <= o->udp_mtu)
+
+    struct SocksUdpRelay_flow *flow = find_flow(o, local_addr);
+    if (flow) {
+        touch_flow(flow);
+    } else if (!(flow = new_flow(o, local_addr))) {
+        return;
+    }
+
+    if (flow->socks_up) {
+        send_datagram(flow, remote_addr, data, data_len);
+        return;
+    }
+
+    if (flow->num_queued == SOCKSUDPRELAY_MAX_QUEUED) {
+        BLog(BLOG_DEBUG, "association not up, dropping datagram");
+        return;
+    }
+
+    struct SocksUdpRelay_queued *q = &flow->queued[flow->num_queued];
+    if (!(q->data = (uint8_t *)BAlloc(data_len > 0 ? data_len : 1))) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        return;
+    }
+    memcpy(q->data, data, data_len);
+    q->remote_addr = remote_addr;
+    q->data_len = data_len;
+    flow->num_queued++;
+}
+
+void SocksUdpRelay_SetServer (SocksUdpRelay *o, BAddr socks_server_addr)
+{
+    DebugObject_Access(&o->d_obj);
+
+    o->socks_server_addr = socks_server_addr;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Forwards UDP datagrams through a SOCKS5 server using UDP ASSOCIATE.
+ *
+ * Each local address (a socket on the device) gets its own association,
+ * which acts as a NAT entry: datagrams from that local address to any remote
+ * address go out through the association, and datagrams coming back through
+ * it are delivered to that local address. Datagrams submitted while the
+ * association is being set up are queued, up to a small limit.
+ *
+ * Associations that see no traffic for the idle timeout are closed. When the
+ * maximum number of associations is reached, the least recently used one is
+ * closed to make room.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_SOCKSUDPRELAY_H
+#define BADVPN_TUN2SOCKS_SOCKSUDPRELAY_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+#include <structure/BAVL.h>
+#include <structure/LinkedList1.h>
+#include <base/DebugObject.h>
+#include <system/BReactor.h>
+#include <system/BTime.h>
+#include <socksclient/BSocksClient.h>
+
+// number of datagrams queued per association while it is being set up
+#define SOCKSUDPRELAY_MAX_QUEUED 4
+
+typedef void (*SocksUdpRelay_handler_received) (void *user, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len);
+
+typedef struct {
+    int udp_mtu;
+    int max_flows;
+    btime_t idle_timeout;
+    BAddr socks_server_addr;
+    const struct BSocksClient_auth_info *auth_info;
+    size_t num_auth_info;
+    BReactor *reactor;
+    void *user;
+    SocksUdpRelay_handler_received handler_received;
+    BAVL flows_tree;
+    LinkedList1 flows_list;
+    int num_flows;
+    BTimer idle_timer;
+    uint8_t *buf;
+    int buf_len;
+    DebugObject d_obj;
+} SocksUdpRelay;
+
+struct SocksUdpRelay_queued {
+    BAddr remote_addr;
+    uint8_t *data;
+    int data_len;
+};
+
+struct SocksUdpRelay_flow {
+    SocksUdpRelay *relay;
+    BAddr local_addr;
+    BSocksClient socks;
+    int socks_up;
+    int sockfd;
+    BFileDescriptor bfd;
+    uint8_t socks_recv_byte;
+    btime_t last_used;
+    BAVLNode flows_tree_node;
+    LinkedList1Node flows_list_node;
+    struct SocksUdpRelay_queued queued[SOCKSUDPRELAY_MAX_QUEUED];
+    int num_queued;
+};
+
+/**
+ * Initializes the relay.
+ *
+ * @param o the object
+ * @param udp_mtu maximum size of a datagram payload
+ * @param max_flows maximum number of associations. Must be >0.
+ * @param idle_timeout time after which an association without traffic is
+ *                     closed, in milliseconds
+ * @param socks_server_addr SOCKS5 server address
+ * @param auth_info authentication methods offered to the server
+ * @param num_auth_info number of authentication methods
+ * @param reactor reactor we live in
+ * @param user value passed to handler
+ * @param handler_received handler called for datagrams received from remote
+ *                         addresses. Must not free the relay.
+ * @return 1 on success, 0 on failure
+ */
+int SocksUdpRelay_Init (SocksUdpRelay *o, int udp_mtu, int max_flows, btime_t idle_timeout,
+                        BAddr socks_server_addr, const struct BSocksClient_auth_info *auth_info, size_t num_auth_info,
+                        BReactor *reactor, void *user, SocksUdpRelay_handler_received handler_received) WARN_UNUSED;
+
+/**
+ * Frees the relay, closing all associations.
+ *
+ * @param o the object
+ */
+void SocksUdpRelay_Free (SocksUdpRelay *o);
+
+/**
+ * Sends a datagram, setting up an association for the local address if
+ * there is none.
+ *
+ * @param o the object
+ * @param local_addr source address of the datagram
+ * @param remote_addr destination address of the datagram
+ * @param data payload
+ * @param data_len payload length. Must be <=udp_mtu.
+ */
+void SocksUdpRelay_SubmitPacket (SocksUdpRelay *o, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len);
+
+/**
+ * Changes the SOCKS server used for new associations. Existing associations
+ * stay with the server they were made with until they are closed.
+ *
+ * @param o the object
+ * @param socks_server_addr SOCKS5 server address
+ */
+void SocksUdpRelay_SetServer (SocksUdpRelay *o, BAddr socks_server_addr);
+
+#endif
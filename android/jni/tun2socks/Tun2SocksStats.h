@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) uProxy
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Tunnel statistics counters.
+ *
+ * The counters live in a single array, which Java copies in one JNI call per
+ * snapshot rather than one per field. They are only written from the reactor
+ * thread. 64-bit plain loads and stores are not single-copy atomic on 32-bit
+ * ARM, so counters are written with relaxed atomic stores and must be read
+ * with Tun2SocksStats_Get, which makes readers on other threads see whole
+ * values. They may be slightly stale, which is acceptable for statistics.
+ *
+ * "Up" is traffic from the device towards the proxy, "down" is traffic from
+ * the proxy towards the device. Byte counts include IP and UDP headers.
+ *
+ * Keep the order of the indices in sync with Tun2SocksStats.java.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_TUN2SOCKSSTATS_H
+#define BADVPN_TUN2SOCKS_TUN2SOCKSSTATS_H
+
+#include <stdint.h>
+
+enum {
+    // packets handled by the lwIP TCP stack
+    TUN2SOCKS_STAT_TCP_PACKETS_UP,
+    TUN2SOCKS_STAT_TCP_BYTES_UP,
+    TUN2SOCKS_STAT_TCP_PACKETS_DOWN,
+    TUN2SOCKS_STAT_TCP_BYTES_DOWN,
+    // non-DNS UDP packets
+    TUN2SOCKS_STAT_UDP_PACKETS_UP,
+    TUN2SOCKS_STAT_UDP_BYTES_UP,
+    TUN2SOCKS_STAT_UDP_PACKETS_DOWN,
+    TUN2SOCKS_STAT_UDP_BYTES_DOWN,
+    // UDP packets to or from port 53
+    TUN2SOCKS_STAT_DNS_PACKETS_UP,
+    TUN2SOCKS_STAT_DNS_BYTES_UP,
+    TUN2SOCKS_STAT_DNS_PACKETS_DOWN,
+    TUN2SOCKS_STAT_DNS_BYTES_DOWN,
+    // TCP clients currently allocated, and the maximum seen
+    TUN2SOCKS_STAT_TCP_CLIENTS_ACTIVE,
+    TUN2SOCKS_STAT_TCP_CLIENTS_PEAK,
+    // SOCKS connections that failed before the CONNECT succeeded
+    TUN2SOCKS_STAT_SOCKS_CONNECT_FAILURES,
+    // inbound packets dropped because no pbuf was available
+    TUN2SOCKS_STAT_PBUF_ALLOC_FAILURES,
+    // transparent DNS queries answered from, or missing in, the DNS cache
+    TUN2SOCKS_STAT_DNS_CACHE_HITS,
+    TUN2SOCKS_STAT_DNS_CACHE_MISSES,
+    // TCP connections that did, or did not, get a ready SOCKS connection from the pool
+    TUN2SOCKS_STAT_SOCKS_POOL_HITS,
+    TUN2SOCKS_STAT_SOCKS_POOL_MISSES,
+    // times the device was found readable, and packets read from it
+    TUN2SOCKS_STAT_DEVICE_READ_WAKEUPS,
+    TUN2SOCKS_STAT_DEVICE_PACKETS_READ,
+    // TCP packets from the device copied because lwIP held all device buffers
+    TUN2SOCKS_STAT_DEVICE_PACKETS_COPIED,
+    // memory held by TCP client buffers
+    TUN2SOCKS_STAT_TCP_BUFFER_BYTES,
+    // times data from the device was refused, or a SOCKS read was made into the small
+    // buffer, because the TCP buffer memory was used up
+    TUN2SOCKS_STAT_TCP_BUFFER_REFUSALS,
+    TUN2SOCKS_STAT_TCP_BUFFER_SHORT_READS,
+    // new TCP connections dropped because lwIP had no PCB for them
+    TUN2SOCKS_STAT_TCP_CONNECTIONS_REFUSED,
+    // TCP clients closed to make room for a new connection, or after the idle timeout
+    TUN2SOCKS_STAT_TCP_CLIENTS_EVICTED,
+    TUN2SOCKS_STAT_TCP_CLIENTS_REAPED,
+    // DNS queries answered with fake addresses, and TCP connections refused because
+    // their fake address had been given to another name
+    TUN2SOCKS_STAT_FAKE_DNS_ANSWERS,
+    TUN2SOCKS_STAT_FAKE_DNS_MISSES,
+    // times the reactor woke up to handle events or timers
+    TUN2SOCKS_STAT_REACTOR_WAKEUPS,
+    // the last shutdown, which the next run keeps: milliseconds until the
+    // reactor saw the request, spent draining the TCP clients, and spent
+    // tearing down, and the TCP clients that finished during the drain or
+    // were reset
+    TUN2SOCKS_STAT_SHUTDOWN_REQUEST_MS,
+    TUN2SOCKS_STAT_SHUTDOWN_DRAIN_MS,
+    TUN2SOCKS_STAT_SHUTDOWN_TEARDOWN_MS,
+    TUN2SOCKS_STAT_SHUTDOWN_FLOWS_FINISHED,
+    TUN2SOCKS_STAT_SHUTDOWN_FLOWS_RESET,
+    TUN2SOCKS_NUM_STATS
+};
+
+extern int64_t tun2socks_stats[TUN2SOCKS_NUM_STATS];
+
+static void Tun2SocksStats_Reset (void);
+static void Tun2SocksStats_Inc (int stat);
+static void Tun2SocksStats_Add (int stat, int64_t value);
+static void Tun2SocksStats_Set (int stat, int64_t value);
+static void Tun2SocksStats_SetMax (int stat, int64_t value);
+static int64_t Tun2SocksStats_Get (int stat);
+
+void Tun2SocksStats_Reset (void)
+{
+    // the shutdown counters describe the previous run
+    for (int i = 0; i < TUN2SOCKS_STAT_SHUTDOWN_REQUEST_MS; i++) {
+        Tun2SocksStats_Set(i, 0);
+    }
+}
+
+void Tun2SocksStats_Inc (int stat)
+{
+    Tun2SocksStats_Add(stat, 1);
+}
+
+void Tun2SocksStats_Add (int stat, int64_t value)
+{
+    // only the writing thread changes the counter, so this needs no atomic
+    // read-modify-write
+    Tun2SocksStats_Set(stat, Tun2SocksStats_Get(stat) + value);
+}
+
+void Tun2SocksStats_Set (int stat, int64_t value)
+{
+    __atomic_store_n(&tun2socks_stats[stat], value, __ATOMIC_RELAXED);
+}
+
+void Tun2SocksStats_SetMax (int stat, int64_t value)
+{
+    if (value > Tun2SocksStats_Get(stat)) {
+        Tun2SocksStats_Set(stat, value);
+    }
+}
+
+int64_t Tun2SocksStats_Get (int stat)
+{
+    return __atomic_load_n(&tun2socks_stats[stat], __ATOMIC_RELAXED);
+}
+
+#endif
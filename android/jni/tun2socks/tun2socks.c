@@ -35,6 +35,9 @@
 #include <stddef.h>
 #include <string.h>
 #include <limits.h>
+#include <errno.h>
+#include <pthread.h>
+#include <time.h>
 
 // PSIPHON
 #include "jni.h"
@@ -54,6 +57,7 @@
 #include <misc/balloc.h>
 #include <misc/open_standard_streams.h>
 #include <misc/read_file.h>
+#include <misc/nonblocking.h>
 #include <misc/ipaddr6.h>
 #include <misc/concat_strings.h>
 #include <structure/LinkedList1.h>
@@ -62,16 +66,25 @@
 #include <system/BSignal.h>
 #include <system/BAddr.h>
 #include <system/BNetwork.h>
-#include <flow/SinglePacketBuffer.h>
 #include <socksclient/BSocksClient.h>
 #include <tuntap/BTap.h>
 #include <lwip/init.h>
+#include <lwip/memp.h>
 #include <lwip/tcp_impl.h>
 #include <lwip/netif.h>
 #include <lwip/tcp.h>
 #include <tun2socks/SocksUdpGwClient.h>
+#include <tun2socks/Tun2SocksStats.h>
+#include <tun2socks/DnsCache.h>
+#include <tun2socks/FakeDns.h>
+#include <tun2socks/DnsFlowTable.h>
+#include <tun2socks/DnsTcpClient.h>
+#include <tun2socks/SocksUdpRelay.h>
+#include <tun2socks/SocksPool.h>
+#include <tun2socks/SocksBalancer.h>
+#include <tun2socks/DevicePbufPool.h>
+#include <tun2socks/BufferPool.h>
 #include <sys/socket.h>
-#include <stringmap/BStringMap.h>
 
 #ifndef BADVPN_USE_WINAPI
 #include <base/BLog_syslog.h>
@@ -131,6 +144,26 @@ struct {
     // ==== UPROXY ====
     char *dns_resolver_addr;
     char *udp_relay_addr;
+    int dns_cache_size;
+    int fake_dns;
+    int fake_dns_size;
+    int dns_tcp;
+    int dns_tcp_connections;
+    int socks_udp;
+    int socks_udp_max_flows;
+    int socks_udp_idle_timeout;
+    int socks_pool_size;
+    int socks_pool_max_idle;
+    char *socks_balance;
+    int socks_pipelined;
+    int tun_read_batch;
+    int device_buffers;
+    int max_tcp_connections;
+    int tcp_buffer_memory;
+    int tcp_idle_timeout;
+    int tcp_wnd;
+    int tcp_snd_buf;
+    int socks_recv_buf_size;
     // ==== UPROXY ====
 } options;
 
@@ -139,19 +172,26 @@ struct tcp_client {
     dead_t dead;
     dead_t dead_client;
     LinkedList1Node list_node;
+    btime_t last_activity;
     BAddr local_addr;
     BAddr remote_addr;
     struct tcp_pcb *pcb;
     int client_closed;
-    uint8_t buf[TCP_WND];
+    uint8_t *buf;
     int buf_used;
     char *socks_username;
-    BSocksClient socks_client;
+    BSocksClient *socks_client;
+    int socks_server;
+    unsigned int socks_server_generation;
+    btime_t socks_start_time;
     int socks_up;
     int socks_closed;
     StreamPassInterface *socks_send_if;
     StreamRecvInterface *socks_recv_if;
-    uint8_t socks_recv_buf[CLIENT_SOCKS_RECV_BUF_SIZE];
+    uint8_t *socks_recv_buf;
+    int socks_recv_buf_wanted;
+    uint8_t socks_recv_idle_buf[CLIENT_SOCKS_RECV_IDLE_BUF_SIZE];
+    uint8_t *socks_recv_data;
     int socks_recv_buf_used;
     int socks_recv_buf_sent;
     int socks_recv_waiting;
@@ -167,7 +207,9 @@ BIPAddr netif_netmask;
 // IP6 address of netif
 struct ipv6_addr netif_ip6addr;
 
-// SOCKS server address
+// SOCKS server addresses; UDP goes through the first one
+BAddr socks_server_addrs[SOCKSBALANCER_MAX_SERVERS];
+int num_socks_servers;
 BAddr socks_server_addr;
 
 // allocated password file contents
@@ -186,6 +228,9 @@ BReactor ss;
 // set to 1 by terminate
 int quitting;
 
+// uProxy: whether the process-wide network and time state is initialized
+int process_initialized;
+
 // TUN device
 BTap device;
 
@@ -193,8 +238,16 @@ BTap device;
 uint8_t *device_write_buf;
 
 // device reading
-SinglePacketBuffer device_read_buffer;
-PacketPassInterface device_read_interface;
+// uProxy: packets are read into pool buffers that are passed to lwIP without
+// copying, or into the spare buffer while lwIP holds all pool buffers
+DevicePbufPool device_read_pool;
+uint8_t *device_read_spare;
+uint8_t *device_read_data;
+
+// uProxy: TCP client buffers, taken while data is in flight and capped by
+// --tcp-buffer-memory
+BufferPool client_buffers;
+BufferPool client_socks_recv_buffers;
 
 // udpgw client
 SocksUdpGwClient udpgw_client;
@@ -202,6 +255,22 @@ int udp_mtu;
 
 // TCP timer
 BTimer tcp_timer;
+// uProxy: whether the TCP timer runs slowly because all connections are idle
+int tcp_timer_idle;
+
+// uProxy: draining the TCP clients before terminating. The drain job resets
+// the clients that have passed on their data, and the drain timer ends the
+// drain at its deadline.
+int draining;
+BTimer drain_timer;
+BPending drain_job;
+btime_t drain_start_time;
+int drain_num_clients;
+int drain_num_reset;
+// uProxy: how long a requested shutdown took to reach the reactor, and when
+// terminate was called
+btime_t terminate_request_delay;
+btime_t terminate_time;
 
 // job for initializing lwip
 BPending lwip_init_job;
@@ -216,12 +285,15 @@ struct tcp_pcb *listener;
 // lwip TCP/IPv6 listener
 struct tcp_pcb *listener_ip6;
 
-// TCP clients
+// TCP clients, least recently active first
 LinkedList1 tcp_clients;
 
 // number of clients
 int num_clients;
 
+// tunnel statistics, see Tun2SocksStats.h
+int64_t tun2socks_stats[TUN2SOCKS_NUM_STATS];
+
 // ==== PSIPHON ====
 static void run (void);
 static void init_arguments (const char* program_name);
@@ -230,9 +302,24 @@ static void init_arguments (const char* program_name);
 //==== UPROXY ====
 // IP address of the DNS server to which all DNS requests will be forwarded
 BAddr dns_resolver_addr;
-// IP address the UDP relay to which all SOCKS UDP requests will be sent
-// NOTE: this implementation does not make UDP ASSOCIATE requests and only supports DNS/UDP.
+// IP address the UDP relay to which all SOCKS UDP DNS requests will be sent
+// NOTE: DNS requests are sent to this address without a UDP ASSOCIATE request.
+// Other UDP traffic is forwarded through UDP associations with --socks-udp.
 BAddr udp_relay_addr;
+// answers to DNS requests made through the UDP relay
+DnsCache dns_cache;
+// fake addresses given to host names, with --fake-dns
+FakeDns fake_dns;
+// DNS requests sent over TCP through SOCKS instead of the UDP relay, with --dns-tcp
+DnsTcpClient dns_tcp_client;
+// UDP associations, one per local address, for non-DNS UDP traffic
+SocksUdpRelay socks_udp_relay;
+// chooses the SOCKS server for new TCP connections
+int socks_balance_policy;
+SocksBalancer socks_balancer;
+// authenticated SOCKS connections ready for new TCP connections, per server
+int have_socks_pool;
+SocksPool socks_pools[SOCKSBALANCER_MAX_SERVERS];
 //==== UPROXY ====
 
 static void terminate (void);
@@ -244,8 +331,15 @@ static void signal_handler (void *unused);
 static BAddr baddr_from_lwip (int is_ipv6, const ipX_addr_t *ipx_addr, uint16_t port_hostorder);
 static void lwip_init_job_handler (void *unused);
 static void tcp_timer_handler (void *unused);
+static void tcp_timer_update (void);
+static int tcp_timer_pcbs_idle (void);
+static void drain_start (btime_t timeout);
+static void drain_timer_handler (void *unused);
+static void drain_job_handler (void *unused);
+static int client_drained (struct tcp_client *client);
 static void device_error_handler (void *unused);
-static void device_read_handler_send (void *unused, uint8_t *data, int data_len);
+static void device_read_start (void);
+static void device_read_handler_done (void *unused, int data_len);
 static int process_device_udp_packet (uint8_t *data, int data_len);
 static err_t netif_init_func (struct netif *netif);
 static err_t netif_output_func (struct netif *netif, struct pbuf *p, ip_addr_t *ipaddr);
@@ -261,6 +355,10 @@ static void client_abort_client (struct tcp_client *client);
 static void client_free_socks (struct tcp_client *client);
 static void client_murder (struct tcp_client *client);
 static void client_dealloc (struct tcp_client *client);
+static void client_buffers_update_stats (void);
+static void client_touch (struct tcp_client *client);
+static void client_reap_idle (void);
+static void client_evict_idle (void);
 static void client_err_func (void *arg, err_t err);
 static err_t client_recv_func (void *arg, struct tcp_pcb *tpcb, struct pbuf *p, err_t err);
 static void client_socks_handler (struct tcp_client *client, int event);
@@ -279,16 +377,20 @@ typedef struct {
     int sockfd;  // UDP socket file descriptor
     uint8_t *buffer;  // Data buffer
     BFileDescriptor bfd;  // File descriptor object for BReactor
-    BStringMap map;  // Maps DNS id request to source IP address
+    DnsFlowTable flows;  // Maps DNS requests to the source address
 } UdpPcb;
 
 UdpPcb udp_pcb;
 
 static int udp_init(UdpPcb* udp_pcb);
+static int udp_connect(int sockfd, BAddr addr);
 static int udp_send(int sockfd, uint8_t* data, int data_len);
 static int udp_recv(int sockfd, uint8_t* buffer, int buffer_len);
 static void udp_fd_handler(UdpPcb* udp_pcb, int event);
 static void udp_free(UdpPcb* udp_pcb);
+static int dns_upstream_init(void);
+static void dns_upstream_free(void);
+static void dns_tcp_answer_handler(void* unused, BAddr local_addr, BAddr remote_addr, const uint8_t* data, int data_len);
 
 // File descriptor handler for UDP socket.
 static void udp_fd_handler(UdpPcb* udp_pcb, int event) {
@@ -307,25 +409,24 @@ static void udp_fd_handler(UdpPcb* udp_pcb, int event) {
     size_t udp_data_len = datagram_len - socks_udp_header_len;
     uint8_t* udp_data = udp_pcb->buffer + socks_udp_header_len;
 
-    char dns_id_str[DNS_ID_STRLEN];
-    dns_get_header_id_str(dns_id_str, udp_data);
-    const char* local_addr_str = BStringMap_Get(&udp_pcb->map, dns_id_str);
-    if (!local_addr_str) {
-        BLog(BLOG_ERROR, "udp_fd_handler: no address for DNS request id %s",
-             dns_id_str);
+    if (udp_data_len < sizeof(struct dns_header)) {
+        BLog(BLOG_ERROR, "udp_fd_handler: received less bytes than the length of the DNS header");
         return;
     }
 
+    // Find the request and restore its transaction ID
+    uint16_t dns_id;
     BAddr local_addr;
-    if (!BAddr_Parse(&local_addr, (char *)local_addr_str, NULL, 0)) {
-        BLog(BLOG_ERROR, "udp_fd_handler: failed to parse address %s",
-             local_addr_str);
-        BStringMap_Unset(&udp_pcb->map, dns_id_str);
+    if (!DnsFlowTable_Remove(&udp_pcb->flows, dns_get_header_id(udp_data), &dns_id, &local_addr)) {
+        BLog(BLOG_INFO, "udp_fd_handler: no pending request for DNS answer id %d",
+             (int)ntoh16(dns_get_header_id(udp_data)));
         return;
     }
+    dns_set_header_id(udp_data, dns_id);
 
-    // Remove entry from map
-    BStringMap_Unset(&udp_pcb->map, dns_id_str);
+    if (options.dns_cache_size > 0) {
+        DnsCache_Insert(&dns_cache, udp_data, udp_data_len);
+    }
 
     // Send data to device
     udp_send_packet_to_device(
@@ -345,7 +446,7 @@ static int udp_init(UdpPcb* udp_pcb) {
     int sockfd = socket(AF_INET, SOCK_DGRAM, 0);
     if (sockfd < 0 ) {
         BLog(BLOG_ERROR, "udp_init: failed to create socket");
-        return 0;
+        goto fail0;
     }
     // Bind to local host in order to receive data
     struct sockaddr_in local_addr;
@@ -355,39 +456,57 @@ static int udp_init(UdpPcb* udp_pcb) {
     local_addr.sin_port = htons(0);
     if (bind(sockfd, (struct sockaddr *)&local_addr, sizeof(local_addr)) < 0) {
         BLog(BLOG_ERROR, "udp_init: failed to bind socket");
-        close(sockfd);
-        return 0;
+        goto fail1;
     }
-    char udp_relay_addr_str[BADDR_MAX_PRINT_LEN];
-    BAddr_Print(&udp_relay_addr, udp_relay_addr_str);
-    BLog(BLOG_INFO, "UDP relay address: %s", udp_relay_addr_str);
-
-    // 'Connect' to UDP server on specified address
-    struct sockaddr_in remote_addr;
-    memset(&remote_addr, 0, sizeof(remote_addr));
-    remote_addr.sin_family = AF_INET;
-    // BAddr is already in network order, use htonl/htons for ip/port otherwise
-    remote_addr.sin_addr.s_addr = udp_relay_addr.ipv4.ip;
-    remote_addr.sin_port = udp_relay_addr.ipv4.port;
-    if (connect(sockfd, (struct sockaddr *)&remote_addr, sizeof(remote_addr)) < 0) {
-        BLog(BLOG_ERROR, "udp_init: failed to connect to remote");
-        close(sockfd);
-        return 0;
+    if (!udp_connect(sockfd, udp_relay_addr)) {
+        goto fail1;
     }
     // Monitor socket for read
     BFileDescriptor_Init(&udp_pcb->bfd, sockfd,
                          (BFileDescriptor_handler)udp_fd_handler, udp_pcb);
     if (!BReactor_AddFileDescriptor(&ss, &udp_pcb->bfd)) {
         BLog(BLOG_ERROR, "udp_init: failed to add fd to event loop");
-        close(sockfd);
-        return 0;
+        goto fail1;
     }
     BReactor_SetFileDescriptorEvents(&ss, &udp_pcb->bfd, BREACTOR_READ);
 
+    if (!DnsFlowTable_Init(&udp_pcb->flows, &ss, DNS_FLOW_TABLE_SIZE, DNS_FLOW_TIMEOUT)) {
+        BLog(BLOG_ERROR, "udp_init: failed to init DNS flow table");
+        goto fail2;
+    }
+
     udp_pcb->sockfd = sockfd;
-    BStringMap_Init(&udp_pcb->map);
 
     return sockfd;
+
+fail2:
+    BReactor_RemoveFileDescriptor(&ss, &udp_pcb->bfd);
+fail1:
+    close(sockfd);
+fail0:
+    free(udp_pcb->buffer);
+    udp_pcb->buffer = NULL;
+    return 0;
+}
+
+// 'Connects' |sockfd| to the UDP relay at |addr|. Can be called again to
+// switch relays. Returns 1 on success, and 0 otherwise.
+static int udp_connect(int sockfd, BAddr addr) {
+    char udp_relay_addr_str[BADDR_MAX_PRINT_LEN];
+    BAddr_Print(&addr, udp_relay_addr_str);
+    BLog(BLOG_INFO, "UDP relay address: %s", udp_relay_addr_str);
+
+    struct sockaddr_in remote_addr;
+    memset(&remote_addr, 0, sizeof(remote_addr));
+    remote_addr.sin_family = AF_INET;
+    // BAddr is already in network order, use htonl/htons for ip/port otherwise
+    remote_addr.sin_addr.s_addr = addr.ipv4.ip;
+    remote_addr.sin_port = addr.ipv4.port;
+    if (connect(sockfd, (struct sockaddr *)&remote_addr, sizeof(remote_addr)) < 0) {
+        BLog(BLOG_ERROR, "udp_connect: failed to connect to remote");
+        return 0;
+    }
+    return 1;
 }
 
 // Sends |data| through |sockfd|, a connected udp socket.
@@ -407,12 +526,293 @@ static int udp_recv(int sockfd, uint8_t* buffer, int buffer_len) {
 }
 
 static void udp_free(UdpPcb* udp_pcb) {
+    BReactor_RemoveFileDescriptor(&ss, &udp_pcb->bfd);
     if (udp_pcb->buffer)
         free(udp_pcb->buffer);
     if (udp_pcb->sockfd)
         close(udp_pcb->sockfd);
 
-    BStringMap_Free(&udp_pcb->map);
+    DnsFlowTable_Free(&udp_pcb->flows);
+}
+
+// Initializes where transparent DNS requests are forwarded: the UDP relay,
+// or TCP connections to the resolver with --dns-tcp. Returns 1 on success,
+// and 0 otherwise.
+static int dns_upstream_init(void) {
+    if (!options.dns_tcp) {
+        return udp_init(&udp_pcb);
+    }
+    if (udp_mtu < DNS_UDP_PAYLOAD_LIMIT) {
+        BLog(BLOG_ERROR, "dns_upstream_init: device MTU is too small for DNS");
+        return 0;
+    }
+    if (!DnsTcpClient_Init(&dns_tcp_client, socks_server_addr, socks_auth_info, socks_num_auth_info,
+                           options.socks_pipelined, dns_resolver_addr, options.dns_tcp_connections, udp_mtu,
+                           DNS_FLOW_TABLE_SIZE, DNS_FLOW_TIMEOUT, &ss, NULL, dns_tcp_answer_handler)) {
+        BLog(BLOG_ERROR, "dns_upstream_init: DnsTcpClient_Init failed");
+        return 0;
+    }
+    return 1;
+}
+
+static void dns_upstream_free(void) {
+    if (options.dns_tcp) {
+        DnsTcpClient_Free(&dns_tcp_client);
+    } else {
+        udp_free(&udp_pcb);
+    }
+}
+
+// Answer handler for DNS over TCP.
+static void dns_tcp_answer_handler(void* unused, BAddr local_addr, BAddr remote_addr, const uint8_t* data, int data_len) {
+    if (options.dns_cache_size > 0) {
+        DnsCache_Insert(&dns_cache, data, data_len);
+    }
+
+    udp_send_packet_to_device(NULL, local_addr, remote_addr, data, data_len);
+}
+
+// Requests from other threads to switch SOCKS servers or tun devices are
+// handed to the reactor through a pipe. The requests themselves are kept
+// under control_mutex. A tun device switch is waited for on control_cond,
+// since the caller may only close the old device once it is no longer used.
+static pthread_mutex_t control_mutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t control_cond = PTHREAD_COND_INITIALIZER;
+static int control_pipe[2] = {-1, -1};
+static BFileDescriptor control_bfd;
+static struct {
+    int pending;
+    BAddr socks_server_addrs[SOCKSBALANCER_MAX_SERVERS];
+    int num_socks_servers;
+    BAddr udp_relay_addr;
+    int tun_fd_pending;
+    int tun_fd;
+    int tun_fd_result;
+} control_request;
+
+static int control_init(void);
+static void control_free(void);
+static void control_fd_handler(void* unused, int event);
+static int parse_socks_server_addrs(const char* str, BAddr* addrs);
+static void socks_pools_init(void);
+static void socks_pools_free(void);
+static int control_request_socks_server(const BAddr* socks_server_addrs, int num_socks_servers, BAddr udp_relay_addr);
+static int control_request_tun_fd(int tun_fd);
+static void control_request_terminate(void);
+static int instance_terminating(void);
+static void instance_shutdown(void);
+
+static int control_init(void) {
+    int fds[2];
+    if (pipe(fds) < 0) {
+        BLog(BLOG_ERROR, "control_init: pipe failed");
+        return 0;
+    }
+    if (!badvpn_set_nonblocking(fds[0]) || !badvpn_set_nonblocking(fds[1])) {
+        BLog(BLOG_ERROR, "control_init: failed to set non-blocking");
+        goto fail;
+    }
+    BFileDescriptor_Init(&control_bfd, fds[0], (BFileDescriptor_handler)control_fd_handler, NULL);
+    if (!BReactor_AddFileDescriptor(&ss, &control_bfd)) {
+        BLog(BLOG_ERROR, "control_init: failed to add fd to event loop");
+        goto fail;
+    }
+    BReactor_SetFileDescriptorEvents(&ss, &control_bfd, BREACTOR_READ);
+
+    pthread_mutex_lock(&control_mutex);
+    control_pipe[0] = fds[0];
+    control_pipe[1] = fds[1];
+    control_request.pending = 0;
+    control_request.tun_fd_pending = 0;
+    pthread_mutex_unlock(&control_mutex);
+    return 1;
+
+fail:
+    close(fds[0]);
+    close(fds[1]);
+    return 0;
+}
+
+static void control_free(void) {
+    pthread_mutex_lock(&control_mutex);
+    BReactor_RemoveFileDescriptor(&ss, &control_bfd);
+    close(control_pipe[0]);
+    close(control_pipe[1]);
+    control_pipe[0] = -1;
+    control_pipe[1] = -1;
+    // fail a tun device switch that was not handled
+    pthread_cond_broadcast(&control_cond);
+    pthread_mutex_unlock(&control_mutex);
+}
+
+// Called on any thread. Returns 1 if the request was queued, and 0 if
+// tun2socks is not running.
+static int control_request_socks_server(const BAddr* socks_server_addrs, int num_socks_servers, BAddr udp_relay_addr) {
+    pthread_mutex_lock(&control_mutex);
+    if (control_pipe[1] < 0) {
+        pthread_mutex_unlock(&control_mutex);
+        return 0;
+    }
+    control_request.pending = 1;
+    memcpy(control_request.socks_server_addrs, socks_server_addrs, num_socks_servers * sizeof(BAddr));
+    control_request.num_socks_servers = num_socks_servers;
+    control_request.udp_relay_addr = udp_relay_addr;
+    // a full pipe already has a wakeup pending
+    uint8_t b = 0;
+    write(control_pipe[1], &b, sizeof(b));
+    pthread_mutex_unlock(&control_mutex);
+    return 1;
+}
+
+// Called on any thread other than the reactor's, one call at a time. Waits
+// until the reactor has moved to the tun device tun_fd. Returns 1 if it has,
+// and 0 if it failed or tun2socks is not running, in which case the
+// previous device is still used until tun2socks stops.
+static int control_request_tun_fd(int tun_fd) {
+    pthread_mutex_lock(&control_mutex);
+    if (control_pipe[1] < 0) {
+        pthread_mutex_unlock(&control_mutex);
+        return 0;
+    }
+    control_request.tun_fd_pending = 1;
+    control_request.tun_fd = tun_fd;
+    uint8_t b = 0;
+    write(control_pipe[1], &b, sizeof(b));
+    while (control_request.tun_fd_pending && control_pipe[1] >= 0) {
+        pthread_cond_wait(&control_cond, &control_mutex);
+    }
+    int result = (control_request.tun_fd_pending ? 0 : control_request.tun_fd_result);
+    control_request.tun_fd_pending = 0;
+    pthread_mutex_unlock(&control_mutex);
+    return result;
+}
+
+// Called on any thread once the running instance's terminate flag is set,
+// to wake the reactor, whose TCP timer may not be running.
+static void control_request_terminate(void) {
+    pthread_mutex_lock(&control_mutex);
+    if (control_pipe[1] >= 0) {
+        uint8_t b = 0;
+        write(control_pipe[1], &b, sizeof(b));
+    }
+    pthread_mutex_unlock(&control_mutex);
+}
+
+static void control_fd_handler(void* unused, int event) {
+    uint8_t buf[64];
+    while (read(control_pipe[0], buf, sizeof(buf)) > 0);
+
+    if (instance_terminating()) {
+        instance_shutdown();
+        if (quitting) {
+            return;
+        }
+    }
+
+    pthread_mutex_lock(&control_mutex);
+    int tun_fd_pending = control_request.tun_fd_pending;
+    int new_tun_fd = control_request.tun_fd;
+    pthread_mutex_unlock(&control_mutex);
+
+    if (tun_fd_pending) {
+        BLog(BLOG_NOTICE, "switching tun device to fd %d", new_tun_fd);
+        int result = BTap_SetFD(&device, new_tun_fd);
+        if (result) {
+            options.tun_fd = new_tun_fd;
+        } else {
+            BLog(BLOG_ERROR, "failed to switch tun device");
+        }
+        pthread_mutex_lock(&control_mutex);
+        control_request.tun_fd_result = result;
+        control_request.tun_fd_pending = 0;
+        pthread_cond_broadcast(&control_cond);
+        pthread_mutex_unlock(&control_mutex);
+    }
+
+    pthread_mutex_lock(&control_mutex);
+    int pending = control_request.pending;
+    BAddr new_socks_server_addrs[SOCKSBALANCER_MAX_SERVERS];
+    memcpy(new_socks_server_addrs, control_request.socks_server_addrs, sizeof(new_socks_server_addrs));
+    int new_num_socks_servers = control_request.num_socks_servers;
+    BAddr new_udp_relay_addr = control_request.udp_relay_addr;
+    control_request.pending = 0;
+    pthread_mutex_unlock(&control_mutex);
+
+    if (!pending) {
+        return;
+    }
+
+    char addr_str[BADDR_MAX_PRINT_LEN];
+    BAddr_Print(&new_socks_server_addrs[0], addr_str);
+    BLog(BLOG_NOTICE, "switching SOCKS server to %s and %d others", addr_str, new_num_socks_servers - 1);
+
+    // New TCP connections use the new servers. Existing ones keep the
+    // BSocksClient they were made with.
+    if (have_socks_pool) {
+        socks_pools_free();
+    }
+    memcpy(socks_server_addrs, new_socks_server_addrs, sizeof(socks_server_addrs));
+    num_socks_servers = new_num_socks_servers;
+    socks_server_addr = socks_server_addrs[0];
+    SocksBalancer_SetServers(&socks_balancer, socks_server_addrs, num_socks_servers);
+    if (have_socks_pool) {
+        socks_pools_init();
+    }
+
+    if (options.transparent_dns && options.dns_tcp) {
+        DnsTcpClient_SetServer(&dns_tcp_client, socks_server_addr);
+    } else if (options.transparent_dns) {
+        // Answers still on their way from the old relay are lost; the
+        // requests time out in the flow table and get retried by clients.
+        if (udp_connect(udp_pcb.sockfd, new_udp_relay_addr)) {
+            udp_relay_addr = new_udp_relay_addr;
+        }
+    }
+    if (options.udpgw_remote_server_addr) {
+        SocksUdpGwClient_SetServer(&udpgw_client, socks_server_addr);
+    }
+    if (options.socks_udp) {
+        SocksUdpRelay_SetServer(&socks_udp_relay, socks_server_addr);
+    }
+}
+
+// Parses a comma-separated list of SOCKS server addresses. Returns the
+// number of addresses, or 0 if the list is invalid.
+static int parse_socks_server_addrs(const char* str, BAddr* addrs) {
+    int num_addrs = 0;
+    while (1) {
+        const char* end = strchr(str, ',');
+        size_t len = (end ? (size_t)(end - str) : strlen(str));
+
+        char addr_str[BADDR_MAX_PRINT_LEN];
+        if (num_addrs == SOCKSBALANCER_MAX_SERVERS || len == 0 || len >= sizeof(addr_str)) {
+            return 0;
+        }
+        memcpy(addr_str, str, len);
+        addr_str[len] = '\0';
+        if (!BAddr_Parse2(&addrs[num_addrs], addr_str, NULL, 0, 0)) {
+            return 0;
+        }
+        num_addrs++;
+
+        if (!end) {
+            return num_addrs;
+        }
+        str = end + 1;
+    }
+}
+
+static void socks_pools_init(void) {
+    for (int i = 0; i < num_socks_servers; i++) {
+        SocksPool_Init(&socks_pools[i], options.socks_pool_size, options.socks_pool_max_idle,
+                       socks_server_addrs[i], socks_auth_info, socks_num_auth_info, &ss);
+    }
+}
+
+static void socks_pools_free(void) {
+    for (int i = 0; i < num_socks_servers; i++) {
+        SocksPool_Free(&socks_pools[i]);
+    }
 }
 
 //==== UPROXY =====
@@ -421,33 +821,350 @@ static void udp_free(UdpPcb* udp_pcb) {
 
 #ifdef PSIPHON
 
-int g_terminate = 0;
-JNIEnv* g_env = 0;
+// ==== UPROXY ====
+
+// A tun2socks instance, created from Java with its settings and referred to
+// by a handle. The handle only wraps the settings and the run and terminate
+// state; everything a run uses stays in the file-scope globals above:
+// options, ss, device, netif, udp_pcb, udpgw_client, tcp_timer, tcp_clients
+// and num_clients, along with lwIP's PCBs, pools and timers. So only one
+// instance runs at a time, and a new instance cannot serve traffic while the
+// old one still does. Another may be created, and
+// started, while one runs; it waits for the running one to stop and takes
+// over from it, which saves the caller from sequencing the two. Each run
+// initializes and tears down the global state. Switching SOCKS servers or
+// tun devices only applies to the running instance.
+struct tun2socks_instance {
+    // settings, applied to the options when the instance runs
+    int tun_fd;
+    int tun_mtu;
+    char *netif_ipaddr;
+    char *netif_netmask;
+    char *socks_server_addr;
+    char *udp_relay_addr;
+    char *dns_resolver_addr;
+    int transparent_dns;
+    int fake_dns;
+    int dns_tcp;
+    int socks_udp;
+    char *udpgw_remote_server_addr;
+    int udpgw_max_connections;
+    int udpgw_connection_buffer_size;
+    char *socks_balance;
+    int socks_pipelined;
+    int tun_read_batch;
+    int tcp_buffer_memory;
+    int tcp_idle_timeout;
+    int tcp_wnd;
+    int tcp_snd_buf;
+    int socks_recv_buf_size;
+    // set by terminateTun2Socks, read by the reactor without the lock
+    int terminate;
+    // whether runTun2Socks is running or waiting to run the instance
+    int in_run;
+    int drain_timeout;
+    // when terminateTun2Socks was first called, in milliseconds
+    int64_t terminate_request_time;
+};
+
+// The instance that runs, or NULL. Waiting instances wait on
+// instance_cond. Lock instance_mutex before control_mutex, never after.
+static pthread_mutex_t instance_mutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t instance_cond = PTHREAD_COND_INITIALIZER;
+static struct tun2socks_instance *running_instance;
+
+static char* instance_copy_string(JNIEnv* env, jstring str, int* ok);
+static void instance_free(struct tun2socks_instance* instance);
+
+// Copies |str|, which may be null. Clears |ok| if out of memory.
+static char* instance_copy_string(JNIEnv* env, jstring str, int* ok) {
+    if (!str) {
+        return NULL;
+    }
+    const char* chars = (*env)->GetStringUTFChars(env, str, 0);
+    if (!chars) {
+        *ok = 0;
+        return NULL;
+    }
+    char* copy = strdup(chars);
+    (*env)->ReleaseStringUTFChars(env, str, chars);
+    if (!copy) {
+        *ok = 0;
+    }
+    return copy;
+}
+
+static void instance_free(struct tun2socks_instance* instance) {
+    free(instance->netif_ipaddr);
+    free(instance->netif_netmask);
+    free(instance->socks_server_addr);
+    free(instance->udp_relay_addr);
+    free(instance->dns_resolver_addr);
+    free(instance->udpgw_remote_server_addr);
+    free(instance->socks_balance);
+    free(instance);
+}
+
+// Called on the reactor thread while an instance runs.
+static int instance_terminating(void) {
+    return __atomic_load_n(&running_instance->terminate, __ATOMIC_ACQUIRE);
+}
+
+// Returns the monotonic time in milliseconds, on any thread.
+static int64_t instance_clock_ms(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+// Called on the reactor thread once the instance is terminating. Drains the
+// TCP clients for the timeout passed to terminateTun2Socks, or terminates
+// right away without one. Terminating again without a timeout cuts a drain
+// short.
+static void instance_shutdown(void) {
+    int drain_timeout = __atomic_load_n(&running_instance->drain_timeout, __ATOMIC_RELAXED);
+
+    if (draining) {
+        if (drain_timeout == 0) {
+            BLog(BLOG_NOTICE, "drain cut short");
+            terminate();
+        }
+        return;
+    }
+
+    BLog(BLOG_NOTICE, "instance is terminating");
+    terminate_request_delay = instance_clock_ms() - running_instance->terminate_request_time;
+
+    if (drain_timeout > 0 && num_clients > 0) {
+        drain_start(drain_timeout);
+    } else {
+        terminate();
+    }
+}
+
+// ==== UPROXY ====
+
+// Log records are not delivered to Java from the reactor thread. PsiphonLog
+// copies each record into a preallocated ring, and a Java thread drains the
+// ring in batches through drainTun2SocksLogs. When the ring is full, records
+// are dropped and counted; the drop count is reported with the next batch.
+// While nothing is logged, the Java thread sleeps until the first record, so
+// that an idle tunnel doesn't wake it.
+
+struct log_record {
+    // level and channel names are static strings owned by BLog
+    const char *level;
+    const char *channel;
+    char msg[LOG_RECORD_MAX_MSG_LEN];
+};
+
+static struct {
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+    struct log_record records[LOG_RING_SIZE];
+    int start;
+    int used;
+    unsigned int dropped;
+    int consumer_waiting;
+    int consumer_wakeup;
+} log_ring = {
+    PTHREAD_MUTEX_INITIALIZER,
+    PTHREAD_COND_INITIALIZER
+};
+
+// consumer-side copy of a batch, only touched by the draining thread
+static struct log_record log_batch[LOG_RING_SIZE];
+
+static jclass log_class;
+static jmethodID log_method;
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved)
+{
+    JNIEnv* env;
+    if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+
+    jclass cls = (*env)->FindClass(env, "org/uproxy/tun2socks/Tun2SocksJni");
+    if (!cls) {
+        return JNI_ERR;
+    }
+    log_class = (jclass)(*env)->NewGlobalRef(env, cls);
+    (*env)->DeleteLocalRef(env, cls);
+    log_method = (*env)->GetStaticMethodID(env, log_class, "logTun2Socks", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
+    if (!log_class || !log_method) {
+        return JNI_ERR;
+    }
+
+    return JNI_VERSION_1_6;
+}
+
+// Copies the NUL-terminated |src| into |dst| of |size| bytes as modified
+// UTF-8, which NewStringUTF requires. Messages may carry names read from the
+// network, so bytes that don't start a well-formed sequence of up to three
+// bytes are replaced with '?', and a message that doesn't fit is cut before
+// the sequence that would be split.
+static void log_copy_msg (char *dst, size_t size, const char *src)
+{
+    ASSERT(size > 0)
+
+    const unsigned char *in = (const unsigned char *)src;
+    size_t out = 0;
+
+    while (*in) {
+        size_t len = 1;
+        if (in[0] >= 0xC2 && in[0] <= 0xDF) {
+            len = 2;
+        } else if (in[0] >= 0xE0 && in[0] <= 0xEF) {
+            len = 3;
+        }
+        if (len > 1) {
+            for (size_t i = 1; i < len; i++) {
+                if ((in[i] & 0xC0) != 0x80) {
+                    len = 0;
+                    break;
+                }
+            }
+            // no overlong three-byte sequences
+            if (len == 3 && in[0] == 0xE0 && in[1] < 0xA0) {
+                len = 0;
+            }
+        } else if (in[0] >= 0x80) {
+            len = 0;
+        }
+
+        size_t copy = (len > 0 ? len : 1);
+        if (out + copy >= size) {
+            break;
+        }
+        if (len > 0) {
+            memcpy(dst + out, in, len);
+            in += len;
+        } else {
+            dst[out] = '?';
+            in++;
+        }
+        out += copy;
+    }
+
+    dst[out] = '\0';
+}
 
 void PsiphonLog(const char *levelStr, const char *channelStr, const char *msgStr)
 {
-    if (!g_env)
-    {
+    pthread_mutex_lock(&log_ring.mutex);
+
+    if (log_ring.used == LOG_RING_SIZE) {
+        log_ring.dropped++;
+        pthread_mutex_unlock(&log_ring.mutex);
         return;
     }
-    // Note: we could cache the class and method references if log is called frequently
 
-    jstring level = (*g_env)->NewStringUTF(g_env, levelStr);
-    jstring channel = (*g_env)->NewStringUTF(g_env, channelStr);
-    jstring msg = (*g_env)->NewStringUTF(g_env, msgStr);
+    struct log_record *record = &log_ring.records[(log_ring.start + log_ring.used) % LOG_RING_SIZE];
+    record->level = levelStr;
+    record->channel = channelStr;
+    log_copy_msg(record->msg, sizeof(record->msg), msgStr);
+    log_ring.used++;
+
+    // Wake the consumer for the first record, which starts its batch timeout,
+    // and early when a batch has accumulated; otherwise its wait timeout
+    // picks the records up.
+    if (log_ring.consumer_waiting && (log_ring.used == 1 || log_ring.used >= LOG_RING_WAKEUP_THRESHOLD)) {
+        pthread_cond_signal(&log_ring.cond);
+    }
+
+    pthread_mutex_unlock(&log_ring.mutex);
+}
+
+JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_drainTun2SocksLogs(
+    JNIEnv* env,
+    jclass cls,
+    jint timeoutMillis)
+{
+    pthread_mutex_lock(&log_ring.mutex);
+
+    if (timeoutMillis > 0) {
+        log_ring.consumer_waiting = 1;
+
+        // sleep until there is something to deliver
+        while (log_ring.used == 0 && !log_ring.dropped && !log_ring.consumer_wakeup) {
+            pthread_cond_wait(&log_ring.cond, &log_ring.mutex);
+        }
+
+        // give the batch up to timeoutMillis to fill
+        struct timespec deadline;
+        clock_gettime(CLOCK_REALTIME, &deadline);
+        deadline.tv_sec += timeoutMillis / 1000;
+        deadline.tv_nsec += (long)(timeoutMillis % 1000) * 1000000;
+        if (deadline.tv_nsec >= 1000000000) {
+            deadline.tv_sec++;
+            deadline.tv_nsec -= 1000000000;
+        }
+        while (log_ring.used < LOG_RING_WAKEUP_THRESHOLD && !log_ring.consumer_wakeup) {
+            if (pthread_cond_timedwait(&log_ring.cond, &log_ring.mutex, &deadline) == ETIMEDOUT) {
+                break;
+            }
+        }
+
+        log_ring.consumer_waiting = 0;
+    }
+    log_ring.consumer_wakeup = 0;
+
+    // take the whole batch so the producer is never held up by JNI calls
+    int count = log_ring.used;
+    for (int i = 0; i < count; i++) {
+        log_batch[i] = log_ring.records[(log_ring.start + i) % LOG_RING_SIZE];
+    }
+    log_ring.start = (log_ring.start + count) % LOG_RING_SIZE;
+    log_ring.used = 0;
+    unsigned int dropped = log_ring.dropped;
+    log_ring.dropped = 0;
+
+    pthread_mutex_unlock(&log_ring.mutex);
+
+    for (int i = 0; i < count; i++) {
+        jstring level = (*env)->NewStringUTF(env, log_batch[i].level);
+        jstring channel = (*env)->NewStringUTF(env, log_batch[i].channel);
+        jstring msg = (*env)->NewStringUTF(env, log_batch[i].msg);
+
+        (*env)->CallStaticVoidMethod(env, log_class, log_method, level, channel, msg);
+
+        (*env)->DeleteLocalRef(env, level);
+        (*env)->DeleteLocalRef(env, channel);
+        (*env)->DeleteLocalRef(env, msg);
+    }
+
+    if (dropped > 0) {
+        char dropped_msg[64];
+        snprintf(dropped_msg, sizeof(dropped_msg), "dropped %u log records", dropped);
+
+        jstring level = (*env)->NewStringUTF(env, "WARNING");
+        jstring channel = (*env)->NewStringUTF(env, PROGRAM_NAME);
+        jstring msg = (*env)->NewStringUTF(env, dropped_msg);
 
-    jclass cls = (*g_env)->FindClass(g_env, "org/uproxy/tun2socks/Tun2SocksJni");
-    jmethodID logMethod = (*g_env)->GetStaticMethodID(g_env, cls, "logTun2Socks", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
-    (*g_env)->CallStaticVoidMethod(g_env, cls, logMethod, level, channel, msg);
+        (*env)->CallStaticVoidMethod(env, log_class, log_method, level, channel, msg);
 
-    (*g_env)->DeleteLocalRef(g_env, cls);
+        (*env)->DeleteLocalRef(env, level);
+        (*env)->DeleteLocalRef(env, channel);
+        (*env)->DeleteLocalRef(env, msg);
+    }
 
-    (*g_env)->DeleteLocalRef(g_env, level);
-    (*g_env)->DeleteLocalRef(g_env, channel);
-    (*g_env)->DeleteLocalRef(g_env, msg);
+    return count;
 }
 
-JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_runTun2Socks(
+JNIEXPORT void JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_wakeTun2SocksLogDrain(
+    JNIEnv* env,
+    jclass cls)
+{
+    pthread_mutex_lock(&log_ring.mutex);
+    log_ring.consumer_wakeup = 1;
+    pthread_cond_signal(&log_ring.cond);
+    pthread_mutex_unlock(&log_ring.mutex);
+}
+
+// ==== UPROXY ====
+
+JNIEXPORT jlong JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_createTun2Socks(
     JNIEnv* env,
     jclass cls,
     jint vpnInterfaceFileDescriptor,
@@ -457,42 +1174,133 @@ JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_runTun2Socks(
     jstring socksServerAddress,
     jstring udpRelayAddress,
     jstring dnsResolverAddress,
-    jint transparentDNS)
+    jint transparentDNS,
+    jint fakeDNS,
+    jint dnsTCP,
+    jint socksUdp,
+    jstring udpgwServerAddress,
+    jint udpgwMaxConnections,
+    jint udpgwConnectionBufferSize,
+    jstring socksBalance,
+    jint socksPipelined,
+    jint tunReadBatch,
+    jint tcpBufferMemory,
+    jint tcpIdleTimeout,
+    jint tcpWindow,
+    jint tcpSendBuffer,
+    jint socksReceiveBuffer)
 {
-    g_env = env;
+    struct tun2socks_instance* instance = (struct tun2socks_instance*)calloc(1, sizeof(*instance));
+    if (!instance) {
+        return 0;
+    }
 
-    const char* vpnIpAddressStr = (*env)->GetStringUTFChars(env, vpnIpAddress, 0);
-    const char* vpnNetMaskStr = (*env)->GetStringUTFChars(env, vpnNetMask, 0);
-    const char* socksServerAddressStr = (*env)->GetStringUTFChars(env, socksServerAddress, 0);
-    const char* udpRelayAddressStr = (*env)->GetStringUTFChars(env, udpRelayAddress, 0);
-    const char* dnsResolverAddressStr = (*env)->GetStringUTFChars(env, dnsResolverAddress, 0);
+    int ok = 1;
+    instance->tun_fd = vpnInterfaceFileDescriptor;
+    instance->tun_mtu = vpnInterfaceMTU;
+    instance->netif_ipaddr = instance_copy_string(env, vpnIpAddress, &ok);
+    instance->netif_netmask = instance_copy_string(env, vpnNetMask, &ok);
+    instance->socks_server_addr = instance_copy_string(env, socksServerAddress, &ok);
+    instance->udp_relay_addr = instance_copy_string(env, udpRelayAddress, &ok);
+    instance->dns_resolver_addr = instance_copy_string(env, dnsResolverAddress, &ok);
+    instance->transparent_dns = transparentDNS;
+    instance->fake_dns = fakeDNS;
+    instance->dns_tcp = dnsTCP;
+    instance->socks_udp = socksUdp;
+    instance->udpgw_remote_server_addr = instance_copy_string(env, udpgwServerAddress, &ok);
+    instance->udpgw_max_connections = udpgwMaxConnections;
+    instance->udpgw_connection_buffer_size = udpgwConnectionBufferSize;
+    instance->socks_balance = instance_copy_string(env, socksBalance, &ok);
+    instance->socks_pipelined = socksPipelined;
+    instance->tun_read_batch = tunReadBatch;
+    instance->tcp_buffer_memory = tcpBufferMemory;
+    instance->tcp_idle_timeout = tcpIdleTimeout;
+    instance->tcp_wnd = tcpWindow;
+    instance->tcp_snd_buf = tcpSendBuffer;
+    instance->socks_recv_buf_size = socksReceiveBuffer;
+    instance->terminate = 0;
+
+    if (!ok) {
+        instance_free(instance);
+        return 0;
+    }
+    return (jlong)(intptr_t)instance;
+}
+
+JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_runTun2Socks(
+    JNIEnv* env,
+    jclass cls,
+    jlong handle)
+{
+    struct tun2socks_instance* instance = (struct tun2socks_instance*)(intptr_t)handle;
+
+    // wait for the running instance to stop, unless terminated first
+    pthread_mutex_lock(&instance_mutex);
+    instance->in_run = 1;
+    while (running_instance && !instance->terminate) {
+        pthread_cond_wait(&instance_cond, &instance_mutex);
+    }
+    if (instance->terminate) {
+        instance->in_run = 0;
+        pthread_cond_broadcast(&instance_cond);
+        pthread_mutex_unlock(&instance_mutex);
+        return 0;
+    }
+    running_instance = instance;
+    pthread_mutex_unlock(&instance_mutex);
 
     init_arguments("uProxy tun2socks");
 
-    options.netif_ipaddr = (char*)vpnIpAddressStr;
-    options.netif_netmask = (char*)vpnNetMaskStr;
-    options.socks_server_addr = (char*)socksServerAddressStr;
-    options.udp_relay_addr = (char*)udpRelayAddressStr;
-    options.dns_resolver_addr = (char*)dnsResolverAddressStr;
-    options.transparent_dns = transparentDNS;
-    options.tun_fd = vpnInterfaceFileDescriptor;
-    options.tun_mtu = vpnInterfaceMTU;
+    options.netif_ipaddr = instance->netif_ipaddr;
+    options.netif_netmask = instance->netif_netmask;
+    options.socks_server_addr = instance->socks_server_addr;
+    options.udp_relay_addr = instance->udp_relay_addr;
+    options.dns_resolver_addr = instance->dns_resolver_addr;
+    options.transparent_dns = instance->transparent_dns;
+    options.fake_dns = instance->fake_dns;
+    options.dns_tcp = instance->dns_tcp;
+    options.socks_udp = instance->socks_udp;
+    options.udpgw_remote_server_addr = instance->udpgw_remote_server_addr;
+    if (instance->udpgw_max_connections > 0) {
+        options.udpgw_max_connections = instance->udpgw_max_connections;
+    }
+    if (instance->udpgw_connection_buffer_size > 0) {
+        options.udpgw_connection_buffer_size = instance->udpgw_connection_buffer_size;
+    }
+    options.socks_balance = instance->socks_balance;
+    options.socks_pipelined = instance->socks_pipelined;
+    if (instance->tun_read_batch > 0 && instance->tun_read_batch <= MAX_TUN_READ_BATCH) {
+        options.tun_read_batch = instance->tun_read_batch;
+    }
+    if (instance->tcp_buffer_memory > 0) {
+        options.tcp_buffer_memory = instance->tcp_buffer_memory;
+    }
+    if (instance->tcp_idle_timeout > 0) {
+        options.tcp_idle_timeout = instance->tcp_idle_timeout;
+    }
+    if (instance->tcp_wnd > 0) {
+        options.tcp_wnd = instance->tcp_wnd;
+    }
+    if (instance->tcp_snd_buf > 0) {
+        options.tcp_snd_buf = instance->tcp_snd_buf;
+    }
+    if (instance->socks_recv_buf_size > 0 && instance->socks_recv_buf_size <= UINT16_MAX) {
+        options.socks_recv_buf_size = instance->socks_recv_buf_size;
+    }
+    options.tun_fd = instance->tun_fd;
+    options.tun_mtu = instance->tun_mtu;
     options.set_signal = 0;
     options.loglevel = 4;
 
     BLog_InitPsiphon();
 
-    __sync_bool_compare_and_swap(&g_terminate, 1, 0);
-
     run();
 
-    (*env)->ReleaseStringUTFChars(env, vpnIpAddress, vpnIpAddressStr);
-    (*env)->ReleaseStringUTFChars(env, vpnNetMask, vpnNetMaskStr);
-    (*env)->ReleaseStringUTFChars(env, socksServerAddress, socksServerAddressStr);
-    (*env)->ReleaseStringUTFChars(env, udpRelayAddress, udpRelayAddressStr);
-    (*env)->ReleaseStringUTFChars(env, dnsResolverAddress, dnsResolverAddressStr);
-
-    g_env = 0;
+    pthread_mutex_lock(&instance_mutex);
+    running_instance = NULL;
+    instance->in_run = 0;
+    pthread_cond_broadcast(&instance_cond);
+    pthread_mutex_unlock(&instance_mutex);
 
     // TODO: return success/error
 
@@ -500,13 +1308,123 @@ JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_runTun2Socks(
 }
 
 JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_terminateTun2Socks(
+    JNIEnv* env,
     jclass cls,
-    JNIEnv* env)
+    jlong handle,
+    jint drainTimeoutMillis)
 {
-    __sync_bool_compare_and_swap(&g_terminate, 0, 1);
+    struct tun2socks_instance* instance = (struct tun2socks_instance*)(intptr_t)handle;
+
+    pthread_mutex_lock(&instance_mutex);
+    if (!instance->terminate) {
+        instance->terminate_request_time = instance_clock_ms();
+    }
+    __atomic_store_n(&instance->drain_timeout, (drainTimeoutMillis > 0 ? drainTimeoutMillis : 0), __ATOMIC_RELAXED);
+    __atomic_store_n(&instance->terminate, 1, __ATOMIC_RELEASE);
+    if (instance == running_instance) {
+        // before the control pipe is open, the first TCP timer tick sees the flag
+        control_request_terminate();
+    }
+    // wake it if it is waiting to run
+    pthread_cond_broadcast(&instance_cond);
+    pthread_mutex_unlock(&instance_mutex);
     return 0;
 }
 
+JNIEXPORT void JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_destroyTun2Socks(
+    JNIEnv* env,
+    jclass cls,
+    jlong handle)
+{
+    struct tun2socks_instance* instance = (struct tun2socks_instance*)(intptr_t)handle;
+
+    // An instance that is still running, or waiting to run, is terminated
+    // without draining, and freed once runTun2Socks has returned.
+    pthread_mutex_lock(&instance_mutex);
+    if (instance->in_run) {
+        __atomic_store_n(&instance->drain_timeout, 0, __ATOMIC_RELAXED);
+        __atomic_store_n(&instance->terminate, 1, __ATOMIC_RELEASE);
+        if (instance == running_instance) {
+            control_request_terminate();
+        }
+        pthread_cond_broadcast(&instance_cond);
+        while (instance->in_run) {
+            pthread_cond_wait(&instance_cond, &instance_mutex);
+        }
+    }
+    pthread_mutex_unlock(&instance_mutex);
+
+    instance_free(instance);
+}
+
+JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_setSocksServer(
+    JNIEnv* env,
+    jclass cls,
+    jlong handle,
+    jstring socksServerAddress,
+    jstring udpRelayAddress)
+{
+    struct tun2socks_instance* instance = (struct tun2socks_instance*)(intptr_t)handle;
+    const char* socksServerAddressStr = (*env)->GetStringUTFChars(env, socksServerAddress, 0);
+    const char* udpRelayAddressStr = (*env)->GetStringUTFChars(env, udpRelayAddress, 0);
+
+    // Resolve here rather than on the reactor thread. BLog is not safe to
+    // use from this thread, so failures are only reported through the result.
+    int result = 0;
+    BAddr new_socks_server_addrs[SOCKSBALANCER_MAX_SERVERS];
+    int new_num_socks_servers = parse_socks_server_addrs(socksServerAddressStr, new_socks_server_addrs);
+    BAddr new_udp_relay_addr;
+    if (new_num_socks_servers > 0 &&
+        BAddr_Parse2(&new_udp_relay_addr, (char*)udpRelayAddressStr, NULL, 0, 0)) {
+        pthread_mutex_lock(&instance_mutex);
+        if (running_instance == instance) {
+            result = control_request_socks_server(new_socks_server_addrs, new_num_socks_servers, new_udp_relay_addr);
+        }
+        pthread_mutex_unlock(&instance_mutex);
+    }
+
+    (*env)->ReleaseStringUTFChars(env, socksServerAddress, socksServerAddressStr);
+    (*env)->ReleaseStringUTFChars(env, udpRelayAddress, udpRelayAddressStr);
+
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_setTunFd(
+    JNIEnv* env,
+    jclass cls,
+    jlong handle,
+    jint vpnInterfaceFileDescriptor)
+{
+    struct tun2socks_instance* instance = (struct tun2socks_instance*)(intptr_t)handle;
+
+    // The instance stays running while we wait, since run needs the lock
+    // to finish. A stopping reactor fails the request in control_free.
+    int result = 0;
+    pthread_mutex_lock(&instance_mutex);
+    if (running_instance == instance) {
+        result = control_request_tun_fd(vpnInterfaceFileDescriptor);
+    }
+    pthread_mutex_unlock(&instance_mutex);
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_org_uproxy_tun2socks_Tun2SocksJni_getTun2SocksStats(
+    JNIEnv* env,
+    jclass cls,
+    jlongArray counters)
+{
+    jlong snapshot[TUN2SOCKS_NUM_STATS];
+    jsize count = (*env)->GetArrayLength(env, counters);
+    if (count > TUN2SOCKS_NUM_STATS) {
+        count = TUN2SOCKS_NUM_STATS;
+    }
+    for (jsize i = 0; i < count; i++) {
+        snapshot[i] = Tun2SocksStats_Get(i);
+    }
+    (*env)->SetLongArrayRegion(env, counters, 0, count, snapshot);
+    return count;
+}
+
 // from tcp_helper.c
 /** Remove all pcbs on the given list. */
 static void tcp_remove(struct tcp_pcb* pcb_list)
@@ -591,13 +1509,21 @@ void run()
 
     BLog(BLOG_NOTICE, "initializing "GLOBAL_PRODUCT_NAME" "PROGRAM_NAME" "GLOBAL_VERSION);
 
+    // start counting from zero for this run
+    Tun2SocksStats_Reset();
+
     // clear password contents pointer
     password_file_contents = NULL;
 
-    // initialize network
-    if (!BNetwork_GlobalInit()) {
-        BLog(BLOG_ERROR, "BNetwork_GlobalInit failed");
-        goto fail1;
+    // initialize network and time; uProxy: once per process, since
+    // instances run in turn
+    if (!process_initialized) {
+        if (!BNetwork_GlobalInit()) {
+            BLog(BLOG_ERROR, "BNetwork_GlobalInit failed");
+            goto fail1;
+        }
+        BTime_Init();
+        process_initialized = 1;
     }
 
     // process arguments
@@ -606,17 +1532,18 @@ void run()
         goto fail1;
     }
 
-    // init time
-    BTime_Init();
-
     // init reactor
     if (!BReactor_Init(&ss)) {
         BLog(BLOG_ERROR, "BReactor_Init failed");
         goto fail1;
     }
 
+    // uProxy: count wakeups, to tell how often an idle tunnel wakes the CPU
+    BReactor_SetWakeupCounter(&ss, &tun2socks_stats[TUN2SOCKS_STAT_REACTOR_WAKEUPS]);
+
     // set not quitting
     quitting = 0;
+    terminate_request_delay = 0;
 
     // PSIPHON
     if (options.set_signal) {
@@ -647,12 +1574,34 @@ void run()
     // then lwip (so it can send packets to the device),
     // then device reading (so it can pass received packets to lwip).
 
+    // uProxy: read several packets per device wakeup
+    if (!BTap_SetReadBatch(&device, options.tun_read_batch)) {
+        BLog(BLOG_ERROR, "BTap_SetReadBatch failed");
+        goto fail3a;
+    }
+
     // init device reading
-    PacketPassInterface_Init(&device_read_interface, BTap_GetMTU(&device), device_read_handler_send, NULL, BReactor_PendingGroup(&ss));
-    if (!SinglePacketBuffer_Init(&device_read_buffer, BTap_GetOutput(&device), &device_read_interface, BReactor_PendingGroup(&ss))) {
-        BLog(BLOG_ERROR, "SinglePacketBuffer_Init failed");
-        goto fail4;
+    if (BTap_GetMTU(&device) > UINT16_MAX) {
+        BLog(BLOG_ERROR, "device MTU too large");
+        goto fail3a;
+    }
+    if (!DevicePbufPool_Init(&device_read_pool, options.device_buffers, BTap_GetMTU(&device))) {
+        BLog(BLOG_ERROR, "DevicePbufPool_Init failed");
+        goto fail3a;
     }
+    if (!(device_read_spare = (uint8_t *)BAlloc(BTap_GetMTU(&device)))) {
+        BLog(BLOG_ERROR, "BAlloc failed");
+        goto fail3b;
+    }
+    PacketRecvInterface_Receiver_Init(BTap_GetOutput(&device), device_read_handler_done, NULL);
+    device_read_start();
+
+    // uProxy: split the TCP buffer memory evenly between the two directions;
+    // a connection's upload buffer holds its whole receive window, so there
+    // are far fewer of those
+    int client_buffer_memory = options.tcp_buffer_memory / 2;
+    BufferPool_Init(&client_buffers, options.tcp_wnd, bmax_int(1, client_buffer_memory / options.tcp_wnd), TCP_BUFFER_POOL_MAX_FREE);
+    BufferPool_Init(&client_socks_recv_buffers, options.socks_recv_buf_size, bmax_int(1, client_buffer_memory / options.socks_recv_buf_size), TCP_BUFFER_POOL_MAX_FREE);
 
     // uProxy: always calculate udp_mtu
     // compute maximum UDP payload size we need to pass through udpgw
@@ -676,7 +1625,7 @@ void run()
         }
 
         // init udpgw client
-        if (!SocksUdpGwClient_Init(&udpgw_client, udp_mtu, DEFAULT_UDPGW_MAX_CONNECTIONS, options.udpgw_connection_buffer_size, UDPGW_KEEPALIVE_TIME,
+        if (!SocksUdpGwClient_Init(&udpgw_client, udp_mtu, options.udpgw_max_connections, options.udpgw_connection_buffer_size, UDPGW_KEEPALIVE_TIME,
                                    socks_server_addr, socks_auth_info, socks_num_auth_info,
                                    udpgw_remote_server_addr, UDPGW_RECONNECT_TIME, &ss, NULL, udp_send_packet_to_device
         )) {
@@ -685,6 +1634,28 @@ void run()
         }
     }
 
+    // ==== UPROXY ====
+    if (options.socks_udp) {
+        // init UDP associations
+        if (!SocksUdpRelay_Init(&socks_udp_relay, udp_mtu, options.socks_udp_max_flows, options.socks_udp_idle_timeout,
+                                socks_server_addr, socks_auth_info, socks_num_auth_info, &ss, NULL, udp_send_packet_to_device
+        )) {
+            BLog(BLOG_ERROR, "SocksUdpRelay_Init failed");
+            goto fail4b;
+        }
+    }
+
+    // init SOCKS server selection
+    SocksBalancer_Init(&socks_balancer, socks_balance_policy, SOCKS_SERVER_MAX_FAILURES, SOCKS_SERVER_EJECT_TIME,
+                       socks_server_addrs, num_socks_servers);
+
+    // init SOCKS connection pools, unless authentication differs per connection
+    have_socks_pool = (options.socks_pool_size > 0 && !options.append_source_to_username);
+    if (have_socks_pool) {
+        socks_pools_init();
+    }
+    // ==== UPROXY ====
+
     // init lwip init job
     BPending_Init(&lwip_init_job, BReactor_PendingGroup(&ss), lwip_init_job_handler, NULL);
     BPending_Set(&lwip_init_job);
@@ -699,6 +1670,12 @@ void run()
     // it won't trigger before lwip is initialized, becuase the lwip init is a job
     BTimer_Init(&tcp_timer, TCP_TMR_INTERVAL, tcp_timer_handler, NULL);
     BReactor_SetTimer(&ss, &tcp_timer);
+    tcp_timer_idle = 0;
+
+    // uProxy: init draining
+    BTimer_Init(&drain_timer, 0, drain_timer_handler, NULL);
+    BPending_Init(&drain_job, BReactor_PendingGroup(&ss), drain_job_handler, NULL);
+    draining = 0;
 
     // set no netif
     have_netif = 0;
@@ -714,8 +1691,34 @@ void run()
     num_clients = 0;
 
     // ==== UPROXY ====
-    if (!udp_init(&udp_pcb)) {
-        goto fail5;
+    // the UDP relay socket, or DNS over TCP, is only used for transparent DNS
+    if (options.transparent_dns) {
+        if (!dns_upstream_init()) {
+            goto fail6;
+        }
+    }
+
+    if (options.transparent_dns && options.dns_cache_size > 0) {
+        if (!DnsCache_Init(&dns_cache, options.dns_cache_size, DNS_CACHE_MAX_RESPONSE_LEN,
+                           DNS_CACHE_MAX_TTL, DNS_CACHE_MAX_NEGATIVE_TTL)) {
+            BLog(BLOG_ERROR, "DnsCache_Init failed");
+            goto fail7;
+        }
+    } else {
+        options.dns_cache_size = 0;
+    }
+
+    if (options.fake_dns) {
+        BIPAddr pool_addr;
+        ASSERT_FORCE(BIPAddr_Resolve(&pool_addr, (char *)FAKE_DNS_POOL_ADDR, 1))
+        if (!FakeDns_Init(&fake_dns, pool_addr.ipv4, FAKE_DNS_POOL_PREFIX_LEN, options.fake_dns_size)) {
+            BLog(BLOG_ERROR, "FakeDns_Init failed");
+            goto fail8;
+        }
+    }
+
+    if (!control_init()) {
+        goto fail9;
     }
     // ==== UPROXY ====
 
@@ -761,25 +1764,60 @@ void run()
     // ==== PSIPHON ====
 
     // ==== UPROXY ====
-    udp_free(&udp_pcb);
+    control_free();
+fail9:
+    if (options.fake_dns) {
+        FakeDns_Free(&fake_dns);
+    }
+fail8:
+    if (options.dns_cache_size > 0) {
+        DnsCache_Free(&dns_cache);
+    }
+fail7:
+    if (options.transparent_dns) {
+        dns_upstream_free();
+    }
     // ==== UPROXY ====
 
+fail6:
+    BPending_Free(&drain_job);
+    BReactor_RemoveTimer(&ss, &drain_timer);
     BReactor_RemoveTimer(&ss, &tcp_timer);
     BFree(device_write_buf);
 fail5:
     BPending_Free(&lwip_init_job);
+    if (have_socks_pool) {
+        socks_pools_free();
+    }
+    SocksBalancer_Free(&socks_balancer);
+    if (options.socks_udp) {
+        SocksUdpRelay_Free(&socks_udp_relay);
+    }
+fail4b:
     if (options.udpgw_remote_server_addr) {
         SocksUdpGwClient_Free(&udpgw_client);
     }
 fail4a:
-    SinglePacketBuffer_Free(&device_read_buffer);
-fail4:
-    PacketPassInterface_Free(&device_read_interface);
+    BufferPool_Free(&client_socks_recv_buffers);
+    BufferPool_Free(&client_buffers);
+    if (device_read_data != device_read_spare) {
+        DevicePbufPool_Put(&device_read_pool, device_read_data);
+    }
+    BFree(device_read_spare);
+fail3b:
+    DevicePbufPool_Free(&device_read_pool);
+fail3a:
     BTap_Free(&device);
 fail3:
-    BSignal_Finish();
+    if (options.set_signal) {
+        BSignal_Finish();
+    }
 fail2:
     BReactor_Free(&ss);
+    // uProxy: time the teardown since terminate
+    if (quitting) {
+        Tun2SocksStats_Set(TUN2SOCKS_STAT_SHUTDOWN_TEARDOWN_MS, btime_gettime() - terminate_time);
+    }
 fail1:
     BFree(password_file_contents);
     BLog(BLOG_NOTICE, "exiting");
@@ -797,6 +1835,20 @@ void terminate (void)
     // set quitting
     quitting = 1;
 
+    // uProxy: account for the drain; the clients left are reset by the
+    // teardown
+    terminate_time = btime_gettime();
+    Tun2SocksStats_Set(TUN2SOCKS_STAT_SHUTDOWN_REQUEST_MS, terminate_request_delay);
+    if (draining) {
+        Tun2SocksStats_Set(TUN2SOCKS_STAT_SHUTDOWN_DRAIN_MS, terminate_time - drain_start_time);
+        Tun2SocksStats_Set(TUN2SOCKS_STAT_SHUTDOWN_FLOWS_FINISHED, drain_num_clients - drain_num_reset - num_clients);
+    } else {
+        Tun2SocksStats_Set(TUN2SOCKS_STAT_SHUTDOWN_DRAIN_MS, 0);
+        Tun2SocksStats_Set(TUN2SOCKS_STAT_SHUTDOWN_FLOWS_FINISHED, 0);
+        drain_num_reset = 0;
+    }
+    Tun2SocksStats_Set(TUN2SOCKS_STAT_SHUTDOWN_FLOWS_RESET, drain_num_reset + num_clients);
+
     // exit event loop
     BReactor_Quit(&ss, 1);
 }
@@ -820,7 +1872,7 @@ void print_help (const char *name)
         "        [--tundev <name>]\n"
         "        --netif-ipaddr <ipaddr>\n"
         "        --netif-netmask <ipnetmask>\n"
-        "        --socks-server-addr <addr>\n"
+        "        --socks-server-addr <addr>[,<addr>...]\n"
         "        [--netif-ip6addr <addr>]\n"
         "        [--username <username>]\n"
         "        [--password <password>]\n"
@@ -830,6 +1882,26 @@ void print_help (const char *name)
         "        [--udpgw-max-connections <number>]\n"
         "        [--udpgw-connection-buffer-size <number>]\n"
         "        [--udpgw-transparent-dns]\n"
+        "        [--dns-cache-size <number>]\n"
+        "        [--fake-dns]\n"
+        "        [--fake-dns-size <number>]\n"
+        "        [--dns-tcp]\n"
+        "        [--dns-tcp-connections <number>]\n"
+        "        [--socks-udp]\n"
+        "        [--socks-udp-max-flows <number>]\n"
+        "        [--socks-udp-idle-timeout <ms>]\n"
+        "        [--socks-pool-size <number>]\n"
+        "        [--socks-pool-max-idle <ms>]\n"
+        "        [--socks-balance <round-robin/least-connections/latency>]\n"
+        "        [--socks-pipelined]\n"
+        "        [--tun-read-batch <number>]\n"
+        "        [--device-buffers <number>]\n"
+        "        [--max-tcp-connections <number>]\n"
+        "        [--tcp-buffer-memory <bytes>]\n"
+        "        [--tcp-idle-timeout <ms>]\n"
+        "        [--tcp-wnd <bytes>]\n"
+        "        [--tcp-snd-buf <bytes>]\n"
+        "        [--socks-recv-buf <bytes>]\n"
         "Address format is a.b.c.d:port (IPv4) or [addr]:port (IPv6).\n",
         name
     );
@@ -869,6 +1941,26 @@ void init_arguments (const char* program_name)
     options.udpgw_connection_buffer_size = DEFAULT_UDPGW_CONNECTION_BUFFER_SIZE;
     options.transparent_dns = 0;
     options.dns_resolver_addr = NULL;
+    options.dns_cache_size = DEFAULT_DNS_CACHE_SIZE;
+    options.fake_dns = 0;
+    options.fake_dns_size = DEFAULT_FAKE_DNS_SIZE;
+    options.dns_tcp = 0;
+    options.dns_tcp_connections = DEFAULT_DNS_TCP_CONNECTIONS;
+    options.socks_udp = 0;
+    options.socks_udp_max_flows = DEFAULT_SOCKS_UDP_MAX_FLOWS;
+    options.socks_udp_idle_timeout = DEFAULT_SOCKS_UDP_IDLE_TIMEOUT;
+    options.socks_pool_size = DEFAULT_SOCKS_POOL_SIZE;
+    options.socks_pool_max_idle = DEFAULT_SOCKS_POOL_MAX_IDLE;
+    options.socks_balance = NULL;
+    options.socks_pipelined = 0;
+    options.tun_read_batch = DEFAULT_TUN_READ_BATCH;
+    options.device_buffers = DEFAULT_DEVICE_BUFFERS;
+    options.max_tcp_connections = DEFAULT_MAX_TCP_CONNECTIONS;
+    options.tcp_buffer_memory = DEFAULT_TCP_BUFFER_MEMORY;
+    options.tcp_idle_timeout = DEFAULT_TCP_IDLE_TIMEOUT;
+    options.tcp_wnd = DEFAULT_TCP_WND;
+    options.tcp_snd_buf = DEFAULT_TCP_SND_BUF;
+    options.socks_recv_buf_size = DEFAULT_SOCKS_RECV_BUF_SIZE;
 
     options.tun_fd = 0;
     options.set_signal = 1;
@@ -1014,53 +2106,241 @@ int parse_arguments (int argc, char *argv[])
                 fprintf(stderr, "%s: requires an argument\n", arg);
                 return 0;
             }
-            options.password = argv[i + 1];
+            options.password = argv[i + 1];
+            i++;
+        }
+        else if (!strcmp(arg, "--password-file")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            options.password_file = argv[i + 1];
+            i++;
+        }
+        else if (!strcmp(arg, "--append-source-to-username")) {
+            options.append_source_to_username = 1;
+        }
+        else if (!strcmp(arg, "--udpgw-remote-server-addr")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            options.udpgw_remote_server_addr = argv[i + 1];
+            i++;
+        }
+        else if (!strcmp(arg, "--udpgw-max-connections")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.udpgw_max_connections = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--udpgw-connection-buffer-size")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.udpgw_connection_buffer_size = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--transparent-dns")) {
+            options.transparent_dns = 1;
+        }
+        else if (!strcmp(arg, "--dns-cache-size")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.dns_cache_size = atoi(argv[i + 1])) < 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--fake-dns")) {
+            options.fake_dns = 1;
+        }
+        else if (!strcmp(arg, "--fake-dns-size")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.fake_dns_size = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--dns-tcp")) {
+            options.dns_tcp = 1;
+        }
+        else if (!strcmp(arg, "--dns-tcp-connections")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.dns_tcp_connections = atoi(argv[i + 1])) <= 0 ||
+                options.dns_tcp_connections > DNSTCPCLIENT_MAX_CONNECTIONS) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--socks-udp")) {
+            options.socks_udp = 1;
+        }
+        else if (!strcmp(arg, "--socks-udp-max-flows")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.socks_udp_max_flows = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--socks-udp-idle-timeout")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.socks_udp_idle_timeout = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--socks-pool-size")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.socks_pool_size = atoi(argv[i + 1])) < 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--socks-pool-max-idle")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.socks_pool_max_idle = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--socks-balance")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            options.socks_balance = argv[i + 1];
+            i++;
+        }
+        else if (!strcmp(arg, "--socks-pipelined")) {
+            options.socks_pipelined = 1;
+        }
+        else if (!strcmp(arg, "--tun-read-batch")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.tun_read_batch = atoi(argv[i + 1])) <= 0 ||
+                options.tun_read_batch > MAX_TUN_READ_BATCH) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--device-buffers")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.device_buffers = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--max-tcp-connections")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.max_tcp_connections = atoi(argv[i + 1])) <= 0 || options.max_tcp_connections > UINT16_MAX) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
+            i++;
+        }
+        else if (!strcmp(arg, "--tcp-buffer-memory")) {
+            if (1 >= argc - i) {
+                fprintf(stderr, "%s: requires an argument\n", arg);
+                return 0;
+            }
+            if ((options.tcp_buffer_memory = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
             i++;
         }
-        else if (!strcmp(arg, "--password-file")) {
+        else if (!strcmp(arg, "--tcp-idle-timeout")) {
             if (1 >= argc - i) {
                 fprintf(stderr, "%s: requires an argument\n", arg);
                 return 0;
             }
-            options.password_file = argv[i + 1];
+            if ((options.tcp_idle_timeout = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
             i++;
         }
-        else if (!strcmp(arg, "--append-source-to-username")) {
-            options.append_source_to_username = 1;
-        }
-        else if (!strcmp(arg, "--udpgw-remote-server-addr")) {
+        else if (!strcmp(arg, "--tcp-wnd")) {
             if (1 >= argc - i) {
                 fprintf(stderr, "%s: requires an argument\n", arg);
                 return 0;
             }
-            options.udpgw_remote_server_addr = argv[i + 1];
+            if ((options.tcp_wnd = atoi(argv[i + 1])) <= 0) {
+                fprintf(stderr, "%s: wrong argument\n", arg);
+                return 0;
+            }
             i++;
         }
-        else if (!strcmp(arg, "--udpgw-max-connections")) {
+        else if (!strcmp(arg, "--tcp-snd-buf")) {
             if (1 >= argc - i) {
                 fprintf(stderr, "%s: requires an argument\n", arg);
                 return 0;
             }
-            if ((options.udpgw_max_connections = atoi(argv[i + 1])) <= 0) {
+            if ((options.tcp_snd_buf = atoi(argv[i + 1])) <= 0) {
                 fprintf(stderr, "%s: wrong argument\n", arg);
                 return 0;
             }
             i++;
         }
-        else if (!strcmp(arg, "--udpgw-connection-buffer-size")) {
+        else if (!strcmp(arg, "--socks-recv-buf")) {
             if (1 >= argc - i) {
                 fprintf(stderr, "%s: requires an argument\n", arg);
                 return 0;
             }
-            if ((options.udpgw_connection_buffer_size = atoi(argv[i + 1])) <= 0) {
+            // tcp_write takes at most UINT16_MAX bytes at a time
+            if ((options.socks_recv_buf_size = atoi(argv[i + 1])) <= 0 || options.socks_recv_buf_size > UINT16_MAX) {
                 fprintf(stderr, "%s: wrong argument\n", arg);
                 return 0;
             }
             i++;
         }
-        else if (!strcmp(arg, "--transparent-dns")) {
-            options.transparent_dns = 1;
-        }
         else {
             fprintf(stderr, "unknown option: %s\n", arg);
             return 0;
@@ -1098,6 +2378,16 @@ int parse_arguments (int argc, char *argv[])
         }
     }
 
+    if (options.socks_udp && options.udpgw_remote_server_addr) {
+        fprintf(stderr, "--socks-udp and --udpgw-remote-server-addr cannot both be given\n");
+        return 0;
+    }
+
+    if (options.socks_pipelined && options.username) {
+        fprintf(stderr, "--socks-pipelined cannot be used with --username\n");
+        return 0;
+    }
+
     return 1;
 }
 
@@ -1134,8 +2424,16 @@ int process_arguments (void)
     }
 
     // resolve SOCKS server address
-    if (!BAddr_Parse2(&socks_server_addr, options.socks_server_addr, NULL, 0, 0)) {
-        BLog(BLOG_ERROR, "socks server addr: BAddr_Parse2 failed");
+    if (!(num_socks_servers = parse_socks_server_addrs(options.socks_server_addr, socks_server_addrs))) {
+        BLog(BLOG_ERROR, "socks server addr: invalid address list");
+        return 0;
+    }
+    socks_server_addr = socks_server_addrs[0];
+
+    // parse SOCKS server selection policy
+    socks_balance_policy = SOCKSBALANCER_POLICY_ROUND_ROBIN;
+    if (options.socks_balance && !SocksBalancer_ParsePolicy(options.socks_balance, &socks_balance_policy)) {
+        BLog(BLOG_ERROR, "socks balance: unknown policy");
         return 0;
     }
 
@@ -1173,7 +2471,7 @@ int process_arguments (void)
     }
 
     if (options.transparent_dns) {
-        if (!options.dns_resolver_addr || !options.udp_relay_addr) {
+        if (!options.dns_resolver_addr || (!options.dns_tcp && !options.udp_relay_addr)) {
             BLog(BLOG_ERROR,
                  "transparentDNS requires a DNS resolver address and a UDP relay address");
             return 0;
@@ -1184,13 +2482,24 @@ int process_arguments (void)
             BLog(BLOG_ERROR, "DNS resolver address: BAddr_Parse2 failed");
             return 0;
         }
-        // Resolve UDP relay address.
-        if (!BAddr_Parse2(&udp_relay_addr, options.udp_relay_addr, NULL, 0, 0)) {
+        // Resolve UDP relay address. It isn't used with DNS over TCP.
+        if (!options.dns_tcp && !BAddr_Parse2(&udp_relay_addr, options.udp_relay_addr, NULL, 0, 0)) {
             BLog(BLOG_ERROR, "UDP relay address: BAddr_Parse2 failed");
             return 0;
         }
     }
 
+    if (options.dns_tcp && !options.transparent_dns) {
+        BLog(BLOG_ERROR, "DNS over TCP requires transparentDNS");
+        return 0;
+    }
+
+    // fake addresses are handed out in answers to the DNS resolver's queries
+    if (options.fake_dns && !options.transparent_dns) {
+        BLog(BLOG_ERROR, "fakeDNS requires transparentDNS");
+        return 0;
+    }
+
     return 1;
 }
 
@@ -1228,8 +2537,25 @@ void lwip_init_job_handler (void *unused)
     // NOTE: the device may fail during this, but there's no harm in not checking
     // for that at every step
 
+    // uProxy: size the lwIP pools for the connection limit
+    memp_set_num(MEMP_TCP_PCB, options.max_tcp_connections);
+    // uProxy: queue as many segments per connection as lwIP's default
+    // TCP_SND_QUEUELEN does for the send buffer
+    int tcp_snd_queuelen = bmin_int(4 * (options.tcp_snd_buf / TCP_MSS), TCP_SNDQUEUELEN_OVERFLOW);
+    memp_set_num(MEMP_TCP_SEG, bmin_int(bmax_int(options.max_tcp_connections * TCP_SEGS_PER_CONNECTION, tcp_snd_queuelen), UINT16_MAX));
+
     // init lwip
     lwip_init();
+    if (!memp_init_ok()) {
+        BLog(BLOG_ERROR, "lwIP pool allocation failed");
+        goto fail;
+    }
+
+    // uProxy: set the per-connection TCP windows
+    if (tcp_set_buffers(options.tcp_wnd, options.tcp_snd_buf, tcp_snd_queuelen) != ERR_OK) {
+        BLog(BLOG_ERROR, "invalid TCP window %d or send buffer %d", options.tcp_wnd, options.tcp_snd_buf);
+        goto fail;
+    }
 
     // make addresses for netif
     ip_addr_t addr;
@@ -1322,30 +2648,174 @@ void tcp_timer_handler (void *unused)
     // ==== PSIPHON ====
 
     // Check if the terminate flag has been set by Psiphon.
+    // uProxy: terminateTun2Socks also wakes the reactor through the control
+    // pipe, but the pipe is opened after the timer is started.
 
-    // TODO: instead of piggybacking on this timer,
-    // we could perhaps write to a pipe hooked into
-    // the BReactor event loop, which would eliminate
-    // any shutdown delay due to waiting for this timer.
-
-    if (__sync_bool_compare_and_swap(&g_terminate, 1, 1)) {
-        BLog(BLOG_NOTICE, "g_terminate is set");
-        terminate();
-        return;
+    if (!draining && instance_terminating()) {
+        instance_shutdown();
+        if (quitting) {
+            return;
+        }
     }
 
     // ==== PSIPHON ====
 
     BLog(BLOG_DEBUG, "TCP timer");
 
-    // schedule next timer
-    // TODO: calculate timeout so we don't drift
-    BReactor_SetTimer(&ss, &tcp_timer);
-
     tcp_tmr();
+
+    // uProxy: close connections that have been idle for too long
+    client_reap_idle();
+
+    // uProxy: schedule next timer, unless lwIP has nothing to time; while
+    // all connections are idle, only wake up to close idle clients
+    if (!tcp_active_pcbs && !tcp_tw_pcbs) {
+        tcp_timer_idle = 0;
+    } else if (tcp_timer_pcbs_idle()) {
+        btime_t wakeup = btime_add(btime_gettime(), TCP_TIMER_IDLE_INTERVAL);
+        for (LinkedList1Node *node = LinkedList1_GetFirst(&tcp_clients); node; node = LinkedList1Node_Next(node)) {
+            struct tcp_client *client = UPPER_OBJECT(node, struct tcp_client, list_node);
+            // client_reap_idle skips the closed ones
+            if (!client->client_closed) {
+                wakeup = bmin_int64(wakeup, btime_add(client->last_activity, options.tcp_idle_timeout));
+                break;
+            }
+        }
+        BReactor_SetTimerAbsoluteCoarse(&ss, &tcp_timer, wakeup);
+        tcp_timer_idle = 1;
+    } else {
+        // TODO: calculate timeout so we don't drift
+        BReactor_SetTimer(&ss, &tcp_timer);
+        tcp_timer_idle = 0;
+    }
     return;
 }
 
+// uProxy: the TCP timer runs every TCP_TMR_INTERVAL only while lwIP has
+// something to time, so that an idle tunnel does not wake up several times a
+// second. Something to time only comes from device input, or from data and
+// FINs queued for the device, which call this to speed the timer up again.
+void tcp_timer_update (void)
+{
+    if (BTimer_IsRunning(&tcp_timer) && !tcp_timer_idle) {
+        return;
+    }
+
+    if (tcp_active_pcbs || tcp_tw_pcbs) {
+        BReactor_SetTimer(&ss, &tcp_timer);
+        tcp_timer_idle = 0;
+    }
+}
+
+// Returns whether no active pcb has anything for tcp_tmr to do: nothing
+// unacknowledged or waiting for the window, no delayed ACK or refused data,
+// and no handshake or close in progress. The pcbs in TIME-WAIT always do.
+int tcp_timer_pcbs_idle (void)
+{
+    if (tcp_tw_pcbs) {
+        return 0;
+    }
+
+    for (struct tcp_pcb *pcb = tcp_active_pcbs; pcb; pcb = pcb->next) {
+        if ((pcb->state != ESTABLISHED && pcb->state != CLOSE_WAIT) ||
+            pcb->unsent || pcb->unacked || pcb->ooseq || pcb->refused_data ||
+            pcb->persist_backoff > 0 || (pcb->flags & (TF_ACK_DELAY | TF_ACK_NOW | TF_NAGLEMEMERR)) ||
+            ip_get_option(pcb, SOF_KEEPALIVE)) {
+            return 0;
+        }
+    }
+
+    return 1;
+}
+
+// uProxy: instead of resetting all TCP clients at once when terminating, give
+// them up to |timeout| to pass on the data already buffered in either
+// direction. New connections are refused, and no more data is taken from the
+// clients or read from SOCKS. Clients whose SOCKS connection closed get their
+// FIN as usual; the others are reset as soon as their data is passed on, so
+// that applications reconnect rather than wait. Whatever is left at the
+// deadline is reset by the teardown.
+void drain_start (btime_t timeout)
+{
+    ASSERT(!quitting)
+    ASSERT(!draining)
+    ASSERT(timeout > 0)
+
+    BLog(BLOG_NOTICE, "draining %d TCP clients for up to %d ms", num_clients, (int)timeout);
+
+    draining = 1;
+    drain_start_time = btime_gettime();
+    drain_num_clients = num_clients;
+    drain_num_reset = 0;
+
+    // refuse new connections; lwIP resets them without a listener
+    if (listener_ip6) {
+        tcp_close(listener_ip6);
+        listener_ip6 = NULL;
+    }
+    if (listener) {
+        tcp_close(listener);
+        listener = NULL;
+    }
+
+    BReactor_SetTimerAfter(&ss, &drain_timer, timeout);
+    BPending_Set(&drain_job);
+}
+
+void drain_timer_handler (void *unused)
+{
+    ASSERT(draining)
+    ASSERT(!quitting)
+
+    BLog(BLOG_NOTICE, "drain deadline passed with %d TCP clients left", num_clients);
+
+    terminate();
+}
+
+void drain_job_handler (void *unused)
+{
+    ASSERT(draining)
+    ASSERT(!quitting)
+
+    LinkedList1Node *node = LinkedList1_GetFirst(&tcp_clients);
+    while (node) {
+        struct tcp_client *client = UPPER_OBJECT(node, struct tcp_client, list_node);
+        node = LinkedList1Node_Next(node);
+
+        if (client_drained(client)) {
+            client_log(client, BLOG_INFO, "resetting after draining");
+            drain_num_reset++;
+            client_murder(client);
+        }
+    }
+
+    if (num_clients == 0) {
+        BLog(BLOG_NOTICE, "drained after %d ms", (int)(btime_gettime() - drain_start_time));
+
+        // send the FINs that lwIP queued from its input, before the
+        // teardown resets their pcbs
+        for (struct tcp_pcb *pcb = tcp_active_pcbs; pcb; pcb = pcb->next) {
+            tcp_output(pcb);
+        }
+
+        terminate();
+    }
+}
+
+// Returns whether a draining client should be reset now. Clients that are
+// closing on either side finish on their own, and clients still connecting
+// to SOCKS have nothing to pass on.
+int client_drained (struct tcp_client *client)
+{
+    if (client->client_closed || client->socks_closed) {
+        return 0;
+    }
+    if (!client->socks_up) {
+        return 1;
+    }
+    return (client->buf_used == 0 && client->socks_recv_buf_used == -1 && client->socks_recv_tcp_pending == 0);
+}
+
 void device_error_handler (void *unused)
 {
     ASSERT(!quitting)
@@ -1356,47 +2826,89 @@ void device_error_handler (void *unused)
     return;
 }
 
-void device_read_handler_send (void *unused, uint8_t *data, int data_len)
+void device_read_start (void)
+{
+    // read into a pool buffer if lwIP doesn't hold all of them
+    if (!(device_read_data = DevicePbufPool_Get(&device_read_pool))) {
+        device_read_data = device_read_spare;
+    }
+
+    PacketRecvInterface_Receiver_Recv(BTap_GetOutput(&device), device_read_data);
+}
+
+void device_read_handler_done (void *unused, int data_len)
 {
     ASSERT(!quitting)
     ASSERT(data_len >= 0)
+    ASSERT(data_len <= UINT16_MAX)
 
     BLog(BLOG_DEBUG, "device: received packet");
 
-    // accept packet
-    PacketPassInterface_Done(&device_read_interface);
+    uint8_t *data = device_read_data;
+    int pooled = (data != device_read_spare);
+
+    uint64_t read_wakeups;
+    uint64_t packets_read;
+    BTap_GetReadCounters(&device, &read_wakeups, &packets_read);
+    Tun2SocksStats_Set(TUN2SOCKS_STAT_DEVICE_READ_WAKEUPS, read_wakeups);
+    Tun2SocksStats_Set(TUN2SOCKS_STAT_DEVICE_PACKETS_READ, packets_read);
 
     // process UDP directly
     if (process_device_udp_packet(data, data_len)) {
-        return;
+        if (pooled) {
+            DevicePbufPool_Put(&device_read_pool, data);
+        }
+        goto read_next;
     }
 
     // obtain pbuf
-    if (data_len > UINT16_MAX) {
-        BLog(BLOG_WARNING, "device read: packet too large");
-        return;
-    }
-    struct pbuf *p = pbuf_alloc(PBUF_RAW, data_len, PBUF_POOL);
-    if (!p) {
-        BLog(BLOG_WARNING, "device read: pbuf_alloc failed");
-        return;
+    struct pbuf *p;
+    if (pooled) {
+        // lwIP takes the buffer, and it returns to the pool when freed
+        p = DevicePbufPool_MakePbuf(&device_read_pool, data, data_len);
+    } else {
+        p = pbuf_alloc(PBUF_RAW, data_len, PBUF_POOL);
+        if (!p) {
+            BLog(BLOG_WARNING, "device read: pbuf_alloc failed");
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_PBUF_ALLOC_FAILURES);
+            // uProxy: with large windows, out-of-order segments queued by lwIP
+            // can hold every buffer, so that the missing segments can never be
+            // read; drop some of them to make room
+            PBUF_CHECK_FREE_OOSEQ();
+            goto read_next;
+        }
+
+        // write packet to pbuf
+        ASSERT_FORCE(pbuf_take(p, data, data_len) == ERR_OK)
+
+        Tun2SocksStats_Inc(TUN2SOCKS_STAT_DEVICE_PACKETS_COPIED);
     }
 
-    // write packet to pbuf
-    ASSERT_FORCE(pbuf_take(p, data, data_len) == ERR_OK)
+    Tun2SocksStats_Inc(TUN2SOCKS_STAT_TCP_PACKETS_UP);
+    Tun2SocksStats_Add(TUN2SOCKS_STAT_TCP_BYTES_UP, data_len);
 
     // pass pbuf to input
     if (netif.input(p, &netif) != ERR_OK) {
         BLog(BLOG_WARNING, "device read: input failed");
         pbuf_free(p);
     }
+
+    // uProxy: the packet may have started a connection or left lwIP something
+    // to time
+    tcp_timer_update();
+
+read_next:
+    device_read_start();
 }
 
 int process_device_udp_packet (uint8_t *data, int data_len)
 {
     ASSERT(data_len >= 0)
-    // do nothing if we don't have udpgw or dns resolver
-    if (!options.udpgw_remote_server_addr && !options.dns_resolver_addr) {
+
+    int packet_len = data_len;
+
+    // do nothing if we don't have udpgw, UDP associations or dns resolver
+    if (!options.udpgw_remote_server_addr && !options.socks_udp && !options.dns_resolver_addr) {
         goto fail;
     }
 
@@ -1508,7 +3020,57 @@ int process_device_udp_packet (uint8_t *data, int data_len)
     BAddr_Print(&remote_addr, remote_addr_str);
     BLog(BLOG_DEBUG, "UDP: %s -> %s. DNS: %d", local_addr_str, remote_addr_str, is_dns);
 
+    // fake addresses only stand for host names in TCP connections
+    if (options.fake_dns && remote_addr.type == BADDR_TYPE_IPV4 &&
+        FakeDns_IsFakeAddr(&fake_dns, remote_addr.ipv4.ip)) {
+        BLog(BLOG_DEBUG, "UDP to a fake address, dropping");
+        goto fail;
+    }
+
     if (options.transparent_dns && is_dns) {
+        if (options.fake_dns) {
+            int answer_len;
+            const uint8_t *answer = FakeDns_Answer(&fake_dns, data, data_len, &answer_len);
+            if (answer) {
+                Tun2SocksStats_Inc(TUN2SOCKS_STAT_FAKE_DNS_ANSWERS);
+                udp_send_packet_to_device(NULL, local_addr, remote_addr, answer, answer_len);
+                return 1;
+            }
+        }
+
+        if (options.dns_cache_size > 0) {
+            int answer_len;
+            const uint8_t *answer = DnsCache_Lookup(&dns_cache, data, data_len, &answer_len);
+            if (answer) {
+                Tun2SocksStats_Inc(TUN2SOCKS_STAT_DNS_CACHE_HITS);
+                udp_send_packet_to_device(NULL, local_addr, remote_addr, answer, answer_len);
+                return 1;
+            }
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_DNS_CACHE_MISSES);
+        }
+
+        if (data_len < sizeof(struct dns_header)) {
+            BLog(BLOG_ERROR, "DNS request is too short");
+            goto fail;
+        }
+
+        if (options.dns_tcp) {
+            if (!DnsTcpClient_SubmitQuery(&dns_tcp_client, local_addr, data, data_len)) {
+                goto fail;
+            }
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_DNS_PACKETS_UP);
+            Tun2SocksStats_Add(TUN2SOCKS_STAT_DNS_BYTES_UP, packet_len);
+            return 1;
+        }
+
+        // Remember where to send the answer. The request may be given a
+        // different transaction ID if another one is pending under its own.
+        uint16_t relay_dns_id;
+        if (!DnsFlowTable_Add(&udp_pcb.flows, dns_get_header_id(data), local_addr, &relay_dns_id)) {
+            BLog(BLOG_ERROR, "failed to associate dns request id to local address");
+            goto fail;
+        }
+
         // Wrap the payload in a UDP SOCKS header.
         static size_t socks_udp_header_len = sizeof(struct socks_udp_header);
         struct socks_udp_header header;
@@ -1521,6 +3083,7 @@ int process_device_udp_packet (uint8_t *data, int data_len)
         char socks_udp_request[socks_udp_request_len];
         memcpy(socks_udp_request, &header, socks_udp_header_len);
         memcpy(socks_udp_request + socks_udp_header_len, data, data_len);
+        dns_set_header_id((uint8_t *)socks_udp_request + socks_udp_header_len, relay_dns_id);
 
         int sent_bytes = udp_send(udp_pcb.sockfd, socks_udp_request, socks_udp_request_len);
         if (sent_bytes < data_len) {
@@ -1528,18 +3091,29 @@ int process_device_udp_packet (uint8_t *data, int data_len)
                  sent_bytes, data_len);
             goto fail;
         }
-
-        char dns_id_str[DNS_ID_STRLEN];
-        dns_get_header_id_str(dns_id_str, data);
-        if (!BStringMap_Set(&udp_pcb.map, dns_id_str, local_addr_str)) {
-            BLog(BLOG_ERROR,
-                 "failed to associate dns request id to local address");
-            goto fail;
-        }
+        Tun2SocksStats_Inc(TUN2SOCKS_STAT_DNS_PACKETS_UP);
+        Tun2SocksStats_Add(TUN2SOCKS_STAT_DNS_BYTES_UP, packet_len);
     } else if (options.udpgw_remote_server_addr) {
         // submit packet to udpgw
         SocksUdpGwClient_SubmitPacket(&udpgw_client, local_addr, remote_addr,
                                       is_dns, data, data_len);
+        if (BAddr_GetPort(&remote_addr) == hton16(UDP_DNS_PORT)) {
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_DNS_PACKETS_UP);
+            Tun2SocksStats_Add(TUN2SOCKS_STAT_DNS_BYTES_UP, packet_len);
+        } else {
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_UDP_PACKETS_UP);
+            Tun2SocksStats_Add(TUN2SOCKS_STAT_UDP_BYTES_UP, packet_len);
+        }
+    } else if (options.socks_udp) {
+        // submit packet to its UDP association
+        SocksUdpRelay_SubmitPacket(&socks_udp_relay, local_addr, remote_addr, data, data_len);
+        if (BAddr_GetPort(&remote_addr) == hton16(UDP_DNS_PORT)) {
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_DNS_PACKETS_UP);
+            Tun2SocksStats_Add(TUN2SOCKS_STAT_DNS_BYTES_UP, packet_len);
+        } else {
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_UDP_PACKETS_UP);
+            Tun2SocksStats_Add(TUN2SOCKS_STAT_UDP_BYTES_UP, packet_len);
+        }
     }
 
     return 1;
@@ -1580,6 +3154,9 @@ err_t common_netif_output (struct netif *netif, struct pbuf *p)
         return ERR_OK;
     }
 
+    Tun2SocksStats_Inc(TUN2SOCKS_STAT_TCP_PACKETS_DOWN);
+    Tun2SocksStats_Add(TUN2SOCKS_STAT_TCP_BYTES_DOWN, p->tot_len);
+
     // if there is just one chunk, send it directly, else via buffer
     if (!p->next) {
         if (p->len > BTap_GetMTU(&device)) {
@@ -1652,6 +3229,15 @@ void client_log (struct tcp_client *client, int level, const char *fmt, ...)
 
 err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
 {
+    // uProxy: lwIP had no PCB for a new connection; make room for when the
+    // SYN is retransmitted
+    if (!newpcb) {
+        ASSERT(err == ERR_MEM)
+        Tun2SocksStats_Inc(TUN2SOCKS_STAT_TCP_CONNECTIONS_REFUSED);
+        client_evict_idle();
+        return ERR_MEM;
+    }
+
     ASSERT(err == ERR_OK)
 
     // signal accepted
@@ -1685,6 +3271,18 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
     ASSERT_FORCE(BAddr_Parse2(&addr, OVERRIDE_DEST_ADDR, NULL, 0, 1))
 #endif
 
+    // uProxy: a fake address stands for the host name it was given for, which
+    // is passed on to the SOCKS server
+    char dest_name[DNS_MAX_NAME_LEN];
+    int dest_name_len = 0;
+    if (options.fake_dns && addr.type == BADDR_TYPE_IPV4 && FakeDns_IsFakeAddr(&fake_dns, addr.ipv4.ip)) {
+        if (!(dest_name_len = FakeDns_GetName(&fake_dns, addr.ipv4.ip, dest_name))) {
+            BLog(BLOG_NOTICE, "listener accept: fake address has no name");
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_FAKE_DNS_MISSES);
+            goto fail1;
+        }
+    }
+
     // add source address to username if requested
     if (options.username && options.append_source_to_username) {
         char addr_str[BADDR_MAX_PRINT_LEN];
@@ -1697,23 +3295,61 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
         socks_auth_info[1].password.username_len = strlen(client->socks_username);
     }
 
-    // init SOCKS
-    if (!BSocksClient_Init(&client->socks_client, socks_server_addr, socks_auth_info, socks_num_auth_info,
-                           addr, (BSocksClient_handler)client_socks_handler, client, &ss)) {
-        BLog(BLOG_ERROR, "listener accept: BSocksClient_Init failed");
-        goto fail1;
+    // choose SOCKS server
+    client->socks_server = SocksBalancer_Select(&socks_balancer, &client->socks_server_generation);
+    client->socks_start_time = btime_gettime();
+
+    // init SOCKS, skipping to the CONNECT request if a pooled connection is ready
+    client->socks_client = (have_socks_pool ? SocksPool_Take(&socks_pools[client->socks_server]) : NULL);
+    if (client->socks_client) {
+        if (dest_name_len > 0) {
+            BSocksClient_SetDestinationName(client->socks_client, dest_name, dest_name_len);
+        }
+        BSocksClient_SetDestination(client->socks_client, addr, options.socks_pipelined,
+                                    (BSocksClient_handler)client_socks_handler, client);
+        Tun2SocksStats_Inc(TUN2SOCKS_STAT_SOCKS_POOL_HITS);
+    } else {
+        if (have_socks_pool) {
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_SOCKS_POOL_MISSES);
+        }
+        if (!(client->socks_client = (BSocksClient *)BAlloc(sizeof(*client->socks_client)))) {
+            BLog(BLOG_ERROR, "listener accept: BAlloc failed");
+            goto fail2;
+        }
+        int res;
+        if (options.socks_pipelined) {
+            // send the hello, the request and the first data together
+            res = BSocksClient_InitPipelined(client->socks_client, SocksBalancer_GetAddr(&socks_balancer, client->socks_server),
+                                             socks_auth_info, socks_num_auth_info,
+                                             addr, (BSocksClient_handler)client_socks_handler, client, &ss);
+        } else {
+            res = BSocksClient_Init(client->socks_client, SocksBalancer_GetAddr(&socks_balancer, client->socks_server),
+                                    socks_auth_info, socks_num_auth_info,
+                                    addr, (BSocksClient_handler)client_socks_handler, client, &ss);
+        }
+        if (!res) {
+            BLog(BLOG_ERROR, "listener accept: BSocksClient_Init failed");
+            BFree(client->socks_client);
+            goto fail2;
+        }
+        if (dest_name_len > 0) {
+            BSocksClient_SetDestinationName(client->socks_client, dest_name, dest_name_len);
+        }
     }
 
     // init dead vars
     DEAD_INIT(client->dead);
     DEAD_INIT(client->dead_client);
 
-    // add to linked list
+    // add to linked list, as the most recently active
     LinkedList1_Append(&tcp_clients, &client->list_node);
+    client->last_activity = btime_gettime();
 
     // increment counter
     ASSERT(num_clients >= 0)
     num_clients++;
+    Tun2SocksStats_Set(TUN2SOCKS_STAT_TCP_CLIENTS_ACTIVE, num_clients);
+    Tun2SocksStats_SetMax(TUN2SOCKS_STAT_TCP_CLIENTS_PEAK, num_clients);
 
     // set pcb
     client->pcb = newpcb;
@@ -1725,6 +3361,11 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
     // enable TCP_NODELAY
     tcp_nagle_disable(client->pcb);
 
+    // uProxy: when lwIP runs out of PCBs it kills the least recently active
+    // connection of at most the listener's priority; keep it away from clients,
+    // whose eviction is left to client_evict_idle
+    tcp_setprio(client->pcb, TCP_PRIO_MAX);
+
     // setup handler argument
     tcp_arg(client->pcb, client);
 
@@ -1732,8 +3373,11 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
     tcp_err(client->pcb, client_err_func);
     tcp_recv(client->pcb, client_recv_func);
 
-    // setup buffer
+    // setup buffer; it is taken from the pool when data arrives
+    client->buf = NULL;
     client->buf_used = 0;
+    client->socks_recv_buf = NULL;
+    client->socks_recv_buf_wanted = 0;
 
     // set SOCKS not up, not closed
     client->socks_up = 0;
@@ -1750,6 +3394,8 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
 
     return ERR_OK;
 
+fail2:
+    SocksBalancer_Release(&socks_balancer, client->socks_server_generation, client->socks_server);
 fail1:
     SYNC_BREAK
     free(client->socks_username);
@@ -1791,6 +3437,9 @@ void client_free_client (struct tcp_client *client)
     tcp_recv(client->pcb, NULL);
     tcp_sent(client->pcb, NULL);
 
+    // uProxy: let lwIP kill the closing pcb first if it runs out of PCBs
+    tcp_setprio(client->pcb, TCP_PRIO_MIN);
+
     // free pcb
     err_t err = tcp_close(client->pcb);
     if (err != ERR_OK) {
@@ -1798,6 +3447,9 @@ void client_free_client (struct tcp_client *client)
         tcp_abort(client->pcb);
     }
 
+    // uProxy: the close needs timers for the FIN and TIME-WAIT
+    tcp_timer_update();
+
     client_handle_freed_client(client);
 }
 
@@ -1829,7 +3481,9 @@ void client_free_socks (struct tcp_client *client)
     }
 
     // free SOCKS
-    BSocksClient_Free(&client->socks_client);
+    BSocksClient_Free(client->socks_client);
+    BFree(client->socks_client);
+    SocksBalancer_Release(&socks_balancer, client->socks_server_generation, client->socks_server);
 
     // set SOCKS closed
     client->socks_closed = 1;
@@ -1868,7 +3522,9 @@ void client_murder (struct tcp_client *client)
     // free SOCKS
     if (!client->socks_closed) {
         // free SOCKS
-        BSocksClient_Free(&client->socks_client);
+        BSocksClient_Free(client->socks_client);
+        BFree(client->socks_client);
+        SocksBalancer_Release(&socks_balancer, client->socks_server_generation, client->socks_server);
 
         // set SOCKS closed
         client->socks_closed = 1;
@@ -1886,6 +3542,12 @@ void client_dealloc (struct tcp_client *client)
     // decrement counter
     ASSERT(num_clients > 0)
     num_clients--;
+    Tun2SocksStats_Set(TUN2SOCKS_STAT_TCP_CLIENTS_ACTIVE, num_clients);
+
+    // uProxy: the drain may be done
+    if (draining && !quitting) {
+        BPending_Set(&drain_job);
+    }
 
     // remove client entry
     LinkedList1_Remove(&tcp_clients, &client->list_node);
@@ -1893,11 +3555,76 @@ void client_dealloc (struct tcp_client *client)
     // kill dead var
     DEAD_KILL(client->dead);
 
+    // return buffers
+    if (client->buf) {
+        BufferPool_Put(&client_buffers, client->buf);
+    }
+    if (client->socks_recv_buf) {
+        BufferPool_Put(&client_socks_recv_buffers, client->socks_recv_buf);
+    }
+    client_buffers_update_stats();
+
     // free memory
     free(client->socks_username);
     free(client);
 }
 
+void client_buffers_update_stats (void)
+{
+    Tun2SocksStats_Set(TUN2SOCKS_STAT_TCP_BUFFER_BYTES,
+                       BufferPool_GetAllocatedBytes(&client_buffers) + BufferPool_GetAllocatedBytes(&client_socks_recv_buffers));
+}
+
+void client_touch (struct tcp_client *client)
+{
+    // keep the list ordered by activity, so that idle clients are at the front
+    client->last_activity = btime_gettime();
+    LinkedList1_Remove(&tcp_clients, &client->list_node);
+    LinkedList1_Append(&tcp_clients, &client->list_node);
+}
+
+void client_reap_idle (void)
+{
+    btime_t now = btime_gettime();
+
+    LinkedList1Node *node = LinkedList1_GetFirst(&tcp_clients);
+    while (node) {
+        struct tcp_client *client = UPPER_OBJECT(node, struct tcp_client, list_node);
+        if (now - client->last_activity < options.tcp_idle_timeout) {
+            break;
+        }
+        // aborting may free the client
+        node = LinkedList1Node_Next(node);
+
+        // clients that are already closed are only waiting to pass data to SOCKS
+        if (!client->client_closed) {
+            client_log(client, BLOG_INFO, "idle timeout");
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_TCP_CLIENTS_REAPED);
+            client_abort_client(client);
+        }
+    }
+}
+
+void client_evict_idle (void)
+{
+    btime_t now = btime_gettime();
+
+    for (LinkedList1Node *node = LinkedList1_GetFirst(&tcp_clients); node; node = LinkedList1Node_Next(node)) {
+        struct tcp_client *client = UPPER_OBJECT(node, struct tcp_client, list_node);
+        if (now - client->last_activity < TCP_EVICT_MIN_IDLE) {
+            break;
+        }
+        if (!client->client_closed) {
+            client_log(client, BLOG_INFO, "evicting to make room for a new connection");
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_TCP_CLIENTS_EVICTED);
+            client_abort_client(client);
+            return;
+        }
+    }
+
+    BLog(BLOG_WARNING, "out of TCP connections, and none is idle enough to evict");
+}
+
 void client_err_func (void *arg, err_t err)
 {
     struct tcp_client *client = (struct tcp_client *)arg;
@@ -1924,8 +3651,25 @@ err_t client_recv_func (void *arg, struct tcp_pcb *tpcb, struct pbuf *p, err_t e
 
     ASSERT(p->tot_len > 0)
 
+    // uProxy: while draining, refuse new data; the client is reset unacknowledged
+    // once the buffered data is passed on
+    if (draining) {
+        return ERR_MEM;
+    }
+
+    // take a buffer if we don't have one; if we're out of buffer memory,
+    // refuse the data and lwIP will offer it again later
+    if (!client->buf) {
+        ASSERT(client->buf_used == 0)
+        if (!(client->buf = BufferPool_Get(&client_buffers))) {
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_TCP_BUFFER_REFUSALS);
+            return ERR_MEM;
+        }
+        client_buffers_update_stats();
+    }
+
     // check if we have enough buffer
-    if (p->tot_len > sizeof(client->buf) - client->buf_used) {
+    if (p->tot_len > options.tcp_wnd - client->buf_used) {
         client_log(client, BLOG_ERROR, "no buffer for data !?!");
         return ERR_MEM;
     }
@@ -1934,6 +3678,8 @@ err_t client_recv_func (void *arg, struct tcp_pcb *tpcb, struct pbuf *p, err_t e
     ASSERT_EXECUTE(pbuf_copy_partial(p, client->buf + client->buf_used, p->tot_len, 0) == p->tot_len)
     client->buf_used += p->tot_len;
 
+    client_touch(client);
+
     // if there was nothing in the buffer before, and SOCKS is up, start send data
     if (client->buf_used == p->tot_len && client->socks_up) {
         ASSERT(!client->socks_closed) // this callback is removed when SOCKS is closed
@@ -1963,6 +3709,11 @@ void client_socks_handler (struct tcp_client *client, int event)
         case BSOCKSCLIENT_EVENT_ERROR: {
             client_log(client, BLOG_INFO, "SOCKS error");
 
+            if (!client->socks_up) {
+                Tun2SocksStats_Inc(TUN2SOCKS_STAT_SOCKS_CONNECT_FAILURES);
+                SocksBalancer_ReportFailure(&socks_balancer, client->socks_server_generation, client->socks_server);
+            }
+
             client_free_socks(client);
         } break;
 
@@ -1971,12 +3722,15 @@ void client_socks_handler (struct tcp_client *client, int event)
 
             client_log(client, BLOG_INFO, "SOCKS up");
 
+            SocksBalancer_ReportUp(&socks_balancer, client->socks_server_generation, client->socks_server,
+                                   btime_gettime() - client->socks_start_time);
+
             // init sending
-            client->socks_send_if = BSocksClient_GetSendInterface(&client->socks_client);
+            client->socks_send_if = BSocksClient_GetSendInterface(client->socks_client);
             StreamPassInterface_Sender_Init(client->socks_send_if, (StreamPassInterface_handler_done)client_socks_send_handler_done, client);
 
             // init receiving
-            client->socks_recv_if = BSocksClient_GetRecvInterface(&client->socks_client);
+            client->socks_recv_if = BSocksClient_GetRecvInterface(client->socks_client);
             StreamRecvInterface_Receiver_Init(client->socks_recv_if, (StreamRecvInterface_handler_done)client_socks_recv_handler_done, client);
             client->socks_recv_buf_used = -1;
             client->socks_recv_tcp_pending = 0;
@@ -2033,9 +3787,27 @@ void client_socks_send_handler_done (struct tcp_client *client, int data_len)
     memmove(client->buf, client->buf + data_len, client->buf_used - data_len);
     client->buf_used -= data_len;
 
+    client_touch(client);
+
+    // return the buffer once it's drained
+    if (client->buf_used == 0) {
+        BufferPool_Put(&client_buffers, client->buf);
+        client->buf = NULL;
+        client_buffers_update_stats();
+
+        // uProxy: the client may be done draining
+        if (draining) {
+            BPending_Set(&drain_job);
+        }
+    }
+
     if (!client->client_closed) {
-        // confirm sent data
-        tcp_recved(client->pcb, data_len);
+        // confirm sent data; tcp_recved takes at most 64k at a time
+        while (data_len > 0) {
+            int recved = bmin_int(data_len, UINT16_MAX);
+            tcp_recved(client->pcb, recved);
+            data_len -= recved;
+        }
     }
 
     if (client->buf_used > 0) {
@@ -2057,13 +3829,35 @@ void client_socks_recv_initiate (struct tcp_client *client)
     ASSERT(client->socks_up)
     ASSERT(client->socks_recv_buf_used == -1)
 
-    StreamRecvInterface_Receiver_Recv(client->socks_recv_if, client->socks_recv_buf, sizeof(client->socks_recv_buf));
+    // Receive into the full-size buffer only while the SOCKS connection keeps
+    // it filled; an idle connection waits with just its small buffer, and
+    // falls back to it when we're out of buffer memory.
+    if (client->socks_recv_buf_wanted && !client->socks_recv_buf) {
+        if ((client->socks_recv_buf = BufferPool_Get(&client_socks_recv_buffers))) {
+            client_buffers_update_stats();
+        } else {
+            Tun2SocksStats_Inc(TUN2SOCKS_STAT_TCP_BUFFER_SHORT_READS);
+        }
+    }
+    else if (!client->socks_recv_buf_wanted && client->socks_recv_buf) {
+        BufferPool_Put(&client_socks_recv_buffers, client->socks_recv_buf);
+        client->socks_recv_buf = NULL;
+        client_buffers_update_stats();
+    }
+
+    if (client->socks_recv_buf) {
+        client->socks_recv_data = client->socks_recv_buf;
+        StreamRecvInterface_Receiver_Recv(client->socks_recv_if, client->socks_recv_data, options.socks_recv_buf_size);
+    } else {
+        client->socks_recv_data = client->socks_recv_idle_buf;
+        StreamRecvInterface_Receiver_Recv(client->socks_recv_if, client->socks_recv_data, sizeof(client->socks_recv_idle_buf));
+    }
 }
 
 void client_socks_recv_handler_done (struct tcp_client *client, int data_len)
 {
     ASSERT(data_len > 0)
-    ASSERT(data_len <= sizeof(client->socks_recv_buf))
+    ASSERT(data_len <= options.socks_recv_buf_size)
     ASSERT(!client->socks_closed)
     ASSERT(client->socks_up)
     ASSERT(client->socks_recv_buf_used == -1)
@@ -2073,6 +3867,12 @@ void client_socks_recv_handler_done (struct tcp_client *client, int data_len)
         return;
     }
 
+    // keep the full-size buffer for the next receive if this one filled the
+    // buffer it had
+    client->socks_recv_buf_wanted = (data_len == (client->socks_recv_buf ? options.socks_recv_buf_size : (int)sizeof(client->socks_recv_idle_buf)));
+
+    client_touch(client);
+
     // set amount of data in buffer
     client->socks_recv_buf_used = data_len;
     client->socks_recv_buf_sent = 0;
@@ -2083,8 +3883,8 @@ void client_socks_recv_handler_done (struct tcp_client *client, int data_len)
         return;
     }
 
-    // continue receiving if needed
-    if (client->socks_recv_buf_used == -1) {
+    // continue receiving if needed; uProxy: not while draining
+    if (client->socks_recv_buf_used == -1 && !draining) {
         client_socks_recv_initiate(client);
     }
 }
@@ -2106,7 +3906,7 @@ int client_socks_recv_send_out (struct tcp_client *client)
             break;
         }
 
-        err_t err = tcp_write(client->pcb, client->socks_recv_buf + client->socks_recv_buf_sent, to_write, TCP_WRITE_FLAG_COPY);
+        err_t err = tcp_write(client->pcb, client->socks_recv_data + client->socks_recv_buf_sent, to_write, TCP_WRITE_FLAG_COPY);
         if (err != ERR_OK) {
             if (err == ERR_MEM) {
                 break;
@@ -2131,6 +3931,9 @@ int client_socks_recv_send_out (struct tcp_client *client)
         return -1;
     }
 
+    // uProxy: the data needs retransmission or window probe timers
+    tcp_timer_update();
+
     // more data to queue?
     if (client->socks_recv_buf_sent < client->socks_recv_buf_used) {
         if (client->socks_recv_tcp_pending == 0) {
@@ -2163,6 +3966,13 @@ err_t client_sent_func (void *arg, struct tcp_pcb *tpcb, u16_t len)
     // decrement pending
     client->socks_recv_tcp_pending -= len;
 
+    client_touch(client);
+
+    // uProxy: the client may be done draining
+    if (draining && client->socks_recv_tcp_pending == 0) {
+        BPending_Set(&drain_job);
+    }
+
     // continue queuing
     if (client->socks_recv_buf_used > 0) {
         ASSERT(client->socks_recv_waiting)
@@ -2179,8 +3989,8 @@ err_t client_sent_func (void *arg, struct tcp_pcb *tpcb, u16_t len)
         // we just queued some data, so it can't have been confirmed yet
         ASSERT(client->socks_recv_tcp_pending > 0)
 
-        // continue receiving if needed
-        if (client->socks_recv_buf_used == -1 && !client->socks_closed) {
+        // continue receiving if needed; uProxy: not while draining
+        if (client->socks_recv_buf_used == -1 && !client->socks_closed && !draining) {
             SYNC_DECL
             SYNC_FROMHERE
             client_socks_recv_initiate(client);
@@ -2207,7 +4017,7 @@ err_t client_sent_func (void *arg, struct tcp_pcb *tpcb, u16_t len)
 
 void udp_send_packet_to_device (void *unused, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len)
 {
-    ASSERT(options.udpgw_remote_server_addr)
+    ASSERT(options.udpgw_remote_server_addr || options.socks_udp || options.transparent_dns)
     ASSERT(local_addr.type == BADDR_TYPE_IPV4 || local_addr.type == BADDR_TYPE_IPV6)
     ASSERT(local_addr.type == remote_addr.type)
     ASSERT(data_len >= 0)
@@ -2296,6 +4106,14 @@ void udp_send_packet_to_device (void *unused, BAddr local_addr, BAddr remote_add
         } break;
     }
 
+    if (BAddr_GetPort(&remote_addr) == hton16(UDP_DNS_PORT)) {
+        Tun2SocksStats_Inc(TUN2SOCKS_STAT_DNS_PACKETS_DOWN);
+        Tun2SocksStats_Add(TUN2SOCKS_STAT_DNS_BYTES_DOWN, packet_length);
+    } else {
+        Tun2SocksStats_Inc(TUN2SOCKS_STAT_UDP_PACKETS_DOWN);
+        Tun2SocksStats_Add(TUN2SOCKS_STAT_UDP_BYTES_DOWN, packet_length);
+    }
+
     // submit packet
     BTap_Send(&device, device_write_buf, packet_length);
 }
@@ -27,8 +27,11 @@
 // name of the program
 #define PROGRAM_NAME "tun2socks"
 
-// size of temporary buffer for passing data from the SOCKS server to TCP for sending
-#define CLIENT_SOCKS_RECV_BUF_SIZE 8192
+// default size of the per-client buffer for passing data from the SOCKS server to TCP for sending
+#define DEFAULT_SOCKS_RECV_BUF_SIZE 8192
+
+// size of the per-client buffer used to wait for data from an idle SOCKS connection
+#define CLIENT_SOCKS_RECV_IDLE_BUF_SIZE 256
 
 // maximum number of udpgw connections
 #define DEFAULT_UDPGW_MAX_CONNECTIONS 256
@@ -50,3 +53,98 @@
 
 // port for dns traffic
  #define UDP_DNS_PORT 53
+
+// number of log records buffered for the Java log thread
+#define LOG_RING_SIZE 256
+
+// maximum length of a buffered log message, including the terminator
+#define LOG_RECORD_MAX_MSG_LEN 256
+
+// number of buffered log records at which the Java log thread is woken early
+#define LOG_RING_WAKEUP_THRESHOLD 32
+
+// default number of DNS answers kept by the transparent DNS cache
+#define DEFAULT_DNS_CACHE_SIZE 256
+
+// largest DNS answer that will be cached
+#define DNS_CACHE_MAX_RESPONSE_LEN 4096
+
+// upper bound on how long a DNS answer is cached, in seconds
+#define DNS_CACHE_MAX_TTL 3600
+
+// upper bound on how long a negative DNS answer is cached, in seconds
+#define DNS_CACHE_MAX_NEGATIVE_TTL 60
+
+// default number of names given fake addresses by --fake-dns
+#define DEFAULT_FAKE_DNS_SIZE 4096
+
+// pool of fake addresses, reserved for benchmarking by RFC 2544
+#define FAKE_DNS_POOL_ADDR "198.18.0.0"
+#define FAKE_DNS_POOL_PREFIX_LEN 15
+
+// maximum number of DNS requests awaiting an answer from the UDP relay, or
+// from the resolver with --dns-tcp, a power of two
+#define DNS_FLOW_TABLE_SIZE 1024
+
+// time after which an unanswered DNS request is forgotten, in milliseconds
+#define DNS_FLOW_TIMEOUT 10000
+
+// default number of TCP connections carrying DNS queries with --dns-tcp
+#define DEFAULT_DNS_TCP_CONNECTIONS 2
+
+// default maximum number of UDP associations
+#define DEFAULT_SOCKS_UDP_MAX_FLOWS 256
+
+// default time after which a UDP association without traffic is closed, in milliseconds
+#define DEFAULT_SOCKS_UDP_IDLE_TIMEOUT 60000
+
+// default number of authenticated SOCKS connections kept ready for new TCP connections
+#define DEFAULT_SOCKS_POOL_SIZE 2
+
+// default time after which an unused pooled SOCKS connection is closed, in milliseconds
+#define DEFAULT_SOCKS_POOL_MAX_IDLE 30000
+
+// default and largest maximum number of packets read from the device per
+// readiness event; each packet of the batch has a buffer of the device MTU
+#define DEFAULT_TUN_READ_BATCH 8
+#define MAX_TUN_READ_BATCH 64
+
+// default number of device read buffers that lwIP can hold without copying
+#define DEFAULT_DEVICE_BUFFERS 64
+
+// default maximum number of TCP connections, which sizes the lwIP TCP pools
+#define DEFAULT_MAX_TCP_CONNECTIONS 1024
+
+// number of lwIP TCP segments reserved per connection, enough to fill its send buffer
+#define TCP_SEGS_PER_CONNECTION 16
+
+// number of SOCKS connection failures in a row after which a server stops getting new connections
+#define SOCKS_SERVER_MAX_FAILURES 3
+
+// time for which a failing SOCKS server gets no new connections, in milliseconds
+#define SOCKS_SERVER_EJECT_TIME 30000
+
+// default memory for TCP client buffers, shared by all connections, in bytes.
+// Half of it holds data sent by apps, in buffers of one TCP window each, so
+// with the default 64 KiB window (DEFAULT_TCP_WND) 64 connections can upload
+// at once; the other half gives 512 connections a SOCKS receive buffer of
+// DEFAULT_SOCKS_RECV_BUF_SIZE. Keep in sync with TunnelConfig.java.
+#define DEFAULT_TCP_BUFFER_MEMORY (8 * 1024 * 1024)
+
+// number of unused TCP client buffers of each kind kept for reuse
+#define TCP_BUFFER_POOL_MAX_FREE 16
+
+// default time after which a TCP connection without traffic is closed, in milliseconds
+#define DEFAULT_TCP_IDLE_TIMEOUT (60 * 60 * 1000)
+
+// time without traffic after which a TCP connection may be closed to make room for a new one, in milliseconds
+#define TCP_EVICT_MIN_IDLE 10000
+
+// longest the TCP timer sleeps while every TCP connection is idle, in milliseconds
+#define TCP_TIMER_IDLE_INTERVAL 60000
+
+// default TCP receive window of each connection, in bytes
+#define DEFAULT_TCP_WND TCP_WND
+
+// default TCP send buffer of each connection, in bytes
+#define DEFAULT_TCP_SND_BUF TCP_SND_BUF
@@ -60,6 +60,7 @@
     #endif
 #endif
 
+#include <misc/balloc.h>
 #include <base/BLog.h>
 
 #include <tuntap/BTap.h>
@@ -95,6 +96,69 @@ static void recv_olap_handler (BTap *o, int event, DWORD bytes)
 
 #else
 
+// ==== UPROXY ====
+
+static uint8_t * ring_slot (BTap *o, int i)
+{
+    return o->ring + (size_t)((o->ring_start + i) % o->read_batch) * o->frame_mtu;
+}
+
+static void update_read_events (BTap *o)
+{
+    // Keep reading while there is somewhere to put packets. Leaving the
+    // events alone between packets avoids an epoll_ctl per packet.
+    int want = (o->output_packet || (o->ring && o->ring_count < o->read_batch));
+    int events = (want ? (o->poll_events | BREACTOR_READ) : (o->poll_events & ~BREACTOR_READ));
+    
+    if (events != o->poll_events) {
+        o->poll_events = events;
+        BReactor_SetFileDescriptorEvents(o->reactor, &o->bfd, o->poll_events);
+    }
+}
+
+static void fd_handler_batch (BTap *o)
+{
+    o->read_wakeups++;
+    
+    for (int i = 0; i < o->read_batch; i++) {
+        ASSERT(!o->output_packet || o->ring_count == 0)
+        
+        if (!o->output_packet && o->ring_count == o->read_batch) {
+            break;
+        }
+        
+        // read into the receiver's buffer if it is waiting, else into the ring
+        uint8_t *data = (o->output_packet ? o->output_packet : ring_slot(o, o->ring_count));
+        int bytes = read(o->fd, data, o->frame_mtu);
+        if (bytes < 0) {
+            if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                break;
+            }
+            report_error(o);
+            return;
+        }
+        
+        ASSERT_FORCE(bytes <= o->frame_mtu)
+        
+        o->read_packets++;
+        
+        if (o->output_packet) {
+            // set no output packet
+            o->output_packet = NULL;
+            
+            // inform receiver we finished the packet
+            PacketRecvInterface_Done(&o->output, bytes);
+        } else {
+            o->ring_lens[(o->ring_start + o->ring_count) % o->read_batch] = bytes;
+            o->ring_count++;
+        }
+    }
+    
+    update_read_events(o);
+}
+
+// ==== UPROXY ====
+
 static void fd_handler (BTap *o, int events)
 {
     DebugObject_Access(&o->d_obj);
@@ -104,9 +168,18 @@ static void fd_handler (BTap *o, int events)
         BLog(BLOG_WARNING, "device fd reports error?");
     }
     
+    // ==== UPROXY ====
+    if ((events&BREACTOR_READ) && o->ring) {
+        fd_handler_batch(o);
+        return;
+    }
+    // ==== UPROXY ====
+    
     if (events&BREACTOR_READ) do {
         ASSERT(o->output_packet)
         
+        o->read_wakeups++;
+        
         // try reading into the buffer
         int bytes = read(o->fd, o->output_packet, o->frame_mtu);
         if (bytes < 0) {
@@ -121,6 +194,8 @@ static void fd_handler (BTap *o, int events)
         
         ASSERT_FORCE(bytes <= o->frame_mtu)
         
+        o->read_packets++;
+        
         // set no output packet
         o->output_packet = NULL;
         
@@ -163,6 +238,26 @@ void output_handler_recv (BTap *o, uint8_t *data)
     
 #else
     
+    // ==== UPROXY ====
+    if (o->ring) {
+        if (o->ring_count > 0) {
+            // pass on a packet read earlier
+            int bytes = o->ring_lens[o->ring_start];
+            memcpy(data, ring_slot(o, 0), bytes);
+            o->ring_start = (o->ring_start + 1) % o->read_batch;
+            o->ring_count--;
+            update_read_events(o);
+            PacketRecvInterface_Done(&o->output, bytes);
+            return;
+        }
+        
+        // wait for the device to become readable; fd_handler reads into data
+        o->output_packet = data;
+        update_read_events(o);
+        return;
+    }
+    // ==== UPROXY ====
+    
     // attempt read
     int bytes = read(o->fd, data, o->frame_mtu);
     if (bytes < 0) {
@@ -182,6 +277,8 @@ void output_handler_recv (BTap *o, uint8_t *data)
     
     ASSERT_FORCE(bytes <= o->frame_mtu)
     
+    o->read_packets++;
+    
     PacketRecvInterface_Done(&o->output, bytes);
     
 #endif
@@ -447,6 +544,13 @@ fail0:
         goto fail1;
     }
     o->poll_events = 0;
+    o->read_batch = 1;
+    o->ring = NULL;
+    o->ring_lens = NULL;
+    o->ring_start = 0;
+    o->ring_count = 0;
+    o->read_wakeups = 0;
+    o->read_packets = 0;
     
     goto success;
     
@@ -504,6 +608,13 @@ int BTap_InitWithFD (BTap *o, BReactor *reactor, int fd, int mtu, BTap_handler_e
         goto fail1;
     }
     o->poll_events = 0;
+    o->read_batch = 1;
+    o->ring = NULL;
+    o->ring_lens = NULL;
+    o->ring_start = 0;
+    o->ring_count = 0;
+    o->read_wakeups = 0;
+    o->read_packets = 0;
 
     goto success;
 
@@ -558,6 +669,12 @@ void BTap_Free (BTap *o)
     
 #else
     
+    // free read ring
+    if (o->ring) {
+        BFree(o->ring_lens);
+        BFree(o->ring);
+    }
+    
     // free BFileDescriptor
     BReactor_RemoveFileDescriptor(o->reactor, &o->bfd);
     
@@ -569,6 +686,108 @@ void BTap_Free (BTap *o)
 #endif
 }
 
+// ==== UPROXY ====
+
+int BTap_SetReadBatch (BTap *o, int batch_size)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(batch_size >= 1)
+    
+#ifdef BADVPN_USE_WINAPI
+    
+    return (batch_size == 1);
+    
+#else
+    
+    ASSERT(!o->output_packet)
+    ASSERT(!o->ring)
+    
+    if (batch_size == 1) {
+        return 1;
+    }
+    
+    if (!(o->ring = BAllocArray2(batch_size, o->frame_mtu, 1))) {
+        BLog(BLOG_ERROR, "BAllocArray2 failed");
+        return 0;
+    }
+    
+    if (!(o->ring_lens = BAllocArray(batch_size, sizeof(o->ring_lens[0])))) {
+        BLog(BLOG_ERROR, "BAllocArray failed");
+        BFree(o->ring);
+        o->ring = NULL;
+        return 0;
+    }
+    
+    o->read_batch = batch_size;
+    
+    // start reading ahead into the ring
+    update_read_events(o);
+    
+    return 1;
+    
+#endif
+}
+
+void BTap_GetReadCounters (BTap *o, uint64_t *out_wakeups, uint64_t *out_packets)
+{
+    DebugObject_Access(&o->d_obj);
+    
+#ifdef BADVPN_USE_WINAPI
+    
+    *out_wakeups = 0;
+    *out_packets = 0;
+    
+#else
+    
+    *out_wakeups = o->read_wakeups;
+    *out_packets = o->read_packets;
+    
+#endif
+}
+
+int BTap_SetFD (BTap *o, int fd)
+{
+    DebugObject_Access(&o->d_obj);
+    ASSERT(fd >= 0)
+    
+#ifdef BADVPN_USE_WINAPI
+    
+    return 0;
+    
+#else
+    
+    ASSERT(!o->close_fd)
+    
+    BReactor_RemoveFileDescriptor(o->reactor, &o->bfd);
+    
+    int res = 1;
+    BFileDescriptor_Init(&o->bfd, fd, (BFileDescriptor_handler)fd_handler, o);
+    if (BReactor_AddFileDescriptor(o->reactor, &o->bfd)) {
+        o->fd = fd;
+    } else {
+        BLog(BLOG_ERROR, "BReactor_AddFileDescriptor failed");
+        res = 0;
+        
+        // go back to the old file descriptor
+        BFileDescriptor_Init(&o->bfd, o->fd, (BFileDescriptor_handler)fd_handler, o);
+        if (!BReactor_AddFileDescriptor(o->reactor, &o->bfd)) {
+            BLog(BLOG_ERROR, "BReactor_AddFileDescriptor failed");
+            DEBUGERROR(&o->d_err, o->handler_error(o->handler_error_user));
+            return 0;
+        }
+    }
+    
+    if (o->poll_events) {
+        BReactor_SetFileDescriptorEvents(o->reactor, &o->bfd, o->poll_events);
+    }
+    
+    return res;
+    
+#endif
+}
+
+// ==== UPROXY ====
+
 int BTap_GetMTU (BTap *o)
 {
     DebugObject_Access(&o->d_obj);
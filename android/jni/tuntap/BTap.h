@@ -83,6 +83,16 @@ typedef struct {
     int fd;
     BFileDescriptor bfd;
     int poll_events;
+    // ==== UPROXY ====
+    // batched reading, see BTap_SetReadBatch
+    int read_batch;
+    uint8_t *ring;
+    int *ring_lens;
+    int ring_start;
+    int ring_count;
+    uint64_t read_wakeups;
+    uint64_t read_packets;
+    // ==== UPROXY ====
 #endif
     
     DebugError d_err;
@@ -170,6 +180,55 @@ struct BTap_init_data {
  */
 int BTap_Init2 (BTap *o, BReactor *reactor, struct BTap_init_data init_data, BTap_handler_error handler_error, void *handler_error_user) WARN_UNUSED;
 
+// ==== UPROXY ====
+
+/**
+ * Enables batched reading from the device.
+ * When batching, every readiness event of the device is used to read up
+ * to batch_size packets, until the device has no more. Packets that the
+ * output is not ready for are kept in a ring of batch_size buffers and
+ * passed on as the output asks for them, without waiting for the device
+ * to become readable again.
+ * Must be called before the first packet is received from the output.
+ * Not supported on Windows.
+ *
+ * @param o the object
+ * @param batch_size maximum number of packets to read per readiness event.
+ *                   Must be >=1. 1 reads one packet at a time, as without
+ *                   batching.
+ * @return 1 on success, 0 on failure
+ */
+int BTap_SetReadBatch (BTap *o, int batch_size) WARN_UNUSED;
+
+/**
+ * Returns the number of times the device was found readable, and the number
+ * of packets read from it.
+ * Not supported on Windows.
+ *
+ * @param o the object
+ * @param out_wakeups returns the number of readiness events handled
+ * @param out_packets returns the number of packets read
+ */
+void BTap_GetReadCounters (BTap *o, uint64_t *out_wakeups, uint64_t *out_packets);
+
+/**
+ * Moves the device to another file descriptor for the same kind of device,
+ * for example a tun interface that replaced the previous one.
+ * Packets already read from the old file descriptor are still delivered.
+ * The device must have been initialized with {@link BTap_InitWithFD}, and
+ * the caller keeps ownership of both file descriptors; the old one may be
+ * closed once this returns.
+ * Not supported on Windows.
+ *
+ * @param o the object
+ * @param fd the new file descriptor, in non-blocking mode, with the same MTU
+ * @return 1 on success, 0 on failure, in which case the old file descriptor
+ *         is still used
+ */
+int BTap_SetFD (BTap *o, int fd) WARN_UNUSED;
+
+// ==== UPROXY ====
+
 /**
  * Frees the TAP device.
  *
@@ -0,0 +1,212 @@
+package org.uproxy.tun2socks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class RouteSetTest {
+
+  private static List<RouteSet.Route> routes(String... cidrs) {
+    List<RouteSet.Route> routes = new ArrayList<RouteSet.Route>();
+    for (String cidr : cidrs) {
+      routes.add(RouteSet.parse(cidr));
+    }
+    return routes;
+  }
+
+  private static List<String> complement(boolean ipv6, String... excluded) {
+    List<String> result = new ArrayList<String>();
+    for (RouteSet.Route route : RouteSet.complement(routes(excluded), ipv6)) {
+      result.add(route.toString());
+    }
+    return result;
+  }
+
+  private static void assertInvalid(String cidr) {
+    try {
+      RouteSet.parse(cidr);
+      fail("Parsed " + cidr);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void parseClearsHostBits() {
+    assertEquals("10.0.0.0/8", RouteSet.parse("10.1.2.3/8").toString());
+    assertEquals("fc00:0:0:0:0:0:0:0/7", RouteSet.parse("fdab::1/7").toString());
+  }
+
+  @Test
+  public void parseDefaultsToHostPrefix() {
+    assertEquals("192.168.1.1/32", RouteSet.parse("192.168.1.1").toString());
+    assertEquals("0:0:0:0:0:0:0:1/128", RouteSet.parse("::1").toString());
+  }
+
+  @Test
+  public void parseRejectsInvalidInput() {
+    assertInvalid("");
+    assertInvalid("10.0.0.0/");
+    assertInvalid("10.0.0.0/33");
+    assertInvalid("10.0.0.0/-1");
+    assertInvalid("::/129");
+    assertInvalid("256.0.0.0/8");
+    assertInvalid("10.0.0/8");
+    assertInvalid("localhost");
+    assertInvalid("example.com/24");
+  }
+
+  @Test
+  public void parseRejectsIpv4MappedIpv6() {
+    assertInvalid("::ffff:10.0.0.1");
+    assertInvalid("::ffff:10.0.0.0/104");
+    assertInvalid("::ffff:a00:0/104");
+  }
+
+  @Test
+  public void overlaps() {
+    assertTrue(RouteSet.parse("10.0.0.0/8").overlaps(RouteSet.parse("10.1.0.0/16")));
+    assertTrue(RouteSet.parse("10.1.0.0/16").overlaps(RouteSet.parse("10.0.0.0/8")));
+    assertFalse(RouteSet.parse("10.0.0.0/8").overlaps(RouteSet.parse("11.0.0.0/8")));
+    assertFalse(RouteSet.parse("0.0.0.0/0").overlaps(RouteSet.parse("::/0")));
+  }
+
+  @Test
+  public void complementOfNothingIsEverything() {
+    assertEquals(Arrays.asList("0.0.0.0/0"), complement(false));
+    assertEquals(Arrays.asList("0:0:0:0:0:0:0:0/0"), complement(true));
+  }
+
+  @Test
+  public void complementOfEverythingIsEmpty() {
+    assertEquals(Collections.<String>emptyList(), complement(false, "0.0.0.0/0"));
+    assertEquals(Collections.<String>emptyList(), complement(true, "::/0"));
+    assertEquals(
+        Collections.<String>emptyList(), complement(false, "0.0.0.0/0", "10.0.0.0/8"));
+  }
+
+  @Test
+  public void complementOfOnePrefix() {
+    assertEquals(
+        Arrays.asList(
+            "0.0.0.0/5",
+            "8.0.0.0/7",
+            "11.0.0.0/8",
+            "12.0.0.0/6",
+            "16.0.0.0/4",
+            "32.0.0.0/3",
+            "64.0.0.0/2",
+            "128.0.0.0/1"),
+        complement(false, "10.0.0.0/8"));
+  }
+
+  @Test
+  public void complementMergesOverlappingPrefixes() {
+    List<String> expected = complement(false, "10.0.0.0/8");
+    // Nested
+    assertEquals(expected, complement(false, "10.0.0.0/8", "10.1.0.0/16", "10.1.2.3"));
+    assertEquals(expected, complement(false, "10.1.0.0/16", "10.0.0.0/8"));
+    // Duplicated
+    assertEquals(expected, complement(false, "10.0.0.0/8", "10.0.0.0/8"));
+    // Adjacent halves, out of order
+    assertEquals(expected, complement(false, "10.128.0.0/9", "10.0.0.0/9"));
+    // Adjacent and nested
+    assertEquals(
+        expected, complement(false, "10.0.0.0/9", "10.64.0.0/10", "10.128.0.0/9", "10.200.0.0/16"));
+  }
+
+  @Test
+  public void complementOfFirstAndLastAddress() {
+    List<String> first = complement(false, "0.0.0.0/32");
+    assertEquals(32, first.size());
+    assertEquals("0.0.0.1/32", first.get(0));
+    assertEquals("128.0.0.0/1", first.get(31));
+
+    List<String> last = complement(false, "255.255.255.255/32");
+    assertEquals(32, last.size());
+    assertEquals("0.0.0.0/1", last.get(0));
+    assertEquals("255.255.255.254/32", last.get(31));
+
+    List<String> both = complement(false, "255.255.255.255/32", "0.0.0.0/32");
+    assertEquals(62, both.size());
+    assertEquals("0.0.0.1/32", both.get(0));
+    assertEquals("255.255.255.254/32", both.get(61));
+
+    List<String> lastIpv6 = complement(true, "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff");
+    assertEquals(128, lastIpv6.size());
+    assertEquals("ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe/128", lastIpv6.get(127));
+  }
+
+  @Test
+  public void complementIgnoresTheOtherFamily() {
+    assertEquals(
+        complement(false, "10.0.0.0/8"), complement(false, "10.0.0.0/8", "fc00::/7", "::/0"));
+    assertEquals(
+        complement(true, "fc00::/7"), complement(true, "fc00::/7", "10.0.0.0/8", "0.0.0.0/0"));
+    assertEquals(
+        Arrays.asList(
+            "0:0:0:0:0:0:0:0/1",
+            "8000:0:0:0:0:0:0:0/2",
+            "c000:0:0:0:0:0:0:0/3",
+            "e000:0:0:0:0:0:0:0/4",
+            "f000:0:0:0:0:0:0:0/5",
+            "f800:0:0:0:0:0:0:0/6",
+            "fe00:0:0:0:0:0:0:0/7"),
+        complement(true, "fc00::/7"));
+  }
+
+  // Every address is either excluded or routed, never both, and no two
+  // routes overlap.
+  @Test
+  public void complementPartitionsRandomExclusions() {
+    Random random = new Random(1);
+    for (int round = 0; round < 50; round++) {
+      List<RouteSet.Route> excluded = new ArrayList<RouteSet.Route>();
+      for (int i = random.nextInt(20); i > 0; i--) {
+        excluded.add(RouteSet.parse(randomIpv4(random) + "/" + random.nextInt(33)));
+      }
+      List<RouteSet.Route> routes = RouteSet.complement(excluded, false);
+      for (int i = 0; i < routes.size(); i++) {
+        for (RouteSet.Route route : excluded) {
+          assertFalse(routes.get(i) + " overlaps " + route, routes.get(i).overlaps(route));
+        }
+        for (int j = i + 1; j < routes.size(); j++) {
+          assertFalse(routes.get(i).overlaps(routes.get(j)));
+        }
+      }
+      for (int i = 0; i < 1000; i++) {
+        RouteSet.Route address = RouteSet.parse(randomIpv4(random));
+        assertTrue(
+            address + " is neither excluded nor routed",
+            overlapsAny(address, excluded) || overlapsAny(address, routes));
+      }
+    }
+  }
+
+  private static boolean overlapsAny(RouteSet.Route route, List<RouteSet.Route> routes) {
+    for (RouteSet.Route other : routes) {
+      if (route.overlaps(other)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String randomIpv4(Random random) {
+    return random.nextInt(256)
+        + "."
+        + random.nextInt(256)
+        + "."
+        + random.nextInt(256)
+        + "."
+        + random.nextInt(256);
+  }
+}
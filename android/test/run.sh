@@ -0,0 +1,21 @@
+#!/bin/bash
+# Runs the JVM unit tests for the classes in android/java that don't depend
+# on the Android SDK. Fetches JUnit from Maven Central into android/test/out
+# on first use.
+set -e
+TEST=$(cd "$(dirname "$0")" && pwd)
+OUT=$TEST/out
+MAVEN=https://repo1.maven.org/maven2
+mkdir -p "$OUT/classes"
+
+for jar in junit/junit/4.13.2/junit-4.13.2.jar \
+        org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar; do
+    [ -f "$OUT/$(basename $jar)" ] || curl -sfo "$OUT/$(basename $jar)" "$MAVEN/$jar"
+done
+CLASSPATH=$OUT/junit-4.13.2.jar:$OUT/hamcrest-core-1.3.jar:$OUT/classes
+
+javac -d "$OUT/classes" -cp "$CLASSPATH" \
+    "$TEST/../java/org/uproxy/tun2socks/RouteSet.java" \
+    "$TEST"/java/org/uproxy/tun2socks/*Test.java
+java -cp "$CLASSPATH" org.junit.runner.JUnitCore \
+    $(cd "$TEST/java" && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g')
@@ -14,5 +14,6 @@ module.exports = {
   start: window.tun2socks._genericHandler.bind({}, "start"),
   stop: window.tun2socks._genericHandler.bind({}, "stop"),
   onDisconnect: window.tun2socks._genericHandler.bind({}, "onDisconnect"),
-  deviceSupportsPlugin: window.tun2socks._genericHandler.bind({}, "deviceSupportsPlugin")
+  deviceSupportsPlugin: window.tun2socks._genericHandler.bind({}, "deviceSupportsPlugin"),
+  getStats: window.tun2socks._genericHandler.bind({}, "getStats")
 };